@@ -0,0 +1,223 @@
+package deepnetts.examples.inference;
+
+import deepnetts.net.layers.activation.ActivationType;
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorShuffle;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * {@link Kernels} implemented with the Java Vector API, using the widest SIMD registers supported by the CPU.
+ *
+ * Compiled only with JDK 17 or newer (profile {@code vector-api} in pom.xml), and loaded by {@link Kernels#get()}
+ * only when the JVM is started with {@code --add-modules jdk.incubator.vector}.
+ * Sums are accumulated in several lanes with fused multiply-add, so results can differ from scalar kernels in the last bits.
+ * Cases which are not worth vectorizing (short vectors, pooling other than 2x2 with stride 2, softmax) use scalar kernels.
+ */
+public final class VectorKernels extends ScalarKernels {
+
+    private static final VectorSpecies<Float> SPECIES = FloatVector.SPECIES_PREFERRED;
+    private static final int LANES = SPECIES.length();
+
+    // pick even / odd lanes from two concatenated vectors, used for 2x2 pooling with stride 2
+    private static final VectorShuffle<Float> EVEN_LANES = VectorShuffle.fromOp(SPECIES, i -> 2 * i);
+    private static final VectorShuffle<Float> ODD_LANES = VectorShuffle.fromOp(SPECIES, i -> 2 * i + 1);
+
+    public VectorKernels() { }
+
+    @Override
+    public float dot(float[] a, int aOffset, float[] b, int bOffset, int length) {
+        FloatVector acc0 = FloatVector.zero(SPECIES), acc1 = FloatVector.zero(SPECIES);
+        FloatVector acc2 = FloatVector.zero(SPECIES), acc3 = FloatVector.zero(SPECIES);
+        int i = 0;
+        // four independent accumulators hide latency of fma
+        for (final int bound = length - 4 * LANES; i <= bound; i += 4 * LANES) {
+            acc0 = FloatVector.fromArray(SPECIES, a, aOffset + i).fma(FloatVector.fromArray(SPECIES, b, bOffset + i), acc0);
+            acc1 = FloatVector.fromArray(SPECIES, a, aOffset + i + LANES).fma(FloatVector.fromArray(SPECIES, b, bOffset + i + LANES), acc1);
+            acc2 = FloatVector.fromArray(SPECIES, a, aOffset + i + 2 * LANES).fma(FloatVector.fromArray(SPECIES, b, bOffset + i + 2 * LANES), acc2);
+            acc3 = FloatVector.fromArray(SPECIES, a, aOffset + i + 3 * LANES).fma(FloatVector.fromArray(SPECIES, b, bOffset + i + 3 * LANES), acc3);
+        }
+        for (final int bound = length - LANES; i <= bound; i += LANES) {
+            acc0 = FloatVector.fromArray(SPECIES, a, aOffset + i).fma(FloatVector.fromArray(SPECIES, b, bOffset + i), acc0);
+        }
+        float sum = acc0.add(acc1).add(acc2.add(acc3)).reduceLanes(VectorOperators.ADD);
+        for (; i < length; i++) {
+            sum += a[aOffset + i] * b[bOffset + i];
+        }
+        return sum;
+    }
+
+    @Override
+    public void axpy(float alpha, float[] x, int xOffset, float[] y, int yOffset, int length) {
+        final FloatVector va = FloatVector.broadcast(SPECIES, alpha);
+        int i = 0;
+        for (final int bound = length - LANES; i <= bound; i += LANES) {
+            FloatVector.fromArray(SPECIES, x, xOffset + i).fma(va, FloatVector.fromArray(SPECIES, y, yOffset + i))
+                       .intoArray(y, yOffset + i);
+        }
+        for (; i < length; i++) {
+            y[yOffset + i] += alpha * x[xOffset + i];
+        }
+    }
+
+    @Override
+    public void gemv(float[] m, int mOffset, int rows, int cols, float[] x, int xOffset, float[] bias, int biasOffset, float[] y, int yOffset) {
+        final int vectorCols = SPECIES.loopBound(cols);
+        int r = 0;
+        // four rows at a time, so each vector of x is loaded once for four rows
+        for (; r <= rows - 4; r += 4) {
+            final int row0 = mOffset + r * cols, row1 = row0 + cols, row2 = row1 + cols, row3 = row2 + cols;
+            FloatVector acc0 = FloatVector.zero(SPECIES), acc1 = FloatVector.zero(SPECIES);
+            FloatVector acc2 = FloatVector.zero(SPECIES), acc3 = FloatVector.zero(SPECIES);
+            int c = 0;
+            for (; c < vectorCols; c += LANES) {
+                FloatVector vx = FloatVector.fromArray(SPECIES, x, xOffset + c);
+                acc0 = FloatVector.fromArray(SPECIES, m, row0 + c).fma(vx, acc0);
+                acc1 = FloatVector.fromArray(SPECIES, m, row1 + c).fma(vx, acc1);
+                acc2 = FloatVector.fromArray(SPECIES, m, row2 + c).fma(vx, acc2);
+                acc3 = FloatVector.fromArray(SPECIES, m, row3 + c).fma(vx, acc3);
+            }
+            float sum0 = acc0.reduceLanes(VectorOperators.ADD), sum1 = acc1.reduceLanes(VectorOperators.ADD);
+            float sum2 = acc2.reduceLanes(VectorOperators.ADD), sum3 = acc3.reduceLanes(VectorOperators.ADD);
+            for (; c < cols; c++) {
+                float xc = x[xOffset + c];
+                sum0 += m[row0 + c] * xc;
+                sum1 += m[row1 + c] * xc;
+                sum2 += m[row2 + c] * xc;
+                sum3 += m[row3 + c] * xc;
+            }
+            if (bias != null) {
+                sum0 += bias[biasOffset + r];
+                sum1 += bias[biasOffset + r + 1];
+                sum2 += bias[biasOffset + r + 2];
+                sum3 += bias[biasOffset + r + 3];
+            }
+            y[yOffset + r] = sum0;
+            y[yOffset + r + 1] = sum1;
+            y[yOffset + r + 2] = sum2;
+            y[yOffset + r + 3] = sum3;
+        }
+        for (; r < rows; r++) {
+            float sum = dot(m, mOffset + r * cols, x, xOffset, cols);
+            y[yOffset + r] = bias != null ? sum + bias[biasOffset + r] : sum;
+        }
+    }
+
+    @Override
+    public void gemm(int m, int n, int k, float[] a, int aOffset, int lda, float[] b, int bOffset, int ldb, float[] c, int cOffset, int ldc) {
+        final int vectorCols = SPECIES.loopBound(n);
+        int i = 0;
+        // 4 x LANES blocks of C are kept in registers while going through k
+        for (; i <= m - 4; i += 4) {
+            final int a0 = aOffset + i * lda, a1 = a0 + lda, a2 = a1 + lda, a3 = a2 + lda;
+            final int c0 = cOffset + i * ldc, c1 = c0 + ldc, c2 = c1 + ldc, c3 = c2 + ldc;
+            for (int j = 0; j < vectorCols; j += LANES) {
+                FloatVector acc0 = FloatVector.fromArray(SPECIES, c, c0 + j);
+                FloatVector acc1 = FloatVector.fromArray(SPECIES, c, c1 + j);
+                FloatVector acc2 = FloatVector.fromArray(SPECIES, c, c2 + j);
+                FloatVector acc3 = FloatVector.fromArray(SPECIES, c, c3 + j);
+                for (int p = 0; p < k; p++) {
+                    FloatVector vb = FloatVector.fromArray(SPECIES, b, bOffset + p * ldb + j);
+                    acc0 = vb.fma(FloatVector.broadcast(SPECIES, a[a0 + p]), acc0);
+                    acc1 = vb.fma(FloatVector.broadcast(SPECIES, a[a1 + p]), acc1);
+                    acc2 = vb.fma(FloatVector.broadcast(SPECIES, a[a2 + p]), acc2);
+                    acc3 = vb.fma(FloatVector.broadcast(SPECIES, a[a3 + p]), acc3);
+                }
+                acc0.intoArray(c, c0 + j);
+                acc1.intoArray(c, c1 + j);
+                acc2.intoArray(c, c2 + j);
+                acc3.intoArray(c, c3 + j);
+            }
+        }
+        for (; i < m; i++) {
+            final int aRow = aOffset + i * lda, cRow = cOffset + i * ldc;
+            for (int p = 0; p < k; p++) {
+                axpy(a[aRow + p], b, bOffset + p * ldb, c, cRow, vectorCols);
+            }
+        }
+        if (vectorCols < n) { // remaining columns of all rows
+            for (int row = 0; row < m; row++) {
+                final int aRow = aOffset + row * lda, cRow = cOffset + row * ldc;
+                for (int p = 0; p < k; p++) {
+                    final float aip = a[aRow + p];
+                    final int bRow = bOffset + p * ldb;
+                    for (int j = vectorCols; j < n; j++) {
+                        c[cRow + j] += aip * b[bRow + j];
+                    }
+                }
+            }
+        }
+    }
+
+    @Override
+    public void activate(ActivationType type, float[] values, int offset, int length) {
+        final int end = offset + length;
+        final int bound = offset + SPECIES.loopBound(length);
+        final FloatVector one = FloatVector.broadcast(SPECIES, 1f);
+        int i = offset;
+        switch (type) {
+            case RELU:
+                for (; i < bound; i += LANES) {
+                    FloatVector.fromArray(SPECIES, values, i).max(0f).intoArray(values, i);
+                }
+                break;
+            case LEAKY_RELU:
+                for (; i < bound; i += LANES) {
+                    FloatVector v = FloatVector.fromArray(SPECIES, values, i);
+                    v.blend(v.mul(Activations.LEAKY_RELU_SLOPE), v.lt(0f)).intoArray(values, i);
+                }
+                break;
+            case SIGMOID:
+                for (; i < bound; i += LANES) {
+                    FloatVector v = FloatVector.fromArray(SPECIES, values, i);
+                    one.div(v.neg().lanewise(VectorOperators.EXP).add(1f)).intoArray(values, i);
+                }
+                break;
+            case TANH:
+                for (; i < bound; i += LANES) {
+                    FloatVector.fromArray(SPECIES, values, i).lanewise(VectorOperators.TANH).intoArray(values, i);
+                }
+                break;
+            default: // linear and softmax
+                super.activate(type, values, offset, length);
+                return;
+        }
+        super.activate(type, values, i, end - i);
+    }
+
+    @Override
+    public void maxPool(float[] in, int inOffset, int inWidth, int inHeight, int depth,
+                        int filterWidth, int filterHeight, int stride, int padX, int padY,
+                        float[] out, int outOffset, int outWidth, int outHeight) {
+        if (filterWidth != 2 || filterHeight != 2 || stride != 2 || padX != 0 || padY != 0) {
+            super.maxPool(in, inOffset, inWidth, inHeight, depth, filterWidth, filterHeight, stride, padX, padY, out, outOffset, outWidth, outHeight);
+            return;
+        }
+
+        // rows with both input rows inside the image, and columns for which 2 * LANES inputs can be read
+        final int fullRows = Math.min(outHeight, inHeight / 2);
+        final int vectorCols = Math.min(outWidth, inWidth / 2) / LANES * LANES;
+        for (int ch = 0; ch < depth; ch++) {
+            final int inStart = inOffset + ch * inWidth * inHeight;
+            final int outStart = outOffset + ch * outWidth * outHeight;
+            for (int oy = 0; oy < fullRows; oy++) {
+                final int row0 = inStart + 2 * oy * inWidth, row1 = row0 + inWidth;
+                final int outRow = outStart + oy * outWidth;
+                for (int ox = 0; ox < vectorCols; ox += LANES) {
+                    final int ix = 2 * ox;
+                    // vertical max of two rows, then max of even and odd columns
+                    FloatVector lo = FloatVector.fromArray(SPECIES, in, row0 + ix).max(FloatVector.fromArray(SPECIES, in, row1 + ix));
+                    FloatVector hi = FloatVector.fromArray(SPECIES, in, row0 + ix + LANES).max(FloatVector.fromArray(SPECIES, in, row1 + ix + LANES));
+                    lo.rearrange(EVEN_LANES, hi).max(lo.rearrange(ODD_LANES, hi)).intoArray(out, outRow + ox);
+                }
+                maxPoolRows(in, inStart, inWidth, inHeight, 2, 2, 2, 0, 0, out, outStart, outWidth, oy, oy + 1, vectorCols, outWidth);
+            }
+            maxPoolRows(in, inStart, inWidth, inHeight, 2, 2, 2, 0, 0, out, outStart, outWidth, fullRows, outHeight, 0, outWidth);
+        }
+    }
+
+    @Override
+    public String getName() {
+        return "vector (" + SPECIES.vectorBitSize() + " bit)";
+    }
+}
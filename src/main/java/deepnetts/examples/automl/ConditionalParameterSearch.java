@@ -0,0 +1,191 @@
+package deepnetts.examples.automl;
+
+import deepnetts.data.MLDataItem;
+import deepnetts.net.FeedForwardNetwork;
+import deepnetts.util.RandomGenerator;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BiFunction;
+import java.util.logging.Logger;
+import javax.visrec.ml.data.DataSet;
+import javax.visrec.ml.eval.EvaluationMetrics;
+
+/**
+ * Hyper parameter search over a {@link SearchSpace} with conditional parameters.
+ *
+ * Unlike a plain grid search, which combines all values of all parameters as if they were independent,
+ * this search trains one network for each distinct configuration in the search space.
+ * Parameters which are not active in some configuration (like number of neurons in the third hidden layer
+ * of a network with a single hidden layer) are not passed to the network factory, and do not multiply the
+ * number of trials.
+ *
+ * Optionally, results of completed trials can be stored in a {@link TrialCache}, so that interrupted search
+ * can be resumed, and trials which have already been completed are not trained again.
+ *
+ * @see SearchSpace
+ */
+public class ConditionalParameterSearch {
+
+    /**
+     * Creates and configures a network (and its trainer) for the given parameter values.
+     */
+    @FunctionalInterface
+    public interface NetworkFactory {
+        FeedForwardNetwork create(Map<String, Object> params);
+    }
+
+    private SearchSpace searchSpace;
+    private NetworkFactory networkFactory;
+    private BiFunction<FeedForwardNetwork, DataSet<MLDataItem>, EvaluationMetrics> evaluator = (network, testSet) -> network.test(testSet);
+    private DataSet<MLDataItem> trainingSet;
+    private DataSet<MLDataItem> testSet;
+    private long randomSeed = 0;
+    private Path trialCacheFile;
+    private List<String> metricNames = Arrays.asList(EvaluationMetrics.ACCURACY, EvaluationMetrics.PRECISION, EvaluationMetrics.RECALL, EvaluationMetrics.F1SCORE);
+    private final List<TrialResult> results = new ArrayList<>();
+
+    private static final Logger LOGGER = Logger.getLogger(ConditionalParameterSearch.class.getName());
+
+    public ConditionalParameterSearch searchSpace(SearchSpace searchSpace) {
+        this.searchSpace = searchSpace;
+        return this;
+    }
+
+    public ConditionalParameterSearch networkFactory(NetworkFactory networkFactory) {
+        this.networkFactory = networkFactory;
+        return this;
+    }
+
+    public ConditionalParameterSearch evaluator(BiFunction<FeedForwardNetwork, DataSet<MLDataItem>, EvaluationMetrics> evaluator) {
+        this.evaluator = evaluator;
+        return this;
+    }
+
+    public ConditionalParameterSearch trainingSet(DataSet<MLDataItem> trainingSet) {
+        this.trainingSet = trainingSet;
+        return this;
+    }
+
+    public ConditionalParameterSearch testSet(DataSet<MLDataItem> testSet) {
+        this.testSet = testSet;
+        return this;
+    }
+
+    public ConditionalParameterSearch randomSeed(long randomSeed) {
+        this.randomSeed = randomSeed;
+        return this;
+    }
+
+    /**
+     * Stores results of completed trials in the given file, and skips trials which are already in it.
+     */
+    public ConditionalParameterSearch trialCache(Path trialCacheFile) {
+        this.trialCacheFile = trialCacheFile;
+        return this;
+    }
+
+    /**
+     * Sets names of evaluation metrics which are stored in trial cache. Default are classification metrics.
+     */
+    public ConditionalParameterSearch metrics(String... metricNames) {
+        this.metricNames = Arrays.asList(metricNames);
+        return this;
+    }
+
+    public SearchSpace getSearchSpace() {
+        return searchSpace;
+    }
+
+    /**
+     * Trains and evaluates a network for each distinct configuration in the search space.
+     */
+    public void run() {
+        if (searchSpace == null || networkFactory == null || trainingSet == null || testSet == null) {
+            throw new IllegalStateException("Search space, network factory, training set and test set must be set before running the search!");
+        }
+
+        results.clear();
+        TrialCache trialCache = openTrialCache();
+        String dataFingerprint = trialCache != null ? TrialCache.fingerprint(trainingSet, testSet) : null;
+
+        List<Map<String, Object>> configs = searchSpace.configurations();
+        int trial = 0;
+        for (Map<String, Object> params : configs) {
+            trial++;
+            String key = trialCache != null ? TrialCache.trialKey(params, dataFingerprint, randomSeed) : null;
+
+            if (trialCache != null && trialCache.contains(key)) {
+                LOGGER.info("Trial " + trial + "/" + configs.size() + " " + params + " already completed, using cached result");
+                results.add(new TrialResult(params, toEvaluationMetrics(trialCache.get(key)), true));
+                continue;
+            }
+
+            LOGGER.info("Trial " + trial + "/" + configs.size() + " " + params);
+
+            RandomGenerator.getDefault().initSeed(randomSeed); // same initial conditions for each trial
+            FeedForwardNetwork network = networkFactory.create(params);
+            network.train(trainingSet);
+            EvaluationMetrics metrics = evaluator.apply(network, testSet);
+
+            results.add(new TrialResult(params, metrics));
+
+            if (trialCache != null) {
+                try {
+                    trialCache.put(key, params, toMap(metrics));
+                } catch (IOException ex) {
+                    throw new UncheckedIOException("Could not write to trial cache " + trialCacheFile, ex);
+                }
+            }
+        }
+    }
+
+    private TrialCache openTrialCache() {
+        if (trialCacheFile == null) {
+            return null;
+        }
+        try {
+            return new TrialCache(trialCacheFile);
+        } catch (IOException ex) {
+            throw new UncheckedIOException("Could not read trial cache " + trialCacheFile, ex);
+        }
+    }
+
+    // metrics which were not computed by the evaluator are stored as NaN, so a cached result shows what is missing
+    private Map<String, Float> toMap(EvaluationMetrics metrics) {
+        Map<String, Float> values = new LinkedHashMap<>();
+        for (String name : metricNames) {
+            Float value;
+            try {
+                value = metrics.get(name);
+            } catch (RuntimeException ex) {
+                value = null;
+            }
+            if (value == null) {
+                LOGGER.warning("Metric " + name + " was not computed by the evaluator, stored as missing (NaN) in trial cache");
+                value = Float.NaN;
+            }
+            values.put(name, value);
+        }
+        return values;
+    }
+
+    private static EvaluationMetrics toEvaluationMetrics(Map<String, Float> values) {
+        EvaluationMetrics metrics = new EvaluationMetrics();
+        values.forEach(metrics::set);
+        return metrics;
+    }
+
+    /**
+     * Returns results of all trials in the search space, both cached and trained in the last run.
+     */
+    public List<TrialResult> getResults() {
+        return Collections.unmodifiableList(results);
+    }
+}
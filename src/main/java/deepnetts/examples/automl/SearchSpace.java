@@ -0,0 +1,181 @@
+package deepnetts.examples.automl;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Predicate;
+
+/**
+ * Hyper parameter search space with support for conditional (dependent) parameters.
+ *
+ * Parameters are combined in the order they are declared. A parameter can be made active
+ * only for certain values of a previously declared parameter, for example the number of
+ * neurons in the second hidden layer is only relevant when there are at least two hidden layers.
+ * Inactive parameters are left out of a configuration, so the search space contains
+ * only distinct configurations and no network is trained twice with an unused setting.
+ *
+ * @see ConditionalParameterSearch
+ */
+public class SearchSpace {
+
+    private final Map<String, List<Object>> params = new LinkedHashMap<>();
+    private final Map<String, Condition> conditions = new LinkedHashMap<>();
+
+    /**
+     * Adds parameter which takes all values from the given list.
+     */
+    public SearchSpace paramValues(String name, List<?> values) {
+        if (values.isEmpty()) {
+            throw new IllegalArgumentException("Parameter " + name + " must have at least one value!");
+        }
+        params.put(name, new ArrayList<>(values));
+        return this;
+    }
+
+    /**
+     * Adds parameter with single fixed value.
+     */
+    public SearchSpace paramValue(String name, Object value) {
+        return paramValues(name, Collections.singletonList(value));
+    }
+
+    /**
+     * Adds integer parameter with values in range [from, to] with the given step.
+     */
+    public SearchSpace paramRange(String name, int from, int to, int step) {
+        if (step <= 0 || to < from) {
+            throw new IllegalArgumentException("Invalid range for parameter " + name + ": " + from + "-" + to + " step " + step);
+        }
+        List<Object> values = new ArrayList<>();
+        for (int val = from; val <= to; val += step) {
+            values.add(val);
+        }
+        return paramValues(name, values);
+    }
+
+    /**
+     * Adds float parameter with values in range [from, to] with the given step.
+     */
+    public SearchSpace paramRange(String name, float from, float to, float step) {
+        if (step <= 0 || to < from) {
+            throw new IllegalArgumentException("Invalid range for parameter " + name + ": " + from + "-" + to + " step " + step);
+        }
+        int count = (int) Math.floor((to - from) / step + 1e-4) + 1; // tolerate rounding errors at the upper bound
+        List<Object> values = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            values.add(from + i * step);
+        }
+        return paramValues(name, values);
+    }
+
+    /**
+     * Makes parameter active only when the value of the parent parameter satisfies the given condition.
+     * Parent parameter has to be declared before the dependent one.
+     * If the parent itself is inactive in some configuration, the dependent parameter is inactive too.
+     */
+    public SearchSpace activeWhen(String name, String parentName, Predicate<Object> condition) {
+        List<String> names = new ArrayList<>(params.keySet());
+        int idx = names.indexOf(name);
+        int parentIdx = names.indexOf(parentName);
+        if (idx < 0 || parentIdx < 0) {
+            throw new IllegalArgumentException("Both " + name + " and " + parentName + " have to be declared before setting a condition!");
+        }
+        if (parentIdx >= idx) {
+            throw new IllegalArgumentException("Parameter " + parentName + " must be declared before dependent parameter " + name);
+        }
+        conditions.put(name, new Condition(parentName, condition));
+        return this;
+    }
+
+    /**
+     * Makes parameter active only when the numeric value of the parent parameter is at least min.
+     * Typical use is number of neurons in i-th hidden layer which depends on number of hidden layers.
+     */
+    public SearchSpace activeWhenAtLeast(String name, String parentName, int min) {
+        return activeWhen(name, parentName, val -> ((Number) val).intValue() >= min);
+    }
+
+    /**
+     * Returns all distinct configurations in this search space, with inactive parameters left out.
+     */
+    public List<Map<String, Object>> configurations() {
+        List<Map<String, Object>> configs = new ArrayList<>();
+        List<String> names = new ArrayList<>(params.keySet());
+        enumerate(names, 0, new LinkedHashMap<>(), configs);
+        return configs;
+    }
+
+    private void enumerate(List<String> names, int idx, Map<String, Object> current, List<Map<String, Object>> configs) {
+        if (idx == names.size()) {
+            configs.add(new LinkedHashMap<>(current));
+            return;
+        }
+
+        String name = names.get(idx);
+        if (!isActive(name, current)) {
+            enumerate(names, idx + 1, current, configs);
+            return;
+        }
+
+        for (Object value : params.get(name)) {
+            current.put(name, value);
+            enumerate(names, idx + 1, current, configs);
+            current.remove(name);
+        }
+    }
+
+    private boolean isActive(String name, Map<String, Object> current) {
+        Condition condition = conditions.get(name);
+        if (condition == null) {
+            return true;
+        }
+        Object parentValue = current.get(condition.parentName);
+        return parentValue != null && condition.predicate.test(parentValue);
+    }
+
+    /**
+     * Returns the number of distinct configurations in this search space.
+     */
+    public int size() {
+        return configurations().size();
+    }
+
+    /**
+     * Returns the number of configurations a plain grid search would try,
+     * when all parameters are treated as independent.
+     */
+    public int gridSize() {
+        int size = 1;
+        for (List<Object> values : params.values()) {
+            size *= values.size();
+        }
+        return size;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        params.forEach((name, values) -> {
+            sb.append(name).append(": ").append(values);
+            Condition condition = conditions.get(name);
+            if (condition != null) {
+                sb.append(" (conditional on ").append(condition.parentName).append(")");
+            }
+            sb.append(System.lineSeparator());
+        });
+        sb.append("Distinct configurations: ").append(size()).append(" (full grid: ").append(gridSize()).append(")");
+        return sb.toString();
+    }
+
+    private static final class Condition {
+        final String parentName;
+        final Predicate<Object> predicate;
+
+        Condition(String parentName, Predicate<Object> predicate) {
+            this.parentName = parentName;
+            this.predicate = predicate;
+        }
+    }
+}
@@ -0,0 +1,186 @@
+package deepnetts.examples.automl;
+
+import deepnetts.data.MLDataItem;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.logging.Logger;
+import javax.visrec.ml.data.DataSet;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Local append-only store of hyper parameter search trial results.
+ *
+ * Each trial is stored as a single JSON line, keyed by a stable hash of parameter values,
+ * data set fingerprint and random seed. Results are appended and flushed as soon as a trial is finished,
+ * so a search that has been interrupted can be resumed, and re-running the same search skips
+ * all trials which are already completed.
+ * Incomplete last line (written when process was killed during write) is logged and truncated from the file on load,
+ * so that the next appended trial starts on its own line. Other lines which cannot be parsed are logged and skipped.
+ * Metrics which were not computed (NaN) are stored as null, since JSON has no NaN, and loaded as NaN.
+ */
+public class TrialCache {
+
+    private final Path file;
+    private final Map<String, Map<String, Float>> entries = new HashMap<>();
+
+    private static final Logger LOGGER = Logger.getLogger(TrialCache.class.getName());
+
+    public TrialCache(Path file) throws IOException {
+        this.file = file;
+        load();
+    }
+
+    private void load() throws IOException {
+        if (!Files.exists(file)) {
+            return;
+        }
+
+        truncateIncompleteLine();
+        List<String> lines = Files.readAllLines(file, StandardCharsets.UTF_8);
+        for (String line : lines) {
+            if (line.trim().isEmpty()) {
+                continue;
+            }
+            try {
+                JSONObject entry = new JSONObject(line);
+                JSONObject metricsJson = entry.getJSONObject("metrics");
+                Map<String, Float> metrics = new LinkedHashMap<>();
+                for (String name : metricsJson.keySet()) {
+                    metrics.put(name, metricsJson.isNull(name) ? Float.NaN : (float) metricsJson.getDouble(name));
+                }
+                entries.put(entry.getString("key"), metrics);
+            } catch (JSONException ex) {
+                LOGGER.warning("Skipping corrupted trial cache entry: " + line);
+            }
+        }
+        LOGGER.info("Loaded " + entries.size() + " cached trials from " + file);
+    }
+
+    // removes bytes after the last newline, which are left by a write interrupted by a crash
+    private void truncateIncompleteLine() throws IOException {
+        byte[] bytes = Files.readAllBytes(file);
+        int end = bytes.length;
+        while (end > 0 && bytes[end - 1] != '\n') {
+            end--;
+        }
+        if (end < bytes.length) {
+            LOGGER.warning("Removing incomplete last trial cache entry: " + new String(bytes, end, bytes.length - end, StandardCharsets.UTF_8));
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+                channel.truncate(end);
+            }
+        }
+    }
+
+    /**
+     * Returns cached metrics for the trial with the given key, or null if trial has not been completed.
+     */
+    public synchronized Map<String, Float> get(String key) {
+        return entries.get(key);
+    }
+
+    public synchronized boolean contains(String key) {
+        return entries.containsKey(key);
+    }
+
+    /**
+     * Appends trial result to the cache file. The file is closed after each write, so completed trials survive a crash.
+     * Each entry is written with a single write call, including its newline.
+     */
+    public synchronized void put(String key, Map<String, Object> params, Map<String, Float> metrics) throws IOException {
+        JSONObject entry = new JSONObject();
+        entry.put("key", key);
+        entry.put("params", new JSONObject(canonicalParams(params)));
+        JSONObject metricsJson = new JSONObject();
+        metrics.forEach((name, value) -> metricsJson.put(name, value.isNaN() ? JSONObject.NULL : value));
+        entry.put("metrics", metricsJson);
+
+        Files.write(file, (entry.toString() + "\n").getBytes(StandardCharsets.UTF_8), StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        entries.put(key, metrics);
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * Returns stable key for trial with the given parameters, data set fingerprint and random seed.
+     * Key does not depend on the order of parameters in the map.
+     */
+    public static String trialKey(Map<String, Object> params, String dataFingerprint, long randomSeed) {
+        StringBuilder sb = new StringBuilder();
+        canonicalParams(params).forEach((name, value) -> sb.append(name).append('=').append(value).append(';'));
+        sb.append("data=").append(dataFingerprint).append(";seed=").append(randomSeed);
+
+        return toHex(sha256().digest(sb.toString().getBytes(StandardCharsets.UTF_8)));
+    }
+
+    /**
+     * Returns fingerprint (hash) of all input and target values in the given data sets.
+     * Any change in data, including different split or normalization, results in a different fingerprint.
+     */
+    @SafeVarargs
+    public static String fingerprint(DataSet<MLDataItem>... dataSets) {
+        MessageDigest digest = sha256();
+        ByteBuffer buffer = ByteBuffer.allocate(8192);
+        for (DataSet<MLDataItem> dataSet : dataSets) {
+            putInt(digest, buffer, dataSet.size());
+            for (MLDataItem item : dataSet) {
+                update(digest, buffer, item.getInput().getValues());
+                update(digest, buffer, item.getTargetOutput().getValues());
+            }
+        }
+        digest.update(buffer.array(), 0, buffer.position());
+
+        return toHex(digest.digest());
+    }
+
+    private static void update(MessageDigest digest, ByteBuffer buffer, float[] values) {
+        for (float value : values) {
+            putInt(digest, buffer, Float.floatToIntBits(value));
+        }
+    }
+
+    private static void putInt(MessageDigest digest, ByteBuffer buffer, int value) {
+        if (buffer.remaining() < 4) {
+            digest.update(buffer.array(), 0, buffer.position());
+            buffer.clear();
+        }
+        buffer.putInt(value);
+    }
+
+    // parameter values with type, sorted by name, so 1 and 1.0f are different keys
+    private static Map<String, String> canonicalParams(Map<String, Object> params) {
+        Map<String, String> canonical = new TreeMap<>();
+        params.forEach((name, value) -> canonical.put(name, value.getClass().getSimpleName() + ":" + value));
+        return canonical;
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex); // SHA-256 is required on every Java platform
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            sb.append(String.format("%02x", b));
+        }
+        return sb.toString();
+    }
+}
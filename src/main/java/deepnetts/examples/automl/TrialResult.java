@@ -0,0 +1,46 @@
+package deepnetts.examples.automl;
+
+import java.util.Collections;
+import java.util.Map;
+import javax.visrec.ml.eval.EvaluationMetrics;
+
+/**
+ * Result of a single hyper parameter search trial: parameter values used to create and train
+ * the network, and evaluation metrics of the trained network.
+ */
+public class TrialResult {
+
+    private final Map<String, Object> params;
+    private final EvaluationMetrics metrics;
+    private final boolean cached;
+
+    public TrialResult(Map<String, Object> params, EvaluationMetrics metrics) {
+        this(params, metrics, false);
+    }
+
+    public TrialResult(Map<String, Object> params, EvaluationMetrics metrics, boolean cached) {
+        this.params = Collections.unmodifiableMap(params);
+        this.metrics = metrics;
+        this.cached = cached;
+    }
+
+    public Map<String, Object> getParams() {
+        return params;
+    }
+
+    public EvaluationMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Returns true if this result has been loaded from trial cache instead of training the network.
+     */
+    public boolean isCached() {
+        return cached;
+    }
+
+    @Override
+    public String toString() {
+        return (cached ? "[cached] " : "") + "Params: " + params + System.lineSeparator() + metrics;
+    }
+}
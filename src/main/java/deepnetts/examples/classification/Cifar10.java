@@ -1,7 +1,10 @@
 package deepnetts.examples.classification;
 
 import deepnetts.core.DeepNetts;
+import deepnetts.data.ExampleImage;
 import deepnetts.data.ImageSet;
+import deepnetts.examples.data.DataSplits;
+import deepnetts.examples.data.IndexedDataSet;
 import deepnetts.data.MLDataItem;
 import deepnetts.eval.ClassificationMetrics;
 import deepnetts.net.ConvolutionalNetwork;
@@ -18,6 +21,7 @@ import deepnetts.util.FileIO;
 import java.io.File;
 import java.io.IOException;
 import java.util.Map;
+import java.util.Random;
 import java.util.logging.Logger;
 
 
@@ -61,7 +65,7 @@ public class Cifar10 {
         imageSet.loadLabels(new File(labelsFile)); // file with category labels, in this case digits 0-9
         imageSet.loadImages(new File(trainingFile), 10000); // 10000 files with list of image paths to use for training,  the second parameter is a number of images in subset of original data set
 
-        ImageSet[] imageSets = imageSet.split(0.65, 0.35); // split data set into training and test sets in given ratio
+        IndexedDataSet<ExampleImage>[] imageSets = DataSplits.split(imageSet, new Random(123), 0.65, 0.35); // split data set into training and test sets in given ratio, without copying images
         int labelsCount = imageSet.getLabelsCount(); // the number of image categories/classes, the number of network outputs should correspond to this
 
         LOGGER.info("Creating neural network architecture...");
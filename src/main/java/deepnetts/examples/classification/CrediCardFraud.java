@@ -2,6 +2,7 @@ package deepnetts.examples.classification;
 
 import deepnetts.core.DeepNetts;
 import deepnetts.data.DataSets;
+import deepnetts.examples.serving.CachingBinaryClassifier;
 import deepnetts.net.FeedForwardNetwork;
 import deepnetts.net.layers.activation.ActivationType;
 import deepnetts.net.loss.LossType;
@@ -83,6 +84,15 @@ public class CrediCardFraud {
         Float result = binClassifier.classify(testTransaction);
         System.out.println("Fraud probability: "+result);            
 
+        // optional prediction cache, for repeated transactions (retries, duplicate events)
+        CachingBinaryClassifier cachingClassifier = new CachingBinaryClassifier(binClassifier, 10000);
+        for (int i = 0; i < 3; i++) {
+            for (MLDataItem item : testSet) {
+                cachingClassifier.classify(item.getInput().getValues());
+            }
+        }
+        System.out.println("Prediction cache: " + cachingClassifier);
+
         
         // shutdown the thread pool
         DeepNetts.shutdown();
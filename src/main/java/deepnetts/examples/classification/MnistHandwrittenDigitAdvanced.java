@@ -1,6 +1,7 @@
 package deepnetts.examples.classification;
 
 import deepnetts.core.DeepNetts;
+import deepnetts.data.ExampleImage;
 import deepnetts.data.ImageSet;
 import deepnetts.eval.ClassificationMetrics;
 import deepnetts.net.ConvolutionalNetwork;
@@ -8,6 +9,8 @@ import deepnetts.net.train.BackpropagationTrainer;
 import deepnetts.util.DeepNettsException;
 import deepnetts.eval.ClassifierEvaluator;
 import deepnetts.eval.ConfusionMatrix;
+import deepnetts.examples.data.DataSplits;
+import deepnetts.examples.data.IndexedDataSet;
 import deepnetts.examples.util.ExampleDataSets;
 import javax.visrec.ml.eval.EvaluationMetrics;
 import deepnetts.net.layers.activation.ActivationType;
@@ -18,6 +21,7 @@ import java.io.File;
 import java.io.IOException;
 import java.nio.file.Path;
 import java.util.Map;
+import java.util.Random;
 import java.util.logging.Logger;
 
 /**
@@ -64,7 +68,7 @@ public class MnistHandwrittenDigitAdvanced {
         imageSet.loadLabels(new File(labelsFile)); // file with category labels, in this case digits 0-9
         imageSet.loadImages(new File(trainingFile), 1000); // files with list of image paths to use for training,  the second parameter is a number of images in subset of original data set
 
-        ImageSet[] imageSets = imageSet.split(0.65, 0.35); // split data set into training and test sets in given ratio
+        IndexedDataSet<ExampleImage>[] imageSets = DataSplits.split(imageSet, new Random(123), 0.65, 0.35); // split data set into training and test sets in given ratio, without copying images
         int labelsCount = imageSet.getLabelsCount(); // the number of image categories/classes, the number of network outputs should correspond to this
 
         LOGGER.info("Creating neural network...");
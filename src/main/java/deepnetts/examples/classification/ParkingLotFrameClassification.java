@@ -0,0 +1,114 @@
+package deepnetts.examples.classification;
+
+import deepnetts.core.DeepNetts;
+import deepnetts.examples.inference.SlotClassifier;
+import deepnetts.examples.inference.SlotMap;
+import deepnetts.examples.inference.ThreadSafeImageClassifier;
+import deepnetts.examples.serving.ChangeGatedImageClassifier;
+import deepnetts.net.ConvolutionalNetwork;
+import deepnetts.util.FileIO;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import javax.imageio.ImageIO;
+
+/**
+ * Detects occupied parking slots on whole camera frames, with a network trained by ParkingLotOccupancyDetection on
+ * cropped slot images.
+ *
+ * All slots of a frame are cropped in a single pass over the frame and classified with a single batch prediction
+ * by {@link SlotClassifier}. For comparison, the same frames are also classified slot by slot, by cropping each slot
+ * with getSubimage and classifying it with {@link ThreadSafeImageClassifier}, and slot by slot with a
+ * {@link ChangeGatedImageClassifier} in front, which classifies only slots that changed since the previous frames.
+ * All three use the preprocessing of the training image set, with inverted images, and the number of slots which are
+ * classified the same with whole frames and slot by slot is printed at the end.
+ *
+ * Arguments: trained network file, slot map CSV file (see {@link SlotMap}), directory with JPEG frames, and optional
+ * scale of slot coordinates (for example 0.3858 for CNRPark+EXT camera files, made for 2592x1944 images, with 1000x750 frames).
+ * Data set is available at http://cnrpark.it/
+ */
+public class ParkingLotFrameClassification {
+
+    public static void main(String[] args) throws IOException, ClassNotFoundException {
+        if (args.length < 3) {
+            System.out.println("Usage: ParkingLotFrameClassification <network file> <slot map csv> <frames directory> [scale]");
+            return;
+        }
+        ConvolutionalNetwork parkingNet = FileIO.createFromFile(args[0], ConvolutionalNetwork.class);
+        SlotMap slots = SlotMap.read(Paths.get(args[1]));
+        if (args.length > 3) {
+            double scale = Double.parseDouble(args[3]);
+            slots = slots.scaled(scale, scale);
+        }
+
+        List<Path> frameFiles;
+        try (Stream<Path> files = Files.list(Paths.get(args[2]))) {
+            frameFiles = files.filter(file -> file.toString().toLowerCase().endsWith(".jpg")).sorted().collect(Collectors.toList());
+        }
+
+        // same preprocessing as the training image set, which inverts images, for all three ways of classification
+        SlotClassifier slotClassifier = SlotClassifier.builder(parkingNet).invertImages(true).build();
+        int width = parkingNet.getLayers().get(0).getWidth(), height = parkingNet.getLayers().get(0).getHeight();
+        ThreadSafeImageClassifier imageClassifier = new ThreadSafeImageClassifier(parkingNet, ThreadSafeImageClassifier.preprocessing(width, height, true));
+        ChangeGatedImageClassifier gatedClassifier = ChangeGatedImageClassifier.builder(imageClassifier).build();
+        String label = slotClassifier.getLabels()[0];
+
+        long slotBySlotNanos = 0, gatedNanos = 0;
+        int agreeing = 0, compared = 0;
+        for (Path frameFile : frameFiles) {
+            BufferedImage frame = ImageIO.read(frameFile.toFile());
+            SlotClassifier.FrameResult result = slotClassifier.classify(frame, slots);
+            long occupied = result.getSlotResults().stream().filter(slot -> slot.getOutput(0) > 0.5f).count();
+            System.out.printf("%-30s %3d of %3d slots %s, %s%n", frameFile.getFileName(), occupied, slots.size(), label, result);
+
+            long start = System.nanoTime();
+            float[] slotBySlot = new float[slots.size()];
+            for (int s = 0; s < slots.size(); s++) {
+                slotBySlot[s] = imageClassifier.classify(crop(frame, slots.getSlots().get(s))).get(label);
+            }
+            slotBySlotNanos += System.nanoTime() - start;
+
+            // crops differ slightly (bounding box and scaling, instead of sampling the slot polygon), so decisions near 0.5 may differ
+            for (int s = 0; s < slots.size(); s++) {
+                if ((result.getSlotResults().get(s).getOutput(0) > 0.5f) == (slotBySlot[s] > 0.5f)) {
+                    agreeing++;
+                }
+                compared++;
+            }
+
+            start = System.nanoTime();
+            for (SlotMap.Slot slot : slots.getSlots()) {
+                gatedClassifier.classify(slot.getId(), crop(frame, slot));
+            }
+            gatedNanos += System.nanoTime() - start;
+        }
+
+        System.out.println();
+        System.out.println("Whole frames:  " + slotClassifier.getLatencyStats());
+        int numFrames = Math.max(1, frameFiles.size());
+        System.out.printf("Slot by slot:  latency mean: %.3f ms, %d of %d slots classified the same as with whole frames%n",
+                          slotBySlotNanos / 1e6 / numFrames, agreeing, compared);
+        System.out.printf("Changed slots: latency mean: %.3f ms, %s%n", gatedNanos / 1e6 / numFrames, gatedClassifier);
+        DeepNetts.shutdown();
+    }
+
+    // bounding box of the slot, within the frame
+    private static BufferedImage crop(BufferedImage frame, SlotMap.Slot slot) {
+        float minX = Float.MAX_VALUE, minY = Float.MAX_VALUE, maxX = -Float.MAX_VALUE, maxY = -Float.MAX_VALUE;
+        for (int i = 0; i < slot.getNumVertices(); i++) {
+            minX = Math.min(minX, slot.getX(i));
+            minY = Math.min(minY, slot.getY(i));
+            maxX = Math.max(maxX, slot.getX(i));
+            maxY = Math.max(maxY, slot.getY(i));
+        }
+        int x = Math.max(0, Math.round(minX)), y = Math.max(0, Math.round(minY));
+        int width = Math.max(1, Math.min(frame.getWidth(), Math.round(maxX)) - x);
+        int height = Math.max(1, Math.min(frame.getHeight(), Math.round(maxY)) - y);
+        return frame.getSubimage(Math.min(x, frame.getWidth() - 1), Math.min(y, frame.getHeight() - 1), width, height);
+    }
+}
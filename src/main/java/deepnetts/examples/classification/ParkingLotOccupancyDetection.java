@@ -1,7 +1,10 @@
 package deepnetts.examples.classification;
 
 import deepnetts.core.DeepNetts;
+import deepnetts.data.ExampleImage;
 import deepnetts.data.ImageSet;
+import deepnetts.examples.data.DataSplits;
+import deepnetts.examples.data.IndexedDataSet;
 import deepnetts.net.ConvolutionalNetwork;
 import deepnetts.net.layers.Filters;
 import deepnetts.net.layers.activation.ActivationType;
@@ -10,6 +13,7 @@ import deepnetts.net.train.BackpropagationTrainer;
 import deepnetts.util.DeepNettsException;
 import deepnetts.util.FileIO;
 import java.io.IOException;
+import java.util.Random;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.visrec.ml.eval.EvaluationMetrics;
@@ -51,9 +55,9 @@ public class ParkingLotOccupancyDetection {
         LOG.info("Loading images...");        
        // imageSet.loadLabels(new File(labelsFile));
        // imageSet.loadImages(new File(trainingFile));
-        imageSet.shuffle();
 
-        ImageSet[] imageSets = imageSet.split(0.60, 0.40);
+        // split in random order into training and test set views, without copying images
+        IndexedDataSet<ExampleImage>[] imageSets = DataSplits.split(imageSet, new Random(123), 0.60, 0.40);
 
         LOG.info("Done loading images.");
 
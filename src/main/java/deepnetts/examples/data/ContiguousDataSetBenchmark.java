@@ -0,0 +1,130 @@
+package deepnetts.examples.data;
+
+import deepnetts.core.DeepNetts;
+import deepnetts.data.DataSets;
+import deepnetts.data.MLDataItem;
+import deepnetts.data.TabularDataSet;
+import deepnetts.net.FeedForwardNetwork;
+import deepnetts.net.layers.activation.ActivationType;
+import deepnetts.net.loss.LossType;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import javax.visrec.ml.data.DataSet;
+
+/**
+ * Compares TabularDataSet, with an item and input tensor per row, to {@link ContiguousTabularDataSet},
+ * which keeps all rows in a single array, as training sets.
+ *
+ * Measures time to fetch a single batch of consecutive rows, and time and memory allocated by the training thread
+ * in a real training epoch, {@code trainer.train} with one epoch, on each layout. Both networks start with the same
+ * random weights. Credit card data set is replicated to get a data set which does not fit into cache.
+ */
+public class ContiguousDataSetBenchmark {
+
+    static final int BATCH_SIZE = 32;
+    static final int REPLICAS = 50;
+    static final int EPOCHS = 3;
+
+    public static void main(String[] args) throws IOException {
+        int numInputs = 29;
+        int numOutputs = 1;
+
+        TabularDataSet<MLDataItem> original = DataSets.readCsv("datasets/creditcard-balanced.csv", numInputs, numOutputs, true);
+        DataSets.scaleToMax(original);
+        TabularDataSet<MLDataItem> tabular = new TabularDataSet<>(numInputs, numOutputs);
+        for (int r = 0; r < REPLICAS; r++) {
+            for (MLDataItem item : original) {
+                tabular.add(new TabularDataSet.Item(item.getInput().getValues().clone(), item.getTargetOutput().getValues().clone()));
+            }
+        }
+        ContiguousTabularDataSet contiguous = ContiguousTabularDataSet.of(tabular);
+        int size = contiguous.size();
+        System.out.println("Rows: " + size + ", inputs: " + numInputs + ", batch size: " + BATCH_SIZE);
+
+        float[] batch = new float[BATCH_SIZE * numInputs];
+        float checksum = 0;
+        int batches = size / BATCH_SIZE;
+        for (int i = 0; i < 3; i++) { // warmup both code paths
+            checksum += fetchTabular(tabular, batches, batch) + fetchContiguous(contiguous, batches, batch);
+        }
+
+        long start = System.nanoTime();
+        checksum += fetchTabular(tabular, batches, batch);
+        long tabularBatchNs = (System.nanoTime() - start) / batches;
+
+        start = System.nanoTime();
+        checksum += fetchContiguous(contiguous, batches, batch);
+        long contiguousBatchNs = (System.nanoTime() - start) / batches;
+
+        FeedForwardNetwork tabularNet = network(numInputs, numOutputs);
+        FeedForwardNetwork contiguousNet = network(numInputs, numOutputs);
+        trainEpoch(tabularNet, tabular); // warmup
+        trainEpoch(contiguousNet, contiguous);
+
+        long[] tabularEpoch = new long[2];
+        long[] contiguousEpoch = new long[2];
+        for (int e = 0; e < EPOCHS; e++) { // alternate layouts, so that both see the same machine state
+            add(tabularEpoch, trainEpoch(tabularNet, tabular));
+            add(contiguousEpoch, trainEpoch(contiguousNet, contiguous));
+        }
+
+        System.out.println("Batch fetch (consecutive rows): TabularDataSet " + tabularBatchNs + " ns, ContiguousTabularDataSet " + contiguousBatchNs + " ns");
+        System.out.println("Training epoch:                 TabularDataSet " + tabularEpoch[0] / EPOCHS / 1_000_000 + " ms, "
+                           + tabularEpoch[1] / EPOCHS / 1024 + " KB allocated, ContiguousTabularDataSet "
+                           + contiguousEpoch[0] / EPOCHS / 1_000_000 + " ms, " + contiguousEpoch[1] / EPOCHS / 1024 + " KB allocated");
+        System.out.println("(checksum " + checksum + ")"); // prevents dead code elimination
+        DeepNetts.shutdown();
+    }
+
+    static FeedForwardNetwork network(int numInputs, int numOutputs) {
+        FeedForwardNetwork network = FeedForwardNetwork.builder()
+                .addInputLayer(numInputs)
+                .addFullyConnectedLayer(80, ActivationType.TANH)
+                .addOutputLayer(numOutputs, ActivationType.SIGMOID)
+                .lossFunction(LossType.CROSS_ENTROPY)
+                .randomSeed(123)
+                .build();
+        network.getTrainer().setMaxEpochs(1)
+                            .setLearningRate(0.001f)
+                            .setBatchMode(true)
+                            .setBatchSize(BATCH_SIZE);
+        return network;
+    }
+
+    // returns elapsed nanos and bytes allocated by the calling thread, which iterates over the data set
+    static long[] trainEpoch(FeedForwardNetwork network, DataSet<MLDataItem> dataSet) {
+        com.sun.management.ThreadMXBean threadBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+        long allocatedBefore = threadBean.getThreadAllocatedBytes(threadId);
+        long start = System.nanoTime();
+        network.getTrainer().train(dataSet);
+        long elapsed = System.nanoTime() - start;
+        return new long[] {elapsed, threadBean.getThreadAllocatedBytes(threadId) - allocatedBefore};
+    }
+
+    private static void add(long[] total, long[] epoch) {
+        total[0] += epoch[0];
+        total[1] += epoch[1];
+    }
+
+    static float fetchTabular(TabularDataSet<MLDataItem> dataSet, int batches, float[] batch) {
+        int numInputs = batch.length / BATCH_SIZE;
+        float sum = 0;
+        for (int b = 0; b < batches; b++) {
+            for (int i = 0; i < BATCH_SIZE; i++) {
+                System.arraycopy(dataSet.get(b * BATCH_SIZE + i).getInput().getValues(), 0, batch, i * numInputs, numInputs);
+            }
+            sum += batch[0];
+        }
+        return sum;
+    }
+
+    static float fetchContiguous(ContiguousTabularDataSet dataSet, int batches, float[] batch) {
+        float sum = 0;
+        for (int b = 0; b < batches; b++) {
+            dataSet.getInputs(b * BATCH_SIZE, BATCH_SIZE, batch, 0);
+            sum += batch[0];
+        }
+        return sum;
+    }
+}
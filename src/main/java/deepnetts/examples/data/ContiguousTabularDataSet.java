@@ -0,0 +1,276 @@
+package deepnetts.examples.data;
+
+import deepnetts.data.MLDataItem;
+import deepnetts.data.TabularDataSet;
+import deepnetts.data.norm.MaxScaler;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.FloatBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.RandomAccess;
+import javax.visrec.ml.data.BasicDataSet;
+import javax.visrec.ml.data.DataSet;
+
+/**
+ * Tabular data set which keeps all rows in two contiguous arrays (struct-of-arrays layout),
+ * one for inputs and one for target outputs, with row-major stride.
+ *
+ * Mini-batches are assembled by block copy from contiguous memory instead of following a reference
+ * to item and then its input tensor for each row. Use {@link #getInputs(int, int, float[], int)} for
+ * consecutive rows, {@link #gatherInputs(int[], int, int, float[])} for shuffled batches, or
+ * {@link #inputsOf(int)} for zero-copy access to a single row.
+ *
+ * For compatibility with code which expects {@link MLDataItem}s, like the trainer, {@code get(row)} and iteration return
+ * a row view: a single item for each thread, which is filled with values of the requested row. Getting items does not
+ * allocate, but an item is only valid until the next item is requested by the same thread, so code which keeps items
+ * (collects them into a list, for example) must copy their values. Changes of item tensors are not visible in this data set:
+ * scaling which changes items in place, like {@code DataSets.scaleToMax(dataSet)} or {@code scaler.apply(dataSet)}, has no effect on it.
+ * Use {@link #scaleToMax()} or {@link #apply(MaxScaler)} instead, which scale the arrays. {@link #shuffle()} reorders rows in the arrays.
+ */
+public class ContiguousTabularDataSet extends BasicDataSet<MLDataItem> {
+
+    private final int numInputs;
+    private final int numOutputs;
+    private final int size;
+    private final float[] inputs;
+    private final float[] outputs;
+
+    public ContiguousTabularDataSet(float[] inputs, float[] outputs, int numInputs, int numOutputs) {
+        super(new RowList(inputs, outputs, numInputs, numOutputs));
+        if (inputs.length % numInputs != 0 || outputs.length % numOutputs != 0 || outputs.length / numOutputs != inputs.length / numInputs) {
+            throw new IllegalArgumentException("Input and output arrays do not contain the same number of rows!");
+        }
+        this.numInputs = numInputs;
+        this.numOutputs = numOutputs;
+        this.size = inputs.length / numInputs;
+        this.inputs = inputs;
+        this.outputs = outputs;
+    }
+
+    /**
+     * Packs items of the given data set (for example created using DataSets.readCsv) into contiguous arrays.
+     */
+    public static ContiguousTabularDataSet of(DataSet<? extends MLDataItem> dataSet) {
+        int size = dataSet.size();
+        MLDataItem first = dataSet.get(0);
+        int numInputs = first.getInput().getValues().length;
+        int numOutputs = first.getTargetOutput().getValues().length;
+
+        float[] inputs = new float[size * numInputs];
+        float[] outputs = new float[size * numOutputs];
+        int row = 0;
+        for (MLDataItem item : dataSet) {
+            System.arraycopy(item.getInput().getValues(), 0, inputs, row * numInputs, numInputs);
+            System.arraycopy(item.getTargetOutput().getValues(), 0, outputs, row * numOutputs, numOutputs);
+            row++;
+        }
+        return new ContiguousTabularDataSet(inputs, outputs, numInputs, numOutputs);
+    }
+
+    /**
+     * Reads the same csv format as DataSets.readCsv, directly into contiguous arrays, without creating an item per row.
+     */
+    public static ContiguousTabularDataSet readCsv(String fileName, int numInputs, int numOutputs, boolean hasHeader) throws IOException {
+        return readCsv(fileName, numInputs, numOutputs, hasHeader, ",");
+    }
+
+    public static ContiguousTabularDataSet readCsv(String fileName, int numInputs, int numOutputs, boolean hasHeader, String delimiter) throws IOException {
+        float[] inputs = new float[1024 * numInputs];
+        float[] outputs = new float[1024 * numOutputs];
+        int rows = 0;
+
+        try (BufferedReader reader = Files.newBufferedReader(Paths.get(fileName), StandardCharsets.UTF_8)) {
+            String line;
+            int lineNum = 0;
+            if (hasHeader) {
+                reader.readLine();
+                lineNum++;
+            }
+            while ((line = reader.readLine()) != null) {
+                lineNum++;
+                if (line.trim().isEmpty()) {
+                    continue;
+                }
+                String[] values = line.split(delimiter);
+                if (values.length != numInputs + numOutputs) {
+                    throw new IOException("Wrong number of values in line " + lineNum + ": expected " + (numInputs + numOutputs) + ", found " + values.length);
+                }
+                if ((rows + 1) * numInputs > inputs.length) {
+                    inputs = Arrays.copyOf(inputs, inputs.length * 2);
+                    outputs = Arrays.copyOf(outputs, outputs.length * 2);
+                }
+                for (int i = 0; i < numInputs; i++) {
+                    inputs[rows * numInputs + i] = Float.parseFloat(values[i].trim());
+                }
+                for (int i = 0; i < numOutputs; i++) {
+                    outputs[rows * numOutputs + i] = Float.parseFloat(values[numInputs + i].trim());
+                }
+                rows++;
+            }
+        }
+
+        return new ContiguousTabularDataSet(Arrays.copyOf(inputs, rows * numInputs), Arrays.copyOf(outputs, rows * numOutputs), numInputs, numOutputs);
+    }
+
+    /**
+     * Copies inputs of numRows consecutive rows starting with fromRow into dest, in a single block copy.
+     */
+    public void getInputs(int fromRow, int numRows, float[] dest, int destOffset) {
+        System.arraycopy(inputs, fromRow * numInputs, dest, destOffset, numRows * numInputs);
+    }
+
+    public void getOutputs(int fromRow, int numRows, float[] dest, int destOffset) {
+        System.arraycopy(outputs, fromRow * numOutputs, dest, destOffset, numRows * numOutputs);
+    }
+
+    /**
+     * Copies inputs of rows with the given indices (for example a shuffled batch) into dest, one row copy per index.
+     */
+    public void gatherInputs(int[] rows, int from, int count, float[] dest) {
+        for (int i = 0; i < count; i++) {
+            System.arraycopy(inputs, rows[from + i] * numInputs, dest, i * numInputs, numInputs);
+        }
+    }
+
+    public void gatherOutputs(int[] rows, int from, int count, float[] dest) {
+        for (int i = 0; i < count; i++) {
+            System.arraycopy(outputs, rows[from + i] * numOutputs, dest, i * numOutputs, numOutputs);
+        }
+    }
+
+    /**
+     * Returns zero-copy view of the inputs in the given row.
+     */
+    public FloatBuffer inputsOf(int row) {
+        return FloatBuffer.wrap(inputs, row * numInputs, numInputs).slice();
+    }
+
+    public FloatBuffer outputsOf(int row) {
+        return FloatBuffer.wrap(outputs, row * numOutputs, numOutputs).slice();
+    }
+
+    /**
+     * Scales inputs and outputs to [0, 1] range by dividing each column with its max absolute value.
+     */
+    public void scaleToMax() {
+        scaleColumns(inputs, numInputs);
+        scaleColumns(outputs, numOutputs);
+    }
+
+    /**
+     * Applies the given scaler (for example created from the training set) to inputs and outputs, in blocks of rows.
+     */
+    public void apply(MaxScaler scaler) {
+        List<MLDataItem> block = new ArrayList<>(SCALE_BLOCK_ROWS);
+        for (int from = 0; from < size; from += SCALE_BLOCK_ROWS) {
+            int to = Math.min(size, from + SCALE_BLOCK_ROWS);
+            block.clear();
+            for (int row = from; row < to; row++) {
+                block.add(copyOf(row));
+            }
+            scaler.apply(new BasicDataSet<>(block));
+            for (int row = from; row < to; row++) {
+                MLDataItem item = block.get(row - from);
+                System.arraycopy(item.getInput().getValues(), 0, inputs, row * numInputs, numInputs);
+                System.arraycopy(item.getTargetOutput().getValues(), 0, outputs, row * numOutputs, numOutputs);
+            }
+        }
+    }
+
+    private MLDataItem copyOf(int row) {
+        return new TabularDataSet.Item(Arrays.copyOfRange(inputs, row * numInputs, (row + 1) * numInputs),
+                                       Arrays.copyOfRange(outputs, row * numOutputs, (row + 1) * numOutputs));
+    }
+
+    private void scaleColumns(float[] values, int numCols) {
+        float[] max = new float[numCols];
+        for (int i = 0; i < values.length; i++) {
+            max[i % numCols] = Math.max(max[i % numCols], Math.abs(values[i]));
+        }
+        for (int i = 0; i < values.length; i++) {
+            if (max[i % numCols] != 0) {
+                values[i] /= max[i % numCols];
+            }
+        }
+    }
+
+    /**
+     * Shuffles rows in place, moving inputs and outputs of each row together.
+     */
+    @Override
+    public void shuffle() {
+        shuffle(new Random());
+    }
+
+    @Override
+    public void shuffle(Random random) {
+        float[] tmp = new float[Math.max(numInputs, numOutputs)];
+        for (int row = size - 1; row > 0; row--) {
+            int other = random.nextInt(row + 1);
+            swapRows(inputs, numInputs, row, other, tmp);
+            swapRows(outputs, numOutputs, row, other, tmp);
+        }
+    }
+
+    private static void swapRows(float[] values, int numCols, int row, int other, float[] tmp) {
+        System.arraycopy(values, row * numCols, tmp, 0, numCols);
+        System.arraycopy(values, other * numCols, values, row * numCols, numCols);
+        System.arraycopy(tmp, 0, values, other * numCols, numCols);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int getNumInputs() {
+        return numInputs;
+    }
+
+    public int getNumOutputs() {
+        return numOutputs;
+    }
+
+    // rows scaled at once by apply(MaxScaler), so that only a block of rows is copied into items at a time
+    private static final int SCALE_BLOCK_ROWS = 4096;
+
+    // returns a reused item of the calling thread, filled with values of the requested row
+    private static final class RowList extends AbstractList<MLDataItem> implements RandomAccess {
+
+        private final float[] inputs;
+        private final float[] outputs;
+        private final int numInputs;
+        private final int numOutputs;
+        private final ThreadLocal<MLDataItem> rowView;
+
+        RowList(float[] inputs, float[] outputs, int numInputs, int numOutputs) {
+            this.inputs = inputs;
+            this.outputs = outputs;
+            this.numInputs = numInputs;
+            this.numOutputs = numOutputs;
+            this.rowView = ThreadLocal.withInitial(() -> new TabularDataSet.Item(new float[numInputs], new float[numOutputs]));
+        }
+
+        @Override
+        public MLDataItem get(int row) {
+            if (row < 0 || row >= size()) {
+                throw new IndexOutOfBoundsException("Row: " + row + ", size: " + size());
+            }
+            MLDataItem item = rowView.get();
+            System.arraycopy(inputs, row * numInputs, item.getInput().getValues(), 0, numInputs);
+            System.arraycopy(outputs, row * numOutputs, item.getTargetOutput().getValues(), 0, numOutputs);
+            return item;
+        }
+
+        @Override
+        public int size() {
+            return inputs.length / numInputs;
+        }
+    }
+}
@@ -0,0 +1,219 @@
+package deepnetts.examples.data;
+
+import deepnetts.data.MLDataItem;
+import deepnetts.data.TrainTestSplit;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import javax.visrec.ml.data.DataSet;
+
+/**
+ * Zero-copy data set splitting.
+ *
+ * All methods return {@link IndexedDataSet} views over the items of the original data set, defined by a
+ * permutation of item indices. Splitting allocates only an int per item, no matter how large the items are
+ * (for example images), and shuffling a split only permutes the indices.
+ *
+ * All splits take a random generator, like DataSet.split, so that a split with a fixed seed is the same in every run.
+ * Each view gets its own seed for {@link IndexedDataSet#shuffle()} from the same generator, and the column and
+ * target names (labels of an image set) of the original data set.
+ *
+ * Note that views share items with the original data set, so normalization applied to one split is visible
+ * in the original data set too.
+ */
+public final class DataSplits {
+
+    private DataSplits() { }
+
+    /**
+     * Splits data set in random order into parts of the given sizes (as fraction of data set size).
+     * If the sum of parts is less then 1, the remaining items are returned as an additional part,
+     * so split(dataSet, rnd, 0.7) returns training and test set with 70% and 30% of items.
+     */
+    public static <E> IndexedDataSet<E>[] split(DataSet<E> dataSet, Random rnd, double... parts) {
+        int[] permutation = permutation(dataSet.size(), rnd);
+        int[] sizes = partSizes(dataSet.size(), parts);
+
+        IndexedDataSet<E>[] splits = newArray(sizes.length);
+        int start = 0;
+        for (int i = 0; i < sizes.length; i++) {
+            splits[i] = IndexedDataSet.of(dataSet, Arrays.copyOfRange(permutation, start, start + sizes[i]), rnd.nextLong());
+            start += sizes[i];
+        }
+        return splits;
+    }
+
+    /**
+     * Splits data set into parts of the given sizes, keeping the same proportion of each class in every part.
+     * Class of an item is the index of max target output, or for a single output, output value rounded to 0 or 1.
+     */
+    public static <E extends MLDataItem> IndexedDataSet<E>[] stratifiedSplit(DataSet<E> dataSet, Random rnd, double... parts) {
+        List<List<Integer>> byClass = new ArrayList<>();
+        for (int i = 0; i < dataSet.size(); i++) {
+            int label = classOf(dataSet.get(i));
+            while (byClass.size() <= label) {
+                byClass.add(new ArrayList<>());
+            }
+            byClass.get(label).add(i);
+        }
+
+        int numParts = partSizes(dataSet.size(), parts).length;
+        int[][] partIndices = new int[numParts][];
+        int[] filled = new int[numParts];
+        int[][] classSizes = new int[byClass.size()][];
+        for (int c = 0; c < byClass.size(); c++) {
+            classSizes[c] = partSizes(byClass.get(c).size(), parts);
+        }
+        for (int p = 0; p < numParts; p++) {
+            int size = 0;
+            for (int[] sizes : classSizes) {
+                size += sizes[p];
+            }
+            partIndices[p] = new int[size];
+        }
+
+        for (int c = 0; c < byClass.size(); c++) {
+            List<Integer> classItems = byClass.get(c);
+            int[] order = permutation(classItems.size(), rnd);
+            int start = 0;
+            for (int p = 0; p < numParts; p++) {
+                for (int k = 0; k < classSizes[c][p]; k++) {
+                    partIndices[p][filled[p]++] = classItems.get(order[start + k]);
+                }
+                start += classSizes[c][p];
+            }
+        }
+
+        IndexedDataSet<E>[] splits = newArray(numParts);
+        for (int p = 0; p < numParts; p++) {
+            splits[p] = IndexedDataSet.of(dataSet, partIndices[p], rnd.nextLong());
+            splits[p].shuffle(rnd); // mix classes within each part
+        }
+        return splits;
+    }
+
+    /**
+     * Zero-copy alternative to DataSets.trainTestSplit.
+     */
+    public static <E> TrainTestSplit trainTestSplit(DataSet<E> dataSet, double trainingRatio, Random rnd) {
+        IndexedDataSet<E>[] splits = split(dataSet, rnd, trainingRatio, 1 - trainingRatio);
+        return new TrainTestSplit(splits[0], splits[1]);
+    }
+
+    /**
+     * Partitions data set into k folds for cross-validation.
+     * Returns k pairs of views {training set, test set}, where test set of the i-th pair is the i-th fold,
+     * and training set contains all other folds.
+     */
+    public static <E> List<IndexedDataSet<E>[]> kFold(DataSet<E> dataSet, int k, Random rnd) {
+        int[][] folds = folds(dataSet.size(), k, rnd);
+        List<IndexedDataSet<E>[]> pairs = new ArrayList<>();
+        for (int fold = 0; fold < k; fold++) {
+            IndexedDataSet<E>[] pair = newArray(2);
+            pair[0] = IndexedDataSet.of(dataSet, allExcept(folds, fold), rnd.nextLong());
+            pair[1] = IndexedDataSet.of(dataSet, folds[fold], rnd.nextLong());
+            pairs.add(pair);
+        }
+        return pairs;
+    }
+
+    /**
+     * Splits indices 0..size-1 in random order into k folds of (almost) equal size.
+     */
+    public static int[][] folds(int size, int k, Random rnd) {
+        if (k < 2 || k > size) {
+            throw new IllegalArgumentException("Number of folds must be between 2 and data set size, got: " + k);
+        }
+        int[] permutation = permutation(size, rnd);
+        int[][] folds = new int[k][];
+        int start = 0;
+        for (int fold = 0; fold < k; fold++) {
+            int foldSize = size / k + (fold < size % k ? 1 : 0);
+            folds[fold] = Arrays.copyOfRange(permutation, start, start + foldSize);
+            start += foldSize;
+        }
+        return folds;
+    }
+
+    /**
+     * Returns random permutation of indices 0..size-1.
+     */
+    public static int[] permutation(int size, Random rnd) {
+        int[] permutation = new int[size];
+        for (int i = 0; i < size; i++) {
+            permutation[i] = i;
+        }
+        for (int i = size - 1; i > 0; i--) {
+            int j = rnd.nextInt(i + 1);
+            int tmp = permutation[i];
+            permutation[i] = permutation[j];
+            permutation[j] = tmp;
+        }
+        return permutation;
+    }
+
+    private static int[] allExcept(int[][] folds, int excluded) {
+        int size = 0;
+        for (int fold = 0; fold < folds.length; fold++) {
+            if (fold != excluded) {
+                size += folds[fold].length;
+            }
+        }
+        int[] indices = new int[size];
+        int pos = 0;
+        for (int fold = 0; fold < folds.length; fold++) {
+            if (fold != excluded) {
+                System.arraycopy(folds[fold], 0, indices, pos, folds[fold].length);
+                pos += folds[fold].length;
+            }
+        }
+        return indices;
+    }
+
+    // number of items in each part, last part takes the rounding remainder
+    private static int[] partSizes(int size, double... parts) {
+        double sum = 0;
+        for (double part : parts) {
+            if (part <= 0) {
+                throw new IllegalArgumentException("Split parts must be positive, got: " + part);
+            }
+            sum += part;
+        }
+        if (sum > 1.0001) {
+            throw new IllegalArgumentException("Sum of split parts must not be greater then 1, got: " + sum);
+        }
+
+        boolean remainderPart = sum < 0.9999;
+        int[] sizes = new int[remainderPart ? parts.length + 1 : parts.length];
+        int assigned = 0;
+        for (int i = 0; i < parts.length; i++) {
+            sizes[i] = (int) Math.round(parts[i] * size);
+            assigned += sizes[i];
+        }
+        sizes[sizes.length - 1] += size - assigned;
+        if (sizes[sizes.length - 1] < 0) {
+            throw new IllegalStateException("Invalid split sizes " + Arrays.toString(sizes));
+        }
+        return sizes;
+    }
+
+    private static int classOf(MLDataItem item) {
+        float[] target = item.getTargetOutput().getValues();
+        if (target.length == 1) {
+            return target[0] >= 0.5f ? 1 : 0;
+        }
+        int maxIdx = 0;
+        for (int i = 1; i < target.length; i++) {
+            if (target[i] > target[maxIdx]) {
+                maxIdx = i;
+            }
+        }
+        return maxIdx;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <E> IndexedDataSet<E>[] newArray(int size) {
+        return new IndexedDataSet[size];
+    }
+}
@@ -0,0 +1,140 @@
+package deepnetts.examples.data;
+
+import java.util.AbstractList;
+import java.util.List;
+import java.util.Random;
+import java.util.RandomAccess;
+import javax.visrec.ml.data.BasicDataSet;
+import javax.visrec.ml.data.DataSet;
+
+/**
+ * Lightweight read-only view of a subset of some data set, defined by an array of item indices.
+ *
+ * Items are not copied, the view only keeps a reference to the backing list of items and an int index
+ * for each item it contains. View of a view refers directly to the original items.
+ * This is used to create training and test sets for cross-validation folds without copying the data.
+ * Column and target names (labels of an image set) of the data set are copied to the view, so evaluators which
+ * name classes by target names work with views too.
+ *
+ * @param <E> type of data set items
+ */
+public class IndexedDataSet<E> extends BasicDataSet<E> {
+
+    private final List<E> backing;
+    private final int[] indices;
+    private final Random random; // for shuffle()
+    private String[] columnNames;
+    private final String[] targetNames;
+
+    private IndexedDataSet(List<E> backing, int[] indices, DataSet<E> source, long randomSeed) {
+        super(new IndexedList<>(backing, indices));
+        this.backing = backing;
+        this.indices = indices;
+        this.random = new Random(randomSeed);
+        this.columnNames = source.getColumnNames();
+        this.targetNames = source.getTargetNames();
+    }
+
+    /**
+     * Creates a view which contains items of the given data set at the specified indices, in the given order,
+     * which is shuffled by {@link #shuffle()} with random seed 0. Index array is copied.
+     */
+    public static <E> IndexedDataSet<E> of(DataSet<E> dataSet, int[] indices) {
+        return of(dataSet, indices, 0);
+    }
+
+    /**
+     * Creates a view which contains items of the given data set at the specified indices, in the given order.
+     * Index array is copied.
+     *
+     * @param randomSeed seed of random order used by {@link #shuffle()}, so that training on the view is reproducible
+     */
+    public static <E> IndexedDataSet<E> of(DataSet<E> dataSet, int[] indices, long randomSeed) {
+        if (dataSet instanceof IndexedDataSet) { // compose indices to refer directly to backing items
+            IndexedDataSet<E> view = (IndexedDataSet<E>) dataSet;
+            int[] composed = new int[indices.length];
+            for (int i = 0; i < indices.length; i++) {
+                composed[i] = view.indices[indices[i]];
+            }
+            return new IndexedDataSet<>(view.backing, composed, view, randomSeed);
+        }
+
+        List<E> items = dataSet.getItems();
+        for (int idx : indices) {
+            if (idx < 0 || idx >= items.size()) {
+                throw new IndexOutOfBoundsException("Index " + idx + " out of data set bounds, size: " + items.size());
+            }
+        }
+        return new IndexedDataSet<>(items, indices.clone(), dataSet, randomSeed);
+    }
+
+    /**
+     * Returns number of items in this view.
+     */
+    public int size() {
+        return indices.length;
+    }
+
+    /**
+     * Returns index of the i-th item of this view in the backing list of items.
+     */
+    public int backingIndex(int i) {
+        return indices[i];
+    }
+
+    /**
+     * Shuffles this view by permuting its indices, backing items are not moved.
+     * Trainer shuffles training set before each epoch, so this is needed to train with a view.
+     */
+    public void shuffle(Random rnd) {
+        for (int i = indices.length - 1; i > 0; i--) {
+            int j = rnd.nextInt(i + 1);
+            int tmp = indices[i];
+            indices[i] = indices[j];
+            indices[j] = tmp;
+        }
+    }
+
+    /**
+     * Shuffles this view with its own random generator, seeded when the view was created.
+     */
+    public void shuffle() {
+        shuffle(random);
+    }
+
+    @Override
+    public String[] getColumnNames() {
+        return columnNames;
+    }
+
+    @Override
+    public void setColumnNames(String[] columnNames) {
+        this.columnNames = columnNames;
+    }
+
+    @Override
+    public String[] getTargetNames() {
+        return targetNames;
+    }
+
+    private static final class IndexedList<E> extends AbstractList<E> implements RandomAccess {
+
+        private final List<E> backing;
+        private final int[] indices;
+
+        IndexedList(List<E> backing, int[] indices) {
+            this.backing = backing;
+            this.indices = indices;
+        }
+
+        @Override
+        public E get(int index) {
+            return backing.get(indices[index]);
+        }
+
+        @Override
+        public int size() {
+            return indices.length;
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package deepnetts.examples.inference;
+
+import deepnetts.net.layers.activation.ActivationType;
+
+/**
+ * In-place activation functions over array ranges, used by inference engines in this package.
+ * Formulas follow the ones used by Deep Netts layers, so that outputs match {@code network.predict}.
+ */
+final class Activations {
+
+    static final float LEAKY_RELU_SLOPE = 0.01f;
+
+    private Activations() { }
+
+    static void apply(ActivationType type, float[] values, int offset, int length) {
+        int end = offset + length;
+        switch (type) {
+            case LINEAR:
+                break;
+            case SIGMOID:
+                for (int i = offset; i < end; i++) {
+                    values[i] = sigmoid(values[i]);
+                }
+                break;
+            case TANH:
+                for (int i = offset; i < end; i++) {
+                    values[i] = tanh(values[i]);
+                }
+                break;
+            case RELU:
+                for (int i = offset; i < end; i++) {
+                    values[i] = Math.max(0, values[i]);
+                }
+                break;
+            case LEAKY_RELU:
+                for (int i = offset; i < end; i++) {
+                    values[i] = leakyRelu(values[i]);
+                }
+                break;
+            case SOFTMAX:
+                softmax(values, offset, length);
+                break;
+            default:
+                throw new IllegalArgumentException("Unsupported activation: " + type);
+        }
+    }
+
+    static float sigmoid(float x) {
+        return 1f / (1f + (float) Math.exp(-x));
+    }
+
+    static float tanh(float x) {
+        return (float) Math.tanh(x);
+    }
+
+    static float leakyRelu(float x) {
+        return x > 0 ? x : LEAKY_RELU_SLOPE * x;
+    }
+
+    static void softmax(float[] values, int offset, int length) {
+        int end = offset + length;
+        float max = Float.NEGATIVE_INFINITY;
+        for (int i = offset; i < end; i++) {
+            max = Math.max(max, values[i]);
+        }
+        float sum = 0;
+        for (int i = offset; i < end; i++) {
+            values[i] = (float) Math.exp(values[i] - max); // subtract max for numerical stability
+            sum += values[i];
+        }
+        for (int i = offset; i < end; i++) {
+            values[i] /= sum;
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package deepnetts.examples.inference;
+
+import deepnetts.core.DeepNetts;
+import deepnetts.net.FeedForwardNetwork;
+import deepnetts.net.layers.activation.ActivationType;
+import deepnetts.net.loss.LossType;
+import java.lang.management.ManagementFactory;
+import java.util.Random;
+
+/**
+ * Measures memory allocated per prediction by {@link FeedForwardInference} with a reused {@link InferenceContext},
+ * and by {@code FeedForwardNetwork.predict} for comparison.
+ *
+ * Allocated bytes are read from the JVM's per-thread allocation counter, after a warm up which lets the JIT
+ * compile the prediction loop. Exits with error status if the inference path allocates anything in steady state.
+ */
+public class AllocationFreeInference {
+
+    private static final int ITERATIONS = 200_000;
+
+    public static void main(String[] args) {
+        FeedForwardNetwork neuralNet = FeedForwardNetwork.builder()
+                                        .addInputLayer(29)
+                                        .addFullyConnectedLayer(80, ActivationType.TANH)
+                                        .addFullyConnectedLayer(40, ActivationType.RELU)
+                                        .addOutputLayer(3, ActivationType.SOFTMAX)
+                                        .lossFunction(LossType.CROSS_ENTROPY)
+                                        .randomSeed(123)
+                                        .build();
+
+        float[] inputs = new float[64 * 29]; // 64 rows stored one after another, to exercise offsets
+        Random rnd = new Random(123);
+        for (int i = 0; i < inputs.length; i++) {
+            inputs[i] = rnd.nextFloat();
+        }
+
+        FeedForwardInference inference = FeedForwardInference.of(neuralNet);
+        InferenceContext ctx = inference.newContext();
+        float[] out = new float[64 * inference.getNumOutputs()];
+
+        // check that results are the same as the network's
+        float maxDiff = 0;
+        for (int row = 0; row < 64; row++) {
+            ctx.predict(inputs, row * 29, out, row * 3);
+            float[] row1 = new float[29];
+            System.arraycopy(inputs, row * 29, row1, 0, 29);
+            float[] expected = neuralNet.predict(row1);
+            for (int i = 0; i < 3; i++) {
+                maxDiff = Math.max(maxDiff, Math.abs(expected[i] - out[row * 3 + i]));
+            }
+        }
+        System.out.println("Max difference from network.predict: " + maxDiff);
+
+        com.sun.management.ThreadMXBean threadBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+
+        double inferenceBytes = measure(threadBean, threadId, () -> {
+            for (int n = 0; n < ITERATIONS; n++) {
+                int row = n & 63;
+                ctx.predict(inputs, row * 29, out, row * 3);
+            }
+        });
+
+        float[] input = new float[29];
+        double networkBytes = measure(threadBean, threadId, () -> {
+            for (int n = 0; n < ITERATIONS; n++) {
+                input[0] = n & 63;
+                neuralNet.predict(input);
+            }
+        });
+
+        System.out.printf("FeedForwardInference with reused context: %.2f B/op%n", inferenceBytes);
+        System.out.printf("FeedForwardNetwork.predict:               %.2f B/op%n", networkBytes);
+
+        DeepNetts.shutdown();
+
+        if (inferenceBytes > 0) {
+            System.err.println("FAILED: inference path allocates memory in steady state");
+            System.exit(1);
+        }
+        System.out.println("OK: 0 B/op");
+    }
+
+    private static double measure(com.sun.management.ThreadMXBean threadBean, long threadId, Runnable loop) {
+        // warm up with the same loop, so that it is JIT compiled before measuring
+        loop.run();
+        loop.run();
+
+        // bytes allocated by reading the counter itself, subtracted from the measurement
+        long before = threadBean.getThreadAllocatedBytes(threadId);
+        long overhead = threadBean.getThreadAllocatedBytes(threadId) - before;
+
+        before = threadBean.getThreadAllocatedBytes(threadId);
+        loop.run();
+        long allocated = threadBean.getThreadAllocatedBytes(threadId) - before - overhead;
+        return Math.max(0, allocated) / (double) ITERATIONS;
+    }
+}
@@ -0,0 +1,73 @@
+package deepnetts.examples.inference;
+
+import deepnetts.core.DeepNetts;
+import deepnetts.data.norm.MaxScaler;
+import deepnetts.net.FeedForwardNetwork;
+import deepnetts.util.FileIO;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+
+/**
+ * Scores a large CSV file with the network and scaler saved by CpuPerformancePrediction example.
+ *
+ * To simulate a large file, rows of datasets/cpu_data.csv are repeated many times in a temporary file,
+ * which is then scored by {@link CsvBatchScorer} without loading it in memory.
+ *
+ * Run CpuPerformancePrediction first, to create savedNetwork.dnet and savedScaler.ser
+ * Run with: java deepnetts.examples.inference.BatchScoringExample [inputFile.csv outputFile.csv]
+ */
+public class BatchScoringExample {
+
+    public static void main(String[] args) throws IOException, ClassNotFoundException {
+        FeedForwardNetwork neuralNet = FileIO.createFromFile("savedNetwork.dnet", FeedForwardNetwork.class);
+        MaxScaler scaler = CsvBatchScorer.loadScaler(Paths.get("savedScaler.ser"));
+
+        Path inputFile, outputFile;
+        if (args.length >= 2) {
+            inputFile = Paths.get(args[0]);
+            outputFile = Paths.get(args[1]);
+        } else {
+            inputFile = Files.createTempFile("cpu_data_large", ".csv");
+            outputFile = Paths.get("cpu_data_predictions.csv");
+            replicate(Paths.get("datasets/cpu_data.csv"), inputFile, 20_000); // about 4 million rows
+        }
+
+        CsvBatchScorer scorer = CsvBatchScorer.builder()
+                                              .network(neuralNet)
+                                              .scaler(scaler)
+                                              .numInputs(6) // 7th column is the target, which is ignored
+                                              .hasHeader(true)
+                                              .includeInputs(true)
+                                              .chunkSize(8192)
+                                              .build();
+
+        CsvBatchScorer.Result result = scorer.score(inputFile, outputFile);
+        System.out.println("Scored " + result);
+        System.out.println("Predictions written to " + outputFile);
+
+        if (args.length < 2) {
+            Files.delete(inputFile);
+        }
+
+        DeepNetts.shutdown();
+    }
+
+    private static void replicate(Path source, Path target, int times) throws IOException {
+        List<String> lines = Files.readAllLines(source, StandardCharsets.UTF_8);
+        try (BufferedWriter writer = Files.newBufferedWriter(target, StandardCharsets.UTF_8)) {
+            writer.write(lines.get(0)); // header
+            writer.newLine();
+            for (int i = 0; i < times; i++) {
+                for (int row = 1; row < lines.size(); row++) {
+                    writer.write(lines.get(row));
+                    writer.newLine();
+                }
+            }
+        }
+    }
+}
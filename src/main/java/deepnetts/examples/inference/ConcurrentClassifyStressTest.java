@@ -0,0 +1,133 @@
+package deepnetts.examples.inference;
+
+import deepnetts.core.DeepNetts;
+import deepnetts.net.ConvolutionalNetwork;
+import deepnetts.net.FeedForwardNetwork;
+import deepnetts.net.layers.Filters;
+import deepnetts.net.layers.activation.ActivationType;
+import deepnetts.net.loss.LossType;
+import deepnetts.util.TensorBase;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Stress test for classifiers shared by many threads.
+ *
+ * Computes reference outputs for a set of random inputs on a single thread, then classifies the same inputs
+ * in random order from many threads at once, using a single shared {@link ThreadSafeImageClassifier}
+ * and {@link ThreadSafeBinaryClassifier}. Every concurrent result must be identical to the single-threaded one.
+ * Also prints max difference between inference outputs and outputs of the original networks.
+ * Exits with error status if any mismatch is found.
+ */
+public class ConcurrentClassifyStressTest {
+
+    private static final int NUM_INPUTS = 64;
+    private static final int NUM_THREADS = 16;
+    private static final int CALLS_PER_THREAD = 500;
+
+    public static void main(String[] args) throws Exception {
+        // same architecture as in MnistHandwrittenDigitAdvanced, with random weights
+        ConvolutionalNetwork convNet = ConvolutionalNetwork.builder()
+                                        .addInputLayer(28, 28, 1)
+                                        .addConvolutionalLayer(12, Filters.ofSize(5), ActivationType.TANH)
+                                        .addMaxPoolingLayer(Filters.ofSize(2).stride(2))
+                                        .addConvolutionalLayer(24, Filters.ofSize(5), ActivationType.TANH)
+                                        .addMaxPoolingLayer(Filters.ofSize(2).stride(2))
+                                        .addFullyConnectedLayer(60, ActivationType.TANH)
+                                        .addOutputLayer(10, ActivationType.SOFTMAX)
+                                        .lossFunction(LossType.CROSS_ENTROPY)
+                                        .randomSeed(123)
+                                        .build();
+        convNet.setOutputLabels("0", "1", "2", "3", "4", "5", "6", "7", "8", "9");
+
+        FeedForwardNetwork ffNet = FeedForwardNetwork.builder()
+                                        .addInputLayer(29)
+                                        .addFullyConnectedLayer(80, ActivationType.TANH)
+                                        .addOutputLayer(1, ActivationType.SIGMOID)
+                                        .lossFunction(LossType.CROSS_ENTROPY)
+                                        .randomSeed(123)
+                                        .build();
+
+        Random rnd = new Random(42);
+        float[][] images = randomInputs(rnd, NUM_INPUTS, 28 * 28);
+        float[][] rows = randomInputs(rnd, NUM_INPUTS, 29);
+
+        ThreadSafeImageClassifier imageClassifier = new ThreadSafeImageClassifier(convNet);
+        ThreadSafeBinaryClassifier binaryClassifier = new ThreadSafeBinaryClassifier(ffNet);
+
+        // single threaded reference results, and comparison with the networks
+        float[][] expectedImageOutputs = new float[NUM_INPUTS][];
+        float[] expectedBinaryOutputs = new float[NUM_INPUTS];
+        float maxConvDiff = 0, maxFfDiff = 0;
+        for (int i = 0; i < NUM_INPUTS; i++) {
+            expectedImageOutputs[i] = imageClassifier.predict(images[i]);
+            expectedBinaryOutputs[i] = binaryClassifier.classify(rows[i]);
+
+            float[] netOut = convNet.predict(new TensorBase(28, 28, 1, images[i].clone())).getValues();
+            for (int j = 0; j < netOut.length; j++) {
+                maxConvDiff = Math.max(maxConvDiff, Math.abs(netOut[j] - expectedImageOutputs[i][j]));
+            }
+            maxFfDiff = Math.max(maxFfDiff, Math.abs(ffNet.predict(rows[i])[0] - expectedBinaryOutputs[i]));
+        }
+        System.out.println("Max difference from ConvolutionalNetwork.predict: " + maxConvDiff);
+        System.out.println("Max difference from FeedForwardNetwork.predict:   " + maxFfDiff);
+
+        // all threads use the same classifier instances
+        AtomicLong mismatches = new AtomicLong();
+        ExecutorService executor = Executors.newFixedThreadPool(NUM_THREADS);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<?>> futures = new ArrayList<>();
+        for (int t = 0; t < NUM_THREADS; t++) {
+            final long seed = t;
+            futures.add(executor.submit(() -> {
+                Random threadRnd = new Random(seed);
+                start.await();
+                for (int n = 0; n < CALLS_PER_THREAD; n++) {
+                    int idx = threadRnd.nextInt(NUM_INPUTS);
+                    if (threadRnd.nextBoolean()) {
+                        if (!Arrays.equals(imageClassifier.predict(images[idx]), expectedImageOutputs[idx])) {
+                            mismatches.incrementAndGet();
+                        }
+                    } else if (Float.compare(binaryClassifier.classify(rows[idx]), expectedBinaryOutputs[idx]) != 0) {
+                        mismatches.incrementAndGet();
+                    }
+                }
+                return null;
+            }));
+        }
+
+        long startTime = System.nanoTime();
+        start.countDown();
+        for (Future<?> future : futures) {
+            future.get();
+        }
+        long elapsedMs = (System.nanoTime() - startTime) / 1_000_000;
+        executor.shutdown();
+
+        System.out.println(NUM_THREADS + " threads x " + CALLS_PER_THREAD + " calls in " + elapsedMs + " ms, mismatches: " + mismatches.get());
+        DeepNetts.shutdown();
+
+        if (mismatches.get() > 0) {
+            System.err.println("FAILED: concurrent results differ from single threaded results");
+            System.exit(1);
+        }
+        System.out.println("OK");
+    }
+
+    private static float[][] randomInputs(Random rnd, int count, int size) {
+        float[][] inputs = new float[count][size];
+        for (float[] input : inputs) {
+            for (int i = 0; i < size; i++) {
+                input[i] = rnd.nextFloat();
+            }
+        }
+        return inputs;
+    }
+}
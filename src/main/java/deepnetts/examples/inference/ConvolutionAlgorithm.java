@@ -0,0 +1,58 @@
+package deepnetts.examples.inference;
+
+import deepnetts.examples.util.LayerSpec;
+
+/**
+ * Algorithm used by {@link ConvolutionalInference} to compute convolutional layers, selected for each inference
+ * with {@link ConvolutionalInference.Builder#convolution(ConvolutionAlgorithm)}.
+ */
+public enum ConvolutionAlgorithm {
+
+    /**
+     * Convolution computed directly from inputs and filters, with sums accumulated in the same order as in
+     * Deep Netts layers, so results with scalar kernels are the same as from {@code network.predict}.
+     * Uses no memory besides layer outputs, and is the best choice for small layers.
+     */
+    DIRECT,
+
+    /**
+     * Convolution lowered to matrix multiplication: filters are a [filters][channels * filter height * filter width] matrix,
+     * which is multiplied by the im2col matrix of input patches, [channels * filter height * filter width][output pixels].
+     * The im2col matrix is never built as a whole, it is packed into small panels which fit in cache, and multiplied by a
+     * cache blocked GEMM, on several threads if requested with {@link ConvolutionalInference.Builder#threads(int)}.
+     * Several times faster than {@link #DIRECT} for large layers, like those in VggNet16. Results differ from
+     * {@code network.predict} in the last bits, since sums are accumulated in a different order.
+     */
+    IM2COL_GEMM,
+
+    /**
+     * Winograd minimal filtering F(2x2, 3x3) for layers with 3x3 filters and stride 1, like all layers of VggNet16,
+     * which needs 2.25 times fewer multiplications than other algorithms; other layers use {@link #IM2COL_GEMM}.
+     * Filters are transformed once, when the inference is created, and take 16/9 of the memory of the original weights.
+     * Results differ from direct convolution by a few units in the last place of the largest values.
+     */
+    WINOGRAD,
+
+    /**
+     * Selects the fastest algorithm for each layer: {@link #WINOGRAD} for layers with 3x3 filters and stride 1
+     * and at least {@value #MIN_WINOGRAD_CHANNELS} input channels, and {@link #IM2COL_GEMM} for other layers.
+     */
+    AUTO;
+
+    // with fewer input channels, cost of Winograd transforms outweighs savings in multiplications (see ConvolutionBenchmark)
+    static final int MIN_WINOGRAD_CHANNELS = 128;
+
+    /**
+     * Returns the algorithm used for the given convolutional layer, with the given number of input channels.
+     */
+    ConvolutionAlgorithm forLayer(LayerSpec spec, int inDepth) {
+        switch (this) {
+            case WINOGRAD:
+                return WinogradConvOp.isSupported(spec) ? WINOGRAD : IM2COL_GEMM;
+            case AUTO:
+                return WinogradConvOp.isSupported(spec) && inDepth >= MIN_WINOGRAD_CHANNELS ? WINOGRAD : IM2COL_GEMM;
+            default:
+                return this;
+        }
+    }
+}
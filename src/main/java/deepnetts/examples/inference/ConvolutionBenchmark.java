@@ -0,0 +1,207 @@
+package deepnetts.examples.inference;
+
+import deepnetts.examples.util.LayerSpec;
+import deepnetts.net.ConvolutionalNetwork;
+import deepnetts.net.layers.AbstractLayer;
+import deepnetts.net.layers.Filters;
+import deepnetts.net.layers.activation.ActivationType;
+import deepnetts.net.loss.LossType;
+import deepnetts.util.TensorBase;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Compares {@link ConvolutionAlgorithm convolution algorithms} of {@link ConvolutionalInference}, layer by layer.
+ *
+ * First checks that {@link ConvolutionAlgorithm#IM2COL_GEMM} and {@link ConvolutionAlgorithm#WINOGRAD} give the same results
+ * as {@link ConvolutionAlgorithm#DIRECT} (up to rounding) for layers with odd sizes, strides, filter sizes and padding, which
+ * cover all edge cases of im2col packing and of Winograd tiles. Then measures all algorithms on each of the 13 convolutional
+ * layers of VggNet16 with 224x224 inputs, the architecture built by {@code VggNetImport}, with random weights: direct
+ * convolution, im2col + GEMM and Winograd in a single thread, and {@link ConvolutionAlgorithm#AUTO} with the given number
+ * of threads. Each layer gets the same input with all algorithms, the output of the previous layer.
+ *
+ * For comparison with the library, the same layers are also run by a Deep Netts {@link ConvolutionalNetwork} with the same
+ * weights, the path of {@code network.predict}: the image is set as network input, and {@code forward()} of each layer is timed,
+ * with the output of the previous library layer as input and the threads the library uses for convolutional layers.
+ * Max difference of library outputs from direct convolution is printed for each layer.
+ *
+ * Run with JDK 17 or newer and {@code --add-modules jdk.incubator.vector -Xmx2g} to use vector kernels.
+ * Optional arguments are number of measured passes (default 3) and number of threads (default all available processors).
+ */
+public class ConvolutionBenchmark {
+
+    public static void main(String[] args) {
+        int runs = args.length > 0 ? Integer.parseInt(args[0]) : 3;
+        int threads = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+        Kernels kernels = Kernels.get();
+        System.out.println("Using " + kernels.getName() + " kernels, " + threads + " threads");
+
+        checkAlgorithms(kernels);
+        benchmarkVggNet16(kernels, runs, threads);
+    }
+
+    // compares im2col + gemm and winograd with direct convolution on small layers
+    private static void checkAlgorithms(Kernels kernels) {
+        Random rnd = new Random(123);
+        // width, height, depth, filters, filter size, stride, same padding (1) or no padding (0)
+        int[][] layers = {{13, 11, 3, 5, 3, 1, 1}, {27, 9, 7, 6, 5, 1, 1}, {17, 19, 4, 9, 3, 2, 1}, {31, 30, 2, 3, 5, 3, 1},
+                          {8, 8, 300, 17, 1, 1, 1}, {60, 3, 70, 5, 3, 1, 1}, {14, 14, 512, 32, 3, 1, 1}, {15, 12, 20, 7, 3, 1, 0}};
+        System.out.println("Max difference from direct convolution:");
+        System.out.printf("  %-48s %12s %12s%n", "layer", "im2col+gemm", "winograd");
+        for (int[] layer : layers) {
+            int width = layer[0], height = layer[1], depth = layer[2], filters = layer[3], filterSize = layer[4], stride = layer[5];
+            int outWidth = layer[6] == 1 ? (width - 1) / stride + 1 : (width - filterSize) / stride + 1;
+            int outHeight = layer[6] == 1 ? (height - 1) / stride + 1 : (height - filterSize) / stride + 1;
+            LayerSpec input = new LayerSpec(LayerSpec.Type.INPUT, width, height, depth, 0, 0, 0, null);
+            LayerSpec conv = new LayerSpec(LayerSpec.Type.CONVOLUTIONAL, outWidth, outHeight, filters, filterSize, filterSize, stride, ActivationType.LEAKY_RELU);
+            List<LayerSpec> specs = Arrays.asList(conv);
+            List<float[]> weights = new ArrayList<>(), biases = new ArrayList<>();
+            KernelsBenchmark.randomWeights(rnd, width * height * depth, depth, specs, weights, biases);
+            float[] in = KernelsBenchmark.random(rnd, width * height * depth, 1);
+
+            float[] direct = predict(ConvolutionalInference.builder(input, specs, weights, biases).kernels(kernels).build(), in);
+            float[] gemm = predict(ConvolutionalInference.builder(input, specs, weights, biases).kernels(kernels)
+                                                         .convolution(ConvolutionAlgorithm.IM2COL_GEMM).build(), in);
+            String winograd = "-";
+            if (ConvolutionAlgorithm.WINOGRAD.forLayer(conv, depth) == ConvolutionAlgorithm.WINOGRAD) {
+                float[] out = predict(ConvolutionalInference.builder(input, specs, weights, biases).kernels(kernels)
+                                                            .convolution(ConvolutionAlgorithm.WINOGRAD).build(), in);
+                winograd = String.format("%.3g", KernelsBenchmark.maxDiff(direct, out, direct.length));
+            }
+            System.out.printf("  %-48s %12.3g %12s%n", conv, KernelsBenchmark.maxDiff(direct, gemm, direct.length), winograd);
+        }
+    }
+
+    private static float[] predict(ConvolutionalInference inference, float[] in) {
+        float[] out = new float[inference.getNumOutputs()];
+        inference.predict(in, 0, out, 0);
+        return out;
+    }
+
+    private static void benchmarkVggNet16(Kernels kernels, int runs, int threads) {
+        List<LayerSpec> specs = KernelsBenchmark.vggNet16Layers();
+        Random rnd = new Random(123);
+        List<float[]> weights = new ArrayList<>(), biases = new ArrayList<>();
+        KernelsBenchmark.randomWeights(rnd, 224 * 224 * 3, 3, specs, weights, biases);
+        LayerSpec input = new LayerSpec(LayerSpec.Type.INPUT, 224, 224, 3, 0, 0, 0, null);
+        float[] image = KernelsBenchmark.random(rnd, 224 * 224 * 3, 1);
+
+        // direct, im2col + gemm and winograd in a single thread, and automatic selection on all threads
+        ConvolutionAlgorithm[] algorithms = {ConvolutionAlgorithm.DIRECT, ConvolutionAlgorithm.IM2COL_GEMM, ConvolutionAlgorithm.WINOGRAD, ConvolutionAlgorithm.AUTO};
+        ConvolutionalInference[] inferences = new ConvolutionalInference[algorithms.length];
+        ConvolutionalInference.LayerOp[][] ops = new ConvolutionalInference.LayerOp[algorithms.length][];
+        for (int a = 0; a < algorithms.length; a++) {
+            inferences[a] = ConvolutionalInference.builder(input, specs, weights, biases).kernels(kernels).convolution(algorithms[a])
+                                                  .threads(algorithms[a] == ConvolutionAlgorithm.AUTO ? threads : 1).build();
+            ops[a] = inferences[a].ops();
+        }
+
+        // layer inputs are outputs of direct convolution, so all algorithms compute the same layers
+        float[][] outputs = new float[ops[0].length][];
+        float[] output = new float[224 * 224 * 64];
+        double[][] nanos = new double[ops.length][ops[0].length];
+        float[] maxDiff = new float[ops[0].length];
+        for (int run = -1; run < runs; run++) { // first run is warm up
+            float[] src = image;
+            for (int l = 0; l < ops[0].length; l++) {
+                if (outputs[l] == null) {
+                    outputs[l] = new float[ops[0][l].outputSize()];
+                }
+                for (int a = 0; a < ops.length; a++) {
+                    if (a > 0 && specs.get(l).getType() != LayerSpec.Type.CONVOLUTIONAL) {
+                        continue;
+                    }
+                    float[] dst = a == 0 ? outputs[l] : output;
+                    long start = System.nanoTime();
+                    ops[a][l].forward(src, 0, dst, 0);
+                    if (run >= 0) {
+                        nanos[a][l] += System.nanoTime() - start;
+                    }
+                    if (a > 0) {
+                        maxDiff[l] = Math.max(maxDiff[l], KernelsBenchmark.maxDiff(outputs[l], output, outputs[l].length));
+                    }
+                }
+                src = outputs[l];
+            }
+        }
+
+        for (ConvolutionalInference inference : inferences) {
+            inference.close();
+        }
+        inferences = null;
+        ops = null; // only direct outputs are needed for the library network
+        float[] libraryDiff = new float[specs.size()];
+        double[] libraryNanos = benchmarkLibrary(specs, weights, biases, image, outputs, runs, libraryDiff);
+
+        System.out.println();
+        System.out.println("VggNet16 convolutional layers, time per image (" + runs + " runs after warm up):");
+        System.out.printf("  %-3s %-48s %8s %10s %10s %10s %10s %10s %9s %9s %9s %9s%n", "#", "layer", "GFLOP", "direct ms", "gemm ms", "wino ms",
+                          "auto " + threads + "t ms", "library ms", "wino/dir", "wino/gemm", "max diff", "lib diff");
+        double[] totals = new double[algorithms.length];
+        double libraryTotal = 0;
+        for (int l = 0; l < specs.size(); l++) {
+            LayerSpec spec = specs.get(l);
+            if (spec.getType() != LayerSpec.Type.CONVOLUTIONAL) {
+                continue;
+            }
+            int inDepth = l == 0 ? 3 : specs.get(l - 1).getDepth();
+            double gflop = 2.0 * spec.getWidth() * spec.getHeight() * spec.getDepth() * inDepth * spec.getFilterWidth() * spec.getFilterHeight() / 1e9;
+            double[] ms = new double[algorithms.length];
+            for (int a = 0; a < algorithms.length; a++) {
+                ms[a] = nanos[a][l] / runs / 1e6;
+                totals[a] += ms[a];
+            }
+            double libraryMs = libraryNanos[l] / runs / 1e6;
+            libraryTotal += libraryMs;
+            System.out.printf("  %-3d %-48s %8.2f %10.1f %10.1f %10.1f %10.1f %10.1f %8.1fx %8.1fx %9.2g %9.2g%n", l + 1, spec, gflop,
+                              ms[0], ms[1], ms[2], ms[3], libraryMs, ms[0] / ms[2], ms[1] / ms[2], maxDiff[l], libraryDiff[l]);
+        }
+        System.out.printf("  total %66.1f %10.1f %10.1f %10.1f %10.1f %8.1fx %8.1fx%n", totals[0], totals[1], totals[2], totals[3],
+                          libraryTotal, totals[0] / totals[2], totals[1] / totals[2]);
+    }
+
+    // times forward() of each library layer with the given weights, and compares its outputs with outputs of direct convolution
+    private static double[] benchmarkLibrary(List<LayerSpec> specs, List<float[]> weights, List<float[]> biases, float[] image,
+                                             float[][] directOutputs, int runs, float[] maxDiff) {
+        // convolutional and pooling layers of the specs, with a small output layer instead of the fully connected ones, which are not timed
+        ConvolutionalNetwork.Builder builder = ConvolutionalNetwork.builder().addInputLayer(224, 224, 3);
+        int numLayers = 0;
+        for (LayerSpec spec : specs) {
+            if (spec.getType() == LayerSpec.Type.CONVOLUTIONAL) {
+                builder.addConvolutionalLayer(spec.getDepth(), Filters.ofSize(spec.getFilterWidth()), spec.getActivation());
+            } else if (spec.getType() == LayerSpec.Type.MAX_POOLING) {
+                builder.addMaxPoolingLayer(spec.getFilterWidth(), spec.getStride());
+            } else {
+                break;
+            }
+            numLayers++;
+        }
+        ConvolutionalNetwork network = builder.addOutputLayer(10, ActivationType.SOFTMAX).lossFunction(LossType.CROSS_ENTROPY).build();
+
+        // specs are layers after the input layer, and library weights are in the same order as weights of ConvolutionalInference
+        List<AbstractLayer> layers = network.getLayers();
+        for (int l = 0; l < numLayers; l++) {
+            if (weights.get(l) != null) {
+                System.arraycopy(weights.get(l), 0, layers.get(l + 1).getWeights().getValues(), 0, weights.get(l).length);
+                System.arraycopy(biases.get(l), 0, layers.get(l + 1).getBiases().getValues(), 0, biases.get(l).length);
+            }
+        }
+
+        double[] nanos = new double[specs.size()];
+        for (int run = -1; run < runs; run++) { // first run is warm up
+            network.setInput(new TensorBase(224, 224, 3, image));
+            for (int l = 0; l < numLayers; l++) {
+                AbstractLayer layer = layers.get(l + 1);
+                long start = System.nanoTime();
+                layer.forward();
+                if (run >= 0) {
+                    nanos[l] += System.nanoTime() - start;
+                }
+                maxDiff[l] = Math.max(maxDiff[l], KernelsBenchmark.maxDiff(directOutputs[l], layer.getOutputs().getValues(), directOutputs[l].length));
+            }
+        }
+        return nanos;
+    }
+}
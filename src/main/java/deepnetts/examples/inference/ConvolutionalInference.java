@@ -0,0 +1,742 @@
+package deepnetts.examples.inference;
+
+import deepnetts.examples.io.BinaryModelFile;
+import deepnetts.examples.util.LayerSpec;
+import deepnetts.net.ConvolutionalNetwork;
+import deepnetts.net.layers.AbstractLayer;
+import deepnetts.net.layers.activation.ActivationType;
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntConsumer;
+
+/**
+ * Forward pass of a trained {@link ConvolutionalNetwork}, with weights shared by all threads.
+ *
+ * Unlike the network itself, which keeps outputs of each layer in the layer objects, this class keeps
+ * layer outputs in an {@link InferenceContext}, so a single instance can classify images from many threads
+ * at the same time, without locking and without a copy of the weights for each thread.
+ *
+ * Only weights are kept for inference: no deltas, gradients or other training buffers, and no output tensor for each layer.
+ * A context has just two activation arenas, sized to the largest layer output, which layers use in turns
+ * (each layer reads the output of the previous layer from one arena and writes its output to the other one),
+ * so for VggNet16 a context takes about 25MB instead of 60MB for outputs of all layers.
+ * Created from a {@link BinaryModelFile}, an inference does not need the network object at all, so memory used by
+ * a large network is its weights plus one context for each thread which runs predictions.
+ * Fully connected layers with mostly zero weights, after pruning, are kept as sparse {@link CsrMatrix} matrices.
+ * Outputs of hidden layers, for example to use a classifier as a feature extractor, are computed by {@link #predictLayer}.
+ * Many inputs at once, like all parking slots of a camera frame, are computed by {@link #predictBatch}.
+ *
+ * Inputs and outputs of layers use the same layout as Deep Netts tensors: channel by channel, row by row.
+ * Weight arrays are shared with the network (not copied, since large networks like VggNet16 use gigabytes of weights),
+ * so the network must not be trained any more after creating an inference for it.
+ *
+ * Dot products, activations and pooling are done by {@link Kernels}, which use SIMD instructions when the Vector API is available.
+ * Convolutional layers are computed directly, lowered to matrix multiplication, or with Winograd minimal filtering,
+ * as selected by {@link ConvolutionAlgorithm} in the {@link Builder}:
+ * <pre>
+ * ConvolutionalInference inference = ConvolutionalInference.builder(network)
+ *                                                          .convolution(ConvolutionAlgorithm.AUTO)
+ *                                                          .threads(4)
+ *                                                          .build();
+ * ...
+ * inference.close(); // stops threads of convolutional layers
+ * </pre>
+ * An inference built with more than one thread owns a thread pool, which is shut down by {@link #close()}.
+ */
+public final class ConvolutionalInference implements Inference, AutoCloseable {
+
+    private final LayerOp[] ops;
+    private final int numInputs;
+    private final int[] outputSizes;
+    private final int arenaSize;
+    private final int numParams;
+    private final Kernels kernels;
+    private final ConvolutionAlgorithm convolution;
+    private final ExecutorService executor; // threads of convolutional layers, or null if they run in the calling thread
+    private final ThreadLocal<InferenceContext> threadContext = ThreadLocal.withInitial(this::newContext);
+
+    private ConvolutionalInference(int numInputs, List<LayerOp> ops, int numParams, Kernels kernels, ConvolutionAlgorithm convolution,
+                                   ExecutorService executor) {
+        this.numInputs = numInputs;
+        this.executor = executor;
+        this.numParams = numParams;
+        this.kernels = kernels;
+        this.convolution = convolution;
+        this.ops = ops.toArray(new LayerOp[0]);
+        this.outputSizes = new int[this.ops.length];
+        int maxHidden = 0;
+        for (int i = 0; i < this.ops.length; i++) {
+            outputSizes[i] = this.ops[i].outputSize();
+            if (i < this.ops.length - 1) { // output of the last layer is written to the caller's array
+                maxHidden = Math.max(maxHidden, outputSizes[i]);
+            }
+        }
+        this.arenaSize = maxHidden;
+    }
+
+    /**
+     * Creates inference for the given network, sharing its weights, using the fastest {@link Kernels} available.
+     */
+    public static ConvolutionalInference of(ConvolutionalNetwork network) {
+        return builder(network).build();
+    }
+
+    /**
+     * Creates inference for the given network, sharing its weights, using the given kernels.
+     */
+    public static ConvolutionalInference of(ConvolutionalNetwork network, Kernels kernels) {
+        return builder(network).kernels(kernels).build();
+    }
+
+    /**
+     * Creates inference from a binary model file, using the fastest {@link Kernels} available.
+     */
+    public static ConvolutionalInference of(BinaryModelFile modelFile) {
+        return builder(modelFile).build();
+    }
+
+    /**
+     * Creates inference from a binary model file, using the given kernels. Weights are copied from the file into
+     * new arrays, without creating the network, so no buffers for training and layer outputs are allocated.
+     * The file can be closed after this method returns.
+     */
+    public static ConvolutionalInference of(BinaryModelFile modelFile, Kernels kernels) {
+        return builder(modelFile).kernels(kernels).build();
+    }
+
+    /**
+     * Creates inference for the architecture given by layer specifications, with weights and biases of each layer
+     * (null for layers without weights).
+     */
+    static ConvolutionalInference of(LayerSpec input, List<LayerSpec> specs, List<float[]> weights, List<float[]> biases, Kernels kernels) {
+        return builder(input, specs, weights, biases).kernels(kernels).build();
+    }
+
+    /**
+     * Returns builder of inference for the given network, which shares weights with the network.
+     */
+    public static Builder builder(ConvolutionalNetwork network) {
+        List<AbstractLayer> layers = network.getLayers();
+        List<LayerSpec> specs = new ArrayList<>();
+        List<float[]> weights = new ArrayList<>();
+        List<float[]> biases = new ArrayList<>();
+        for (int l = 1; l < layers.size(); l++) {
+            AbstractLayer layer = layers.get(l);
+            LayerSpec spec = LayerSpec.of(layer);
+            specs.add(spec);
+            weights.add(spec.hasWeights() ? layer.getWeights().getValues() : null);
+            biases.add(spec.hasWeights() ? layer.getBiases().getValues() : null);
+        }
+        return builder(LayerSpec.of(layers.get(0)), specs, weights, biases);
+    }
+
+    /**
+     * Returns builder of inference from a binary model file. Weights are copied from the file into new arrays,
+     * without creating the network, and the file can be closed after this method returns.
+     */
+    public static Builder builder(BinaryModelFile modelFile) {
+        if (!"ConvolutionalNetwork".equals(modelFile.getNetworkType())) {
+            throw new IllegalArgumentException("Expected ConvolutionalNetwork, model file has " + modelFile.getNetworkType());
+        }
+        List<LayerSpec> layers = modelFile.getLayers();
+        List<float[]> weights = new ArrayList<>();
+        List<float[]> biases = new ArrayList<>();
+        for (int l = 1; l < layers.size(); l++) {
+            weights.add(layers.get(l).hasWeights() ? toArray(modelFile.weights(l)) : null);
+            biases.add(layers.get(l).hasWeights() ? toArray(modelFile.biases(l)) : null);
+        }
+        return builder(layers.get(0), layers.subList(1, layers.size()), weights, biases);
+    }
+
+    static Builder builder(LayerSpec input, List<LayerSpec> specs, List<float[]> weights, List<float[]> biases) {
+        if (input.getType() != LayerSpec.Type.INPUT) {
+            throw new IllegalArgumentException("First layer must be input layer, got " + input);
+        }
+        return new Builder(input, specs, weights, biases);
+    }
+
+    private static float[] toArray(FloatBuffer buffer) {
+        float[] values = new float[buffer.remaining()];
+        buffer.get(values);
+        return values;
+    }
+
+    /**
+     * Default maximal density of fully connected layers computed as sparse matrices, see {@link Builder#sparseDensity(double)}.
+     */
+    public static final double DEFAULT_SPARSE_DENSITY = 0.25;
+
+    /**
+     * Builder of {@link ConvolutionalInference}, which selects kernels and the convolution algorithm.
+     * By default it uses the fastest kernels available, and {@link ConvolutionAlgorithm#DIRECT} convolution in the
+     * calling thread.
+     */
+    public static final class Builder {
+        private final LayerSpec input;
+        private final List<LayerSpec> specs;
+        private final List<float[]> weights;
+        private final List<float[]> biases;
+        private Kernels kernels = Kernels.get();
+        private ConvolutionAlgorithm convolution = ConvolutionAlgorithm.DIRECT;
+        private int threads = 1;
+        private double sparseDensity = DEFAULT_SPARSE_DENSITY;
+
+        private Builder(LayerSpec input, List<LayerSpec> specs, List<float[]> weights, List<float[]> biases) {
+            this.input = input;
+            this.specs = specs;
+            this.weights = weights;
+            this.biases = biases;
+        }
+
+        public Builder kernels(Kernels kernels) {
+            this.kernels = kernels;
+            return this;
+        }
+
+        /**
+         * Sets algorithm used for all convolutional layers.
+         */
+        public Builder convolution(ConvolutionAlgorithm convolution) {
+            this.convolution = convolution;
+            return this;
+        }
+
+        /**
+         * Sets number of threads which compute each convolutional layer with algorithms other than {@link ConvolutionAlgorithm#DIRECT},
+         * 1 by default.
+         * More threads reduce latency of a single prediction, which suits services with few concurrent requests; when
+         * many threads make predictions at the same time, one thread per layer gives the best throughput.
+         * Threads are shared by all predictions, and are stopped by {@link ConvolutionalInference#close()}. With more than one thread, predictions allocate a few small
+         * task objects for each convolutional layer.
+         */
+        public Builder threads(int threads) {
+            if (threads < 1) {
+                throw new IllegalArgumentException("Number of threads must be positive, got " + threads);
+            }
+            this.threads = threads;
+            return this;
+        }
+
+        /**
+         * Sets maximal fraction of non-zero weights for which fully connected layers are stored as a {@link CsrMatrix}
+         * and computed with a sparse matrix vector product, {@value ConvolutionalInference#DEFAULT_SPARSE_DENSITY} by default.
+         * Trained layers have no zero weights, so only layers pruned with a tool like
+         * {@link deepnetts.examples.pruning.MagnitudePruner} are sparse. Dense vector kernels are faster than a sparse product
+         * above this density. Use 0 to keep all layers dense.
+         */
+        public Builder sparseDensity(double sparseDensity) {
+            if (sparseDensity < 0 || sparseDensity > 1) {
+                throw new IllegalArgumentException("Sparse density must be between 0 and 1, got " + sparseDensity);
+            }
+            this.sparseDensity = sparseDensity;
+            return this;
+        }
+
+        public ConvolutionalInference build() {
+            ExecutorService executor = threads > 1 && convolution != ConvolutionAlgorithm.DIRECT ? new ForkJoinPool(threads) : null;
+            List<LayerOp> ops = new ArrayList<>();
+            int numParams = 0;
+            int width = input.getWidth(), height = Math.max(1, input.getHeight()), depth = Math.max(1, input.getDepth());
+            for (int l = 0; l < specs.size(); l++) {
+                LayerSpec spec = specs.get(l);
+                switch (spec.getType()) {
+                    case CONVOLUTIONAL:
+                        switch (convolution.forLayer(spec, depth)) {
+                            case WINOGRAD:
+                                ops.add(new WinogradConvOp(width, height, depth, spec, weights.get(l), biases.get(l), kernels, executor, threads));
+                                break;
+                            case IM2COL_GEMM:
+                                ops.add(new GemmConvOp(width, height, depth, spec, weights.get(l), biases.get(l), kernels, executor, threads));
+                                break;
+                            default:
+                                ops.add(new ConvOp(width, height, depth, spec, weights.get(l), biases.get(l), kernels));
+                        }
+                        break;
+                    case MAX_POOLING:
+                        ops.add(new MaxPoolOp(width, height, depth, spec, kernels));
+                        break;
+                    case FULLY_CONNECTED:
+                    case OUTPUT:
+                        ops.add(denseOp(width * height * depth, spec, weights.get(l), biases.get(l)));
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unsupported layer " + (l + 1) + ": " + spec);
+                }
+                if (spec.hasWeights()) {
+                    numParams += weights.get(l).length + biases.get(l).length;
+                }
+                width = spec.getWidth();
+                height = Math.max(1, spec.getHeight());
+                depth = Math.max(1, spec.getDepth());
+            }
+
+            return new ConvolutionalInference(input.getWidth() * Math.max(1, input.getHeight()) * Math.max(1, input.getDepth()),
+                                              ops, numParams, kernels, convolution, executor);
+        }
+
+        private LayerOp denseOp(int numInputs, LayerSpec spec, float[] weights, float[] biases) {
+            int numOutputs = spec.getWidth();
+            if (weights.length == numInputs * numOutputs
+                && CsrMatrix.countNonZeros(weights, 0, weights.length) <= sparseDensity * weights.length) {
+                return new SparseDenseOp(CsrMatrix.of(weights, 0, numOutputs, numInputs), biases, spec.getActivation(), kernels);
+            }
+            return new DenseOp(numInputs, numOutputs, weights, biases, spec.getActivation(), kernels);
+        }
+    }
+
+    /**
+     * Shuts down threads of convolutional layers, if this inference was built with more than one thread.
+     * Predictions must not be made after closing.
+     */
+    @Override
+    public void close() {
+        if (executor != null) {
+            executor.shutdown();
+        }
+    }
+
+    @Override
+    public InferenceContext newContext() {
+        return new InferenceContext(this, arenaSize, arenaSize); // layers write to the two arenas in turns
+    }
+
+    @Override
+    public void predict(float[] in, int inOffset, float[] out, int outOffset) {
+        predict(in, inOffset, out, outOffset, threadContext.get());
+    }
+
+    @Override
+    public void predict(float[] in, int inOffset, float[] out, int outOffset, InferenceContext ctx) {
+        predictLayer(in, inOffset, ops.length, out, outOffset, ctx);
+    }
+
+    /**
+     * Computes outputs of the layer with the given index in {@code network.getLayers()} (input layer is 0, and the output
+     * layer is {@code getNumLayers() - 1}) for inputs in in[inOffset ...], and writes them to out[outOffset ...],
+     * {@link #getOutputSize(int)} values. Only layers up to the given one are computed, so this is as fast as a prediction,
+     * or faster. Used to take activations of a hidden layer as features, like the 4096 outputs of the last hidden
+     * layer of VggNet16, which are image embeddings for similarity search.
+     */
+    public void predictLayer(float[] in, int inOffset, int layerIdx, float[] out, int outOffset, InferenceContext ctx) {
+        ctx.checkOwner(this);
+        if (layerIdx < 1 || layerIdx > ops.length) {
+            throw new IllegalArgumentException("Layer index must be between 1 and " + ops.length + ", got " + layerIdx);
+        }
+        float[] src = in;
+        int srcOffset = inOffset;
+        for (int l = 0; l < layerIdx; l++) {
+            boolean last = l == layerIdx - 1;
+            float[] dst = last ? out : ctx.buffers[l & 1];
+            int dstOffset = last ? outOffset : 0;
+            ops[l].forward(src, srcOffset, dst, dstOffset);
+            src = dst;
+            srcOffset = dstOffset;
+        }
+    }
+
+    /**
+     * Creates context for batches of up to the given number of inputs, see {@link #predictBatch}.
+     * Buffers are maxBatchSize times larger than those of {@link #newContext()}.
+     */
+    public InferenceContext newBatchContext(int maxBatchSize) {
+        if (maxBatchSize < 1) {
+            throw new IllegalArgumentException("Batch size must be positive, got " + maxBatchSize);
+        }
+        return new InferenceContext(this, arenaSize * maxBatchSize, arenaSize * maxBatchSize);
+    }
+
+    /**
+     * Computes network outputs for batchSize inputs stored one after another in in[inOffset ...], and writes them one
+     * after another to out[outOffset ...], using a context created by {@link #newBatchContext(int)} for at least batchSize inputs.
+     * Layers are computed for the whole batch, one after another, so weights of each layer are read from memory once per
+     * batch instead of once per input, and fully connected layers multiply all inputs with a single matrix multiplication.
+     * Results of fully connected layers differ from {@link #predict} in the last bits, since sums are accumulated in a different order.
+     */
+    public void predictBatch(float[] in, int inOffset, int batchSize, float[] out, int outOffset, InferenceContext ctx) {
+        ctx.checkOwner(this);
+        if (batchSize < 0 || (long) batchSize * arenaSize > ctx.buffers[0].length) {
+            throw new IllegalArgumentException("Batch of " + batchSize + " inputs does not fit into the context, create it with newBatchContext(" + batchSize + ")");
+        }
+        float[] src = in;
+        int srcOffset = inOffset;
+        int srcSize = numInputs;
+        for (int l = 0; l < ops.length; l++) {
+            boolean last = l == ops.length - 1;
+            float[] dst = last ? out : ctx.buffers[l & 1];
+            int dstOffset = last ? outOffset : 0;
+            ops[l].forwardBatch(src, srcOffset, srcSize, batchSize, dst, dstOffset);
+            src = dst;
+            srcOffset = dstOffset;
+            srcSize = outputSizes[l];
+        }
+    }
+
+    /**
+     * Same as {@link #predictLayer(float[], int, int, float[], int, InferenceContext)}, with a context owned by the calling thread.
+     */
+    public void predictLayer(float[] in, int inOffset, int layerIdx, float[] out, int outOffset) {
+        predictLayer(in, inOffset, layerIdx, out, outOffset, threadContext.get());
+    }
+
+    @Override
+    public int getNumInputs() {
+        return numInputs;
+    }
+
+    @Override
+    public int getNumOutputs() {
+        return outputSizes[outputSizes.length - 1];
+    }
+
+    /**
+     * Returns number of layers including the input layer, same as {@code network.getLayers().size()}.
+     */
+    public int getNumLayers() {
+        return ops.length + 1;
+    }
+
+    /**
+     * Returns number of outputs of the layer with the given index in {@code network.getLayers()}.
+     */
+    public int getOutputSize(int layerIdx) {
+        return layerIdx == 0 ? numInputs : outputSizes[layerIdx - 1];
+    }
+
+    /**
+     * Returns number of weights and biases.
+     */
+    public int getNumParams() {
+        return numParams;
+    }
+
+    /**
+     * Returns memory used by buffers of each {@link InferenceContext}, in bytes.
+     */
+    public long getContextBytes() {
+        return 2L * arenaSize * Float.BYTES;
+    }
+
+    /**
+     * Returns kernels used by this inference.
+     */
+    public Kernels getKernels() {
+        return kernels;
+    }
+
+    /**
+     * Returns algorithm used for convolutional layers.
+     */
+    public ConvolutionAlgorithm getConvolution() {
+        return convolution;
+    }
+
+    // layer operations, for per layer benchmarks
+    LayerOp[] ops() {
+        return ops.clone();
+    }
+
+    /**
+     * Forward pass of a single layer. Implementations are immutable.
+     */
+    interface LayerOp {
+        int outputSize();
+
+        void forward(float[] in, int inOffset, float[] out, int outOffset);
+
+        /**
+         * Forward pass of batchSize inputs of inSize values each, stored one after another, to outputs stored one after another.
+         */
+        default void forwardBatch(float[] in, int inOffset, int inSize, int batchSize, float[] out, int outOffset) {
+            final int outSize = outputSize();
+            for (int b = 0; b < batchSize; b++) {
+                forward(in, inOffset + b * inSize, out, outOffset + b * outSize);
+            }
+        }
+    }
+
+    // padding which gives the output size of the layer for the given input size, filter size and stride
+    static int padding(int inSize, int outSize, int filterSize, int stride) {
+        return Math.max(0, ((outSize - 1) * stride + filterSize - inSize) / 2);
+    }
+
+    /**
+     * Runs the given action for blocks [0, blocks) in the given number of concurrent tasks, which take blocks in turns
+     * through a shared counter, and returns when all blocks are done. Exceptions thrown by the action are rethrown.
+     */
+    static void forEachBlock(ExecutorService executor, int tasks, int blocks, IntConsumer action) {
+        final AtomicInteger nextBlock = new AtomicInteger();
+        List<Callable<Void>> calls = new ArrayList<>(tasks);
+        for (int t = 0; t < tasks; t++) {
+            calls.add(() -> {
+                int block;
+                while ((block = nextBlock.getAndIncrement()) < blocks) {
+                    action.accept(block);
+                }
+                return null;
+            });
+        }
+        try {
+            for (Future<Void> future : executor.invokeAll(calls)) {
+                future.get();
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while computing convolutional layer", ex);
+        } catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IllegalStateException(cause);
+        }
+    }
+
+    static final class ConvOp implements LayerOp {
+        final int inWidth, inHeight, inDepth;
+        final int outWidth, outHeight, outDepth;
+        final int filterWidth, filterHeight, stride, padX, padY;
+        final float[] weights; // [filter][channel][row][col]
+        final float[] biases;  // [filter]
+        final ActivationType activation;
+        final Kernels kernels;
+
+        ConvOp(int inWidth, int inHeight, int inDepth, LayerSpec spec, float[] weights, float[] biases, Kernels kernels) {
+            this.inWidth = inWidth;
+            this.inHeight = inHeight;
+            this.inDepth = inDepth;
+            this.outWidth = spec.getWidth();
+            this.outHeight = spec.getHeight();
+            this.outDepth = spec.getDepth();
+            this.filterWidth = spec.getFilterWidth();
+            this.filterHeight = spec.getFilterHeight();
+            this.stride = Math.max(1, spec.getStride());
+            this.padX = padding(inWidth, outWidth, filterWidth, stride);
+            this.padY = padding(inHeight, outHeight, filterHeight, stride);
+            this.weights = weights;
+            this.biases = biases;
+            this.activation = spec.getActivation();
+            this.kernels = kernels;
+            if (weights.length != outDepth * inDepth * filterHeight * filterWidth) {
+                throw new IllegalArgumentException("Unexpected convolutional weights size " + weights.length + ", expected "
+                                                   + outDepth + "x" + inDepth + "x" + filterHeight + "x" + filterWidth);
+            }
+        }
+
+        @Override
+        public int outputSize() {
+            return outWidth * outHeight * outDepth;
+        }
+
+        @Override
+        public void forward(float[] in, int inOffset, float[] out, int outOffset) {
+            if (stride == 1) {
+                forwardRows(in, inOffset, out, outOffset);
+            } else {
+                forwardDirect(in, inOffset, out, outOffset);
+            }
+            kernels.activate(activation, out, outOffset, outputSize());
+        }
+
+        // stride 1: each filter weight is multiplied with a whole input row and added to an output row (axpy),
+        // so kernels work on long contiguous vectors; sums are accumulated in the same order as in forwardDirect
+        private void forwardRows(float[] in, int inOffset, float[] out, int outOffset) {
+            final int inPlane = inWidth * inHeight;
+            final int outPlane = outWidth * outHeight;
+            final int filterSize = filterWidth * filterHeight;
+            for (int f = 0; f < outDepth; f++) {
+                final int outPlaneStart = outOffset + f * outPlane;
+                Arrays.fill(out, outPlaneStart, outPlaneStart + outPlane, biases[f]);
+                for (int c = 0; c < inDepth; c++) {
+                    final int wStart = f * inDepth * filterSize + c * filterSize;
+                    final int inStart = inOffset + c * inPlane;
+                    for (int ky = 0; ky < filterHeight; ky++) {
+                        final int oyFrom = Math.max(0, padY - ky), oyTo = Math.min(outHeight, inHeight + padY - ky);
+                        for (int kx = 0; kx < filterWidth; kx++) {
+                            final int oxFrom = Math.max(0, padX - kx), oxTo = Math.min(outWidth, inWidth + padX - kx);
+                            final float w = weights[wStart + ky * filterWidth + kx];
+                            for (int oy = oyFrom; oy < oyTo; oy++) {
+                                kernels.axpy(w, in, inStart + (oy - padY + ky) * inWidth + oxFrom - padX + kx,
+                                             out, outPlaneStart + oy * outWidth + oxFrom, oxTo - oxFrom);
+                            }
+                        }
+                    }
+                }
+            }
+        }
+
+        private void forwardDirect(float[] in, int inOffset, float[] out, int outOffset) {
+            final int inPlane = inWidth * inHeight;
+            final int filterSize = filterWidth * filterHeight;
+            for (int f = 0; f < outDepth; f++) {
+                final int filterStart = f * inDepth * filterSize;
+                final int outPlaneStart = outOffset + f * outWidth * outHeight;
+                for (int oy = 0; oy < outHeight; oy++) {
+                    final int iy0 = oy * stride - padY;
+                    final int kyFrom = Math.max(0, -iy0), kyTo = Math.min(filterHeight, inHeight - iy0);
+                    for (int ox = 0; ox < outWidth; ox++) {
+                        final int ix0 = ox * stride - padX;
+                        final int kxFrom = Math.max(0, -ix0), kxTo = Math.min(filterWidth, inWidth - ix0);
+                        float sum = biases[f];
+                        for (int c = 0; c < inDepth; c++) {
+                            final int wStart = filterStart + c * filterSize;
+                            final int inStart = inOffset + c * inPlane;
+                            for (int ky = kyFrom; ky < kyTo; ky++) {
+                                final int wRow = wStart + ky * filterWidth;
+                                final int inRow = inStart + (iy0 + ky) * inWidth + ix0;
+                                for (int kx = kxFrom; kx < kxTo; kx++) {
+                                    sum += weights[wRow + kx] * in[inRow + kx];
+                                }
+                            }
+                        }
+                        out[outPlaneStart + oy * outWidth + ox] = sum;
+                    }
+                }
+            }
+        }
+    }
+
+    static final class MaxPoolOp implements LayerOp {
+        final int inWidth, inHeight, depth;
+        final int outWidth, outHeight;
+        final int filterWidth, filterHeight, stride, padX, padY;
+        final Kernels kernels;
+
+        MaxPoolOp(int inWidth, int inHeight, int inDepth, LayerSpec spec, Kernels kernels) {
+            this.inWidth = inWidth;
+            this.inHeight = inHeight;
+            this.depth = inDepth;
+            this.outWidth = spec.getWidth();
+            this.outHeight = spec.getHeight();
+            this.filterWidth = spec.getFilterWidth();
+            this.filterHeight = spec.getFilterHeight();
+            this.stride = Math.max(1, spec.getStride());
+            this.padX = padding(inWidth, outWidth, filterWidth, stride);
+            this.padY = padding(inHeight, outHeight, filterHeight, stride);
+            this.kernels = kernels;
+        }
+
+        @Override
+        public int outputSize() {
+            return outWidth * outHeight * depth;
+        }
+
+        @Override
+        public void forward(float[] in, int inOffset, float[] out, int outOffset) {
+            kernels.maxPool(in, inOffset, inWidth, inHeight, depth, filterWidth, filterHeight, stride, padX, padY,
+                            out, outOffset, outWidth, outHeight);
+        }
+    }
+
+    static final class SparseDenseOp implements LayerOp {
+        final CsrMatrix weights; // [out][in]
+        final float[] biases;
+        final ActivationType activation;
+        final Kernels kernels;
+
+        SparseDenseOp(CsrMatrix weights, float[] biases, ActivationType activation, Kernels kernels) {
+            this.weights = weights;
+            this.biases = biases;
+            this.activation = activation;
+            this.kernels = kernels;
+        }
+
+        @Override
+        public int outputSize() {
+            return weights.getRows();
+        }
+
+        @Override
+        public void forward(float[] in, int inOffset, float[] out, int outOffset) {
+            weights.gemv(in, inOffset, biases, 0, out, outOffset);
+            kernels.activate(activation, out, outOffset, weights.getRows());
+        }
+    }
+
+    static final class DenseOp implements LayerOp {
+        final int numInputs, numOutputs;
+        final float[] weights; // [out][in]
+        final float[] biases;
+        final ActivationType activation;
+        final Kernels kernels;
+
+        DenseOp(int numInputs, int numOutputs, float[] weights, float[] biases, ActivationType activation, Kernels kernels) {
+            this.numInputs = numInputs;
+            this.numOutputs = numOutputs;
+            this.weights = weights;
+            this.biases = biases;
+            this.activation = activation;
+            this.kernels = kernels;
+            if (weights.length != numInputs * numOutputs) {
+                throw new IllegalArgumentException("Unexpected fully connected weights size " + weights.length + ", expected " + numOutputs + "x" + numInputs);
+            }
+        }
+
+        @Override
+        public int outputSize() {
+            return numOutputs;
+        }
+
+        @Override
+        public void forward(float[] in, int inOffset, float[] out, int outOffset) {
+            kernels.gemv(weights, 0, numOutputs, numInputs, in, inOffset, biases, 0, out, outOffset);
+            kernels.activate(activation, out, outOffset, numOutputs);
+        }
+
+        // outputs [out][batch] = weights [out][in] * inputs [in][batch] + bias, so each block of inputs is transposed into
+        // columns of a panel, and results are transposed back into rows; weights are read once per block instead of once per input
+        @Override
+        public void forwardBatch(float[] in, int inOffset, int inSize, int batchSize, float[] out, int outOffset) {
+            int b0 = 0;
+            for (; batchSize - b0 >= MIN_BATCH_BLOCK; b0 += BATCH_BLOCK) {
+                forwardBlock(in, inOffset + b0 * numInputs, Math.min(BATCH_BLOCK, batchSize - b0), out, outOffset + b0 * numOutputs);
+            }
+            for (; b0 < batchSize; b0++) {
+                forward(in, inOffset + b0 * numInputs, out, outOffset + b0 * numOutputs);
+            }
+        }
+
+        private void forwardBlock(float[] in, int inOffset, int blockSize, float[] out, int outOffset) {
+            float[][] panels = BATCH_PANELS.get();
+            if (panels[0].length < numInputs * blockSize) {
+                panels[0] = new float[numInputs * BATCH_BLOCK];
+            }
+            if (panels[1].length < numOutputs * blockSize) {
+                panels[1] = new float[numOutputs * BATCH_BLOCK];
+            }
+            final float[] x = panels[0], y = panels[1];
+            for (int i = 0; i < numInputs; i++) {
+                for (int b = 0; b < blockSize; b++) {
+                    x[i * blockSize + b] = in[inOffset + b * numInputs + i];
+                }
+            }
+            for (int o = 0; o < numOutputs; o++) {
+                Arrays.fill(y, o * blockSize, (o + 1) * blockSize, biases[o]);
+            }
+            kernels.gemm(numOutputs, blockSize, numInputs, weights, 0, numInputs, x, 0, blockSize, y, 0, blockSize);
+            for (int b = 0; b < blockSize; b++) {
+                final int row = outOffset + b * numOutputs;
+                for (int o = 0; o < numOutputs; o++) {
+                    out[row + o] = y[o * blockSize + b];
+                }
+                kernels.activate(activation, out, row, numOutputs);
+            }
+        }
+    }
+
+    // inputs of fully connected layers in batches are multiplied in blocks of BATCH_BLOCK, which keeps the panel of 25088 inputs
+    // of VggNet16 in L2 cache, and the last block is computed input by input if it is smaller than MIN_BATCH_BLOCK, since a
+    // matrix multiplication with fewer columns than vector lanes is slower than matrix vector products
+    static final int BATCH_BLOCK = 16;
+    static final int MIN_BATCH_BLOCK = 8;
+
+    // transposed inputs and outputs of fully connected layers in batches, for each thread, grown on demand
+    private static final ThreadLocal<float[][]> BATCH_PANELS = ThreadLocal.withInitial(() -> new float[2][0]);
+}
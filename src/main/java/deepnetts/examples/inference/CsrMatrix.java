@@ -0,0 +1,106 @@
+package deepnetts.examples.inference;
+
+/**
+ * Immutable sparse matrix in compressed sparse row (CSR) format: non-zero values of all rows, row by row,
+ * with the column index of each value, and the start of each row in those arrays.
+ *
+ * Used by {@link ConvolutionalInference} for weights of pruned fully connected layers (see
+ * {@link ConvolutionalInference.Builder#sparseDensity(double)}), which take 8 bytes per non-zero weight instead of
+ * 4 bytes per weight, and need time proportional to the number of non-zero weights for a matrix vector product.
+ * Values are summed in the same order as by {@link ScalarKernels#gemv}, skipping zeros, so results are the same.
+ */
+public final class CsrMatrix {
+
+    private final int rows, cols;
+    private final int[] rowStarts; // rows + 1 entries, row r is [rowStarts[r], rowStarts[r + 1])
+    private final int[] columns;
+    private final float[] values;
+
+    private CsrMatrix(int rows, int cols, int[] rowStarts, int[] columns, float[] values) {
+        this.rows = rows;
+        this.cols = cols;
+        this.rowStarts = rowStarts;
+        this.columns = columns;
+        this.values = values;
+    }
+
+    /**
+     * Creates sparse matrix with non-zero values of a dense, row-major rows x cols matrix stored in dense[offset ...].
+     */
+    public static CsrMatrix of(float[] dense, int offset, int rows, int cols) {
+        int nonZeros = countNonZeros(dense, offset, rows * cols);
+        int[] rowStarts = new int[rows + 1];
+        int[] columns = new int[nonZeros];
+        float[] values = new float[nonZeros];
+        int n = 0;
+        for (int r = 0; r < rows; r++) {
+            rowStarts[r] = n;
+            final int row = offset + r * cols;
+            for (int c = 0; c < cols; c++) {
+                if (dense[row + c] != 0) {
+                    columns[n] = c;
+                    values[n++] = dense[row + c];
+                }
+            }
+        }
+        rowStarts[rows] = n;
+        return new CsrMatrix(rows, cols, rowStarts, columns, values);
+    }
+
+    static int countNonZeros(float[] values, int offset, int length) {
+        int count = 0;
+        for (int i = offset; i < offset + length; i++) {
+            if (values[i] != 0) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Computes y = bias + M * x. Bias may be null.
+     */
+    public void gemv(float[] x, int xOffset, float[] bias, int biasOffset, float[] y, int yOffset) {
+        for (int r = 0; r < rows; r++) {
+            float sum = bias != null ? bias[biasOffset + r] : 0;
+            final int end = rowStarts[r + 1];
+            for (int i = rowStarts[r]; i < end; i++) {
+                sum += values[i] * x[xOffset + columns[i]];
+            }
+            y[yOffset + r] = sum;
+        }
+    }
+
+    public int getRows() {
+        return rows;
+    }
+
+    public int getCols() {
+        return cols;
+    }
+
+    public int getNonZeros() {
+        return values.length;
+    }
+
+    /**
+     * Returns fraction of non-zero values.
+     */
+    public double getDensity() {
+        return (double) values.length / ((long) rows * cols);
+    }
+
+    /**
+     * Returns memory used by values, column indexes and row starts, in bytes.
+     */
+    public long getBytes() {
+        return bytes(rows, values.length);
+    }
+
+    /**
+     * Returns memory used by a CSR matrix with the given number of rows and non-zero values, in bytes.
+     */
+    public static long bytes(int rows, long nonZeros) {
+        return nonZeros * (Float.BYTES + Integer.BYTES) + (rows + 1L) * Integer.BYTES;
+    }
+}
@@ -0,0 +1,349 @@
+package deepnetts.examples.inference;
+
+import deepnetts.data.MLDataItem;
+import deepnetts.data.TabularDataSet;
+import deepnetts.data.norm.MaxScaler;
+import deepnetts.net.FeedForwardNetwork;
+import deepnetts.util.TensorBase;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+import javax.visrec.ml.data.BasicDataSet;
+
+/**
+ * Scores large CSV files with a trained feed forward network, without loading the whole file in memory.
+ *
+ * Input file is read in chunks of rows, and chunks are scored in parallel on a pool of worker threads,
+ * each with its own copy of the network. Inputs are normalized with the same scaler which was used for training,
+ * and predictions are de-normalized with {@link MaxScaler#deNormalizeOutputs(TensorBase)} before writing.
+ * Predictions are written in the same order as input rows. Number of chunks in flight is limited,
+ * so memory used does not depend on the size of the file.
+ *
+ * Each output line contains predictions for the corresponding input row, optionally preceded by the input row itself.
+ */
+public class CsvBatchScorer {
+
+    private final FeedForwardNetwork network;
+    private final MaxScaler scaler;
+    private final int numInputs;
+    private final int numOutputs;
+    private final String delimiter;
+    private final boolean hasHeader;
+    private final boolean includeInputs;
+    private final int chunkSize;
+    private final int numThreads;
+    private final int maxChunksInFlight;
+
+    private static final Logger LOGGER = Logger.getLogger(CsvBatchScorer.class.getName());
+
+    private CsvBatchScorer(Builder builder) {
+        this.network = builder.network;
+        this.scaler = builder.scaler;
+        this.numInputs = builder.numInputs;
+        this.numOutputs = builder.network.getLayers().get(builder.network.getLayers().size() - 1).getWidth();
+        this.delimiter = builder.delimiter;
+        this.hasHeader = builder.hasHeader;
+        this.includeInputs = builder.includeInputs;
+        this.chunkSize = builder.chunkSize;
+        this.numThreads = builder.numThreads;
+        this.maxChunksInFlight = builder.maxChunksInFlight > 0 ? builder.maxChunksInFlight : 2 * builder.numThreads;
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * Scores all rows in the input file and writes predictions to the output file.
+     *
+     * @return number of rows scored and time taken
+     */
+    public Result score(Path inputFile, Path outputFile) throws IOException {
+        byte[] serializedNetwork = serialize(network); // each worker deserializes its own copy
+        ThreadLocal<FeedForwardNetwork> workerNetwork = ThreadLocal.withInitial(() -> deserialize(serializedNetwork));
+
+        ExecutorService workers = Executors.newFixedThreadPool(numThreads);
+        ArrayDeque<Future<String>> inFlight = new ArrayDeque<>(maxChunksInFlight);
+        Pattern splitter = Pattern.compile(Pattern.quote(delimiter));
+        long rows = 0;
+        long start = System.nanoTime();
+
+        try (BufferedReader reader = Files.newBufferedReader(inputFile, StandardCharsets.UTF_8);
+             BufferedWriter writer = Files.newBufferedWriter(outputFile, StandardCharsets.UTF_8)) {
+
+            if (hasHeader) {
+                String header = reader.readLine();
+                if (includeInputs && header != null) {
+                    writer.write(header);
+                    writer.write(delimiter);
+                }
+                writer.write(outputHeader());
+                writer.newLine();
+            }
+
+            List<String> chunk = new ArrayList<>(chunkSize);
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.isEmpty()) {
+                    continue;
+                }
+                chunk.add(line);
+                rows++;
+                if (chunk.size() == chunkSize) {
+                    submit(workers, workerNetwork, splitter, chunk, inFlight, writer);
+                    chunk = new ArrayList<>(chunkSize);
+                }
+                if (rows % 1_000_000 == 0) {
+                    LOGGER.info(String.format("Scored %,d rows, %.0f rows/sec", rows, rows / seconds(start)));
+                }
+            }
+            if (!chunk.isEmpty()) {
+                submit(workers, workerNetwork, splitter, chunk, inFlight, writer);
+            }
+            while (!inFlight.isEmpty()) {
+                writer.write(await(inFlight.poll()));
+            }
+        } finally {
+            workers.shutdownNow();
+        }
+
+        return new Result(rows, System.nanoTime() - start);
+    }
+
+    // submits chunk for scoring, and writes finished chunks from the head of the queue to keep the input order
+    private void submit(ExecutorService workers, ThreadLocal<FeedForwardNetwork> workerNetwork, Pattern splitter,
+                        List<String> chunk, ArrayDeque<Future<String>> inFlight, BufferedWriter writer) throws IOException {
+        while (inFlight.size() >= maxChunksInFlight || (!inFlight.isEmpty() && inFlight.peek().isDone())) {
+            writer.write(await(inFlight.poll()));
+        }
+        inFlight.add(workers.submit(() -> scoreChunk(workerNetwork.get(), splitter, chunk)));
+    }
+
+    private String scoreChunk(FeedForwardNetwork net, Pattern splitter, List<String> lines) {
+        List<MLDataItem> items = new ArrayList<>(lines.size());
+        for (String line : lines) {
+            String[] values = splitter.split(line);
+            if (values.length < numInputs) {
+                throw new IllegalArgumentException("Expected at least " + numInputs + " values in row: " + line);
+            }
+            float[] inputs = new float[numInputs];
+            for (int i = 0; i < numInputs; i++) {
+                inputs[i] = Float.parseFloat(values[i].trim());
+            }
+            items.add(new TabularDataSet.Item(inputs, new float[numOutputs]));
+        }
+        if (scaler != null) {
+            scaler.apply(new BasicDataSet<>(items)); // same scaling as for training, targets are zeros
+        }
+
+        StringBuilder out = new StringBuilder(lines.size() * (includeInputs ? 64 : 16));
+        for (int row = 0; row < items.size(); row++) {
+            float[] predicted = net.predict(items.get(row).getInput().getValues()).clone();
+            if (scaler != null) {
+                TensorBase outputs = TensorBase.of(predicted);
+                scaler.deNormalizeOutputs(outputs);
+                predicted = outputs.getValues();
+            }
+            if (includeInputs) {
+                out.append(lines.get(row)).append(delimiter);
+            }
+            for (int i = 0; i < predicted.length; i++) {
+                if (i > 0) {
+                    out.append(delimiter);
+                }
+                out.append(predicted[i]);
+            }
+            out.append(System.lineSeparator());
+        }
+        return out.toString();
+    }
+
+    private String outputHeader() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < numOutputs; i++) {
+            if (i > 0) {
+                sb.append(delimiter);
+            }
+            sb.append("prediction_").append(i + 1);
+        }
+        return sb.toString();
+    }
+
+    private static String await(Future<String> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Scoring interrupted", ex);
+        } catch (ExecutionException ex) {
+            throw new IOException("Scoring failed: " + ex.getCause().getMessage(), ex.getCause());
+        }
+    }
+
+    private static double seconds(long startNanos) {
+        return (System.nanoTime() - startNanos) / 1e9;
+    }
+
+    private static byte[] serialize(Object obj) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(obj);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static FeedForwardNetwork deserialize(byte[] bytes) {
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes))) {
+            return (FeedForwardNetwork) in.readObject();
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        } catch (ClassNotFoundException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    /**
+     * Saves scaler used for training, so the same normalization can be applied when scoring.
+     */
+    public static void saveScaler(MaxScaler scaler, Path file) throws IOException {
+        Files.write(file, serialize(scaler));
+    }
+
+    public static MaxScaler loadScaler(Path file) throws IOException {
+        try (ObjectInputStream in = new ObjectInputStream(Files.newInputStream(file))) {
+            return (MaxScaler) in.readObject();
+        } catch (ClassNotFoundException ex) {
+            throw new IOException("Not a scaler file: " + file, ex);
+        }
+    }
+
+    /**
+     * Number of scored rows and elapsed time.
+     */
+    public static final class Result {
+        private final long rows;
+        private final long nanos;
+
+        Result(long rows, long nanos) {
+            this.rows = rows;
+            this.nanos = nanos;
+        }
+
+        public long getRows() {
+            return rows;
+        }
+
+        public double getSeconds() {
+            return nanos / 1e9;
+        }
+
+        public double getRowsPerSecond() {
+            return rows / getSeconds();
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%,d rows in %.2f s, %,.0f rows/sec", rows, getSeconds(), getRowsPerSecond());
+        }
+    }
+
+    public static class Builder {
+
+        private FeedForwardNetwork network;
+        private MaxScaler scaler;
+        private int numInputs = -1;
+        private String delimiter = ",";
+        private boolean hasHeader = false;
+        private boolean includeInputs = false;
+        private int chunkSize = 4096;
+        private int numThreads = Runtime.getRuntime().availableProcessors();
+        private int maxChunksInFlight = 0;
+
+        public Builder network(FeedForwardNetwork network) {
+            this.network = network;
+            return this;
+        }
+
+        /**
+         * Scaler used to normalize training data. If not set, inputs and outputs are used as they are.
+         */
+        public Builder scaler(MaxScaler scaler) {
+            this.scaler = scaler;
+            return this;
+        }
+
+        /**
+         * Number of input columns, taken from the start of each row. Remaining columns (for example targets) are ignored.
+         */
+        public Builder numInputs(int numInputs) {
+            this.numInputs = numInputs;
+            return this;
+        }
+
+        public Builder delimiter(String delimiter) {
+            this.delimiter = delimiter;
+            return this;
+        }
+
+        public Builder hasHeader(boolean hasHeader) {
+            this.hasHeader = hasHeader;
+            return this;
+        }
+
+        /**
+         * Write input row before predictions in each output line.
+         */
+        public Builder includeInputs(boolean includeInputs) {
+            this.includeInputs = includeInputs;
+            return this;
+        }
+
+        public Builder chunkSize(int chunkSize) {
+            this.chunkSize = chunkSize;
+            return this;
+        }
+
+        public Builder numThreads(int numThreads) {
+            this.numThreads = numThreads;
+            return this;
+        }
+
+        /**
+         * Max number of chunks which are read but not written yet. Default is twice the number of threads.
+         */
+        public Builder maxChunksInFlight(int maxChunksInFlight) {
+            this.maxChunksInFlight = maxChunksInFlight;
+            return this;
+        }
+
+        public CsvBatchScorer build() {
+            if (network == null) {
+                throw new IllegalStateException("Network must be set!");
+            }
+            if (numInputs <= 0) {
+                numInputs = network.getLayers().get(0).getWidth();
+            }
+            if (chunkSize < 1 || numThreads < 1) {
+                throw new IllegalArgumentException("Chunk size and number of threads must be positive!");
+            }
+            return new CsvBatchScorer(this);
+        }
+    }
+}
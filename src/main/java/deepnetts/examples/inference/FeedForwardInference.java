@@ -0,0 +1,197 @@
+package deepnetts.examples.inference;
+
+import deepnetts.examples.util.LayerSpec;
+import deepnetts.net.FeedForwardNetwork;
+import deepnetts.net.layers.AbstractLayer;
+import deepnetts.net.layers.activation.ActivationType;
+import java.util.List;
+
+/**
+ * Forward pass of a trained {@link FeedForwardNetwork}, compiled into a flat, immutable form, which reads inputs
+ * from and writes outputs to caller owned arrays, and does not allocate any memory per prediction.
+ *
+ * Weights and biases of all layers are copied into a single contiguous array when this object is created,
+ * layer by layer: weights of a layer as [output][input] rows, followed by its biases. Each layer is computed by
+ * one loop which does the weighted sum, adds bias and applies activation, without any per-layer objects
+ * or tensors in between, which is what costs the most in small networks.
+ * Outputs are numerically equivalent to {@code network.predict} up to float rounding: weighted sums are accumulated
+ * in a different order than in the network, and may differ in the last bits, which {@link FeedForwardInferenceBenchmark} checks.
+ *
+ * Intermediate layer outputs are kept in an {@link InferenceContext}, which is created once and reused
+ * for all predictions made by the same thread:
+ * <pre>
+ * FeedForwardInference inference = FeedForwardInference.of(neuralNet);
+ * InferenceContext ctx = inference.newContext();
+ * float[] out = new float[inference.getNumOutputs()];
+ * for (...) {
+ *     ctx.predict(inputs, 0, out, 0);
+ * }
+ * </pre>
+ * Changes of the network weights (further training) are not visible to an existing inference object.
+ * Since weights are never modified, one instance can be used by many threads, each with its own context.
+ */
+public final class FeedForwardInference implements Inference {
+
+    // activation codes, used instead of the enum in the inner loop
+    private static final int LINEAR = 0, SIGMOID = 1, TANH = 2, RELU = 3, LEAKY_RELU = 4, SOFTMAX = 5;
+
+    private final float[] params;        // weights and biases of all layers
+    private final int[] weightOffsets;   // start of weights of each layer in params
+    private final int[] biasOffsets;     // start of biases of each layer in params
+    private final int[] layerSizes;      // number of outputs of each layer
+    private final int[] activations;     // activation code of each layer
+    private final int numInputs;
+    private final int maxLayerSize;
+    private final ThreadLocal<InferenceContext> threadContext = ThreadLocal.withInitial(this::newContext);
+
+    private FeedForwardInference(int numInputs, int[] layerSizes, float[][] weights, float[][] biases, ActivationType[] activationTypes) {
+        this.numInputs = numInputs;
+        this.layerSizes = layerSizes;
+        int numLayers = layerSizes.length;
+        this.weightOffsets = new int[numLayers];
+        this.biasOffsets = new int[numLayers];
+        this.activations = new int[numLayers];
+
+        int total = 0;
+        for (int l = 0; l < numLayers; l++) {
+            total += weights[l].length + biases[l].length;
+        }
+        this.params = new float[total];
+
+        int offset = 0;
+        int max = numInputs;
+        for (int l = 0; l < numLayers; l++) {
+            weightOffsets[l] = offset;
+            System.arraycopy(weights[l], 0, params, offset, weights[l].length);
+            offset += weights[l].length;
+            biasOffsets[l] = offset;
+            System.arraycopy(biases[l], 0, params, offset, biases[l].length);
+            offset += biases[l].length;
+            activations[l] = activationCode(activationTypes[l]);
+            max = Math.max(max, layerSizes[l]);
+        }
+        this.maxLayerSize = max;
+    }
+
+    /**
+     * Compiles the given network for inference, with a copy of its current weights.
+     */
+    public static FeedForwardInference of(FeedForwardNetwork network) {
+        List<AbstractLayer> layers = network.getLayers();
+        int numLayers = layers.size() - 1; // all layers except input have weights
+        int[] sizes = new int[numLayers];
+        float[][] weights = new float[numLayers][];
+        float[][] biases = new float[numLayers][];
+        ActivationType[] activations = new ActivationType[numLayers];
+
+        int numInputs = layers.get(0).getWidth();
+        int prevSize = numInputs;
+        for (int l = 0; l < numLayers; l++) {
+            AbstractLayer layer = layers.get(l + 1);
+            LayerSpec spec = LayerSpec.of(layer);
+            if (!spec.hasWeights()) {
+                throw new IllegalArgumentException("Unsupported layer in feed forward network: " + spec);
+            }
+            sizes[l] = layer.getWidth();
+            weights[l] = layer.getWeights().getValues();
+            biases[l] = layer.getBiases().getValues();
+            activations[l] = layer.getActivationType();
+            if (weights[l].length != sizes[l] * prevSize || biases[l].length != sizes[l]) {
+                throw new IllegalArgumentException("Unexpected weights size in layer " + (l + 1) + ": " + weights[l].length
+                                                   + ", expected " + sizes[l] + "x" + prevSize);
+            }
+            prevSize = sizes[l];
+        }
+
+        return new FeedForwardInference(numInputs, sizes, weights, biases, activations);
+    }
+
+    private static int activationCode(ActivationType type) {
+        switch (type) {
+            case LINEAR: return LINEAR;
+            case SIGMOID: return SIGMOID;
+            case TANH: return TANH;
+            case RELU: return RELU;
+            case LEAKY_RELU: return LEAKY_RELU;
+            case SOFTMAX: return SOFTMAX;
+            default: throw new IllegalArgumentException("Unsupported activation: " + type);
+        }
+    }
+
+    @Override
+    public InferenceContext newContext() {
+        return new InferenceContext(this, maxLayerSize, maxLayerSize);
+    }
+
+    @Override
+    public void predict(float[] in, int inOffset, float[] out, int outOffset) {
+        predict(in, inOffset, out, outOffset, threadContext.get());
+    }
+
+    @Override
+    public void predict(float[] in, int inOffset, float[] out, int outOffset, InferenceContext ctx) {
+        ctx.checkOwner(this);
+        float[] src = in;
+        int srcOffset = inOffset;
+        int srcSize = numInputs;
+        float[] dst = ctx.buffers[0];
+
+        final int numLayers = layerSizes.length;
+        for (int l = 0; l < numLayers; l++) {
+            boolean last = l == numLayers - 1;
+            float[] target = last ? out : dst;
+            int targetOffset = last ? outOffset : 0;
+
+            dense(params, weightOffsets[l], biasOffsets[l], src, srcOffset, srcSize, target, targetOffset, layerSizes[l], activations[l]);
+
+            // output of this layer is input for the next one, swap buffers
+            src = target;
+            srcOffset = targetOffset;
+            srcSize = layerSizes[l];
+            dst = dst == ctx.buffers[0] ? ctx.buffers[1] : ctx.buffers[0];
+        }
+    }
+
+    // weighted sum + bias + activation in a single pass over outputs; softmax needs all outputs, so it is applied after the loop
+    private static void dense(float[] params, int weightOffset, int biasOffset, float[] in, int inOffset, int numIn,
+                              float[] out, int outOffset, int numOut, int activation) {
+        for (int o = 0; o < numOut; o++) {
+            float sum = params[biasOffset + o];
+            final int row = weightOffset + o * numIn;
+            for (int i = 0; i < numIn; i++) {
+                sum += params[row + i] * in[inOffset + i];
+            }
+            out[outOffset + o] = activate(activation, sum);
+        }
+        if (activation == SOFTMAX) {
+            Activations.softmax(out, outOffset, numOut);
+        }
+    }
+
+    private static float activate(int activation, float x) {
+        switch (activation) {
+            case SIGMOID: return Activations.sigmoid(x);
+            case TANH: return Activations.tanh(x);
+            case RELU: return Math.max(0, x);
+            case LEAKY_RELU: return Activations.leakyRelu(x);
+            default: return x; // linear, and softmax which is applied to the whole layer
+        }
+    }
+
+    @Override
+    public int getNumInputs() {
+        return numInputs;
+    }
+
+    @Override
+    public int getNumOutputs() {
+        return layerSizes[layerSizes.length - 1];
+    }
+
+    /**
+     * Returns total number of weights and biases.
+     */
+    public int getNumParams() {
+        return params.length;
+    }
+}
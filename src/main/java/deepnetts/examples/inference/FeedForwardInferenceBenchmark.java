@@ -0,0 +1,166 @@
+package deepnetts.examples.inference;
+
+import deepnetts.core.DeepNetts;
+import deepnetts.data.MLDataItem;
+import deepnetts.data.TabularDataSet;
+import deepnetts.net.FeedForwardNetwork;
+import deepnetts.net.layers.activation.ActivationType;
+import deepnetts.net.loss.LossType;
+import java.util.Random;
+import java.util.function.DoubleSupplier;
+
+/**
+ * Compares prediction speed of {@link FeedForwardInference} and {@code FeedForwardNetwork.predict}
+ * for the architectures used in tabular examples, and checks that both give the same outputs up to float rounding.
+ *
+ * Each network is first trained for a few epochs on synthetic targets, so that outputs are compared with trained
+ * weights instead of initial ones. Speed does not depend on training.
+ */
+public class FeedForwardInferenceBenchmark {
+
+    private static final int NUM_INPUTS = 1024;
+    private static final long MIN_NANOS = 1_000_000_000L; // measure each case for at least a second
+    private static final int TRAINING_EPOCHS = 5;
+    private static final float TOLERANCE = 1e-5f; // max absolute difference of outputs, for different order of float operations
+
+    public static void main(String[] args) {
+        benchmark("Iris (IrisFlowersClassification) 4-16-3", FeedForwardNetwork.builder()
+                        .addInputLayer(4)
+                        .addFullyConnectedLayer(16, ActivationType.TANH)
+                        .addOutputLayer(3, ActivationType.SOFTMAX)
+                        .lossFunction(LossType.CROSS_ENTROPY)
+                        .randomSeed(123)
+                        .build());
+
+        benchmark("Sonar (LogisticRegression) 60-1", FeedForwardNetwork.builder()
+                        .addInputLayer(60)
+                        .addOutputLayer(1, ActivationType.SIGMOID)
+                        .lossFunction(LossType.CROSS_ENTROPY)
+                        .randomSeed(123)
+                        .build());
+
+        benchmark("Credit card (CrediCardFraud) 29-80-1", FeedForwardNetwork.builder()
+                        .addInputLayer(29)
+                        .addFullyConnectedLayer(80, ActivationType.TANH)
+                        .addOutputLayer(1, ActivationType.SIGMOID)
+                        .lossFunction(LossType.CROSS_ENTROPY)
+                        .randomSeed(123)
+                        .build());
+
+        // deeper multi class variant, to see how the gain grows with the number of layers
+        benchmark("Credit card, two hidden layers 29-80-40-3", FeedForwardNetwork.builder()
+                        .addInputLayer(29)
+                        .addHiddenFullyConnectedLayers(80, 40)
+                        .addOutputLayer(3, ActivationType.SOFTMAX)
+                        .hiddenActivationFunction(ActivationType.TANH)
+                        .lossFunction(LossType.CROSS_ENTROPY)
+                        .randomSeed(123)
+                        .build());
+
+        benchmark("CPU performance (CpuPerformancePrediction) 6-12-12-1", FeedForwardNetwork.builder()
+                        .addInputLayer(6)
+                        .addHiddenFullyConnectedLayers(12, 12)
+                        .addOutputLayer(1, ActivationType.LINEAR)
+                        .hiddenActivationFunction(ActivationType.TANH)
+                        .lossFunction(LossType.MEAN_SQUARED_ERROR)
+                        .randomSeed(123)
+                        .build());
+
+        DeepNetts.shutdown();
+    }
+
+    private static void benchmark(String name, FeedForwardNetwork network) {
+        int numIn = network.getLayers().get(0).getWidth();
+        int numOut = network.getLayers().get(network.getLayers().size() - 1).getWidth();
+
+        Random rnd = new Random(123);
+        float[][] inputs = new float[NUM_INPUTS][numIn];
+        for (float[] input : inputs) {
+            for (int i = 0; i < numIn; i++) {
+                input[i] = rnd.nextFloat();
+            }
+        }
+        train(network, inputs, numOut);
+
+        FeedForwardInference inference = FeedForwardInference.of(network);
+        InferenceContext ctx = inference.newContext();
+
+        // outputs must be the same up to float rounding
+        int mismatches = 0;
+        float maxDiff = 0;
+        float[] out = new float[numOut];
+        for (float[] input : inputs) {
+            ctx.predict(input, 0, out, 0);
+            float[] expected = network.predict(input);
+            float diff = 0;
+            for (int o = 0; o < numOut; o++) {
+                diff = Math.max(diff, Math.abs(out[o] - expected[o]));
+            }
+            if (diff > TOLERANCE) {
+                mismatches++;
+            }
+            maxDiff = Math.max(maxDiff, diff);
+        }
+
+        double networkNanos = measure(() -> {
+            float sum = 0;
+            for (float[] input : inputs) {
+                sum += network.predict(input)[0];
+            }
+            return sum;
+        });
+        double inferenceNanos = measure(() -> {
+            float sum = 0;
+            for (float[] input : inputs) {
+                ctx.predict(input, 0, out, 0);
+                sum += out[0];
+            }
+            return sum;
+        });
+
+        System.out.println(name + " (" + inference.getNumParams() + " params)");
+        System.out.printf("  network.predict:      %8.1f ns/prediction%n", networkNanos);
+        System.out.printf("  FeedForwardInference: %8.1f ns/prediction (%.1fx)%n", inferenceNanos, networkNanos / inferenceNanos);
+        System.out.printf("  Outputs different from network.predict by more than %.0e: %d of %d, max difference %.2e%n",
+                          TOLERANCE, mismatches, NUM_INPUTS, maxDiff);
+    }
+
+    // trains the network on the given inputs, with targets given by the first input: class for classifiers, 0 or 1 otherwise
+    private static void train(FeedForwardNetwork network, float[][] inputs, int numOut) {
+        TabularDataSet<MLDataItem> dataSet = new TabularDataSet<>(inputs[0].length, numOut);
+        for (float[] input : inputs) {
+            float[] target = new float[numOut];
+            if (numOut == 1) {
+                target[0] = input[0] > 0.5f ? 1 : 0;
+            } else {
+                target[Math.min((int) (input[0] * numOut), numOut - 1)] = 1;
+            }
+            dataSet.add(new TabularDataSet.Item(input.clone(), target));
+        }
+        network.getTrainer().setMaxEpochs(TRAINING_EPOCHS);
+        network.train(dataSet);
+    }
+
+    // returns average time per prediction, after warm up
+    private static double measure(DoubleSupplier loop) {
+        double blackhole = 0;
+        long start = System.nanoTime();
+        while (System.nanoTime() - start < MIN_NANOS / 2) { // warm up
+            blackhole += loop.getAsDouble();
+        }
+
+        long runs = 0;
+        start = System.nanoTime();
+        long elapsed;
+        do {
+            blackhole += loop.getAsDouble();
+            runs++;
+            elapsed = System.nanoTime() - start;
+        } while (elapsed < MIN_NANOS);
+
+        if (blackhole == 42) { // keeps JIT from removing the loop
+            System.out.print("");
+        }
+        return (double) elapsed / (runs * NUM_INPUTS);
+    }
+}
@@ -0,0 +1,145 @@
+package deepnetts.examples.inference;
+
+import deepnetts.examples.util.LayerSpec;
+import deepnetts.net.layers.activation.ActivationType;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Convolutional layer computed as a matrix multiplication, see {@link ConvolutionAlgorithm#IM2COL_GEMM}.
+ *
+ * Output [filter][pixel] = weights [filter][K] * im2col [K][pixel] + bias, where K = channels * filter height * filter width.
+ * Weights are already a row-major [filter][K] matrix, and the output is a row-major [filter][pixel] matrix, so only the
+ * im2col matrix has to be built. Output pixels are split into blocks of NC columns, and K into blocks of KC rows: for each
+ * block, a KC x NC panel of the im2col matrix is packed from the input into a thread local buffer which stays in L2 cache,
+ * and multiplied with the corresponding KC columns of all filters by {@link Kernels#gemm}, which writes straight into
+ * output rows. Blocks of output pixels are independent, so they are shared between threads through a counter.
+ */
+final class GemmConvOp implements ConvolutionalInference.LayerOp {
+
+    static final int KC = 256;
+    static final int NC = 128;
+
+    // packed im2col panel of each thread, 128KB
+    private static final ThreadLocal<float[]> PANEL = ThreadLocal.withInitial(() -> new float[KC * NC]);
+
+    final int inWidth, inHeight, inDepth;
+    final int outWidth, outHeight, outDepth;
+    final int filterWidth, filterHeight, stride, padX, padY;
+    final float[] weights; // [filter][channel][row][col]
+    final float[] biases;  // [filter]
+    final ActivationType activation;
+    final Kernels kernels;
+    private final ExecutorService executor;
+    private final int threads;
+
+    /**
+     * @param executor executor for blocks of output pixels, or null to compute the whole layer in the calling thread
+     * @param threads number of tasks which compute blocks concurrently
+     */
+    GemmConvOp(int inWidth, int inHeight, int inDepth, LayerSpec spec, float[] weights, float[] biases, Kernels kernels,
+               ExecutorService executor, int threads) {
+        this.inWidth = inWidth;
+        this.inHeight = inHeight;
+        this.inDepth = inDepth;
+        this.outWidth = spec.getWidth();
+        this.outHeight = spec.getHeight();
+        this.outDepth = spec.getDepth();
+        this.filterWidth = spec.getFilterWidth();
+        this.filterHeight = spec.getFilterHeight();
+        this.stride = Math.max(1, spec.getStride());
+        this.padX = ConvolutionalInference.padding(inWidth, outWidth, filterWidth, stride);
+        this.padY = ConvolutionalInference.padding(inHeight, outHeight, filterHeight, stride);
+        this.weights = weights;
+        this.biases = biases;
+        this.activation = spec.getActivation();
+        this.kernels = kernels;
+        this.executor = executor;
+        this.threads = threads;
+        if (weights.length != outDepth * inDepth * filterHeight * filterWidth) {
+            throw new IllegalArgumentException("Unexpected convolutional weights size " + weights.length + ", expected "
+                                               + outDepth + "x" + inDepth + "x" + filterHeight + "x" + filterWidth);
+        }
+    }
+
+    @Override
+    public int outputSize() {
+        return outWidth * outHeight * outDepth;
+    }
+
+    @Override
+    public void forward(float[] in, int inOffset, float[] out, int outOffset) {
+        final int pixels = outWidth * outHeight;
+        for (int f = 0; f < outDepth; f++) {
+            Arrays.fill(out, outOffset + f * pixels, outOffset + (f + 1) * pixels, biases[f]);
+        }
+
+        final int blocks = (pixels + NC - 1) / NC;
+        final int tasks = executor == null ? 1 : Math.min(blocks, threads);
+        if (tasks <= 1) {
+            final float[] panel = PANEL.get();
+            for (int block = 0; block < blocks; block++) {
+                forwardBlock(in, inOffset, out, outOffset, block, panel);
+            }
+        } else {
+            ConvolutionalInference.forEachBlock(executor, tasks, blocks, block -> forwardBlock(in, inOffset, out, outOffset, block, PANEL.get()));
+        }
+        kernels.activate(activation, out, outOffset, outputSize());
+    }
+
+    // adds weights * im2col to output columns [block * NC, block * NC + NC) of all filters
+    private void forwardBlock(float[] in, int inOffset, float[] out, int outOffset, int block, float[] panel) {
+        final int pixels = outWidth * outHeight;
+        final int k = inDepth * filterHeight * filterWidth;
+        final int n0 = block * NC, nc = Math.min(NC, pixels - n0);
+        for (int p0 = 0; p0 < k; p0 += KC) {
+            final int kc = Math.min(KC, k - p0);
+            pack(in, inOffset, p0, kc, n0, nc, panel);
+            kernels.gemm(outDepth, nc, kc, weights, p0, k, panel, 0, nc, out, outOffset + n0, pixels);
+        }
+    }
+
+    /**
+     * Packs rows [p0, p0 + kc) and columns [n0, n0 + nc) of the im2col matrix into a dense kc x nc panel.
+     * Row p is input channel p / (filter size), shifted by filter row and column (p % filter size), and column n is output
+     * pixel n, so each row is made of input rows, with zeros where the filter is over padding.
+     */
+    void pack(float[] in, int inOffset, int p0, int kc, int n0, int nc, float[] panel) {
+        final int filterSize = filterWidth * filterHeight;
+        final int nEnd = n0 + nc;
+        for (int p = 0; p < kc; p++) {
+            final int c = (p0 + p) / filterSize, r = (p0 + p) % filterSize;
+            final int ky = r / filterWidth, kx = r % filterWidth;
+            final int inPlane = inOffset + c * inWidth * inHeight;
+            // output columns for which input column ox * stride - padX + kx is inside the input
+            final int oxValidFrom = ceilDiv(padX - kx, stride), oxValidTo = ceilDiv(inWidth + padX - kx, stride);
+            int dst = p * nc;
+            for (int n = n0; n < nEnd; ) {
+                final int oy = n / outWidth, ox0 = n % outWidth;
+                final int oxEnd = Math.min(outWidth, ox0 + nEnd - n);
+                final int iy = oy * stride - padY + ky;
+                if (iy < 0 || iy >= inHeight) {
+                    Arrays.fill(panel, dst, dst + oxEnd - ox0, 0);
+                } else {
+                    final int from = Math.min(oxEnd, Math.max(ox0, oxValidFrom)), to = Math.max(from, Math.min(oxEnd, oxValidTo));
+                    final int inRow = inPlane + iy * inWidth - padX + kx;
+                    Arrays.fill(panel, dst, dst + from - ox0, 0);
+                    if (stride == 1) {
+                        System.arraycopy(in, inRow + from, panel, dst + from - ox0, to - from);
+                    } else {
+                        for (int ox = from; ox < to; ox++) {
+                            panel[dst + ox - ox0] = in[inRow + ox * stride];
+                        }
+                    }
+                    Arrays.fill(panel, dst + to - ox0, dst + oxEnd - ox0, 0);
+                }
+                dst += oxEnd - ox0;
+                n += oxEnd - ox0;
+            }
+        }
+    }
+
+    private static int ceilDiv(int a, int b) {
+        return a > 0 ? (a + b - 1) / b : -(-a / b);
+    }
+}
@@ -0,0 +1,38 @@
+package deepnetts.examples.inference;
+
+/**
+ * Conversion of RGB pixels to network input, the same as {@link deepnetts.data.ExampleImage} of the training image set:
+ * red, green and blue channel one after another, each row by row, with values in [0, 1] range,
+ * or 1 - value when the image set inverted images. Used by image classifiers in this package.
+ */
+final class ImageInput {
+
+    private ImageInput() { }
+
+    /**
+     * Writes network input of numPixels packed RGB pixels into input[offset ...].
+     */
+    static void fromPixels(int[] pixels, int numPixels, boolean invert, float[] input, int offset) {
+        for (int p = 0; p < numPixels; p++) {
+            int rgb = pixels[p];
+            set(input, offset, numPixels, p, (rgb >> 16) & 0xff, (rgb >> 8) & 0xff, rgb & 0xff, invert);
+        }
+    }
+
+    /**
+     * Writes input values of pixel p, from red, green and blue values in [0, 255] range.
+     *
+     * @param offset start of the red channel of the image in input
+     * @param numPixels number of pixels of the image, which is the distance between channels in input
+     */
+    static void set(float[] input, int offset, int numPixels, int p, float r, float g, float b, boolean invert) {
+        input[offset + p] = value(r, invert);
+        input[offset + numPixels + p] = value(g, invert);
+        input[offset + 2 * numPixels + p] = value(b, invert);
+    }
+
+    private static float value(float channel, boolean invert) {
+        float value = channel / 255f;
+        return invert ? 1 - value : value;
+    }
+}
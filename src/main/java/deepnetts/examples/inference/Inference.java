@@ -0,0 +1,32 @@
+package deepnetts.examples.inference;
+
+/**
+ * Forward pass of a trained network, which reads inputs from and writes outputs to caller owned arrays.
+ *
+ * Implementations hold immutable weights and can be shared by any number of threads.
+ * All mutable state of a forward pass is kept in an {@link InferenceContext}, which is either passed explicitly
+ * (one context per thread, reused across predictions), or taken from a per-thread context kept by the inference object.
+ */
+public interface Inference {
+
+    int getNumInputs();
+
+    int getNumOutputs();
+
+    /**
+     * Creates context with buffers for intermediate outputs. A context must not be used by more than one thread at a time.
+     */
+    InferenceContext newContext();
+
+    /**
+     * Computes network outputs for inputs in in[inOffset .. inOffset + numInputs), and writes them
+     * to out[outOffset .. outOffset + numOutputs), using buffers from the given context.
+     */
+    void predict(float[] in, int inOffset, float[] out, int outOffset, InferenceContext ctx);
+
+    /**
+     * Same as {@link #predict(float[], int, float[], int, InferenceContext)}, with a context owned by the calling thread.
+     * Safe to call concurrently from many threads.
+     */
+    void predict(float[] in, int inOffset, float[] out, int outOffset);
+}
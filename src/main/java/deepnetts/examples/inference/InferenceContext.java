@@ -0,0 +1,35 @@
+package deepnetts.examples.inference;
+
+/**
+ * Reusable buffers for intermediate layer outputs of an {@link Inference}.
+ *
+ * Create one context per thread with {@link Inference#newContext()} and reuse it for all
+ * predictions made by that thread. A context is not thread safe.
+ */
+public final class InferenceContext {
+
+    final Inference owner;
+    final float[][] buffers;
+
+    InferenceContext(Inference owner, int... bufferSizes) {
+        this.owner = owner;
+        this.buffers = new float[bufferSizes.length][];
+        for (int i = 0; i < bufferSizes.length; i++) {
+            buffers[i] = new float[bufferSizes[i]];
+        }
+    }
+
+    /**
+     * Computes network outputs for inputs in in[inOffset ...], and writes them to out[outOffset ...].
+     * Does not allocate any memory.
+     */
+    public void predict(float[] in, int inOffset, float[] out, int outOffset) {
+        owner.predict(in, inOffset, out, outOffset, this);
+    }
+
+    void checkOwner(Inference inference) {
+        if (owner != inference) {
+            throw new IllegalArgumentException("Context was created by another inference object");
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package deepnetts.examples.inference;
+
+import deepnetts.net.layers.activation.ActivationType;
+
+/**
+ * Low level float kernels used by inference engines in this package: dot product, GEMV, GEMM, activations and max pooling.
+ *
+ * Two implementations are available: {@link ScalarKernels}, plain Java loops which run on any JVM, and
+ * {@code VectorKernels}, which uses SIMD instructions through the Java Vector API ({@code jdk.incubator.vector}).
+ * Vector kernels are compiled only when building with JDK 17 or newer (see the {@code vector-api} profile in pom.xml),
+ * and are used only when the JVM is started with {@code --add-modules jdk.incubator.vector}.
+ * {@link #get()} returns vector kernels when they are available, and scalar kernels otherwise.
+ * System property {@code deepnetts.kernels=scalar} forces scalar kernels.
+ *
+ * All matrices are row-major and stored in float arrays starting at the given offset, dense unless row strides are given.
+ * Scalar kernels accumulate sums in the same order as Deep Netts layers, vector kernels accumulate several lanes
+ * in parallel, so their results can differ from scalar ones in the last bits.
+ * Implementations are stateless and thread safe.
+ */
+public interface Kernels {
+
+    /**
+     * Returns a[aOffset ...] . b[bOffset ...] for vectors of the given length.
+     */
+    float dot(float[] a, int aOffset, float[] b, int bOffset, int length);
+
+    /**
+     * Computes y[yOffset ...] += alpha * x[xOffset ...] for vectors of the given length.
+     */
+    void axpy(float alpha, float[] x, int xOffset, float[] y, int yOffset, int length);
+
+    /**
+     * Computes y = bias + M * x, where M is a rows x cols matrix. Bias may be null.
+     */
+    void gemv(float[] m, int mOffset, int rows, int cols, float[] x, int xOffset, float[] bias, int biasOffset, float[] y, int yOffset);
+
+    /**
+     * Computes C += A * B, where A is a m x k matrix, B is a k x n matrix and C is a m x n matrix.
+     */
+    default void gemm(int m, int n, int k, float[] a, int aOffset, float[] b, int bOffset, float[] c, int cOffset) {
+        gemm(m, n, k, a, aOffset, k, b, bOffset, n, c, cOffset, n);
+    }
+
+    /**
+     * Computes C += A * B for blocks of larger matrices: A is a m x k matrix with rows lda values apart,
+     * B is a k x n matrix with rows ldb values apart, and C is a m x n matrix with rows ldc values apart.
+     */
+    void gemm(int m, int n, int k, float[] a, int aOffset, int lda, float[] b, int bOffset, int ldb, float[] c, int cOffset, int ldc);
+
+    /**
+     * Applies activation function to values[offset ... offset + length) in place.
+     */
+    void activate(ActivationType type, float[] values, int offset, int length);
+
+    /**
+     * Max pooling of a depth x inHeight x inWidth input into a depth x outHeight x outWidth output,
+     * with the given filter size, stride and padding.
+     */
+    void maxPool(float[] in, int inOffset, int inWidth, int inHeight, int depth,
+                 int filterWidth, int filterHeight, int stride, int padX, int padY,
+                 float[] out, int outOffset, int outWidth, int outHeight);
+
+    /**
+     * Returns short name of this implementation, for logs and benchmarks.
+     */
+    String getName();
+
+    /**
+     * Returns the fastest kernels available in this JVM.
+     */
+    static Kernels get() {
+        return KernelsLoader.DEFAULT;
+    }
+
+    /**
+     * Returns scalar kernels, which are always available.
+     */
+    static Kernels scalar() {
+        return ScalarKernels.INSTANCE;
+    }
+
+    /**
+     * Returns vector kernels, or null if the Vector API is not available in this JVM.
+     */
+    static Kernels vector() {
+        return KernelsLoader.VECTOR;
+    }
+}
@@ -0,0 +1,251 @@
+package deepnetts.examples.inference;
+
+import deepnetts.core.DeepNetts;
+import deepnetts.examples.util.LayerSpec;
+import deepnetts.net.ConvolutionalNetwork;
+import deepnetts.net.layers.activation.ActivationType;
+import deepnetts.net.loss.LossType;
+import deepnetts.util.TensorBase;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.function.DoubleSupplier;
+
+/**
+ * Compares scalar and Vector API {@link Kernels}.
+ *
+ * First checks that both kernels give the same results (up to rounding) for dot products, GEMV, GEMM, activations and
+ * max pooling, then measures {@link ConvolutionalInference} with each of them on two architectures:
+ * the network from {@code MnistHandwrittenDigitAdvanced} (whole network, per image), and VggNet16 (per layer, per image).
+ * Networks have random weights, since speed does not depend on training.
+ *
+ * Run with JDK 17 or newer, built with the {@code vector-api} profile, and with these JVM options:
+ * <pre>
+ * --add-modules jdk.incubator.vector -Xmx2g
+ * </pre>
+ * Without them only scalar kernels are measured. Optional argument is the number of measured VggNet16 passes (default 3).
+ */
+public class KernelsBenchmark {
+
+    private static final long MIN_NANOS = 2_000_000_000L;
+
+    public static void main(String[] args) {
+        int vggRuns = args.length > 0 ? Integer.parseInt(args[0]) : 3;
+        Kernels scalar = Kernels.scalar();
+        Kernels vector = Kernels.vector();
+        if (vector == null) {
+            System.out.println("Vector API kernels are not available, start jvm with --add-modules jdk.incubator.vector. Measuring scalar kernels only.");
+        } else {
+            System.out.println("Using " + vector.getName() + " kernels");
+            checkKernels(scalar, vector);
+        }
+
+        benchmarkMnist(scalar, vector);
+        benchmarkVggNet16(scalar, vector, vggRuns);
+        DeepNetts.shutdown();
+    }
+
+    // compares results of all kernels on random data
+    private static void checkKernels(Kernels scalar, Kernels vector) {
+        Random rnd = new Random(123);
+        int rows = 67, cols = 301, n = 53;
+        float[] a = random(rnd, rows * cols, 1), x = random(rnd, cols * n, 1), bias = random(rnd, rows, 1);
+        float[] y1 = new float[rows * n], y2 = new float[rows * n];
+
+        System.out.println("Max difference between scalar and vector kernels:");
+        System.out.printf("  dot:         %g%n", Math.abs(scalar.dot(a, 1, x, 2, cols - 3) - vector.dot(a, 1, x, 2, cols - 3)));
+
+        scalar.gemv(a, 0, rows, cols, x, 0, bias, 0, y1, 0);
+        vector.gemv(a, 0, rows, cols, x, 0, bias, 0, y2, 0);
+        System.out.printf("  gemv:        %g%n", maxDiff(y1, y2, rows));
+
+        float[] c1 = random(rnd, rows * n, 1), c2 = c1.clone();
+        scalar.gemm(rows, n, cols, a, 0, x, 0, c1, 0);
+        vector.gemm(rows, n, cols, a, 0, x, 0, c2, 0);
+        System.out.printf("  gemm:        %g%n", maxDiff(c1, c2, c1.length));
+
+        // block of a larger matrix, with row strides
+        scalar.gemm(rows - 7, n - 11, cols - 5, a, 3, cols, x, 2, n, c1, 1, n);
+        vector.gemm(rows - 7, n - 11, cols - 5, a, 3, cols, x, 2, n, c2, 1, n);
+        System.out.printf("  gemm block:  %g%n", maxDiff(c1, c2, c1.length));
+
+        for (ActivationType type : new ActivationType[] {ActivationType.SIGMOID, ActivationType.TANH, ActivationType.RELU, ActivationType.LEAKY_RELU, ActivationType.SOFTMAX}) {
+            float[] v1 = random(rnd, 1001, 5), v2 = v1.clone();
+            scalar.activate(type, v1, 3, 997);
+            vector.activate(type, v2, 3, 997);
+            System.out.printf("  %-12s %g%n", type.toString().toLowerCase() + ":", maxDiff(v1, v2, v1.length));
+        }
+
+        int width = 27, height = 13, depth = 3, outWidth = 14, outHeight = 7; // odd sizes, to cover edges
+        float[] in = random(rnd, width * height * depth, 1);
+        float[] p1 = new float[outWidth * outHeight * depth], p2 = new float[p1.length];
+        scalar.maxPool(in, 0, width, height, depth, 2, 2, 2, 0, 0, p1, 0, outWidth, outHeight);
+        vector.maxPool(in, 0, width, height, depth, 2, 2, 2, 0, 0, p2, 0, outWidth, outHeight);
+        System.out.printf("  max pooling: %g%n", maxDiff(p1, p2, p1.length));
+    }
+
+    private static void benchmarkMnist(Kernels scalar, Kernels vector) {
+        // same architecture as in MnistHandwrittenDigitAdvanced
+        ConvolutionalNetwork network = ConvolutionalNetwork.builder()
+                                        .addInputLayer(28, 28)
+                                        .addConvolutionalLayer(12, 5)
+                                        .addMaxPoolingLayer(2, 2)
+                                        .addFullyConnectedLayer(30)
+                                        .addOutputLayer(10, ActivationType.SOFTMAX)
+                                        .hiddenActivationFunction(ActivationType.TANH)
+                                        .lossFunction(LossType.CROSS_ENTROPY)
+                                        .randomSeed(123)
+                                        .build();
+
+        float[] image = random(new Random(123), 28 * 28, 1);
+        System.out.println();
+        System.out.println("MnistHandwrittenDigitAdvanced architecture, time per image:");
+        double networkNanos = measure(() -> network.predict(new TensorBase(28, 28, 1, image)).getValues()[0]);
+        System.out.printf("  network.predict:          %10.1f us%n", networkNanos / 1000);
+        float[] scalarOut = benchmarkInference("scalar kernels", ConvolutionalInference.of(network, scalar), image);
+        if (vector != null) {
+            float[] vectorOut = benchmarkInference("vector kernels", ConvolutionalInference.of(network, vector), image);
+            System.out.printf("  max output difference:    %g%n", maxDiff(scalarOut, vectorOut, scalarOut.length));
+        }
+    }
+
+    private static float[] benchmarkInference(String name, ConvolutionalInference inference, float[] image) {
+        InferenceContext ctx = inference.newContext();
+        float[] out = new float[inference.getNumOutputs()];
+        double nanos = measure(() -> {
+            ctx.predict(image, 0, out, 0);
+            return out[0];
+        });
+        System.out.printf("  %-25s %10.1f us%n", name + ":", nanos / 1000);
+        return out;
+    }
+
+    private static void benchmarkVggNet16(Kernels scalar, Kernels vector, int runs) {
+        List<LayerSpec> specs = vggNet16Layers();
+        Random rnd = new Random(123);
+        List<float[]> weights = new ArrayList<>(), biases = new ArrayList<>();
+        randomWeights(rnd, 224 * 224 * 3, 3, specs, weights, biases);
+
+        LayerSpec input = new LayerSpec(LayerSpec.Type.INPUT, 224, 224, 3, 0, 0, 0, null);
+        float[] image = random(rnd, 224 * 224 * 3, 1);
+        System.out.println();
+        System.out.println("VggNet16 architecture, time per image (" + runs + " runs after warm up):");
+        double[] scalarTimes = benchmarkLayers(ConvolutionalInference.of(input, specs, weights, biases, scalar), image, runs);
+        double[] vectorTimes = vector != null ? benchmarkLayers(ConvolutionalInference.of(input, specs, weights, biases, vector), image, runs) : null;
+
+        System.out.printf("  %-3s %-46s %12s %12s %8s%n", "#", "layer", "scalar ms", "vector ms", "speedup");
+        double scalarTotal = 0, vectorTotal = 0;
+        for (int l = 0; l < specs.size(); l++) {
+            scalarTotal += scalarTimes[l];
+            if (vectorTimes != null) {
+                vectorTotal += vectorTimes[l];
+                System.out.printf("  %-3d %-46s %12.2f %12.2f %7.1fx%n", l + 1, specs.get(l).toString(), scalarTimes[l] / 1e6, vectorTimes[l] / 1e6, scalarTimes[l] / vectorTimes[l]);
+            } else {
+                System.out.printf("  %-3d %-46s %12.2f%n", l + 1, specs.get(l).toString(), scalarTimes[l] / 1e6);
+            }
+        }
+        if (vectorTimes != null) {
+            System.out.printf("  total %57.2f %12.2f %7.1fx%n", scalarTotal / 1e6, vectorTotal / 1e6, scalarTotal / vectorTotal);
+        } else {
+            System.out.printf("  total %57.2f%n", scalarTotal / 1e6);
+        }
+    }
+
+    // same architecture as in VggNetImport: conv layers keep image size, pooling halves it
+    static List<LayerSpec> vggNet16Layers() {
+        List<LayerSpec> specs = new ArrayList<>();
+        int size = 224;
+        int[][] blocks = {{64, 64}, {128, 128}, {256, 256, 256}, {512, 512, 512}, {512, 512, 512}};
+        for (int[] block : blocks) {
+            for (int filters : block) {
+                specs.add(new LayerSpec(LayerSpec.Type.CONVOLUTIONAL, size, size, filters, 3, 3, 1, ActivationType.RELU));
+            }
+            size /= 2;
+            specs.add(new LayerSpec(LayerSpec.Type.MAX_POOLING, size, size, block[0], 2, 2, 2, null));
+        }
+        specs.add(new LayerSpec(LayerSpec.Type.FULLY_CONNECTED, 4096, 1, 1, 0, 0, 0, ActivationType.RELU));
+        specs.add(new LayerSpec(LayerSpec.Type.FULLY_CONNECTED, 4096, 1, 1, 0, 0, 0, ActivationType.RELU));
+        specs.add(new LayerSpec(LayerSpec.Type.OUTPUT, 1000, 1, 1, 0, 0, 0, ActivationType.SOFTMAX));
+        return specs;
+    }
+
+    // random weights, scaled by fan-in so that activations stay in a normal range
+    static void randomWeights(Random rnd, int inputSize, int inputDepth, List<LayerSpec> specs, List<float[]> weights, List<float[]> biases) {
+        int prevSize = inputSize, prevDepth = inputDepth;
+        for (LayerSpec spec : specs) {
+            boolean conv = spec.getType() == LayerSpec.Type.CONVOLUTIONAL;
+            int fanIn = conv ? prevDepth * spec.getFilterWidth() * spec.getFilterHeight() : prevSize;
+            boolean hasWeights = spec.hasWeights();
+            int numFilters = conv ? spec.getDepth() : spec.getWidth();
+            weights.add(hasWeights ? random(rnd, numFilters * fanIn, (float) Math.sqrt(3.0 / fanIn)) : null);
+            biases.add(hasWeights ? random(rnd, numFilters, 0.01f) : null);
+            prevSize = spec.getWidth() * Math.max(1, spec.getHeight()) * Math.max(1, spec.getDepth());
+            prevDepth = Math.max(1, spec.getDepth());
+        }
+    }
+
+    // returns average nanos for each layer
+    static double[] benchmarkLayers(ConvolutionalInference inference, float[] image, int runs) {
+        ConvolutionalInference.LayerOp[] ops = inference.ops();
+        float[][] outputs = new float[ops.length][];
+        for (int l = 0; l < ops.length; l++) {
+            outputs[l] = new float[ops[l].outputSize()];
+        }
+
+        double[] nanos = new double[ops.length];
+        for (int run = -1; run < runs; run++) { // first run is warm up
+            float[] src = image;
+            for (int l = 0; l < ops.length; l++) {
+                long start = System.nanoTime();
+                ops[l].forward(src, 0, outputs[l], 0);
+                if (run >= 0) {
+                    nanos[l] += System.nanoTime() - start;
+                }
+                src = outputs[l];
+            }
+        }
+        for (int l = 0; l < nanos.length; l++) {
+            nanos[l] /= runs;
+        }
+        return nanos;
+    }
+
+    // returns average time of a call, after warm up
+    private static double measure(DoubleSupplier call) {
+        double blackhole = 0;
+        long start = System.nanoTime();
+        while (System.nanoTime() - start < MIN_NANOS / 2) { // warm up
+            blackhole += call.getAsDouble();
+        }
+
+        long calls = 0;
+        start = System.nanoTime();
+        long elapsed;
+        do {
+            blackhole += call.getAsDouble();
+            calls++;
+            elapsed = System.nanoTime() - start;
+        } while (elapsed < MIN_NANOS);
+
+        if (blackhole == 42) { // keeps JIT from removing the calls
+            System.out.print("");
+        }
+        return (double) elapsed / calls;
+    }
+
+    static float[] random(Random rnd, int size, float range) {
+        float[] values = new float[size];
+        for (int i = 0; i < size; i++) {
+            values[i] = (rnd.nextFloat() * 2 - 1) * range;
+        }
+        return values;
+    }
+
+    static float maxDiff(float[] a, float[] b, int length) {
+        float max = 0;
+        for (int i = 0; i < length; i++) {
+            max = Math.max(max, Math.abs(a[i] - b[i]));
+        }
+        return max;
+    }
+}
@@ -0,0 +1,29 @@
+package deepnetts.examples.inference;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Loads vector kernels reflectively, so that this package compiles and runs without the Vector API.
+ */
+final class KernelsLoader {
+
+    private static final Logger LOGGER = Logger.getLogger(KernelsLoader.class.getName());
+    private static final String VECTOR_KERNELS_CLASS = "deepnetts.examples.inference.VectorKernels";
+
+    static final Kernels VECTOR = loadVectorKernels();
+    static final Kernels DEFAULT = "scalar".equalsIgnoreCase(System.getProperty("deepnetts.kernels")) || VECTOR == null
+                                   ? ScalarKernels.INSTANCE : VECTOR;
+
+    private KernelsLoader() { }
+
+    private static Kernels loadVectorKernels() {
+        try {
+            return (Kernels) Class.forName(VECTOR_KERNELS_CLASS).getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException | LinkageError ex) {
+            // class not compiled (JDK < 17), or jvm started without --add-modules jdk.incubator.vector
+            LOGGER.log(Level.FINE, "Vector API kernels not available, using scalar kernels", ex);
+            return null;
+        }
+    }
+}
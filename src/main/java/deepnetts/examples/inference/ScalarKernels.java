@@ -0,0 +1,115 @@
+package deepnetts.examples.inference;
+
+import deepnetts.net.layers.activation.ActivationType;
+
+/**
+ * Plain Java implementation of {@link Kernels}, available on any JVM.
+ *
+ * Sums are accumulated sequentially, in the same order as in Deep Netts layers, so results are the same as from
+ * {@code network.predict}. Vector kernels extend this class and fall back to it for cases they do not handle.
+ */
+public class ScalarKernels implements Kernels {
+
+    static final ScalarKernels INSTANCE = new ScalarKernels();
+
+    protected ScalarKernels() { }
+
+    @Override
+    public float dot(float[] a, int aOffset, float[] b, int bOffset, int length) {
+        float sum = 0;
+        for (int i = 0; i < length; i++) {
+            sum += a[aOffset + i] * b[bOffset + i];
+        }
+        return sum;
+    }
+
+    @Override
+    public void axpy(float alpha, float[] x, int xOffset, float[] y, int yOffset, int length) {
+        for (int i = 0; i < length; i++) {
+            y[yOffset + i] += alpha * x[xOffset + i];
+        }
+    }
+
+    @Override
+    public void gemv(float[] m, int mOffset, int rows, int cols, float[] x, int xOffset, float[] bias, int biasOffset, float[] y, int yOffset) {
+        for (int r = 0; r < rows; r++) {
+            float sum = bias != null ? bias[biasOffset + r] : 0;
+            final int row = mOffset + r * cols;
+            for (int c = 0; c < cols; c++) {
+                sum += m[row + c] * x[xOffset + c];
+            }
+            y[yOffset + r] = sum;
+        }
+    }
+
+    @Override
+    public void gemm(int m, int n, int k, float[] a, int aOffset, int lda, float[] b, int bOffset, int ldb, float[] c, int cOffset, int ldc) {
+        // i-p-j order: inner loop runs over contiguous rows of B and C, four rows of C share each load of B
+        int i = 0;
+        for (; i <= m - 4; i += 4) {
+            final int c0 = cOffset + i * ldc, c1 = c0 + ldc, c2 = c1 + ldc, c3 = c2 + ldc;
+            final int a0 = aOffset + i * lda;
+            for (int p = 0; p < k; p++) {
+                final float a0p = a[a0 + p], a1p = a[a0 + lda + p], a2p = a[a0 + 2 * lda + p], a3p = a[a0 + 3 * lda + p];
+                final int bRow = bOffset + p * ldb;
+                for (int j = 0; j < n; j++) {
+                    final float bpj = b[bRow + j];
+                    c[c0 + j] += a0p * bpj;
+                    c[c1 + j] += a1p * bpj;
+                    c[c2 + j] += a2p * bpj;
+                    c[c3 + j] += a3p * bpj;
+                }
+            }
+        }
+        for (; i < m; i++) {
+            final int cRow = cOffset + i * ldc;
+            for (int p = 0; p < k; p++) {
+                final float aip = a[aOffset + i * lda + p];
+                final int bRow = bOffset + p * ldb;
+                for (int j = 0; j < n; j++) {
+                    c[cRow + j] += aip * b[bRow + j];
+                }
+            }
+        }
+    }
+
+    @Override
+    public void activate(ActivationType type, float[] values, int offset, int length) {
+        Activations.apply(type, values, offset, length);
+    }
+
+    @Override
+    public void maxPool(float[] in, int inOffset, int inWidth, int inHeight, int depth,
+                        int filterWidth, int filterHeight, int stride, int padX, int padY,
+                        float[] out, int outOffset, int outWidth, int outHeight) {
+        for (int c = 0; c < depth; c++) {
+            maxPoolRows(in, inOffset + c * inWidth * inHeight, inWidth, inHeight, filterWidth, filterHeight, stride, padX, padY,
+                        out, outOffset + c * outWidth * outHeight, outWidth, 0, outHeight, 0, outWidth);
+        }
+    }
+
+    // max pooling of a single channel, for output rows [oyFrom, oyTo) and columns [oxFrom, oxTo)
+    static void maxPoolRows(float[] in, int inStart, int inWidth, int inHeight, int filterWidth, int filterHeight, int stride, int padX, int padY,
+                            float[] out, int outStart, int outWidth, int oyFrom, int oyTo, int oxFrom, int oxTo) {
+        for (int oy = oyFrom; oy < oyTo; oy++) {
+            final int iy0 = oy * stride - padY;
+            final int yFrom = Math.max(0, iy0), yTo = Math.min(inHeight, iy0 + filterHeight);
+            for (int ox = oxFrom; ox < oxTo; ox++) {
+                final int ix0 = ox * stride - padX;
+                final int xFrom = Math.max(0, ix0), xTo = Math.min(inWidth, ix0 + filterWidth);
+                float max = Float.NEGATIVE_INFINITY;
+                for (int y = yFrom; y < yTo; y++) {
+                    for (int x = xFrom; x < xTo; x++) {
+                        max = Math.max(max, in[inStart + y * inWidth + x]);
+                    }
+                }
+                out[outStart + oy * outWidth + ox] = max;
+            }
+        }
+    }
+
+    @Override
+    public String getName() {
+        return "scalar";
+    }
+}
@@ -0,0 +1,400 @@
+package deepnetts.examples.inference;
+
+import deepnetts.examples.serving.LatencyStats;
+import deepnetts.net.ConvolutionalNetwork;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Classifies all parking slots of a camera frame at once, with a network trained on cropped slot images,
+ * like the one from ParkingLotOccupancyDetection.
+ *
+ * Instead of cropping each slot with getSubimage, scaling it and converting it to network input one by one, pixels of
+ * the frame are read once, and each slot of the {@link SlotMap} is sampled directly into network input of the batch,
+ * with bilinear interpolation. Positions to sample are computed once for each slot map and frame size, and reused for all
+ * following frames. Then all slots are classified with a single {@link ConvolutionalInference#predictBatch} call
+ * (in batches of {@link Builder#maxBatchSize} slots for lots with more slots).
+ *
+ * Input values are the same as those of images used for training, and of {@link ThreadSafeImageClassifier#preprocessing}
+ * with the same invertImages setting: red, green and blue channel one after another, with values in [0, 1] range,
+ * or 1 - value when the training image set inverted images.
+ * Bilinear sampling reads 2x2 pixels for each input pixel, so slots should be at most about twice as large as the network
+ * input in the frame; scale larger frames down first, and the slot map with {@link SlotMap#scaled}.
+ *
+ * A classifier can be shared by many threads, each with its own buffers. Latency of each frame is recorded in {@link #getLatencyStats()}.
+ */
+public final class SlotClassifier {
+
+    private final ConvolutionalInference inference;
+    private final int inputWidth, inputHeight;
+    private final String[] labels;
+    private final boolean invertImages;
+    private final int maxBatchSize;
+    private final LatencyStats latencyStats = new LatencyStats();
+    private final ThreadLocal<Buffers> threadBuffers = ThreadLocal.withInitial(Buffers::new);
+    private volatile SamplingPlan plan; // for the last slot map and frame size
+
+    private SlotClassifier(Builder builder) {
+        this.inference = builder.inference;
+        this.inputWidth = builder.inputWidth;
+        this.inputHeight = builder.inputHeight;
+        this.labels = builder.labels;
+        this.invertImages = builder.invertImages;
+        this.maxBatchSize = builder.maxBatchSize;
+    }
+
+    /**
+     * Returns builder of classifier for the given network, with input size and labels of the network.
+     */
+    public static Builder builder(ConvolutionalNetwork network) {
+        return new Builder(ConvolutionalInference.of(network), network.getLayers().get(0).getWidth(),
+                           network.getLayers().get(0).getHeight(), network.getOutputLabels());
+    }
+
+    /**
+     * Returns builder of classifier for the given inference, with network input of inputWidth x inputHeight RGB pixels.
+     */
+    public static Builder builder(ConvolutionalInference inference, int inputWidth, int inputHeight, String[] labels) {
+        return new Builder(inference, inputWidth, inputHeight, labels);
+    }
+
+    public static final class Builder {
+        private final ConvolutionalInference inference;
+        private final int inputWidth, inputHeight;
+        private final String[] labels;
+        private boolean invertImages;
+        private int maxBatchSize = 64;
+
+        private Builder(ConvolutionalInference inference, int inputWidth, int inputHeight, String[] labels) {
+            if (inputWidth < 1 || inputHeight < 1 || inference.getNumInputs() != inputWidth * inputHeight * 3) {
+                throw new IllegalArgumentException("Network must have " + inputWidth + "x" + inputHeight + "x3 inputs, it has " + inference.getNumInputs());
+            }
+            if (labels == null || labels.length != inference.getNumOutputs()) {
+                throw new IllegalArgumentException("Network must have an output label for each output");
+            }
+            this.inference = inference;
+            this.inputWidth = inputWidth;
+            this.inputHeight = inputHeight;
+            this.labels = labels.clone();
+        }
+
+        /**
+         * Use 1 - value as input, same as ImageSet.setInvertImages(true) when the network was trained. Default is false.
+         */
+        public Builder invertImages(boolean invertImages) {
+            this.invertImages = invertImages;
+            return this;
+        }
+
+        /**
+         * Maximum number of slots classified by a single batch prediction, default 64. Each thread which classifies frames
+         * keeps buffers for this many network inputs and layer outputs.
+         */
+        public Builder maxBatchSize(int maxBatchSize) {
+            if (maxBatchSize < 1) {
+                throw new IllegalArgumentException("Batch size must be positive, got " + maxBatchSize);
+            }
+            this.maxBatchSize = maxBatchSize;
+            return this;
+        }
+
+        public SlotClassifier build() {
+            return new SlotClassifier(this);
+        }
+    }
+
+    /**
+     * Classifies all slots of the given frame.
+     *
+     * @param frame camera frame, at least 2x2 pixels
+     * @param slots slots in frame coordinates
+     */
+    public FrameResult classify(BufferedImage frame, SlotMap slots) {
+        long start = System.nanoTime();
+        try {
+            SamplingPlan samplingPlan = planFor(slots, frame.getWidth(), frame.getHeight());
+            Buffers buffers = threadBuffers.get();
+            int[] pixels = buffers.pixels(frame);
+            int numSlots = slots.size();
+            int inputSize = inputWidth * inputHeight * 3;
+            float[][] outputs = new float[numSlots][labels.length];
+            long cropNanos = 0, inferenceNanos = 0;
+
+            for (int first = 0; first < numSlots; first += maxBatchSize) {
+                int batchSize = Math.min(maxBatchSize, numSlots - first);
+                long cropStart = System.nanoTime();
+                float[] input = buffers.input(batchSize * inputSize);
+                for (int i = 0; i < batchSize; i++) {
+                    samplingPlan.sample(first + i, pixels, input, i * inputSize, invertImages);
+                }
+                long inferenceStart = System.nanoTime();
+                float[] output = buffers.output(batchSize * labels.length);
+                inference.predictBatch(input, 0, batchSize, output, 0, buffers.context(inference, batchSize));
+                for (int i = 0; i < batchSize; i++) {
+                    System.arraycopy(output, i * labels.length, outputs[first + i], 0, labels.length);
+                }
+                cropNanos += inferenceStart - cropStart;
+                inferenceNanos += System.nanoTime() - inferenceStart;
+            }
+
+            List<SlotResult> results = new ArrayList<>(numSlots);
+            for (int s = 0; s < numSlots; s++) {
+                results.add(new SlotResult(slots.getSlots().get(s), labels, outputs[s]));
+            }
+            long totalNanos = System.nanoTime() - start;
+            latencyStats.record(totalNanos);
+            return new FrameResult(results, cropNanos, inferenceNanos, totalNanos);
+        } catch (RuntimeException ex) {
+            latencyStats.recordError();
+            throw ex;
+        }
+    }
+
+    private SamplingPlan planFor(SlotMap slots, int frameWidth, int frameHeight) {
+        SamplingPlan current = plan;
+        if (current == null || current.slots != slots || current.frameWidth != frameWidth || current.frameHeight != frameHeight) {
+            current = new SamplingPlan(slots, frameWidth, frameHeight, inputWidth, inputHeight);
+            plan = current; // plans are immutable, so threads which build the same plan at the same time just replace each other's
+        }
+        return current;
+    }
+
+    /**
+     * Returns latency of classify calls, for whole frames.
+     */
+    public LatencyStats getLatencyStats() {
+        return latencyStats;
+    }
+
+    public String[] getLabels() {
+        return labels.clone();
+    }
+
+    public ConvolutionalInference getInference() {
+        return inference;
+    }
+
+    /**
+     * Frame pixel positions of all network inputs for all slots: index of the top left of the 2x2 pixels to interpolate,
+     * and horizontal and vertical weights of the right and bottom pixels.
+     */
+    private static final class SamplingPlan {
+        final SlotMap slots;
+        final int frameWidth, frameHeight;
+        final int pixelsPerSlot;
+        final int[] index;
+        final float[] fx, fy;
+
+        SamplingPlan(SlotMap slots, int frameWidth, int frameHeight, int width, int height) {
+            if (frameWidth < 2 || frameHeight < 2) {
+                throw new IllegalArgumentException("Frame must be at least 2x2 pixels, got " + frameWidth + "x" + frameHeight);
+            }
+            this.slots = slots;
+            this.frameWidth = frameWidth;
+            this.frameHeight = frameHeight;
+            this.pixelsPerSlot = width * height;
+            int total = slots.size() * pixelsPerSlot;
+            this.index = new int[total];
+            this.fx = new float[total];
+            this.fy = new float[total];
+
+            int i = 0;
+            for (SlotMap.Slot slot : slots.getSlots()) {
+                float[] c = slot.corners(); // top left, top right, bottom right, bottom left
+                for (int y = 0; y < height; y++) {
+                    float v = (y + 0.5f) / height;
+                    // left and right edge of this row of the crop
+                    float leftX = c[0] + v * (c[6] - c[0]), leftY = c[1] + v * (c[7] - c[1]);
+                    float rightX = c[2] + v * (c[4] - c[2]), rightY = c[3] + v * (c[5] - c[3]);
+                    for (int x = 0; x < width; x++, i++) {
+                        float u = (x + 0.5f) / width;
+                        // frame coordinates of the crop pixel center, relative to frame pixel centers
+                        float sx = leftX + u * (rightX - leftX) - 0.5f;
+                        float sy = leftY + u * (rightY - leftY) - 0.5f;
+                        int x0 = Math.min(Math.max((int) Math.floor(sx), 0), frameWidth - 2);
+                        int y0 = Math.min(Math.max((int) Math.floor(sy), 0), frameHeight - 2);
+                        index[i] = y0 * frameWidth + x0;
+                        fx[i] = Math.min(Math.max(sx - x0, 0), 1);
+                        fy[i] = Math.min(Math.max(sy - y0, 0), 1);
+                    }
+                }
+            }
+        }
+
+        /**
+         * Writes network input of the given slot into input[offset ...]: red, green and blue channel, row by row.
+         */
+        void sample(int slot, int[] pixels, float[] input, int offset, boolean invert) {
+            final int w = frameWidth;
+            final int base = slot * pixelsPerSlot;
+            for (int p = 0; p < pixelsPerSlot; p++) {
+                int idx = index[base + p];
+                float wx = fx[base + p], wy = fy[base + p];
+                int p00 = pixels[idx], p01 = pixels[idx + 1], p10 = pixels[idx + w], p11 = pixels[idx + w + 1];
+                float w00 = (1 - wx) * (1 - wy), w01 = wx * (1 - wy), w10 = (1 - wx) * wy, w11 = wx * wy;
+                float r = w00 * ((p00 >> 16) & 0xff) + w01 * ((p01 >> 16) & 0xff) + w10 * ((p10 >> 16) & 0xff) + w11 * ((p11 >> 16) & 0xff);
+                float g = w00 * ((p00 >> 8) & 0xff) + w01 * ((p01 >> 8) & 0xff) + w10 * ((p10 >> 8) & 0xff) + w11 * ((p11 >> 8) & 0xff);
+                float b = w00 * (p00 & 0xff) + w01 * (p01 & 0xff) + w10 * (p10 & 0xff) + w11 * (p11 & 0xff);
+                ImageInput.set(input, offset, pixelsPerSlot, p, r, g, b, invert);
+            }
+        }
+    }
+
+    /**
+     * Buffers of a thread, grown on demand.
+     */
+    private static final class Buffers {
+        int[] pixels = new int[0];
+        float[] input = new float[0];
+        float[] output = new float[0];
+        InferenceContext context;
+        int contextBatchSize;
+
+        /**
+         * Returns frame pixels as packed RGB, row by row, without a copy for images with int pixels.
+         */
+        int[] pixels(BufferedImage frame) {
+            int width = frame.getWidth(), height = frame.getHeight();
+            int size = width * height;
+            boolean packed = frame.getRaster().getParent() == null; // not a subimage, so rows are stored one after another
+            if (packed && (frame.getType() == BufferedImage.TYPE_INT_RGB || frame.getType() == BufferedImage.TYPE_INT_ARGB)) {
+                int[] data = ((DataBufferInt) frame.getRaster().getDataBuffer()).getData();
+                if (data.length == size) {
+                    return data;
+                }
+            }
+            if (pixels.length < size) {
+                pixels = new int[size];
+            }
+            if (packed && frame.getType() == BufferedImage.TYPE_3BYTE_BGR) { // images read from JPEG files
+                byte[] data = ((DataBufferByte) frame.getRaster().getDataBuffer()).getData();
+                if (data.length == size * 3) {
+                    for (int i = 0, j = 0; i < size; i++, j += 3) {
+                        pixels[i] = (data[j + 2] & 0xff) << 16 | (data[j + 1] & 0xff) << 8 | (data[j] & 0xff);
+                    }
+                    return pixels;
+                }
+            }
+            frame.getRGB(0, 0, width, height, pixels, 0, width);
+            return pixels;
+        }
+
+        float[] input(int size) {
+            if (input.length < size) {
+                input = new float[size];
+            }
+            return input;
+        }
+
+        float[] output(int size) {
+            if (output.length < size) {
+                output = new float[size];
+            }
+            return output;
+        }
+
+        InferenceContext context(ConvolutionalInference inference, int batchSize) {
+            if (context == null || contextBatchSize < batchSize) {
+                context = inference.newBatchContext(batchSize);
+                contextBatchSize = batchSize;
+            }
+            return context;
+        }
+    }
+
+    /**
+     * Network outputs for a slot.
+     */
+    public static final class SlotResult {
+        private final SlotMap.Slot slot;
+        private final String[] labels;
+        private final float[] outputs;
+
+        SlotResult(SlotMap.Slot slot, String[] labels, float[] outputs) {
+            this.slot = slot;
+            this.labels = labels;
+            this.outputs = outputs;
+        }
+
+        public SlotMap.Slot getSlot() {
+            return slot;
+        }
+
+        public float getOutput(int index) {
+            return outputs[index];
+        }
+
+        public float[] getOutputs() {
+            return outputs.clone();
+        }
+
+        /**
+         * Returns probability for each output label, like {@link ThreadSafeImageClassifier#classify}.
+         */
+        public Map<String, Float> getProbabilities() {
+            Map<String, Float> result = new HashMap<>(labels.length * 4 / 3 + 1);
+            for (int i = 0; i < labels.length; i++) {
+                result.put(labels[i], outputs[i]);
+            }
+            return result;
+        }
+
+        @Override
+        public String toString() {
+            return slot.getId() + ": " + getProbabilities();
+        }
+    }
+
+    /**
+     * Results for all slots of a frame, in the order of the slot map, with time spent on cropping and on the network.
+     */
+    public static final class FrameResult {
+        private final List<SlotResult> slotResults;
+        private final long cropNanos, inferenceNanos, totalNanos;
+
+        FrameResult(List<SlotResult> slotResults, long cropNanos, long inferenceNanos, long totalNanos) {
+            this.slotResults = Collections.unmodifiableList(slotResults);
+            this.cropNanos = cropNanos;
+            this.inferenceNanos = inferenceNanos;
+            this.totalNanos = totalNanos;
+        }
+
+        public List<SlotResult> getSlotResults() {
+            return slotResults;
+        }
+
+        /**
+         * Returns time spent on sampling slots into network inputs, in milliseconds.
+         */
+        public double getCropMillis() {
+            return cropNanos / 1e6;
+        }
+
+        /**
+         * Returns time spent on batch predictions, in milliseconds.
+         */
+        public double getInferenceMillis() {
+            return inferenceNanos / 1e6;
+        }
+
+        /**
+         * Returns time of the whole classify call, including reading frame pixels, in milliseconds.
+         */
+        public double getTotalMillis() {
+            return totalNanos / 1e6;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.ROOT, "%d slots in %.2f ms (crop %.2f ms, inference %.2f ms)",
+                                 slotResults.size(), getTotalMillis(), getCropMillis(), getInferenceMillis());
+        }
+    }
+}
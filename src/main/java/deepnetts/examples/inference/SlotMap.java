@@ -0,0 +1,170 @@
+package deepnetts.examples.inference;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Parking slots of a camera frame, each given by a polygon in frame pixel coordinates, for {@link SlotClassifier}.
+ *
+ * Read from a CSV file with a line per slot, in one of two forms:
+ * <pre>
+ * SlotId,X,Y,W,H                       bounding box, as in camera files of the CNRPark+EXT dataset
+ * SlotId,x1,y1,x2,y2,x3,y3,x4,y4       polygon with 3 or more vertices
+ * </pre>
+ * Empty lines, lines starting with # and a header line are skipped. Quadrilaterals are corners in the order top left,
+ * top right, bottom right, bottom left of the slot as it should appear in the crop, so slots seen at an angle are straightened;
+ * other polygons are cropped by their bounding box.
+ * A slot map is immutable, and can be shared by all frames of a camera.
+ */
+public final class SlotMap {
+
+    private final List<Slot> slots;
+
+    public SlotMap(List<Slot> slots) {
+        this.slots = Collections.unmodifiableList(new ArrayList<>(slots));
+    }
+
+    /**
+     * Reads slot map from a CSV file.
+     */
+    public static SlotMap read(Path file) throws IOException {
+        List<Slot> slots = new ArrayList<>();
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            String line;
+            int lineNumber = 0;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                String[] fields = line.split("\\s*,\\s*");
+                float[] values = new float[fields.length - 1];
+                try {
+                    for (int i = 1; i < fields.length; i++) {
+                        values[i - 1] = Float.parseFloat(fields[i]);
+                    }
+                } catch (NumberFormatException ex) {
+                    if (slots.isEmpty() && lineNumber == 1) {
+                        continue; // header
+                    }
+                    throw new IOException("Invalid number in line " + lineNumber + " of " + file + ": " + line, ex);
+                }
+                if (values.length == 4) {
+                    slots.add(Slot.rectangle(fields[0], values[0], values[1], values[2], values[3]));
+                } else if (values.length >= 6 && values.length % 2 == 0) {
+                    float[] xs = new float[values.length / 2], ys = new float[values.length / 2];
+                    for (int i = 0; i < xs.length; i++) {
+                        xs[i] = values[2 * i];
+                        ys[i] = values[2 * i + 1];
+                    }
+                    slots.add(new Slot(fields[0], xs, ys));
+                } else {
+                    throw new IOException("Expected id and X,Y,W,H or at least 3 polygon vertices in line " + lineNumber + " of " + file + ": " + line);
+                }
+            }
+        }
+        return new SlotMap(slots);
+    }
+
+    /**
+     * Returns slot map with all coordinates multiplied by the given factors, for frames of a different resolution than
+     * the one the map was made for (CNRPark+EXT coordinates are for 2592x1944 frames, and its frames are 1000x750).
+     */
+    public SlotMap scaled(double scaleX, double scaleY) {
+        List<Slot> scaledSlots = new ArrayList<>(slots.size());
+        for (Slot slot : slots) {
+            float[] xs = slot.xs.clone(), ys = slot.ys.clone();
+            for (int i = 0; i < xs.length; i++) {
+                xs[i] *= scaleX;
+                ys[i] *= scaleY;
+            }
+            scaledSlots.add(new Slot(slot.id, xs, ys));
+        }
+        return new SlotMap(scaledSlots);
+    }
+
+    public List<Slot> getSlots() {
+        return slots;
+    }
+
+    public int size() {
+        return slots.size();
+    }
+
+    /**
+     * A parking slot: id and polygon vertices.
+     */
+    public static final class Slot {
+        private final String id;
+        private final float[] xs, ys;
+
+        public Slot(String id, float[] xs, float[] ys) {
+            if (xs.length != ys.length || xs.length < 3) {
+                throw new IllegalArgumentException("Slot " + id + " must have at least 3 vertices with x and y coordinates");
+            }
+            this.id = id;
+            this.xs = xs.clone();
+            this.ys = ys.clone();
+        }
+
+        public static Slot rectangle(String id, float x, float y, float width, float height) {
+            return new Slot(id, new float[] {x, x + width, x + width, x}, new float[] {y, y, y + height, y + height});
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        public int getNumVertices() {
+            return xs.length;
+        }
+
+        public float getX(int vertex) {
+            return xs[vertex];
+        }
+
+        public float getY(int vertex) {
+            return ys[vertex];
+        }
+
+        /**
+         * Returns corners of the crop, top left, top right, bottom right and bottom left, as {x0, y0, x1, y1, x2, y2, x3, y3}:
+         * the vertices of a quadrilateral, or the bounding box of another polygon.
+         */
+        float[] corners() {
+            if (xs.length == 4) {
+                return new float[] {xs[0], ys[0], xs[1], ys[1], xs[2], ys[2], xs[3], ys[3]};
+            }
+            float minX = xs[0], maxX = xs[0], minY = ys[0], maxY = ys[0];
+            for (int i = 1; i < xs.length; i++) {
+                minX = Math.min(minX, xs[i]);
+                maxX = Math.max(maxX, xs[i]);
+                minY = Math.min(minY, ys[i]);
+                maxY = Math.max(maxY, ys[i]);
+            }
+            return new float[] {minX, minY, maxX, minY, maxX, maxY, minX, maxY};
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder(id).append(':');
+            for (int i = 0; i < xs.length; i++) {
+                sb.append(" (").append(xs[i]).append(", ").append(ys[i]).append(')');
+            }
+            return sb.toString();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "SlotMap" + Arrays.toString(slots.toArray());
+    }
+}
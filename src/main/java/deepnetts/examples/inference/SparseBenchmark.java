@@ -0,0 +1,74 @@
+package deepnetts.examples.inference;
+
+import deepnetts.examples.pruning.MagnitudePruner;
+import deepnetts.examples.util.LayerSpec;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Compares dense and sparse ({@link CsrMatrix}) fully connected layers of {@link ConvolutionalInference}.
+ *
+ * Takes the fully connected layers of VggNet16 (25088x4096, 4096x4096 and the 4096x1000 output layer) with random weights,
+ * prunes hidden layers with {@link MagnitudePruner} to increasing sparsities, and measures time per image of each layer computed
+ * with dense kernels and as a sparse matrix, and the max difference of outputs. With vector kernels, a sparse layer is faster
+ * than the dense one when less than about a quarter of weights are non-zero, see {@link ConvolutionalInference#DEFAULT_SPARSE_DENSITY}.
+ *
+ * Run with JDK 17 or newer and {@code --add-modules jdk.incubator.vector -Xmx3g} to use vector kernels.
+ * Optional argument is the number of measured passes (default 10).
+ */
+public class SparseBenchmark {
+
+    public static void main(String[] args) {
+        int runs = args.length > 0 ? Integer.parseInt(args[0]) : 10;
+        Kernels kernels = Kernels.get();
+        System.out.println("Using " + kernels.getName() + " kernels");
+
+        List<LayerSpec> vggLayers = KernelsBenchmark.vggNet16Layers();
+        List<LayerSpec> specs = vggLayers.subList(vggLayers.size() - 3, vggLayers.size());
+        LayerSpec input = new LayerSpec(LayerSpec.Type.INPUT, 7, 7, 512, 0, 0, 0, null);
+        Random rnd = new Random(123);
+        List<float[]> weights = new ArrayList<>(), biases = new ArrayList<>();
+        KernelsBenchmark.randomWeights(rnd, 7 * 7 * 512, 512, specs, weights, biases);
+        float[] image = KernelsBenchmark.random(rnd, 7 * 7 * 512, 1);
+
+        // warm up dense kernels, which are measured first
+        KernelsBenchmark.benchmarkLayers(ConvolutionalInference.builder(input, specs, weights, biases).kernels(kernels).build(), image, runs);
+
+        double[] sparsities = {0.5, 0.75, 0.8, 0.9, 0.95};
+        System.out.println("VggNet16 fully connected layers, time per image (" + runs + " runs after warm up):");
+        System.out.printf("  %-9s %-8s %-48s %10s %10s %9s %10s%n", "sparsity", "inputs", "layer", "dense ms", "sparse ms", "speedup", "max diff");
+        for (double sparsity : sparsities) {
+            // weights are pruned in place, each sparsity prunes weights which remain after the previous one
+            for (int l = 0; l < specs.size(); l++) {
+                if (specs.get(l).getType() == LayerSpec.Type.FULLY_CONNECTED) {
+                    MagnitudePruner.prune(weights.get(l), sparsity);
+                }
+            }
+            // output layer is not pruned, so it stays dense in both
+            ConvolutionalInference dense = ConvolutionalInference.builder(input, specs, weights, biases).kernels(kernels).sparseDensity(0).build();
+            ConvolutionalInference sparse = ConvolutionalInference.builder(input, specs, weights, biases).kernels(kernels).sparseDensity(0.99).build();
+            double[] denseNanos = KernelsBenchmark.benchmarkLayers(dense, image, runs);
+            double[] sparseNanos = KernelsBenchmark.benchmarkLayers(sparse, image, runs);
+            float maxDiff = KernelsBenchmark.maxDiff(predict(dense, image), predict(sparse, image), dense.getNumOutputs());
+            double denseTotal = 0, sparseTotal = 0;
+            for (int l = 0; l < specs.size(); l++) {
+                denseTotal += denseNanos[l];
+                sparseTotal += sparseNanos[l];
+                if (specs.get(l).getType() == LayerSpec.Type.FULLY_CONNECTED) {
+                    int inputs = l == 0 ? input.getWidth() * input.getHeight() * input.getDepth() : specs.get(l - 1).getWidth();
+                    System.out.printf("  %8.0f%% %-8d %-48s %10.2f %10.2f %8.1fx%n", 100 * sparsity, inputs, specs.get(l), denseNanos[l] / 1e6,
+                                      sparseNanos[l] / 1e6, denseNanos[l] / sparseNanos[l]);
+                }
+            }
+            System.out.printf("  %8.0f%% %-8s %-48s %10.2f %10.2f %8.1fx %10.3g%n", 100 * sparsity, "", "all layers", denseTotal / 1e6,
+                              sparseTotal / 1e6, denseTotal / sparseTotal, maxDiff);
+        }
+    }
+
+    private static float[] predict(ConvolutionalInference inference, float[] in) {
+        float[] out = new float[inference.getNumOutputs()];
+        inference.predict(in, 0, out, 0);
+        return out;
+    }
+}
@@ -0,0 +1,38 @@
+package deepnetts.examples.inference;
+
+import deepnetts.net.FeedForwardNetwork;
+import javax.visrec.ml.classification.BinaryClassifier;
+
+/**
+ * Binary classifier for tabular data, which can be shared by many threads.
+ *
+ * Unlike {@link javax.visrec.ri.ml.classification.FeedForwardNetBinaryClassifier}, which uses the network
+ * and its mutable layer outputs directly, this classifier uses immutable weights of a {@link FeedForwardInference},
+ * and keeps intermediate outputs of each thread in its own context. There is no locking and only one copy of the weights.
+ */
+public class ThreadSafeBinaryClassifier implements BinaryClassifier<float[]> {
+
+    private final FeedForwardInference inference;
+    private final ThreadLocal<float[]> output = ThreadLocal.withInitial(() -> new float[1]);
+
+    public ThreadSafeBinaryClassifier(FeedForwardNetwork network) {
+        this(FeedForwardInference.of(network));
+    }
+
+    public ThreadSafeBinaryClassifier(FeedForwardInference inference) {
+        if (inference.getNumOutputs() != 1) {
+            throw new IllegalArgumentException("Binary classifier requires network with single output, got " + inference.getNumOutputs());
+        }
+        this.inference = inference;
+    }
+
+    /**
+     * Returns probability that the given input belongs to the positive class.
+     */
+    @Override
+    public Float classify(float[] input) {
+        float[] out = output.get();
+        inference.predict(input, 0, out, 0);
+        return out[0];
+    }
+}
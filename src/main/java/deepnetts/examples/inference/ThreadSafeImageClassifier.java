@@ -0,0 +1,107 @@
+package deepnetts.examples.inference;
+
+import deepnetts.net.ConvolutionalNetwork;
+import deepnetts.util.ImageUtils;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Function;
+import javax.imageio.ImageIO;
+import javax.visrec.ml.classification.ImageClassifier;
+
+/**
+ * Image classifier which can be shared by many threads.
+ *
+ * Unlike {@link javax.visrec.ri.ml.classification.ImageClassifierNetwork}, which uses the network and its mutable
+ * layer outputs directly, this classifier uses a {@link ConvolutionalInference} of the network, and keeps
+ * layer outputs of each thread in its own context. There is no locking and only one copy of the weights.
+ *
+ * Weights are not copied: the inference shares weight arrays with the network, so the network must not be trained
+ * any more after it is wrapped. To use a retrained or reloaded network, create a new classifier for it.
+ */
+public class ThreadSafeImageClassifier implements ImageClassifier<BufferedImage> {
+
+    private final ConvolutionalInference inference;
+    private final String[] labels;
+    private final Function<BufferedImage, float[]> preprocessing;
+
+    /**
+     * Creates classifier which converts images to network input the same way as the training image set:
+     * scaled to input size, with RGB values in [0, 1] range. Use {@link #preprocessing(int, int, boolean)} for networks
+     * trained on an image set which inverted images.
+     */
+    public ThreadSafeImageClassifier(ConvolutionalNetwork network) {
+        this(network, preprocessing(network.getLayers().get(0).getWidth(), network.getLayers().get(0).getHeight(), false));
+    }
+
+    /**
+     * @param preprocessing converts image to network input values, for example with mean subtraction as in VggNet16InputImage
+     */
+    public ThreadSafeImageClassifier(ConvolutionalNetwork network, Function<BufferedImage, float[]> preprocessing) {
+        this.inference = ConvolutionalInference.of(network);
+        this.labels = network.getOutputLabels();
+        this.preprocessing = preprocessing;
+        if (labels == null || labels.length != inference.getNumOutputs()) {
+            throw new IllegalArgumentException("Network must have an output label for each output");
+        }
+    }
+
+    /**
+     * Returns preprocessing of the training image set: image scaled to width x height, converted to RGB values
+     * in [0, 1] range, or 1 - value for an image set with setInvertImages(true). Same as {@link SlotClassifier} inputs.
+     */
+    public static Function<BufferedImage, float[]> preprocessing(int width, int height, boolean invertImages) {
+        return image -> {
+            if (image.getWidth() != width || image.getHeight() != height) {
+                image = ImageUtils.scaleImage(image, width, height);
+            }
+            int[] pixels = image.getRGB(0, 0, width, height, null, 0, width);
+            float[] input = new float[3 * pixels.length];
+            ImageInput.fromPixels(pixels, pixels.length, invertImages, input, 0);
+            return input;
+        };
+    }
+
+    /**
+     * Returns probability for each output label.
+     */
+    @Override
+    public Map<String, Float> classify(BufferedImage image) {
+        float[] out = new float[labels.length];
+        inference.predict(preprocessing.apply(image), 0, out, 0);
+
+        Map<String, Float> result = new HashMap<>(labels.length * 4 / 3 + 1);
+        for (int i = 0; i < labels.length; i++) {
+            result.put(labels[i], out[i]);
+        }
+        return result;
+    }
+
+    public Map<String, Float> classify(Path imageFile) {
+        try {
+            return classify(ImageIO.read(imageFile.toFile()));
+        } catch (IOException ex) {
+            throw new UncheckedIOException("Could not read image " + imageFile, ex);
+        }
+    }
+
+    /**
+     * Returns network outputs for the given, already preprocessed input.
+     */
+    public float[] predict(float[] input) {
+        float[] out = new float[labels.length];
+        inference.predict(input, 0, out, 0);
+        return out;
+    }
+
+    public String[] getLabels() {
+        return labels.clone();
+    }
+
+    public ConvolutionalInference getInference() {
+        return inference;
+    }
+}
@@ -0,0 +1,234 @@
+package deepnetts.examples.inference;
+
+import deepnetts.examples.util.LayerSpec;
+import deepnetts.net.layers.activation.ActivationType;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Convolutional layer with 3x3 filters and stride 1 computed with Winograd minimal filtering F(2x2, 3x3),
+ * see {@link ConvolutionAlgorithm#WINOGRAD}.
+ *
+ * Output is computed in 2x2 tiles, each from a 4x4 input tile d: Y = A' [sum over channels of U . V] A, where
+ * U = G g G' is the transformed 3x3 filter g, V = B' d B is the transformed input tile, and . is elementwise product.
+ * This takes 16 multiplications per tile and channel instead of 36 for direct convolution. Filters are transformed once,
+ * when the op is created, into 16 matrices U[xi] of size [filter][channel], so the sum over channels for all tiles is
+ * 16 matrix multiplications U[xi] * V[xi], where V[xi] is [channel][tile], done by {@link Kernels#gemm}.
+ *
+ * Tiles are processed in blocks of NT, a multiple of SIMD width: input tiles of a block are transformed into a thread local buffer, multiplied,
+ * and transformed back into the output. Blocks are independent, so they are shared between threads through a counter.
+ * Transformed filters take 16/9 of the memory of the original weights, which are not kept.
+ */
+final class WinogradConvOp implements ConvolutionalInference.LayerOp {
+
+    static final int NT = 64;
+
+    // transformed input tiles [16][channel][tile], products [16][filter][tile] of a block, and a 4x4 input tile, for each thread
+    private static final ThreadLocal<float[][]> SCRATCH = ThreadLocal.withInitial(() -> new float[][] {new float[0], new float[0], new float[16]});
+
+    final int inWidth, inHeight, inDepth;
+    final int outWidth, outHeight, outDepth;
+    final int padX, padY;
+    final int tilesX, tilesY;
+    final float[] filters; // U, [16][filter][channel]
+    final float[] biases;  // [filter]
+    final ActivationType activation;
+    final Kernels kernels;
+    private final ExecutorService executor;
+    private final int threads;
+
+    /**
+     * @param executor executor for blocks of tiles, or null to compute the whole layer in the calling thread
+     * @param threads number of tasks which compute blocks concurrently
+     */
+    WinogradConvOp(int inWidth, int inHeight, int inDepth, LayerSpec spec, float[] weights, float[] biases, Kernels kernels,
+                   ExecutorService executor, int threads) {
+        if (!isSupported(spec)) {
+            throw new IllegalArgumentException("Winograd convolution requires 3x3 filters and stride 1, got " + spec);
+        }
+        this.inWidth = inWidth;
+        this.inHeight = inHeight;
+        this.inDepth = inDepth;
+        this.outWidth = spec.getWidth();
+        this.outHeight = spec.getHeight();
+        this.outDepth = spec.getDepth();
+        this.padX = ConvolutionalInference.padding(inWidth, outWidth, 3, 1);
+        this.padY = ConvolutionalInference.padding(inHeight, outHeight, 3, 1);
+        this.tilesX = (outWidth + 1) / 2;
+        this.tilesY = (outHeight + 1) / 2;
+        this.biases = biases;
+        this.activation = spec.getActivation();
+        this.kernels = kernels;
+        this.executor = executor;
+        this.threads = threads;
+        if (weights.length != outDepth * inDepth * 9) {
+            throw new IllegalArgumentException("Unexpected convolutional weights size " + weights.length + ", expected "
+                                               + outDepth + "x" + inDepth + "x3x3");
+        }
+        this.filters = transformFilters(weights, outDepth, inDepth);
+    }
+
+    /**
+     * Returns true if the layer has 3x3 filters and stride 1.
+     */
+    static boolean isSupported(LayerSpec spec) {
+        return spec.getType() == LayerSpec.Type.CONVOLUTIONAL && spec.getFilterWidth() == 3 && spec.getFilterHeight() == 3
+               && Math.max(1, spec.getStride()) == 1;
+    }
+
+    // U = G g G', with G = [1 0 0; 1/2 1/2 1/2; 1/2 -1/2 1/2; 0 0 1]
+    static float[] transformFilters(float[] weights, int numFilters, int depth) {
+        final float[] u = new float[16 * numFilters * depth];
+        final float[] gg = new float[12]; // G g, 4x3
+        for (int f = 0; f < numFilters; f++) {
+            for (int c = 0; c < depth; c++) {
+                final int g = (f * depth + c) * 9;
+                for (int col = 0; col < 3; col++) {
+                    final float g0 = weights[g + col], g1 = weights[g + 3 + col], g2 = weights[g + 6 + col];
+                    gg[col] = g0;
+                    gg[3 + col] = (g0 + g1 + g2) * 0.5f;
+                    gg[6 + col] = (g0 - g1 + g2) * 0.5f;
+                    gg[9 + col] = g2;
+                }
+                for (int row = 0; row < 4; row++) {
+                    final float a = gg[row * 3], b = gg[row * 3 + 1], e = gg[row * 3 + 2];
+                    final int xi = row * 4;
+                    final int dst = f * depth + c, plane = numFilters * depth;
+                    u[xi * plane + dst] = a;
+                    u[(xi + 1) * plane + dst] = (a + b + e) * 0.5f;
+                    u[(xi + 2) * plane + dst] = (a - b + e) * 0.5f;
+                    u[(xi + 3) * plane + dst] = e;
+                }
+            }
+        }
+        return u;
+    }
+
+    @Override
+    public int outputSize() {
+        return outWidth * outHeight * outDepth;
+    }
+
+    @Override
+    public void forward(float[] in, int inOffset, float[] out, int outOffset) {
+        final int blocks = (tilesX * tilesY + NT - 1) / NT;
+        final int tasks = executor == null ? 1 : Math.min(blocks, threads);
+        if (tasks <= 1) {
+            final float[][] scratch = scratch();
+            for (int block = 0; block < blocks; block++) {
+                forwardBlock(in, inOffset, out, outOffset, block, scratch);
+            }
+        } else {
+            ConvolutionalInference.forEachBlock(executor, tasks, blocks, block -> forwardBlock(in, inOffset, out, outOffset, block, scratch()));
+        }
+        kernels.activate(activation, out, outOffset, outputSize());
+    }
+
+    private float[][] scratch() {
+        final float[][] scratch = SCRATCH.get();
+        if (scratch[0].length < 16 * inDepth * NT) {
+            scratch[0] = new float[16 * inDepth * NT];
+        }
+        if (scratch[1].length < 16 * outDepth * NT) {
+            scratch[1] = new float[16 * outDepth * NT];
+        }
+        return scratch;
+    }
+
+    // computes output tiles [block * NT, block * NT + NT), tiles are numbered row by row
+    private void forwardBlock(float[] in, int inOffset, float[] out, int outOffset, int block, float[][] scratch) {
+        final int t0 = block * NT, nt = Math.min(NT, tilesX * tilesY - t0);
+        final float[] v = scratch[0], m = scratch[1];
+        transformInput(in, inOffset, t0, nt, v, scratch[2]);
+        Arrays.fill(m, 0, 16 * outDepth * nt, 0);
+        for (int xi = 0; xi < 16; xi++) {
+            kernels.gemm(outDepth, nt, inDepth, filters, xi * outDepth * inDepth, inDepth, v, xi * inDepth * nt, nt, m, xi * outDepth * nt, nt);
+        }
+        transformOutput(m, t0, nt, out, outOffset);
+    }
+
+    // V = B' d B for each channel and tile, with B' = [1 0 -1 0; 0 1 1 0; 0 -1 1 0; 0 1 0 -1], into v[xi][channel][tile]
+    private void transformInput(float[] in, int inOffset, int t0, int nt, float[] v, float[] d) {
+        final int plane = inDepth * nt;
+        for (int c = 0; c < inDepth; c++) {
+            final int inPlane = inOffset + c * inWidth * inHeight;
+            for (int t = 0; t < nt; t++) {
+                final int iy0 = ((t0 + t) / tilesX) * 2 - padY, ix0 = ((t0 + t) % tilesX) * 2 - padX;
+                final float[] src;
+                final int r0, row;
+                if (iy0 >= 0 && ix0 >= 0 && iy0 + 4 <= inHeight && ix0 + 4 <= inWidth) { // read straight from input
+                    src = in;
+                    r0 = inPlane + iy0 * inWidth + ix0;
+                    row = inWidth;
+                } else { // tile over padding or over the bottom right edge, copied with zeros
+                    for (int y = 0; y < 4; y++) {
+                        for (int x = 0; x < 4; x++) {
+                            final int iy = iy0 + y, ix = ix0 + x;
+                            d[y * 4 + x] = iy >= 0 && iy < inHeight && ix >= 0 && ix < inWidth ? in[inPlane + iy * inWidth + ix] : 0;
+                        }
+                    }
+                    src = d;
+                    r0 = 0;
+                    row = 4;
+                }
+                final int r1 = r0 + row, r2 = r1 + row, r3 = r2 + row;
+                // B' d, rows
+                final float b00 = src[r0] - src[r2], b01 = src[r0 + 1] - src[r2 + 1], b02 = src[r0 + 2] - src[r2 + 2], b03 = src[r0 + 3] - src[r2 + 3];
+                final float b10 = src[r1] + src[r2], b11 = src[r1 + 1] + src[r2 + 1], b12 = src[r1 + 2] + src[r2 + 2], b13 = src[r1 + 3] + src[r2 + 3];
+                final float b20 = src[r2] - src[r1], b21 = src[r2 + 1] - src[r1 + 1], b22 = src[r2 + 2] - src[r1 + 2], b23 = src[r2 + 3] - src[r1 + 3];
+                final float b30 = src[r1] - src[r3], b31 = src[r1 + 1] - src[r3 + 1], b32 = src[r1 + 2] - src[r3 + 2], b33 = src[r1 + 3] - src[r3 + 3];
+                // (B' d) B, columns
+                final int dst = c * nt + t;
+                v[dst] = b00 - b02;
+                v[plane + dst] = b01 + b02;
+                v[2 * plane + dst] = b02 - b01;
+                v[3 * plane + dst] = b01 - b03;
+                v[4 * plane + dst] = b10 - b12;
+                v[5 * plane + dst] = b11 + b12;
+                v[6 * plane + dst] = b12 - b11;
+                v[7 * plane + dst] = b11 - b13;
+                v[8 * plane + dst] = b20 - b22;
+                v[9 * plane + dst] = b21 + b22;
+                v[10 * plane + dst] = b22 - b21;
+                v[11 * plane + dst] = b21 - b23;
+                v[12 * plane + dst] = b30 - b32;
+                v[13 * plane + dst] = b31 + b32;
+                v[14 * plane + dst] = b32 - b31;
+                v[15 * plane + dst] = b31 - b33;
+            }
+        }
+    }
+
+    // Y = A' M A + bias, with A' = [1 1 1 0; 0 1 -1 -1], from m[xi][filter][tile] into 2x2 output tiles
+    private void transformOutput(float[] m, int t0, int nt, float[] out, int outOffset) {
+        final int plane = outDepth * nt;
+        for (int f = 0; f < outDepth; f++) {
+            final int outPlane = outOffset + f * outWidth * outHeight;
+            final float bias = biases[f];
+            for (int t = 0; t < nt; t++) {
+                final int src = f * nt + t;
+                // A' M, rows
+                final float m00 = m[src], m01 = m[plane + src], m02 = m[2 * plane + src], m03 = m[3 * plane + src];
+                final float m10 = m[4 * plane + src], m11 = m[5 * plane + src], m12 = m[6 * plane + src], m13 = m[7 * plane + src];
+                final float m20 = m[8 * plane + src], m21 = m[9 * plane + src], m22 = m[10 * plane + src], m23 = m[11 * plane + src];
+                final float m30 = m[12 * plane + src], m31 = m[13 * plane + src], m32 = m[14 * plane + src], m33 = m[15 * plane + src];
+                final float r00 = m00 + m10 + m20, r01 = m01 + m11 + m21, r02 = m02 + m12 + m22, r03 = m03 + m13 + m23;
+                final float r10 = m10 - m20 - m30, r11 = m11 - m21 - m31, r12 = m12 - m22 - m32, r13 = m13 - m23 - m33;
+                // (A' M) A, columns
+                final int oy = ((t0 + t) / tilesX) * 2, ox = ((t0 + t) % tilesX) * 2;
+                final int row = outPlane + oy * outWidth + ox;
+                final boolean right = ox + 1 < outWidth, below = oy + 1 < outHeight;
+                out[row] = r00 + r01 + r02 + bias;
+                if (right) {
+                    out[row + 1] = r01 - r02 - r03 + bias;
+                }
+                if (below) {
+                    out[row + outWidth] = r10 + r11 + r12 + bias;
+                    if (right) {
+                        out[row + outWidth + 1] = r11 - r12 - r13 + bias;
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,139 @@
+package deepnetts.examples.io;
+
+import deepnetts.core.DeepNetts;
+import deepnetts.net.ConvolutionalNetwork;
+import deepnetts.net.FeedForwardNetwork;
+import deepnetts.net.NeuralNetwork;
+import deepnetts.net.layers.Filters;
+import deepnetts.net.layers.activation.ActivationType;
+import deepnetts.net.loss.LossType;
+import deepnetts.util.FileIO;
+import deepnetts.util.TensorBase;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Compares save and load times of Java serialization ({@link FileIO}) and {@link BinaryModelFile},
+ * and checks that networks loaded from binary file give the same outputs as the original ones.
+ *
+ * Run with: java deepnetts.examples.io.BinaryModelBenchmark [savedNetwork.dnet]
+ * Without arguments, benchmarks a large feed forward network and a small convolutional network with random weights.
+ */
+public class BinaryModelBenchmark {
+
+    private static final int REPEAT = 10;
+
+    public static void main(String[] args) throws Exception {
+        if (args.length > 0) {
+            NeuralNetwork<?> network = FileIO.createFromFile(args[0], NeuralNetwork.class);
+            benchmark(args[0], network);
+        } else {
+            FeedForwardNetwork ffn = FeedForwardNetwork.builder()
+                                            .addInputLayer(784)
+                                            .addFullyConnectedLayer(1024, ActivationType.RELU)
+                                            .addFullyConnectedLayer(1024, ActivationType.RELU)
+                                            .addOutputLayer(10, ActivationType.SOFTMAX)
+                                            .lossFunction(LossType.CROSS_ENTROPY)
+                                            .randomSeed(123)
+                                            .build();
+            benchmark("FeedForwardNetwork 784-1024-1024-10", ffn);
+
+            ConvolutionalNetwork cnn = ConvolutionalNetwork.builder()
+                                            .addInputLayer(32, 32, 3)
+                                            .addConvolutionalLayer(32, Filters.ofSize(3), ActivationType.RELU)
+                                            .addMaxPoolingLayer(2, 2)
+                                            .addConvolutionalLayer(64, Filters.ofSize(3), ActivationType.RELU)
+                                            .addMaxPoolingLayer(2, 2)
+                                            .addFullyConnectedLayer(256, ActivationType.RELU)
+                                            .addOutputLayer(10, ActivationType.SOFTMAX)
+                                            .lossFunction(LossType.CROSS_ENTROPY)
+                                            .randomSeed(123)
+                                            .build();
+            benchmark("ConvolutionalNetwork cifar10-like", cnn);
+        }
+
+        DeepNetts.shutdown();
+    }
+
+    private static void benchmark(String name, NeuralNetwork<?> network) throws IOException, ClassNotFoundException {
+        Path serializedFile = Files.createTempFile("benchmark", ".dnet");
+        Path binaryFile = Files.createTempFile("benchmark", ".dnbm");
+
+        try {
+            // warm up both code paths before measuring
+            for (int i = 0; i < 3; i++) {
+                FileIO.writeToFile(network, serializedFile.toString());
+                FileIO.createFromFile(serializedFile.toFile(), NeuralNetwork.class);
+                BinaryModelFile.write(network, binaryFile);
+                BinaryModelFile.read(binaryFile);
+            }
+
+            long serializedSave = 0, serializedLoad = 0, binarySave = 0, binaryLoad = 0, binaryOpen = 0;
+            for (int i = 0; i < REPEAT; i++) {
+                long start = System.nanoTime();
+                FileIO.writeToFile(network, serializedFile.toString());
+                serializedSave += System.nanoTime() - start;
+
+                start = System.nanoTime();
+                FileIO.createFromFile(serializedFile.toFile(), NeuralNetwork.class);
+                serializedLoad += System.nanoTime() - start;
+
+                start = System.nanoTime();
+                BinaryModelFile.write(network, binaryFile);
+                binarySave += System.nanoTime() - start;
+
+                start = System.nanoTime();
+                BinaryModelFile.read(binaryFile);
+                binaryLoad += System.nanoTime() - start;
+
+                start = System.nanoTime();
+                try (BinaryModelFile modelFile = BinaryModelFile.open(binaryFile)) {
+                    modelFile.getLayers(); // header only, weights are not touched
+                }
+                binaryOpen += System.nanoTime() - start;
+            }
+
+            System.out.println(name);
+            System.out.printf("  Java serialization: save %8.2f ms, load %8.2f ms, size %,d bytes%n",
+                              millis(serializedSave), millis(serializedLoad), Files.size(serializedFile));
+            System.out.printf("  Binary model file:  save %8.2f ms, load %8.2f ms, size %,d bytes%n",
+                              millis(binarySave), millis(binaryLoad), Files.size(binaryFile));
+            System.out.printf("  Binary model file header only (lazy open): %.3f ms%n", millis(binaryOpen));
+            System.out.println("  Same outputs after load: " + sameOutputs(network, BinaryModelFile.read(binaryFile)));
+        } finally {
+            Files.deleteIfExists(serializedFile);
+            Files.deleteIfExists(binaryFile);
+        }
+    }
+
+    private static double millis(long totalNanos) {
+        return totalNanos / (REPEAT * 1e6);
+    }
+
+    private static boolean sameOutputs(NeuralNetwork<?> original, NeuralNetwork<?> loaded) {
+        int inputSize = original.getLayers().get(0).getWidth() * Math.max(1, original.getLayers().get(0).getHeight())
+                        * Math.max(1, original.getLayers().get(0).getDepth());
+        float[] input = new float[inputSize];
+        Random rnd = new Random(42);
+        for (int i = 0; i < input.length; i++) {
+            input[i] = rnd.nextFloat();
+        }
+
+        float[] expected, actual;
+        if (original instanceof ConvolutionalNetwork) {
+            int width = original.getLayers().get(0).getWidth();
+            int height = original.getLayers().get(0).getHeight();
+            int depth = original.getLayers().get(0).getDepth();
+            expected = ((ConvolutionalNetwork) original).predict(new TensorBase(height, width, depth, input.clone())).getValues().clone();
+            actual = ((ConvolutionalNetwork) loaded).predict(new TensorBase(height, width, depth, input.clone())).getValues().clone();
+        } else {
+            expected = ((FeedForwardNetwork) original).predict(input).clone();
+            actual = ((FeedForwardNetwork) loaded).predict(input).clone();
+        }
+        return Arrays.equals(expected, actual);
+    }
+}
@@ -0,0 +1,510 @@
+package deepnetts.examples.io;
+
+import deepnetts.examples.util.LayerSpec;
+import deepnetts.net.ConvolutionalNetwork;
+import deepnetts.net.FeedForwardNetwork;
+import deepnetts.net.NeuralNetwork;
+import deepnetts.net.layers.AbstractLayer;
+import deepnetts.net.layers.Filters;
+import deepnetts.net.layers.activation.ActivationType;
+import deepnetts.net.loss.LossType;
+import deepnetts.util.TensorBase;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * Versioned binary file format for trained networks, as a fast alternative to Java serialization
+ * used by {@link deepnetts.util.FileIO}.
+ *
+ * File layout (all numbers are little-endian):
+ * <pre>
+ * offset  size  content
+ * 0       4     magic bytes "DNBM"
+ * 4       4     format version (int32), 1 or 2
+ * 8       4     header length in bytes (int32)
+ * 12      n     header, UTF-8 encoded JSON (see below)
+ * ...           zero padding to the next multiple of 64 bytes
+ * ...           weight blocks: float32 or int32 arrays, each starting at an offset which is a multiple of 64 bytes
+ * </pre>
+ *
+ * Header JSON contains network type, output labels and a list of layers. Each layer has type, width, height,
+ * depth, filterWidth, filterHeight, stride and activation, and layers with weights have offsets and lengths
+ * (in floats) of their weight and bias blocks:
+ * <pre>
+ * {"network": "ConvolutionalNetwork", "outputLabels": ["cat", "dog"],
+ *  "layers": [{"type": "INPUT", "width": 64, "height": 64, "depth": 3, ...},
+ *             {"type": "CONVOLUTIONAL", ..., "weights": {"offset": 512, "length": 864}, "biases": {"offset": 4032, "length": 32}}, ...]}
+ * </pre>
+ * Weight values are stored in the same order as in the layer's weights tensor.
+ *
+ * Version 2 adds sparse weights, for pruned networks (see {@link #write(NeuralNetwork, Path, double)}). Instead of a
+ * weights block, a sparse layer has a "sparseWeights" object with the weight matrix in compressed sparse row format:
+ * one row per output (bias), row starts (rows + 1 int32 values), column indexes of non-zero values (int32) and the
+ * non-zero values (float32), each in its own block:
+ * <pre>
+ * "sparseWeights": {"rows": 4096, "cols": 25088, "rowStarts": {"offset": ..., "length": 4097},
+ *                   "columns": {"offset": ..., "length": 10276045}, "values": {"offset": ..., "length": 10276045}}
+ * </pre>
+ * Files without sparse layers are written as version 1, so they can be read by older readers.
+ *
+ * The file is written through a {@link FileChannel} with a {@link ChannelWriter}, and read by memory mapping it, so weights are copied
+ * into layers with bulk {@link FloatBuffer} transfers, without any per-value parsing or reflection.
+ * Since the header is read separately, a file can be opened without loading any weights,
+ * and weights of each layer can be read on demand.
+ * Networks are rebuilt from the header for inference; loss function is chosen by the output activation.
+ */
+public final class BinaryModelFile implements AutoCloseable {
+
+    public static final int FORMAT_VERSION = 2;
+    public static final String EXTENSION = ".dnbm";
+    static final byte[] MAGIC = {'D', 'N', 'B', 'M'};
+    static final int ALIGNMENT = 64;
+
+    private final FileChannel channel;
+    private final MappedByteBuffer mapped;
+    private final String networkType;
+    private final String[] outputLabels;
+    private final List<LayerSpec> layers;
+    private final List<JSONObject> layerHeaders;
+
+    private BinaryModelFile(FileChannel channel, MappedByteBuffer mapped, JSONObject header) {
+        this.channel = channel;
+        this.mapped = mapped;
+        this.networkType = header.getString("network");
+
+        JSONArray labels = header.optJSONArray("outputLabels");
+        if (labels != null) {
+            outputLabels = new String[labels.length()];
+            for (int i = 0; i < outputLabels.length; i++) {
+                outputLabels[i] = labels.getString(i);
+            }
+        } else {
+            outputLabels = null;
+        }
+
+        JSONArray layersJson = header.getJSONArray("layers");
+        List<LayerSpec> specs = new ArrayList<>(layersJson.length());
+        List<JSONObject> headers = new ArrayList<>(layersJson.length());
+        for (int i = 0; i < layersJson.length(); i++) {
+            JSONObject layerJson = layersJson.getJSONObject(i);
+            headers.add(layerJson);
+            specs.add(toLayerSpec(layerJson));
+        }
+        this.layers = Collections.unmodifiableList(specs);
+        this.layerHeaders = headers;
+    }
+
+    /**
+     * Writes the given network to file in binary model format, with all weights dense.
+     */
+    public static void write(NeuralNetwork<?> network, Path file) throws IOException {
+        write(network, file, 0);
+    }
+
+    /**
+     * Writes the given network to file in binary model format, with weights of layers which have at most the given
+     * fraction of non-zero weights (like layers pruned by MagnitudePruner) stored as sparse matrices, which take 8 bytes per
+     * non-zero weight instead of 4 bytes per weight. Weights are read back as dense arrays, so a network read from
+     * the file is the same as the written one.
+     *
+     * @param sparseDensity max fraction of non-zero weights for sparse layers, 0 to keep all layers dense
+     */
+    public static void write(NeuralNetwork<?> network, Path file, double sparseDensity) throws IOException {
+        if (!(sparseDensity >= 0 && sparseDensity <= 1)) {
+            throw new IllegalArgumentException("Sparse density must be between 0 and 1, got " + sparseDensity);
+        }
+        List<AbstractLayer> netLayers = network.getLayers();
+        List<LayerSpec> specs = LayerSpec.of(network);
+
+        // number of non-zero weights of layers stored sparse, -1 for dense layers
+        long[] nonZeros = new long[specs.size()];
+        boolean anySparse = false;
+        for (int i = 0; i < specs.size(); i++) {
+            nonZeros[i] = -1;
+            if (specs.get(i).hasWeights() && sparseDensity > 0) {
+                float[] weights = netLayers.get(i).getWeights().getValues();
+                long count = countNonZeros(weights);
+                int rows = netLayers.get(i).getBiases().getValues().length;
+                if (count <= sparseDensity * weights.length && sparseBytes(rows, count) < 4L * weights.length) {
+                    nonZeros[i] = count;
+                    anySparse = true;
+                }
+            }
+        }
+
+        // weight blocks start after the header, but header contains block offsets, so its length depends on where blocks start
+        long dataStart = ALIGNMENT;
+        JSONObject header;
+        byte[] headerBytes;
+        while (true) {
+            header = createHeader(network, netLayers, specs, nonZeros, dataStart);
+            headerBytes = header.toString().getBytes(StandardCharsets.UTF_8);
+            long required = align(12 + headerBytes.length);
+            if (required <= dataStart) {
+                break;
+            }
+            dataStart = required;
+        }
+
+        try (FileChannel out = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer start = ByteBuffer.allocate((int) dataStart).order(ByteOrder.LITTLE_ENDIAN);
+            start.put(MAGIC).putInt(anySparse ? 2 : 1).putInt(headerBytes.length).put(headerBytes);
+            start.position((int) dataStart); // zero padding up to the first block
+            start.flip();
+            ChannelWriter.writeFully(out, start);
+
+            ChannelWriter writer = new ChannelWriter(out);
+            for (int i = 0; i < netLayers.size(); i++) {
+                if (!specs.get(i).hasWeights()) {
+                    continue;
+                }
+                JSONObject layerJson = header.getJSONArray("layers").getJSONObject(i);
+                if (nonZeros[i] >= 0) {
+                    writeSparse(writer, netLayers.get(i).getWeights().getValues(), layerJson.getJSONObject("sparseWeights"));
+                } else {
+                    writer.position(layerJson.getJSONObject("weights").getLong("offset")).writeFloats(netLayers.get(i).getWeights().getValues());
+                }
+                writer.position(layerJson.getJSONObject("biases").getLong("offset")).writeFloats(netLayers.get(i).getBiases().getValues());
+            }
+        }
+    }
+
+    // writes row starts, column indexes and values of non-zero weights, one row of the weight matrix at a time
+    private static void writeSparse(ChannelWriter writer, float[] weights, JSONObject sparseJson) throws IOException {
+        int rows = sparseJson.getInt("rows"), cols = sparseJson.getInt("cols");
+        int[] rowStarts = new int[rows + 1];
+        for (int r = 0; r < rows; r++) {
+            rowStarts[r + 1] = rowStarts[r] + (int) countNonZeros(weights, r * cols, cols);
+        }
+        writer.position(sparseJson.getJSONObject("rowStarts").getLong("offset")).writeInts(rowStarts);
+
+        int[] columns = new int[cols];
+        float[] values = new float[cols];
+        long columnsOffset = sparseJson.getJSONObject("columns").getLong("offset");
+        long valuesOffset = sparseJson.getJSONObject("values").getLong("offset");
+        for (int r = 0; r < rows; r++) {
+            int n = 0;
+            for (int c = 0; c < cols; c++) {
+                float value = weights[r * cols + c];
+                if (value != 0) {
+                    columns[n] = c;
+                    values[n++] = value;
+                }
+            }
+            writer.position(columnsOffset + 4L * rowStarts[r]).writeInts(columns, 0, n);
+            writer.position(valuesOffset + 4L * rowStarts[r]).writeFloats(values, 0, n);
+        }
+    }
+
+    private static long countNonZeros(float[] values) {
+        return countNonZeros(values, 0, values.length);
+    }
+
+    private static long countNonZeros(float[] values, int offset, int length) {
+        long count = 0;
+        for (int i = offset; i < offset + length; i++) {
+            if (values[i] != 0) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static long sparseBytes(int rows, long nonZeros) {
+        return 4L * (rows + 1) + 8L * nonZeros;
+    }
+
+    private static JSONObject createHeader(NeuralNetwork<?> network, List<AbstractLayer> netLayers, List<LayerSpec> specs, long[] nonZeros, long dataStart) {
+        JSONObject header = new JSONObject();
+        header.put("network", network instanceof ConvolutionalNetwork ? "ConvolutionalNetwork" : "FeedForwardNetwork");
+        if (network.getOutputLabels() != null) {
+            header.put("outputLabels", new JSONArray(network.getOutputLabels()));
+        }
+
+        JSONArray layersJson = new JSONArray();
+        long offset = dataStart;
+        for (int i = 0; i < specs.size(); i++) {
+            LayerSpec spec = specs.get(i);
+            JSONObject layerJson = new JSONObject();
+            layerJson.put("type", spec.getType().name());
+            layerJson.put("width", spec.getWidth());
+            layerJson.put("height", spec.getHeight());
+            layerJson.put("depth", spec.getDepth());
+            layerJson.put("filterWidth", spec.getFilterWidth());
+            layerJson.put("filterHeight", spec.getFilterHeight());
+            layerJson.put("stride", spec.getStride());
+            if (spec.getActivation() != null) {
+                layerJson.put("activation", spec.getActivation().name());
+            }
+            if (spec.hasWeights()) {
+                int weightsLength = netLayers.get(i).getWeights().getValues().length;
+                int biasesLength = netLayers.get(i).getBiases().getValues().length;
+                if (nonZeros[i] >= 0) {
+                    JSONObject sparseJson = new JSONObject();
+                    sparseJson.put("rows", biasesLength);
+                    sparseJson.put("cols", weightsLength / biasesLength);
+                    sparseJson.put("rowStarts", block(offset, biasesLength + 1));
+                    offset = align(offset + 4L * (biasesLength + 1));
+                    sparseJson.put("columns", block(offset, nonZeros[i]));
+                    offset = align(offset + 4L * nonZeros[i]);
+                    sparseJson.put("values", block(offset, nonZeros[i]));
+                    offset = align(offset + 4L * nonZeros[i]);
+                    layerJson.put("sparseWeights", sparseJson);
+                } else {
+                    layerJson.put("weights", block(offset, weightsLength));
+                    offset = align(offset + 4L * weightsLength);
+                }
+                layerJson.put("biases", block(offset, biasesLength));
+                offset = align(offset + 4L * biasesLength);
+            }
+            layersJson.put(layerJson);
+        }
+        header.put("layers", layersJson);
+        return header;
+    }
+
+    private static JSONObject block(long offset, long length) {
+        JSONObject block = new JSONObject();
+        block.put("offset", offset);
+        block.put("length", length);
+        return block;
+    }
+
+    private static long align(long offset) {
+        return (offset + ALIGNMENT - 1) / ALIGNMENT * ALIGNMENT;
+    }
+
+    /**
+     * Opens model file and reads its header. Weights are not read until they are requested.
+     * The file is kept open until this object is closed.
+     */
+    public static BinaryModelFile open(Path file) throws IOException {
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+        try {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("Model files larger than 2GB are not supported: " + file);
+            }
+            MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            mapped.order(ByteOrder.LITTLE_ENDIAN);
+
+            byte[] magic = new byte[MAGIC.length];
+            mapped.get(magic);
+            for (int i = 0; i < MAGIC.length; i++) {
+                if (magic[i] != MAGIC[i]) {
+                    throw new IOException("Not a binary model file: " + file);
+                }
+            }
+            int version = mapped.getInt();
+            if (version > FORMAT_VERSION) {
+                throw new IOException("Unsupported binary model format version " + version + " in " + file + ", max supported is " + FORMAT_VERSION);
+            }
+            int headerLength = mapped.getInt();
+            byte[] headerBytes = new byte[headerLength];
+            mapped.get(headerBytes);
+
+            return new BinaryModelFile(channel, mapped, new JSONObject(new String(headerBytes, StandardCharsets.UTF_8)));
+        } catch (IOException | RuntimeException ex) {
+            channel.close();
+            throw ex;
+        }
+    }
+
+    /**
+     * Reads complete network from the given file.
+     */
+    public static NeuralNetwork<?> read(Path file) throws IOException {
+        try (BinaryModelFile modelFile = open(file)) {
+            return modelFile.createNetwork();
+        }
+    }
+
+    public static <T extends NeuralNetwork<?>> T read(Path file, Class<T> type) throws IOException {
+        return type.cast(read(file));
+    }
+
+    /**
+     * Returns architecture of all layers, read from the file header.
+     */
+    public List<LayerSpec> getLayers() {
+        return layers;
+    }
+
+    public String getNetworkType() {
+        return networkType;
+    }
+
+    public String[] getOutputLabels() {
+        return outputLabels == null ? null : outputLabels.clone();
+    }
+
+    /**
+     * Returns read-only view of weights of the layer with the given index, directly from the mapped file.
+     * Weights of sparse layers are returned as a dense copy, with zeros for the weights which are not stored.
+     * Returns null for layers without weights.
+     */
+    public FloatBuffer weights(int layerIdx) {
+        JSONObject sparseJson = layerHeaders.get(layerIdx).optJSONObject("sparseWeights");
+        if (sparseJson == null) {
+            return blockView(layerIdx, "weights");
+        }
+        int rows = sparseJson.getInt("rows"), cols = sparseJson.getInt("cols");
+        IntBuffer rowStarts = bytes(sparseJson.getJSONObject("rowStarts")).asIntBuffer();
+        IntBuffer columns = bytes(sparseJson.getJSONObject("columns")).asIntBuffer();
+        FloatBuffer values = bytes(sparseJson.getJSONObject("values")).asFloatBuffer();
+        float[] dense = new float[rows * cols];
+        for (int r = 0; r < rows; r++) {
+            for (int i = rowStarts.get(r); i < rowStarts.get(r + 1); i++) {
+                dense[r * cols + columns.get(i)] = values.get(i);
+            }
+        }
+        return FloatBuffer.wrap(dense).asReadOnlyBuffer();
+    }
+
+    /**
+     * Returns true if weights of the layer with the given index are stored as a sparse matrix.
+     */
+    public boolean isSparse(int layerIdx) {
+        return layerHeaders.get(layerIdx).has("sparseWeights");
+    }
+
+    /**
+     * Returns read-only view of biases of the layer with the given index, directly from the mapped file.
+     */
+    public FloatBuffer biases(int layerIdx) {
+        return blockView(layerIdx, "biases");
+    }
+
+    private FloatBuffer blockView(int layerIdx, String name) {
+        JSONObject block = layerHeaders.get(layerIdx).optJSONObject(name);
+        if (block == null) {
+            return null;
+        }
+        return bytes(block).asFloatBuffer().asReadOnlyBuffer();
+    }
+
+    // bytes of a block of 4 byte values
+    private ByteBuffer bytes(JSONObject block) {
+        ByteBuffer bytes = mapped.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        bytes.position((int) block.getLong("offset"));
+        bytes.limit(bytes.position() + 4 * block.getInt("length"));
+        return bytes.slice().order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * Copies weights and biases of the layer with the given index from file into the given layer.
+     */
+    public void loadLayer(int layerIdx, AbstractLayer layer) {
+        if (!layers.get(layerIdx).hasWeights()) {
+            return;
+        }
+        copyInto(weights(layerIdx), layer.getWeights(), layerIdx, "weights");
+        copyInto(biases(layerIdx), layer.getBiases(), layerIdx, "biases");
+    }
+
+    private static void copyInto(FloatBuffer source, TensorBase target, int layerIdx, String name) {
+        float[] values = target.getValues();
+        if (values.length != source.remaining()) {
+            throw new IllegalArgumentException("Layer " + layerIdx + " " + name + " size mismatch: file has " + source.remaining() + ", layer has " + values.length);
+        }
+        source.get(values); // bulk copy into the tensor's backing array
+    }
+
+    /**
+     * Creates network with architecture from the header, and loads weights of all layers.
+     */
+    public NeuralNetwork<?> createNetwork() {
+        NeuralNetwork<?> network = createEmptyNetwork();
+        List<AbstractLayer> netLayers = network.getLayers();
+        for (int i = 0; i < netLayers.size(); i++) {
+            loadLayer(i, netLayers.get(i));
+        }
+        return network;
+    }
+
+    /**
+     * Creates network with architecture from the header, with initial random weights.
+     * Weights of individual layers can be loaded later using {@link #loadLayer(int, AbstractLayer)}.
+     */
+    public NeuralNetwork<?> createEmptyNetwork() {
+        LayerSpec output = layers.get(layers.size() - 1);
+        LossType loss = output.getActivation() == ActivationType.SOFTMAX || output.getActivation() == ActivationType.SIGMOID
+                        ? LossType.CROSS_ENTROPY : LossType.MEAN_SQUARED_ERROR;
+
+        NeuralNetwork<?> network;
+        if ("ConvolutionalNetwork".equals(networkType)) {
+            ConvolutionalNetwork.Builder builder = ConvolutionalNetwork.builder();
+            for (LayerSpec layer : layers) {
+                switch (layer.getType()) {
+                    case INPUT:
+                        builder.addInputLayer(layer.getWidth(), layer.getHeight(), layer.getDepth());
+                        break;
+                    case CONVOLUTIONAL:
+                        builder.addConvolutionalLayer(layer.getDepth(), Filters.ofSize(layer.getFilterWidth(), layer.getFilterHeight()).stride(layer.getStride()), layer.getActivation());
+                        break;
+                    case MAX_POOLING:
+                        builder.addMaxPoolingLayer(Filters.ofSize(layer.getFilterWidth(), layer.getFilterHeight()).stride(layer.getStride()));
+                        break;
+                    case FULLY_CONNECTED:
+                        builder.addFullyConnectedLayer(layer.getWidth(), layer.getActivation());
+                        break;
+                    case OUTPUT:
+                        builder.addOutputLayer(layer.getWidth(), layer.getActivation());
+                        break;
+                }
+            }
+            network = builder.lossFunction(loss).build();
+        } else {
+            FeedForwardNetwork.Builder builder = FeedForwardNetwork.builder();
+            for (LayerSpec layer : layers) {
+                switch (layer.getType()) {
+                    case INPUT:
+                        builder.addInputLayer(layer.getWidth());
+                        break;
+                    case FULLY_CONNECTED:
+                        builder.addFullyConnectedLayer(layer.getWidth(), layer.getActivation());
+                        break;
+                    case OUTPUT:
+                        builder.addOutputLayer(layer.getWidth(), layer.getActivation());
+                        break;
+                    default:
+                        throw new IllegalStateException("Layer type " + layer.getType() + " is not supported in FeedForwardNetwork");
+                }
+            }
+            network = builder.lossFunction(loss).build();
+        }
+
+        if (outputLabels != null) {
+            network.setOutputLabels(outputLabels);
+        }
+        return network;
+    }
+
+    private static LayerSpec toLayerSpec(JSONObject layerJson) {
+        String activation = layerJson.optString("activation", null);
+        return new LayerSpec(LayerSpec.Type.valueOf(layerJson.getString("type")),
+                             layerJson.getInt("width"), layerJson.getInt("height"), layerJson.getInt("depth"),
+                             layerJson.getInt("filterWidth"), layerJson.getInt("filterHeight"), layerJson.getInt("stride"),
+                             activation != null ? ActivationType.valueOf(activation) : null);
+    }
+
+    /**
+     * Closes the file. Views returned by {@link #weights(int)} and {@link #biases(int)} should not be used after closing.
+     */
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
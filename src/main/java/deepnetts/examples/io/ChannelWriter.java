@@ -0,0 +1,79 @@
+package deepnetts.examples.io;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * Writes float and int arrays to a file channel as little-endian values, at the current position of the channel,
+ * through a single direct buffer of 1MB, so large arrays are written without copying them into a byte array first.
+ * Used by writers of binary file formats, like {@link BinaryModelFile}. Not thread safe.
+ */
+public final class ChannelWriter {
+
+    private static final int CHUNK_SIZE = 1 << 20;
+
+    private final FileChannel channel;
+    private final ByteBuffer chunk = ByteBuffer.allocateDirect(CHUNK_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+
+    public ChannelWriter(FileChannel channel) {
+        this.channel = channel;
+    }
+
+    /**
+     * Sets position in the file where the following values are written.
+     */
+    public ChannelWriter position(long position) throws IOException {
+        channel.position(position);
+        return this;
+    }
+
+    public void writeFloats(float[] values) throws IOException {
+        writeFloats(values, 0, values.length);
+    }
+
+    /**
+     * Writes values[offset .. offset + length).
+     */
+    public void writeFloats(float[] values, int offset, int length) throws IOException {
+        int pos = 0;
+        while (pos < length) {
+            int count = Math.min(CHUNK_SIZE / Float.BYTES, length - pos);
+            // a new view for each chunk: a view starts at the position of the chunk, which is at its end after a write
+            chunk.clear();
+            chunk.asFloatBuffer().put(values, offset + pos, count);
+            chunk.limit(count * Float.BYTES);
+            writeFully(channel, chunk);
+            pos += count;
+        }
+    }
+
+    public void writeInts(int[] values) throws IOException {
+        writeInts(values, 0, values.length);
+    }
+
+    /**
+     * Writes values[offset .. offset + length).
+     */
+    public void writeInts(int[] values, int offset, int length) throws IOException {
+        int pos = 0;
+        while (pos < length) {
+            int count = Math.min(CHUNK_SIZE / Integer.BYTES, length - pos);
+            chunk.clear();
+            chunk.asIntBuffer().put(values, offset + pos, count);
+            chunk.limit(count * Integer.BYTES);
+            writeFully(channel, chunk);
+            pos += count;
+        }
+    }
+
+    /**
+     * Writes all remaining bytes of the buffer, at the current position of the channel.
+     */
+    public static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+}
@@ -0,0 +1,213 @@
+package deepnetts.examples.io;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Float array in NumPy {@code .npy} format, as written by {@code numpy.save}.
+ *
+ * File layout:
+ * <pre>
+ * offset  size  content
+ * 0       6     magic bytes "\x93NUMPY"
+ * 6       2     format version, major and minor byte (1.0, 2.0 or 3.0)
+ * 8       2|4   header length, little-endian uint16 for version 1, uint32 for versions 2 and 3
+ * ...     n     header, Python dict literal: {'descr': '&lt;f4', 'fortran_order': False, 'shape': (3, 3, 64, 128), }
+ * ...           array data, in C (row-major) order
+ * </pre>
+ * Data type can be {@code float32} or {@code float64}, in little or big endian byte order.
+ *
+ * Files are memory mapped, and data is not read until it is copied, so opening an array is cheap and
+ * {@code float32} arrays are copied with a single bulk {@link FloatBuffer} transfer. {@code float64} arrays are
+ * converted to float while copying. Arrays in Fortran order are not supported, since Keras and NumPy
+ * write C order by default.
+ */
+public final class NpyArray {
+
+    private static final byte[] MAGIC = {(byte) 0x93, 'N', 'U', 'M', 'P', 'Y'};
+    private static final Pattern DESCR = Pattern.compile("'descr'\\s*:\\s*'([^']*)'");
+    private static final Pattern FORTRAN_ORDER = Pattern.compile("'fortran_order'\\s*:\\s*(True|False)");
+    private static final Pattern SHAPE = Pattern.compile("'shape'\\s*:\\s*\\(([^)]*)\\)");
+
+    private final String name;
+    private final String dtype;
+    private final int[] shape;
+    private final int size;
+    private final ByteBuffer data;
+
+    private NpyArray(String name, String dtype, int[] shape, int size, ByteBuffer data) {
+        this.name = name;
+        this.dtype = dtype;
+        this.shape = shape;
+        this.size = size;
+        this.data = data;
+    }
+
+    /**
+     * Opens the given .npy file by memory mapping it.
+     *
+     * @throws IOException if file cannot be read or is not a valid .npy file with float data
+     */
+    public static NpyArray read(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("File is larger than 2GB: " + file);
+            }
+            return parse(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()), file.toString());
+        }
+    }
+
+    /**
+     * Parses .npy content from the given buffer, which starts with the magic bytes.
+     * Data is not copied, the returned array reads from the buffer.
+     */
+    static NpyArray parse(ByteBuffer bytes, String name) throws IOException {
+        ByteBuffer buffer = bytes.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        if (buffer.remaining() < 10) {
+            throw new IOException("Not a .npy file, too short: " + name);
+        }
+        for (int i = 0; i < MAGIC.length; i++) {
+            if (buffer.get(i) != MAGIC[i]) {
+                throw new IOException("Not a .npy file, invalid magic bytes: " + name);
+            }
+        }
+        int major = buffer.get(6);
+        int headerStart, headerLength;
+        if (major == 1) {
+            headerLength = buffer.getShort(8) & 0xFFFF;
+            headerStart = 10;
+        } else if (major == 2 || major == 3) {
+            headerLength = buffer.getInt(8);
+            headerStart = 12;
+        } else {
+            throw new IOException("Unsupported .npy format version " + major + "." + buffer.get(7) + " in " + name);
+        }
+        if (headerLength < 0 || headerStart + headerLength > buffer.limit()) {
+            throw new IOException("Invalid .npy header length " + headerLength + " in " + name);
+        }
+
+        byte[] headerBytes = new byte[headerLength];
+        buffer.position(headerStart);
+        buffer.get(headerBytes);
+        String header = new String(headerBytes, major == 3 ? StandardCharsets.UTF_8 : StandardCharsets.ISO_8859_1);
+
+        String dtype = group(DESCR, header, "descr", name);
+        if (group(FORTRAN_ORDER, header, "fortran_order", name).equals("True")) {
+            throw new IOException("Arrays in Fortran order are not supported: " + name);
+        }
+        if (!dtype.matches("[<>=]f[48]")) {
+            throw new IOException("Unsupported data type " + dtype + " in " + name + ", only float32 and float64 are supported");
+        }
+        int[] shape = parseShape(group(SHAPE, header, "shape", name), name);
+
+        long size = 1;
+        for (int dim : shape) {
+            size *= dim;
+        }
+        int itemSize = dtype.charAt(2) - '0';
+        long dataLength = size * itemSize;
+        if (dataLength > buffer.remaining()) {
+            throw new IOException("Array " + name + " with shape " + Arrays.toString(shape) + " needs " + dataLength
+                                  + " bytes of data, file has " + buffer.remaining());
+        }
+        if (size > Integer.MAX_VALUE) {
+            throw new IOException("Array " + name + " has more than " + Integer.MAX_VALUE + " values");
+        }
+
+        ByteBuffer data = buffer.slice();
+        data.limit((int) dataLength);
+        data.order(dtype.charAt(0) == '>' ? ByteOrder.BIG_ENDIAN : dtype.charAt(0) == '<' ? ByteOrder.LITTLE_ENDIAN : ByteOrder.nativeOrder());
+        return new NpyArray(name, dtype, shape, (int) size, data);
+    }
+
+    private static String group(Pattern pattern, String header, String key, String name) throws IOException {
+        Matcher matcher = pattern.matcher(header);
+        if (!matcher.find()) {
+            throw new IOException("Missing " + key + " in .npy header of " + name + ": " + header.trim());
+        }
+        return matcher.group(1);
+    }
+
+    private static int[] parseShape(String value, String name) throws IOException {
+        String[] dims = value.split(",");
+        int count = 0;
+        int[] shape = new int[dims.length];
+        try {
+            for (String dim : dims) {
+                if (!dim.trim().isEmpty()) { // tuple of one element has a trailing comma: (16,)
+                    shape[count++] = Integer.parseInt(dim.trim());
+                }
+            }
+        } catch (NumberFormatException ex) {
+            throw new IOException("Invalid shape (" + value + ") in " + name, ex);
+        }
+        return Arrays.copyOf(shape, count);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Returns NumPy data type descriptor, like {@code <f4}.
+     */
+    public String getDType() {
+        return dtype;
+    }
+
+    public int[] getShape() {
+        return shape.clone();
+    }
+
+    /**
+     * Returns total number of values, product of all dimensions.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Returns values as a buffer in C order. For {@code float32} arrays this is a view of the (memory mapped) data,
+     * {@code float64} arrays are converted.
+     */
+    public FloatBuffer asFloatBuffer() {
+        if (dtype.charAt(2) == '4') {
+            return data.duplicate().order(data.order()).asFloatBuffer();
+        }
+        FloatBuffer values = FloatBuffer.allocate(size);
+        for (int i = 0; i < size; i++) {
+            values.put(i, (float) data.getDouble(i * 8));
+        }
+        return values;
+    }
+
+    /**
+     * Copies all values in C order into the target array, starting at the given offset.
+     */
+    public void copyTo(float[] target, int offset) {
+        if (offset + size > target.length) {
+            throw new IllegalArgumentException("Array " + name + " has " + size + " values, target has space for " + (target.length - offset));
+        }
+        asFloatBuffer().get(target, offset, size);
+    }
+
+    public float[] toFloatArray() {
+        float[] values = new float[size];
+        copyTo(values, 0);
+        return values;
+    }
+
+    @Override
+    public String toString() {
+        return name + " " + dtype + " " + Arrays.toString(shape);
+    }
+}
@@ -0,0 +1,253 @@
+package deepnetts.examples.io;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Archive of named arrays in NumPy {@code .npz} format, as written by {@code numpy.savez} and {@code numpy.savez_compressed}.
+ *
+ * An .npz file is a zip archive with one {@link NpyArray .npy} entry per array. Arrays written by {@code numpy.savez}
+ * are stored without compression, so they are memory mapped straight from the archive: the zip central directory
+ * (including zip64 records, which numpy always writes) is read to find the offset of each entry, and the entry data is
+ * mapped without reading or copying it. Compressed entries, from {@code numpy.savez_compressed}, are inflated into memory.
+ * <pre>
+ * try (NpzFile npz = NpzFile.open(Paths.get("weights.npz"))) {
+ *     for (String name : npz.getNames()) {
+ *         NpyArray array = npz.get(name);
+ *         ...
+ *     }
+ * }
+ * </pre>
+ * Arrays read from an archive must not be used after it is closed.
+ */
+public final class NpzFile implements AutoCloseable {
+
+    private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+    private static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+    private static final int END_SIGNATURE = 0x06054b50;
+    private static final int ZIP64_LOCATOR_SIGNATURE = 0x07064b50;
+    private static final int ZIP64_END_SIGNATURE = 0x06064b50;
+    private static final int END_SIZE = 22;
+    private static final int ZIP64_EXTRA_ID = 1;
+    private static final int STORED = 0;
+    private static final long MAX_UINT32 = 0xFFFFFFFFL;
+
+    private final Path file;
+    private final FileChannel channel;
+    private final Map<String, Entry> entries;
+    private ZipFile zipFile; // opened only for compressed entries
+
+    private NpzFile(Path file, FileChannel channel, Map<String, Entry> entries) {
+        this.file = file;
+        this.channel = channel;
+        this.entries = entries;
+    }
+
+    /**
+     * Opens the archive and reads its directory. Arrays are not read until requested.
+     *
+     * @throws IOException if file cannot be read or is not a valid zip archive
+     */
+    public static NpzFile open(Path file) throws IOException {
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+        try {
+            return new NpzFile(file, channel, readDirectory(channel, file));
+        } catch (IOException | RuntimeException ex) {
+            channel.close();
+            throw ex;
+        }
+    }
+
+    /**
+     * Zip entry of a single array.
+     */
+    private static final class Entry {
+        final String entryName;
+        final int method;
+        final long compressedSize;
+        final long size;
+        final long localHeaderOffset;
+
+        Entry(String entryName, int method, long compressedSize, long size, long localHeaderOffset) {
+            this.entryName = entryName;
+            this.method = method;
+            this.compressedSize = compressedSize;
+            this.size = size;
+            this.localHeaderOffset = localHeaderOffset;
+        }
+    }
+
+    private static Map<String, Entry> readDirectory(FileChannel channel, Path file) throws IOException {
+        // end of central directory record is at the end of the file, followed by a comment of up to 64KB
+        long fileSize = channel.size();
+        int tailLength = (int) Math.min(fileSize, END_SIZE + 0xFFFF);
+        ByteBuffer tail = read(channel, fileSize - tailLength, tailLength);
+        int end = tailLength - END_SIZE;
+        while (end >= 0 && tail.getInt(end) != END_SIGNATURE) {
+            end--;
+        }
+        if (end < 0) {
+            throw new IOException("Not a zip archive, end of central directory not found: " + file);
+        }
+
+        long numEntries = tail.getShort(end + 10) & 0xFFFF;
+        long directorySize = tail.getInt(end + 12) & MAX_UINT32;
+        long directoryOffset = tail.getInt(end + 16) & MAX_UINT32;
+        if (numEntries == 0xFFFF || directorySize == MAX_UINT32 || directoryOffset == MAX_UINT32) {
+            // zip64 end of central directory, found through the locator just before the end record
+            long locator = fileSize - tailLength + end - 20;
+            ByteBuffer locatorRecord = locator >= 0 ? read(channel, locator, 20) : null;
+            if (locatorRecord == null || locatorRecord.getInt(0) != ZIP64_LOCATOR_SIGNATURE) {
+                throw new IOException("Zip64 end of central directory locator not found: " + file);
+            }
+            ByteBuffer zip64End = read(channel, locatorRecord.getLong(8), 56);
+            if (zip64End.getInt(0) != ZIP64_END_SIGNATURE) {
+                throw new IOException("Invalid zip64 end of central directory: " + file);
+            }
+            numEntries = zip64End.getLong(32);
+            directorySize = zip64End.getLong(40);
+            directoryOffset = zip64End.getLong(48);
+        }
+        if (directorySize > Integer.MAX_VALUE) {
+            throw new IOException("Zip central directory too large: " + file);
+        }
+
+        ByteBuffer directory = read(channel, directoryOffset, (int) directorySize);
+        Map<String, Entry> entries = new LinkedHashMap<>();
+        int pos = 0;
+        for (long e = 0; e < numEntries; e++) {
+            if (directory.getInt(pos) != CENTRAL_HEADER_SIGNATURE) {
+                throw new IOException("Invalid zip central directory entry " + e + " in " + file);
+            }
+            int method = directory.getShort(pos + 10) & 0xFFFF;
+            long compressedSize = directory.getInt(pos + 20) & MAX_UINT32;
+            long size = directory.getInt(pos + 24) & MAX_UINT32;
+            int nameLength = directory.getShort(pos + 28) & 0xFFFF;
+            int extraLength = directory.getShort(pos + 30) & 0xFFFF;
+            int commentLength = directory.getShort(pos + 32) & 0xFFFF;
+            long localHeaderOffset = directory.getInt(pos + 42) & MAX_UINT32;
+            byte[] nameBytes = new byte[nameLength];
+            directory.position(pos + 46);
+            directory.get(nameBytes);
+            String entryName = new String(nameBytes, StandardCharsets.UTF_8);
+
+            // zip64 extra field has 8 byte values for those fields which are 0xFFFFFFFF, in this order
+            int extra = pos + 46 + nameLength;
+            for (int x = extra; x + 4 <= extra + extraLength; ) {
+                int id = directory.getShort(x) & 0xFFFF;
+                int length = directory.getShort(x + 2) & 0xFFFF;
+                if (id == ZIP64_EXTRA_ID) {
+                    int value = x + 4;
+                    if (size == MAX_UINT32) {
+                        size = directory.getLong(value);
+                        value += 8;
+                    }
+                    if (compressedSize == MAX_UINT32) {
+                        compressedSize = directory.getLong(value);
+                        value += 8;
+                    }
+                    if (localHeaderOffset == MAX_UINT32) {
+                        localHeaderOffset = directory.getLong(value);
+                    }
+                }
+                x += 4 + length;
+            }
+
+            if (!entryName.endsWith("/")) {
+                String name = entryName.endsWith(".npy") ? entryName.substring(0, entryName.length() - 4) : entryName;
+                entries.put(name, new Entry(entryName, method, compressedSize, size, localHeaderOffset));
+            }
+            pos += 46 + nameLength + extraLength + commentLength;
+        }
+        return entries;
+    }
+
+    private static ByteBuffer read(FileChannel channel, long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of file at position " + (position + buffer.position()));
+            }
+        }
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * Returns names of all arrays, without the .npy extension, in the order in which they were written.
+     * Arrays passed to {@code numpy.savez} as keyword arguments have their keyword as name, positional
+     * arguments are named {@code arr_0}, {@code arr_1}...
+     */
+    public List<String> getNames() {
+        return new ArrayList<>(entries.keySet());
+    }
+
+    public boolean contains(String name) {
+        return entries.containsKey(name);
+    }
+
+    /**
+     * Returns array with the given name. Uncompressed arrays are memory mapped, compressed arrays are inflated into memory.
+     *
+     * @throws IllegalArgumentException if there is no array with the given name
+     * @throws IOException if the array cannot be read or is not a valid .npy array with float data
+     */
+    public NpyArray get(String name) throws IOException {
+        Entry entry = entries.get(name);
+        if (entry == null) {
+            throw new IllegalArgumentException("No array " + name + " in " + file + ", available arrays: " + entries.keySet());
+        }
+        if (entry.size > Integer.MAX_VALUE) {
+            throw new IOException("Array " + name + " is larger than 2GB");
+        }
+        if (entry.method == STORED) {
+            ByteBuffer localHeader = read(channel, entry.localHeaderOffset, 30);
+            if (localHeader.getInt(0) != LOCAL_HEADER_SIGNATURE) {
+                throw new IOException("Invalid zip local header of " + entry.entryName + " in " + file);
+            }
+            long dataStart = entry.localHeaderOffset + 30 + (localHeader.getShort(26) & 0xFFFF) + (localHeader.getShort(28) & 0xFFFF);
+            return NpyArray.parse(channel.map(FileChannel.MapMode.READ_ONLY, dataStart, entry.size), name);
+        }
+        return NpyArray.parse(ByteBuffer.wrap(inflate(entry)), name);
+    }
+
+    private synchronized byte[] inflate(Entry entry) throws IOException {
+        if (zipFile == null) {
+            zipFile = new ZipFile(file.toFile());
+        }
+        ZipEntry zipEntry = zipFile.getEntry(entry.entryName);
+        byte[] bytes = new byte[(int) entry.size];
+        try (InputStream in = zipFile.getInputStream(zipEntry)) {
+            int length = 0, read;
+            while (length < bytes.length && (read = in.read(bytes, length, bytes.length - length)) > 0) {
+                length += read;
+            }
+            if (length != bytes.length) {
+                throw new IOException("Entry " + entry.entryName + " has " + length + " bytes, expected " + bytes.length);
+            }
+        }
+        return bytes;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+        synchronized (this) {
+            if (zipFile != null) {
+                zipFile.close();
+            }
+        }
+    }
+}
@@ -1,22 +1,28 @@
 package deepnetts.examples.misc;
 
-import deepnetts.automl.FeedForwardNetworkFactory;
-import deepnetts.automl.HyperParameterSearch;
 import static deepnetts.automl.Parameters.HIDDEN_LAYERS;
 import static deepnetts.automl.Parameters.LEARNING_RATE;
 import static deepnetts.automl.Parameters.STOP_EPOCHS;
-import deepnetts.automl.Range;
 import deepnetts.core.DeepNetts;
 import deepnetts.data.DataSets;
+import deepnetts.data.MLDataItem;
 import deepnetts.eval.ClassifierEvaluator;
+import deepnetts.examples.automl.ConditionalParameterSearch;
+import deepnetts.examples.automl.SearchSpace;
+import deepnetts.examples.data.DataSplits;
+import deepnetts.net.FeedForwardNetwork;
 import deepnetts.net.layers.activation.ActivationType;
 import deepnetts.net.loss.LossType;
 import java.io.IOException;
+import java.nio.file.Paths;
 import java.util.List;
+import java.util.Random;
 import javax.visrec.ml.data.DataSet;
 
 /**
  * Example of hyper parameter search for classification problem.
+ * Searches for the number of hidden layers and the number of neurons in each hidden layer.
+ * Number of neurons in i-th hidden layer is a conditional parameter, which is used only when network has at least i hidden layers.
  */
 public class HiddenLayersSearchExample {
 
@@ -26,38 +32,53 @@ public class HiddenLayersSearchExample {
         int numOutputs = 1;
         boolean hasHeader = true;        
                
-        DataSet dataSet = DataSets.readCsv("datasets/creditcard-balanced.csv", numInputs, numOutputs, hasHeader);
+        DataSet<MLDataItem> dataSet = DataSets.readCsv("datasets/creditcard-balanced.csv", numInputs, numOutputs, hasHeader);
         DataSets.scaleToMax(dataSet);
-        DataSet[] trainTest = dataSet.split(0.7, 0.3);
-               
-        // ovaj kreira mreze i odmah mu se zadaju fiksni parametri (mogu da ih povucem i iz json fajla)
-        FeedForwardNetworkFactory networkFactory = new FeedForwardNetworkFactory();
-        networkFactory.setNumInputs(numInputs);
-        networkFactory.setNumOutputs(numOutputs);
-        networkFactory.setLossType(LossType.CROSS_ENTROPY); // vadi iz nekih podesavanja ne hardkodirano
-        networkFactory.setHiddenActivation(ActivationType.TANH); // i ovo isto ne hardkodiraj, povuci iz paramSearch?
-        networkFactory.setOutputActivation(ActivationType.SIGMOID); // i ovo isto ne hardkodiraj, povuci iz paramSearch?
-                
-        // ovaj kombinuje sve vrednosti svakog parametra sa svim vrednostima drugih parametara, parametri su nezavisni
-        // kako tretirati zavisne parameter kao broj skrivenih lejera i broj neurona u svakom layeru
-        HyperParameterSearch paramSearch = new HyperParameterSearch(); // maybe use builder for this        
-        paramSearch.paramRange(HIDDEN_LAYERS, Range.of(1, 3).step(1))  
-                   .paramRange("hiddenLayer_1", Range.of(4, 10).step(2))
-                   .paramRange("hiddenLayer_2", Range.of(4, 8).step(2))
-                   .paramRange("hiddenLayer_3", Range.of(3, 7).step(2))   
-                   .paramValues(LEARNING_RATE, List.of(0.01, 0.001))  
-                   .paramValue(STOP_EPOCHS, 100)          
+        // split with fixed random seed, so the data is the same each time and completed trials are found in trial cache
+        DataSet<MLDataItem>[] trainTest = DataSplits.split(dataSet, new Random(1234), 0.7, 0.3);
+
+        // neurons in hidden layer i are only searched for networks with at least i hidden layers, so no configuration is trained twice
+        SearchSpace searchSpace = new SearchSpace();
+        searchSpace.paramRange(HIDDEN_LAYERS, 1, 3, 1)
+                   .paramRange("hiddenLayer_1", 4, 10, 2)
+                   .paramRange("hiddenLayer_2", 4, 8, 2)
+                   .paramRange("hiddenLayer_3", 3, 7, 2)
+                   .paramValues(LEARNING_RATE, List.of(0.01f, 0.001f))
+                   .paramValue(STOP_EPOCHS, 100)
+                   .activeWhenAtLeast("hiddenLayer_2", HIDDEN_LAYERS, 2)
+                   .activeWhenAtLeast("hiddenLayer_3", HIDDEN_LAYERS, 3);
+
+        // creates network for the given parameter values, fixed parameters are hardcoded here
+        ConditionalParameterSearch paramSearch = new ConditionalParameterSearch();
+        paramSearch.searchSpace(searchSpace)
+                   .networkFactory(params -> {
+                        int hiddenLayers = (Integer) params.get(HIDDEN_LAYERS);
+                        int[] hiddenNeurons = new int[hiddenLayers];
+                        for (int i = 0; i < hiddenLayers; i++) {
+                            hiddenNeurons[i] = (Integer) params.get("hiddenLayer_" + (i + 1));
+                        }
 
-                   .networkFactory(networkFactory) 
-                   .evaluator(new ClassifierEvaluator())
+                        FeedForwardNetwork neuralNet = FeedForwardNetwork.builder()
+                                .addInputLayer(numInputs)
+                                .addHiddenFullyConnectedLayers(hiddenNeurons)
+                                .addOutputLayer(numOutputs, ActivationType.SIGMOID)
+                                .hiddenActivationFunction(ActivationType.TANH)
+                                .lossFunction(LossType.CROSS_ENTROPY)
+                                .build();
+
+                        neuralNet.getTrainer().setLearningRate((Float) params.get(LEARNING_RATE))
+                                              .setStopEpochs((Integer) params.get(STOP_EPOCHS));
+                        return neuralNet;
+                   })
+                   .evaluator((neuralNet, testSet) -> new ClassifierEvaluator().evaluate(neuralNet, testSet))
                    .trainingSet(trainTest[0])
                    .testSet(trainTest[1])
-                   .randomSeed(1234);
-        
-        // kako prosledjivati kada imam konvolucionu mrezu, napravi da radi i z anjih
+                   .randomSeed(1234)
+                   .trialCache(Paths.get("hiddenLayersSearch.trials")); // completed trials are stored here and skipped when search is run again
+
+        // print param search space
+        System.out.println(searchSpace);
 
-            // ispisi param search space
-     
         paramSearch.run();    
         
         System.out.println(paramSearch.getResults());
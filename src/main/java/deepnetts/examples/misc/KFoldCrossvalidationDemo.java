@@ -5,18 +5,17 @@ import deepnetts.data.DataSets;
 import deepnetts.data.TabularDataSet;
 import deepnetts.data.norm.MaxScaler;
 import deepnetts.eval.ClassifierEvaluator;
+import deepnetts.examples.train.ParallelKFoldCrossValidation;
 import deepnetts.net.FeedForwardNetwork;
 import deepnetts.net.layers.activation.ActivationType;
 import deepnetts.net.loss.LossType;
-import deepnetts.net.train.BackpropagationTrainer;
-import deepnetts.net.train.KFoldCrossValidation;
 import java.io.IOException;
-import javax.visrec.ml.data.DataSet;
 import javax.visrec.ml.eval.EvaluationMetrics;
 
 /**
  * This example shows how to perform K-fold cross-validation.
  * In k-fold cross-validation training is repeated k times with k different subsets of data for evaluation.
+ * Folds are trained in parallel, each on its own copy of the network, using views of the same normalized data set.
  *
  * For the best performance and accuracy the recommended way to run this example is to use Deep Netts Pro, with Free Development License.
  * https://www.deepnetts.com/download
@@ -44,18 +43,16 @@ public class KFoldCrossvalidationDemo {
                                             .randomSeed(123)
                                             .build();
 
-        BackpropagationTrainer trainer = neuralNet.getTrainer();
-        trainer.setStopError(0.01f)
-               .setLearningRate(0.1f)
-               .setStopEpochs(2000);
-
-        ClassifierEvaluator evaluator = new ClassifierEvaluator();
-
-        KFoldCrossValidation kfcv = KFoldCrossValidation.builder()
+        // training settings are applied to the copy of the network which is trained for each fold
+        ParallelKFoldCrossValidation kfcv = ParallelKFoldCrossValidation.builder()
                                         .model(neuralNet)
                                         .trainingSet(dataSet)
                                         .numSplits(5)
-                                        .evaluator(evaluator)
+                                        .trainerSettings(trainer -> trainer.setStopError(0.01f)
+                                                                           .setLearningRate(0.1f)
+                                                                           .setStopEpochs(2000))
+                                        .evaluator((network, testSet) -> new ClassifierEvaluator().evaluate(network, testSet)) // each fold uses its own evaluator since folds run concurrently
+                                        .randomSeed(123)
                                         .build();
 
         kfcv.run();
@@ -0,0 +1,297 @@
+package deepnetts.examples.pruning;
+
+import deepnetts.examples.inference.ConvolutionalInference;
+import deepnetts.examples.inference.CsrMatrix;
+import deepnetts.examples.util.LayerSpec;
+import deepnetts.net.NeuralNetwork;
+import deepnetts.net.layers.AbstractLayer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Post-training magnitude pruning: in each selected layer of a trained {@link deepnetts.net.ConvolutionalNetwork} or
+ * {@link deepnetts.net.FeedForwardNetwork}, the given fraction of weights with the smallest absolute values is set to zero.
+ * <pre>
+ * MagnitudePruner pruner = MagnitudePruner.builder().sparsity(0.9).build();
+ * MagnitudePruner.Report report = pruner.prune(network);
+ * ConvolutionalInference inference = ConvolutionalInference.of(network); // pruned layers are sparse
+ * </pre>
+ * Large fully connected layers, like the 25088x4096 and 4096x4096 layers of VggNet16 which hold most of its weights,
+ * tolerate heavy pruning with little change of predictions, so only hidden fully connected layers are pruned by default.
+ * Biases are not pruned. Pruned layers are stored and computed as sparse matrices by {@link ConvolutionalInference},
+ * and the report shows their size in that form.
+ *
+ * Each layer is pruned to the same sparsity, with exactly round(sparsity * weights) zeros. The magnitude threshold is found
+ * by a two pass radix selection on float bits, without copying or sorting weights, so pruning VggNet16 takes about a second.
+ * Weights are modified in place, so evaluate or save a pruned network as usual.
+ */
+public final class MagnitudePruner {
+
+    private final double sparsity;
+    private final Set<LayerSpec.Type> layerTypes;
+
+    private MagnitudePruner(Builder builder) {
+        this.sparsity = builder.sparsity;
+        this.layerTypes = builder.layerTypes;
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * Prunes all layers of the selected types in the given network, and returns the report with sparsity of each layer.
+     */
+    public Report prune(NeuralNetwork<?> network) {
+        List<AbstractLayer> layers = network.getLayers();
+        List<LayerResult> results = new ArrayList<>();
+        long totalWeights = 0;
+        for (int l = 1; l < layers.size(); l++) {
+            LayerSpec spec = LayerSpec.of(layers.get(l));
+            if (!spec.hasWeights()) {
+                continue;
+            }
+            float[] weights = layers.get(l).getWeights().getValues();
+            totalWeights += weights.length + layers.get(l).getBiases().getValues().length;
+            if (layerTypes.contains(spec.getType())) {
+                float threshold = prune(weights, sparsity);
+                results.add(new LayerResult(l, spec, weights.length, countZeros(weights), threshold));
+            }
+        }
+        return new Report(results, totalWeights);
+    }
+
+    /**
+     * Sets round(sparsity * values.length) values with the smallest absolute values to zero, and returns the magnitude
+     * threshold: all values with smaller magnitude are zero, and no value with larger magnitude is.
+     * Ties at the threshold are pruned in order, so that the number of zeros is exact.
+     */
+    public static float prune(float[] values, double sparsity) {
+        if (sparsity < 0 || sparsity > 1) {
+            throw new IllegalArgumentException("Sparsity must be between 0 and 1, got " + sparsity);
+        }
+        final int k = (int) Math.round(sparsity * values.length);
+        if (k == 0) {
+            return 0;
+        }
+        final int thresholdBits = smallestMagnitudeBits(values, k - 1);
+        int pruned = 0;
+        for (int i = 0; i < values.length; i++) {
+            if (magnitudeBits(values[i]) < thresholdBits) {
+                values[i] = 0;
+                pruned++;
+            }
+        }
+        for (int i = 0; i < values.length && pruned < k; i++) {
+            if (magnitudeBits(values[i]) == thresholdBits) {
+                values[i] = 0;
+                pruned++;
+            }
+        }
+        return Float.intBitsToFloat(thresholdBits);
+    }
+
+    // bits of a non-negative float sort in the same order as the float, so |v| can be compared as an int
+    private static int magnitudeBits(float value) {
+        return Float.floatToRawIntBits(value) & 0x7fffffff;
+    }
+
+    // returns magnitude bits of the k-th smallest (from 0) absolute value: histogram of the high 16 bits finds the bucket
+    // which contains it, and histogram of the low 16 bits of values in that bucket finds the value
+    static int smallestMagnitudeBits(float[] values, int k) {
+        final int[] histogram = new int[1 << 16];
+        for (float value : values) {
+            histogram[magnitudeBits(value) >>> 16]++;
+        }
+        int high = 0;
+        while (k >= histogram[high]) {
+            k -= histogram[high++];
+        }
+        Arrays.fill(histogram, 0);
+        for (float value : values) {
+            int bits = magnitudeBits(value);
+            if (bits >>> 16 == high) {
+                histogram[bits & 0xffff]++;
+            }
+        }
+        int low = 0;
+        while (k >= histogram[low]) {
+            k -= histogram[low++];
+        }
+        return high << 16 | low;
+    }
+
+    static int countZeros(float[] values) {
+        int zeros = 0;
+        for (float value : values) {
+            if (value == 0) {
+                zeros++;
+            }
+        }
+        return zeros;
+    }
+
+    /**
+     * Pruning result of a single layer.
+     */
+    public static final class LayerResult {
+        private final int layerIdx;
+        private final LayerSpec spec;
+        private final int numWeights;
+        private final int numZeros;
+        private final float threshold;
+
+        LayerResult(int layerIdx, LayerSpec spec, int numWeights, int numZeros, float threshold) {
+            this.layerIdx = layerIdx;
+            this.spec = spec;
+            this.numWeights = numWeights;
+            this.numZeros = numZeros;
+            this.threshold = threshold;
+        }
+
+        /**
+         * Returns index of the layer in {@code network.getLayers()}.
+         */
+        public int getLayerIndex() {
+            return layerIdx;
+        }
+
+        public LayerSpec getSpec() {
+            return spec;
+        }
+
+        public int getNumWeights() {
+            return numWeights;
+        }
+
+        /**
+         * Returns number of zero weights after pruning, including weights which were zero before.
+         */
+        public int getNumZeros() {
+            return numZeros;
+        }
+
+        public double getSparsity() {
+            return (double) numZeros / numWeights;
+        }
+
+        /**
+         * Returns magnitude threshold, all weights with smaller absolute values are zero.
+         */
+        public float getThreshold() {
+            return threshold;
+        }
+
+        public long getDenseBytes() {
+            return (long) numWeights * Float.BYTES;
+        }
+
+        /**
+         * Returns size of weights stored as a {@link CsrMatrix}, with one row per output.
+         */
+        public long getSparseBytes() {
+            return CsrMatrix.bytes(numRows(), numWeights - numZeros);
+        }
+
+        private int numRows() {
+            return spec.getType() == LayerSpec.Type.CONVOLUTIONAL ? spec.getDepth() : spec.getWidth();
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.ROOT, "%-3d %-48s %12d %9.1f%% %12.3g %10.1f %10.1f", layerIdx, spec, numWeights, 100 * getSparsity(),
+                                 threshold, getDenseBytes() / 1e6, getSparseBytes() / 1e6);
+        }
+    }
+
+    /**
+     * Pruning results of all pruned layers, and size of the whole model with pruned layers stored as sparse matrices.
+     */
+    public static final class Report {
+        private final List<LayerResult> layers;
+        private final long totalWeights;
+
+        Report(List<LayerResult> layers, long totalWeights) {
+            this.layers = Collections.unmodifiableList(layers);
+            this.totalWeights = totalWeights;
+        }
+
+        public List<LayerResult> getLayers() {
+            return layers;
+        }
+
+        /**
+         * Returns size of all weights and biases of the network, in bytes.
+         */
+        public long getDenseBytes() {
+            return totalWeights * Float.BYTES;
+        }
+
+        /**
+         * Returns size of all weights and biases of the network, with pruned layers stored as sparse matrices, in bytes.
+         */
+        public long getSparseBytes() {
+            long bytes = getDenseBytes();
+            for (LayerResult layer : layers) {
+                bytes += Math.min(0, layer.getSparseBytes() - layer.getDenseBytes()); // layers are kept dense if that is smaller
+            }
+            return bytes;
+        }
+
+        /**
+         * Returns dense size divided by sparse size of the whole model.
+         */
+        public double getSizeReduction() {
+            return (double) getDenseBytes() / getSparseBytes();
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            sb.append(String.format(Locale.ROOT, "%-3s %-48s %12s %10s %12s %10s %10s%n", "#", "layer", "weights", "sparsity", "threshold", "dense MB", "sparse MB"));
+            for (LayerResult layer : layers) {
+                sb.append(layer).append(System.lineSeparator());
+            }
+            sb.append(String.format(Locale.ROOT, "Model size %.1f MB, with sparse layers %.1f MB (%.1fx smaller)",
+                                    getDenseBytes() / 1e6, getSparseBytes() / 1e6, getSizeReduction()));
+            return sb.toString();
+        }
+    }
+
+    public static class Builder {
+        private double sparsity = 0.9;
+        private Set<LayerSpec.Type> layerTypes = EnumSet.of(LayerSpec.Type.FULLY_CONNECTED);
+
+        private Builder() { }
+
+        /**
+         * Sets fraction of weights set to zero in each pruned layer, 0.9 by default.
+         */
+        public Builder sparsity(double sparsity) {
+            if (sparsity < 0 || sparsity > 1) {
+                throw new IllegalArgumentException("Sparsity must be between 0 and 1, got " + sparsity);
+            }
+            this.sparsity = sparsity;
+            return this;
+        }
+
+        /**
+         * Sets types of layers which are pruned, hidden fully connected layers by default.
+         * Output and convolutional layers are more sensitive to pruning, and convolutional layers are always computed as dense.
+         */
+        public Builder layerTypes(LayerSpec.Type... layerTypes) {
+            this.layerTypes = EnumSet.noneOf(LayerSpec.Type.class);
+            this.layerTypes.addAll(Arrays.asList(layerTypes));
+            return this;
+        }
+
+        public MagnitudePruner build() {
+            return new MagnitudePruner(this);
+        }
+    }
+}
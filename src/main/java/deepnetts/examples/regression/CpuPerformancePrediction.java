@@ -4,6 +4,7 @@ import deepnetts.core.DeepNetts;
 import deepnetts.data.DataSets;
 import deepnetts.data.MLDataItem;
 import deepnetts.data.norm.MaxScaler;
+import deepnetts.examples.inference.CsvBatchScorer;
 import javax.visrec.ml.eval.EvaluationMetrics;
 import deepnetts.net.FeedForwardNetwork;
 import deepnetts.net.layers.activation.ActivationType;
@@ -13,6 +14,7 @@ import deepnetts.util.FileIO;
 import deepnetts.util.TensorBase;
 import deepnetts.util.Tensors;
 import java.io.IOException;
+import java.nio.file.Paths;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.visrec.ml.data.DataSet;
@@ -99,6 +101,8 @@ public class CpuPerformancePrediction {
             
             // save network to file
             FileIO.writeToFile(neuralNet, "savedNetwork.dnet");
+            // save scaler too, so that new data can be normalized the same way (see BatchScoringExample)
+            CsvBatchScorer.saveScaler(scaler, Paths.get("savedScaler.ser"));
             
             // load saved trained network
             try {
@@ -1,5 +1,7 @@
 package deepnetts.examples.regression;
 
+import deepnetts.examples.inference.FeedForwardInference;
+import deepnetts.examples.inference.InferenceContext;
 import deepnetts.examples.util.CsvFile;
 import deepnetts.examples.util.Plot;
 import deepnetts.data.DataSets;
@@ -83,10 +85,17 @@ public class LinearRegression {
     public static void plotPredictions(FeedForwardNetwork nnet, XYChart chart) {
         double[][] data = new double[100][2];
 
+        // reuse input and output arrays instead of creating a tensor for each prediction
+        FeedForwardInference inference = FeedForwardInference.of(nnet);
+        InferenceContext ctx = inference.newContext();
+        float[] input = new float[1];
+        float[] output = new float[1];
+
         for(int i=0; i<data.length; i++) {
             data[i][0] =  0.5-Math.random();
-            nnet.setInput(new Tensor1D(new float[] { (float)data[i][0] }));
-            data[i][1] = nnet.getOutput()[0];
+            input[0] = (float)data[i][0];
+            ctx.predict(input, 0, output, 0);
+            data[i][1] = output[0];
         }
 
        // XYChart chart = Plot.scatter(data, "Neural Network Predictions");
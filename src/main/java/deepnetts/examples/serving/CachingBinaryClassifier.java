@@ -0,0 +1,200 @@
+package deepnetts.examples.serving;
+
+import deepnetts.examples.inference.ThreadSafeBinaryClassifier;
+import deepnetts.net.FeedForwardNetwork;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import javax.visrec.ml.classification.BinaryClassifier;
+
+/**
+ * Bounded cache of predictions in front of a {@link BinaryClassifier} for tabular data.
+ *
+ * Useful when the same feature vectors are classified many times, like retried requests or duplicate events.
+ * Cache key is a 64-bit hash of the float bits of the input vector. A copy of the input is stored with
+ * each prediction, and compared on lookup, so a hash collision is a cache miss and never returns
+ * the prediction for a different input. When the cache is full, the least recently used entry is dropped.
+ *
+ * The cache is thread safe, but calls to the wrapped classifier are not synchronized, so on cache misses it is called
+ * by many threads at once, and has to be thread safe, like {@link ThreadSafeBinaryClassifier}.
+ * Use {@link #of(ModelRegistry, String, int)} to cache predictions of a model from registry,
+ * which classifies with a {@link ThreadSafeBinaryClassifier} and clears the cache whenever the model is reloaded.
+ */
+public class CachingBinaryClassifier implements BinaryClassifier<float[]> {
+
+    private final BinaryClassifier<float[]> classifier;
+    private final LinkedHashMap<Long, Entry> cache;  // guarded by itself
+    private long generation = 0;                     // incremented on invalidation, guarded by cache
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder collisions = new LongAdder();
+
+    /**
+     * @param classifier classifier whose predictions are cached
+     * @param maxEntries max number of cached predictions
+     */
+    public CachingBinaryClassifier(BinaryClassifier<float[]> classifier, int maxEntries) {
+        if (maxEntries < 1) {
+            throw new IllegalArgumentException("Max entries must be at least 1, got: " + maxEntries);
+        }
+        this.classifier = classifier;
+        this.cache = new LinkedHashMap<Long, Entry>(Math.min(maxEntries, 1 << 16) * 4 / 3 + 1, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, Entry> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    /**
+     * Creates caching classifier for the feed forward network with the given name in the registry.
+     * The current version of the model is used, and cache is cleared when the model is reloaded.
+     */
+    public static CachingBinaryClassifier of(ModelRegistry registry, String name, int maxEntries) {
+        RegistryClassifier registryClassifier = new RegistryClassifier(registry, name);
+        CachingBinaryClassifier caching = new CachingBinaryClassifier(registryClassifier, maxEntries);
+        registry.addReloadListener((reloadedName, network) -> {
+            if (reloadedName.equals(name)) {
+                caching.invalidate();
+            }
+        });
+        return caching;
+    }
+
+    @Override
+    public Float classify(float[] input) {
+        long key = hash(input);
+        long gen;
+        synchronized (cache) {
+            Entry entry = cache.get(key);
+            if (entry != null) {
+                if (Arrays.equals(entry.input, input)) {
+                    hits.increment();
+                    return entry.result;
+                }
+                collisions.increment();
+            }
+            gen = generation;
+        }
+
+        misses.increment();
+        Float result = classifier.classify(input);
+
+        synchronized (cache) {
+            if (gen == generation) { // don't store result of the old model computed during invalidation
+                cache.put(key, new Entry(input.clone(), result));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Removes all cached predictions.
+     */
+    public void invalidate() {
+        synchronized (cache) {
+            cache.clear();
+            generation++;
+        }
+    }
+
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    /**
+     * Returns number of lookups where a different input with the same hash was found in the cache.
+     */
+    public long getCollisionCount() {
+        return collisions.sum();
+    }
+
+    public double getHitRate() {
+        long h = hits.sum();
+        long total = h + misses.sum();
+        return total == 0 ? 0 : (double) h / total;
+    }
+
+    public int size() {
+        synchronized (cache) {
+            return cache.size();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("size: %d, hits: %d, misses: %d, hit rate: %.1f%%, collisions: %d",
+                             size(), getHitCount(), getMissCount(), 100 * getHitRate(), getCollisionCount());
+    }
+
+    /**
+     * Returns 64-bit hash of the bits of all values in the given array.
+     * Equal arrays (as compared by {@link Arrays#equals(float[], float[])}) have equal hashes.
+     */
+    static long hash(float[] values) {
+        long h = 0x9E3779B97F4A7C15L ^ values.length;
+        for (float value : values) {
+            h ^= Float.floatToIntBits(value) & 0xFFFFFFFFL;
+            h *= 0xC2B2AE3D27D4EB4FL;
+            h = Long.rotateLeft(h, 31);
+        }
+        // final avalanche, so that similar inputs end up in unrelated hashes
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        h *= 0xC4CEB9FE1A85EC53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    private static final class Entry {
+        final float[] input;
+        final Float result;
+
+        Entry(float[] input, Float result) {
+            this.input = input;
+            this.result = result;
+        }
+    }
+
+    // classifies with the current version of the model in the registry
+    private static final class RegistryClassifier implements BinaryClassifier<float[]> {
+        private final ModelRegistry registry;
+        private final String name;
+        private final AtomicReference<Version> current = new AtomicReference<>(); // network and classifier created for it, replaced together
+
+        RegistryClassifier(ModelRegistry registry, String name) {
+            this.registry = registry;
+            this.name = name;
+        }
+
+        @Override
+        public Float classify(float[] input) {
+            FeedForwardNetwork network = registry.get(name, FeedForwardNetwork.class);
+            Version version = current.get();
+            if (version == null || version.network != network) {
+                Version compiled = new Version(network);
+                // threads which compiled the same network at once agree on one version, the others are dropped
+                version = current.updateAndGet(v -> v != null && v.network == network ? v : compiled);
+            }
+            return version.classifier.classify(input);
+        }
+    }
+
+    private static final class Version {
+        final FeedForwardNetwork network;
+        final ThreadSafeBinaryClassifier classifier;
+
+        Version(FeedForwardNetwork network) {
+            this.network = network;
+            this.classifier = new ThreadSafeBinaryClassifier(network);
+        }
+    }
+}
@@ -0,0 +1,299 @@
+package deepnetts.examples.serving;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.IndexColorModel;
+import java.awt.image.Raster;
+import java.util.Collections;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import javax.visrec.ml.classification.ImageClassifier;
+
+/**
+ * Skips classification of image regions which did not change since they were last classified, like parking slots
+ * in consecutive frames of a fixed camera, and returns the cached prediction instead.
+ *
+ * For each region (a slot id, or any other key) the classifier keeps a small grayscale thumbnail of the image which was
+ * last classified, with its prediction. A new image of the region is reduced to a thumbnail too, by averaging a grid of
+ * sampled pixels, and compared with the stored one: when the mean absolute difference of thumbnail pixels (in [0, 1]
+ * range, after subtracting the mean brightness of each thumbnail, so a passing cloud does not count as a change) is
+ * at most the threshold, the cached prediction is returned without calling the wrapped classifier.
+ * Changes are measured against the image which was classified, not the previous one, so slow changes which add up
+ * are not missed; and after {@link Builder#refreshInterval} skips in a row the region is classified anyway.
+ *
+ * Computing a thumbnail reads a few thousand pixels, while a convolutional network reads every pixel many times,
+ * so gating pays off when most regions do not change between calls.
+ * The classifier is thread safe if the wrapped classifier is, but a region should be classified by one thread at a time.
+ * Call {@link #invalidate()} when the model changes.
+ */
+public class ChangeGatedImageClassifier implements ImageClassifier<BufferedImage> {
+
+    private static final Object DEFAULT_REGION = new Object();
+    private static final int SAMPLES_PER_CELL = 4; // in each direction
+
+    private final ImageClassifier<BufferedImage> classifier;
+    private final float threshold;
+    private final int refreshInterval;
+    private final int thumbnailSize;
+    private final Map<Object, Entry> regions = new ConcurrentHashMap<>();
+    private final ThreadLocal<int[]> rowBuffer = ThreadLocal.withInitial(() -> new int[0]);
+
+    private final LongAdder skips = new LongAdder();
+    private final LongAdder changed = new LongAdder();
+    private final LongAdder refreshes = new LongAdder();
+    private final LongAdder uncached = new LongAdder();
+
+    private ChangeGatedImageClassifier(Builder builder) {
+        this.classifier = builder.classifier;
+        this.threshold = builder.threshold;
+        this.refreshInterval = builder.refreshInterval;
+        this.thumbnailSize = builder.thumbnailSize;
+    }
+
+    public static Builder builder(ImageClassifier<BufferedImage> classifier) {
+        return new Builder(classifier);
+    }
+
+    public static final class Builder {
+        private final ImageClassifier<BufferedImage> classifier;
+        private float threshold = 0.01f;
+        private int refreshInterval = 30;
+        private int thumbnailSize = 16;
+
+        private Builder(ImageClassifier<BufferedImage> classifier) {
+            if (classifier == null) {
+                throw new IllegalArgumentException("Classifier must not be null");
+            }
+            this.classifier = classifier;
+        }
+
+        /**
+         * Mean absolute difference of thumbnail pixels, in [0, 1] range, up to which a region is considered unchanged.
+         * Default is 0.01, several times the difference caused by camera noise and JPEG compression,
+         * while a car entering a quarter of the slot changes it more.
+         * With 0, every image whose thumbnail is not identical to the classified one is classified.
+         */
+        public Builder threshold(float threshold) {
+            if (!(threshold >= 0 && threshold <= 1)) {
+                throw new IllegalArgumentException("Threshold must be between 0 and 1, got " + threshold);
+            }
+            this.threshold = threshold;
+            return this;
+        }
+
+        /**
+         * Max number of cached predictions returned for a region in a row, after which it is classified again
+         * even if unchanged. Default is 30 (every 30 seconds for a frame per second), 0 disables skipping.
+         */
+        public Builder refreshInterval(int refreshInterval) {
+            if (refreshInterval < 0) {
+                throw new IllegalArgumentException("Refresh interval must not be negative, got " + refreshInterval);
+            }
+            this.refreshInterval = refreshInterval;
+            return this;
+        }
+
+        /**
+         * Width and height of thumbnails, default 16. Larger thumbnails notice smaller changes.
+         */
+        public Builder thumbnailSize(int thumbnailSize) {
+            if (thumbnailSize < 1 || thumbnailSize > 256) {
+                throw new IllegalArgumentException("Thumbnail size must be between 1 and 256, got " + thumbnailSize);
+            }
+            this.thumbnailSize = thumbnailSize;
+            return this;
+        }
+
+        public ChangeGatedImageClassifier build() {
+            return new ChangeGatedImageClassifier(this);
+        }
+    }
+
+    /**
+     * Classifies image of the default region, so consecutive calls should be images of the same view.
+     */
+    @Override
+    public Map<String, Float> classify(BufferedImage image) {
+        return classify(DEFAULT_REGION, image);
+    }
+
+    /**
+     * Returns prediction for the given image of the given region: the cached one if the image did not change enough
+     * since the region was classified, otherwise prediction of the wrapped classifier.
+     *
+     * @param region key of the region, like slot id, compared with equals
+     */
+    public Map<String, Float> classify(Object region, BufferedImage image) {
+        float[] thumbnail = thumbnail(image);
+        Entry entry = regions.get(region);
+        if (entry == null) {
+            uncached.increment();
+        } else if (difference(entry.thumbnail, thumbnail) > threshold) {
+            changed.increment();
+        } else if (entry.skipped >= refreshInterval) {
+            refreshes.increment();
+        } else {
+            skips.increment();
+            regions.put(region, new Entry(entry.thumbnail, entry.result, entry.skipped + 1));
+            return entry.result;
+        }
+
+        Map<String, Float> result = Collections.unmodifiableMap(classifier.classify(image)); // shared by all skipped calls
+        regions.put(region, new Entry(thumbnail, result, 0));
+        return result;
+    }
+
+    /**
+     * Removes cached prediction of the given region, so its next image is classified.
+     */
+    public void invalidate(Object region) {
+        regions.remove(region);
+    }
+
+    /**
+     * Removes all cached predictions, for example after the model was reloaded.
+     */
+    public void invalidate() {
+        regions.clear();
+    }
+
+    /**
+     * Returns grayscale thumbnail of the image, thumbnailSize x thumbnailSize values in [0, 1] range, with their
+     * mean subtracted. Each value is the average of a grid of pixels sampled from the corresponding cell of the image.
+     */
+    float[] thumbnail(BufferedImage image) {
+        int width = image.getWidth(), height = image.getHeight();
+        int size = thumbnailSize;
+        int samples = size * SAMPLES_PER_CELL;
+        int[] columns = new int[samples]; // x of sampled pixels
+        for (int i = 0; i < samples; i++) {
+            columns[i] = (int) ((i + 0.5) * width / samples);
+        }
+        // 8-bit sRGB images, like those read from JPEG files, are read from the raster as R, G, B samples,
+        // several times faster than converting each pixel with getRGB
+        Raster raster = image.getRaster();
+        ColorModel colorModel = image.getColorModel();
+        boolean rgbSamples = !(colorModel instanceof IndexColorModel) && colorModel.getColorSpace().isCS_sRGB()
+                             && raster.getNumBands() >= 3 && raster.getSampleModel().getSampleSize(0) == 8;
+        int stride = rgbSamples ? raster.getNumBands() : 1;
+        int[] row = rowBuffer.get();
+        if (row.length < width * stride) {
+            row = new int[width * stride];
+            rowBuffer.set(row);
+        }
+
+        float[] thumbnail = new float[size * size];
+        for (int j = 0; j < samples; j++) {
+            int y = (int) ((j + 0.5) * height / samples);
+            int cellRow = j / SAMPLES_PER_CELL * size;
+            if (rgbSamples) {
+                raster.getPixels(0, y, width, 1, row);
+                for (int i = 0; i < samples; i++) {
+                    int k = columns[i] * stride;
+                    thumbnail[cellRow + i / SAMPLES_PER_CELL] += 299 * row[k] + 587 * row[k + 1] + 114 * row[k + 2];
+                }
+            } else {
+                image.getRGB(0, y, width, 1, row, 0, width);
+                for (int i = 0; i < samples; i++) {
+                    int pixel = row[columns[i]];
+                    thumbnail[cellRow + i / SAMPLES_PER_CELL] += 299 * ((pixel >> 16) & 0xff) + 587 * ((pixel >> 8) & 0xff) + 114 * (pixel & 0xff);
+                }
+            }
+        }
+        float scale = 1f / (1000 * 255 * SAMPLES_PER_CELL * SAMPLES_PER_CELL);
+        float sum = 0;
+        for (int i = 0; i < thumbnail.length; i++) {
+            thumbnail[i] *= scale;
+            sum += thumbnail[i];
+        }
+        float mean = sum / thumbnail.length;
+        for (int i = 0; i < thumbnail.length; i++) {
+            thumbnail[i] -= mean;
+        }
+        return thumbnail;
+    }
+
+    // mean absolute difference
+    static float difference(float[] thumbnail1, float[] thumbnail2) {
+        float sum = 0;
+        for (int i = 0; i < thumbnail1.length; i++) {
+            sum += Math.abs(thumbnail1[i] - thumbnail2[i]);
+        }
+        return sum / thumbnail1.length;
+    }
+
+    /**
+     * Returns number of cached predictions returned without calling the wrapped classifier.
+     */
+    public long getSkipCount() {
+        return skips.sum();
+    }
+
+    /**
+     * Returns number of calls to the wrapped classifier, for any reason.
+     */
+    public long getClassifyCount() {
+        return changed.sum() + refreshes.sum() + uncached.sum();
+    }
+
+    /**
+     * Returns number of regions classified because they changed more than the threshold.
+     */
+    public long getChangedCount() {
+        return changed.sum();
+    }
+
+    /**
+     * Returns number of unchanged regions classified because the refresh interval was reached.
+     */
+    public long getRefreshCount() {
+        return refreshes.sum();
+    }
+
+    /**
+     * Returns fraction of all calls which returned a cached prediction.
+     */
+    public double getSkipRate() {
+        long s = skips.sum();
+        long total = s + getClassifyCount();
+        return total == 0 ? 0 : (double) s / total;
+    }
+
+    /**
+     * Returns fraction of calls for regions with a cached prediction which returned it, so regions seen for the first
+     * time are not counted.
+     */
+    public double getHitRate() {
+        long s = skips.sum();
+        long total = s + changed.sum() + refreshes.sum();
+        return total == 0 ? 0 : (double) s / total;
+    }
+
+    /**
+     * Returns number of regions with a cached prediction.
+     */
+    public int size() {
+        return regions.size();
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.ROOT, "regions: %d, skipped: %d, classified: %d (changed: %d, refreshed: %d, new: %d), skip rate: %.1f%%, hit rate: %.1f%%",
+                             size(), getSkipCount(), getClassifyCount(), getChangedCount(), getRefreshCount(), uncached.sum(),
+                             100 * getSkipRate(), 100 * getHitRate());
+    }
+
+    private static final class Entry {
+        final float[] thumbnail;
+        final Map<String, Float> result;
+        final int skipped; // cached predictions returned since the region was classified
+
+        Entry(float[] thumbnail, Map<String, Float> result, int skipped) {
+            this.thumbnail = thumbnail;
+            this.result = result;
+            this.skipped = skipped;
+        }
+    }
+}
@@ -0,0 +1,559 @@
+package deepnetts.examples.serving;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import deepnetts.core.DeepNetts;
+import deepnetts.net.ConvolutionalNetwork;
+import deepnetts.net.FeedForwardNetwork;
+import deepnetts.net.NeuralNetwork;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.imageio.ImageIO;
+import javax.visrec.ri.ml.classification.ImageClassifierNetwork;
+import org.json.JSONObject;
+
+/**
+ * Small embedded HTTP server for trained networks, based on the JDK built-in HTTP server.
+ *
+ * Endpoints:
+ * POST /predict  - body is a comma separated input vector, returns comma separated network outputs (FeedForwardNetwork)
+ * POST /classify - body is an image (png, jpg...), returns JSON with probability for each label (ConvolutionalNetwork)
+ * GET  /metrics  - returns JSON with throughput, latency and batching counters
+ * GET  /ready    - returns 200 when the model is warmed up and ready for traffic, 503 while warming up
+ *
+ * Concurrent requests are coalesced into micro-batches by {@link MicroBatcher}, so a single network instance
+ * is used by one thread at a time. A batch saves the queueing and thread hand-off for each request, but there is no batched
+ * forward pass for either endpoint: items of a /predict batch are computed one at a time by {@code network.predict}, and images
+ * of a /classify batch one at a time by {@code ImageClassifierNetwork.classify}.
+ * Requests which fail for any other reason, like a model file which cannot be reloaded, get 500 and are counted as errors.
+ * Requests are handled on virtual threads when running on a JDK which supports them,
+ * otherwise on a bounded thread pool.
+ *
+ * If warm up inputs are given, the model is warmed up by {@link WarmUp} when the server is started, for all batch sizes
+ * up to max batch size. Until warm up is finished, /ready and prediction endpoints return 503, so a load balancer
+ * does not send traffic to the server while it is still slow. If warm up fails, the error is logged and the server
+ * becomes ready anyway, with a cold model.
+ *
+ * Inputs of /predict with a different length than the input layer are rejected with 400, requests which are not
+ * completed within the request timeout, and requests which arrive after the server has been stopped, get 503.
+ *
+ * Run with: java deepnetts.examples.serving.InferenceServer savedNetwork.dnet [port]
+ * The model file is watched, and served model is replaced when the file changes.
+ */
+public class InferenceServer {
+
+    private final HttpServer httpServer;
+    private final ExecutorService executor;
+    private final MicroBatcher<float[], float[]> predictBatcher;
+    private final MicroBatcher<BufferedImage, Map<String, Float>> classifyBatcher;
+    private final LatencyStats stats = new LatencyStats();
+    private final List<WarmUp<?, ?>> warmUps = new ArrayList<>();
+    private final CountDownLatch readyLatch = new CountDownLatch(1);
+    private final Supplier<FeedForwardNetwork> feedForwardModel;
+    private final long requestTimeoutMillis;
+    private volatile long warmUpMillis;
+
+    private static final Logger LOGGER = Logger.getLogger(InferenceServer.class.getName());
+
+    private InferenceServer(Builder builder) throws IOException {
+        feedForwardModel = builder.feedForwardModel;
+        requestTimeoutMillis = builder.requestTimeoutMillis;
+        predictBatcher = builder.feedForwardModel == null ? null
+                : new MicroBatcher<>(batchPredictor(builder.feedForwardModel), builder.maxBatchSize, builder.maxWaitMicros, TimeUnit.MICROSECONDS);
+        classifyBatcher = builder.convolutionalModel == null ? null
+                : new MicroBatcher<>(batchClassifier(builder.convolutionalModel), builder.maxBatchSize, builder.maxWaitMicros, TimeUnit.MICROSECONDS);
+
+        int[] warmUpBatchSizes = builder.warmUpBatchSizes != null ? builder.warmUpBatchSizes : WarmUp.batchSizesUpTo(builder.maxBatchSize);
+        if (predictBatcher != null && builder.warmUpInputs != null) {
+            warmUps.add(WarmUp.builder(batchPredictor(builder.feedForwardModel), builder.warmUpInputs).batchSizes(warmUpBatchSizes).build());
+        }
+        if (classifyBatcher != null && builder.warmUpImages != null) {
+            warmUps.add(WarmUp.builder(batchClassifier(builder.convolutionalModel), builder.warmUpImages).batchSizes(warmUpBatchSizes).build());
+        }
+
+        executor = requestExecutor(builder.maxThreads);
+        httpServer = HttpServer.create(new InetSocketAddress(builder.port), builder.backlog);
+        httpServer.setExecutor(executor);
+        if (predictBatcher != null) {
+            httpServer.createContext("/predict", this::handlePredict);
+        }
+        if (classifyBatcher != null) {
+            httpServer.createContext("/classify", this::handleClassify);
+        }
+        httpServer.createContext("/metrics", this::handleMetrics);
+        httpServer.createContext("/ready", this::handleReady);
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * Starts the server, and warm up of the model in background, if warm up inputs were given.
+     */
+    public void start() {
+        httpServer.start();
+        LOGGER.info("Inference server started on port " + getPort());
+        if (warmUps.isEmpty()) {
+            readyLatch.countDown();
+        } else {
+            Thread warmUpThread = new Thread(this::warmUp, "model-warm-up");
+            warmUpThread.setDaemon(true);
+            warmUpThread.start();
+        }
+    }
+
+    // warm up uses its own instances of batch functions, and runs before any request reaches the batchers
+    private void warmUp() {
+        long start = System.nanoTime();
+        try {
+            for (WarmUp<?, ?> warmUp : warmUps) {
+                WarmUp.Report report = warmUp.run();
+                LOGGER.log(report.isSteady() ? Level.INFO : Level.WARNING, "Model warm up finished. " + report);
+            }
+        } catch (RuntimeException ex) {
+            // a cold model is still better than a server which never gets traffic, failing requests are visible in metrics
+            LOGGER.log(Level.WARNING, "Model warm up failed, server becomes ready with a cold model", ex);
+        } finally {
+            warmUpMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            readyLatch.countDown();
+        }
+    }
+
+    /**
+     * Returns true when the model is warmed up and the server is ready for traffic.
+     */
+    public boolean isReady() {
+        return readyLatch.getCount() == 0;
+    }
+
+    /**
+     * Waits until the server is ready, and returns true if it became ready before the timeout.
+     */
+    public boolean awaitReady(long timeout, TimeUnit unit) throws InterruptedException {
+        return readyLatch.await(timeout, unit);
+    }
+
+    public void stop() {
+        httpServer.stop(1);
+        if (predictBatcher != null) {
+            predictBatcher.close();
+        }
+        if (classifyBatcher != null) {
+            classifyBatcher.close();
+        }
+        executor.shutdown();
+    }
+
+    public int getPort() {
+        return httpServer.getAddress().getPort();
+    }
+
+    public LatencyStats getStats() {
+        return stats;
+    }
+
+    // runs all inputs in a batch through the network, on the batcher's dispatcher thread
+    // network is obtained once per batch, so a model reloaded in the registry is used starting from the next batch
+    // inputs are predicted one by one: the batch is a single call on the dispatcher thread, not a single matrix multiplication
+    static Function<List<float[]>, List<float[]>> batchPredictor(Supplier<FeedForwardNetwork> model) {
+        return inputs -> {
+            FeedForwardNetwork network = model.get();
+            List<float[]> outputs = new ArrayList<>(inputs.size());
+            for (float[] input : inputs) {
+                outputs.add(network.predict(input).clone()); // copy since network may reuse its output array
+            }
+            return outputs;
+        };
+    }
+
+    // images are classified one by one, like inputs in batchPredictor
+    static Function<List<BufferedImage>, List<Map<String, Float>>> batchClassifier(Supplier<ConvolutionalNetwork> model) {
+        ConvolutionalNetwork[] lastNetwork = new ConvolutionalNetwork[1];
+        ImageClassifierNetwork[] classifier = new ImageClassifierNetwork[1];
+        return images -> {
+            ConvolutionalNetwork network = model.get();
+            if (network != lastNetwork[0]) { // only called from the dispatcher thread
+                lastNetwork[0] = network;
+                classifier[0] = new ImageClassifierNetwork(network);
+            }
+            List<Map<String, Float>> results = new ArrayList<>(images.size());
+            for (BufferedImage image : images) {
+                results.add(classifier[0].classify(image));
+            }
+            return results;
+        };
+    }
+
+    private void handlePredict(HttpExchange exchange) throws IOException {
+        long start = System.nanoTime();
+        try {
+            if (!"POST".equals(exchange.getRequestMethod())) {
+                send(exchange, 405, "Use POST with comma separated inputs");
+                return;
+            }
+            if (!isReady()) {
+                send(exchange, 503, "Warming up");
+                return;
+            }
+            float[] input = parseInputs(new String(readBody(exchange), StandardCharsets.UTF_8));
+            int numInputs = feedForwardModel.get().getLayers().get(0).getWidth();
+            if (input.length != numInputs) {
+                stats.recordError();
+                send(exchange, 400, "Invalid input: expected " + numInputs + " values, got " + input.length);
+                return;
+            }
+            float[] output = await(predictBatcher.submit(input));
+            send(exchange, 200, formatOutputs(output));
+            stats.record(System.nanoTime() - start);
+        } catch (NumberFormatException ex) {
+            stats.recordError();
+            send(exchange, 400, "Invalid input: " + ex.getMessage());
+        } catch (IllegalStateException | TimeoutException ex) {
+            handleUnavailable(exchange, ex);
+        } catch (InterruptedException | ExecutionException ex) {
+            handleError(exchange, ex);
+        } catch (RuntimeException ex) { // for example model file which cannot be reloaded
+            handleError(exchange, ex);
+        }
+    }
+
+    private void handleClassify(HttpExchange exchange) throws IOException {
+        long start = System.nanoTime();
+        try {
+            if (!"POST".equals(exchange.getRequestMethod())) {
+                send(exchange, 405, "Use POST with image in request body");
+                return;
+            }
+            if (!isReady()) {
+                send(exchange, 503, "Warming up");
+                return;
+            }
+            BufferedImage image = ImageIO.read(new ByteArrayInputStream(readBody(exchange)));
+            if (image == null) {
+                stats.recordError();
+                send(exchange, 400, "Unsupported image format");
+                return;
+            }
+            Map<String, Float> result = await(classifyBatcher.submit(image));
+            send(exchange, 200, new JSONObject(result).toString());
+            stats.record(System.nanoTime() - start);
+        } catch (IllegalStateException | TimeoutException ex) {
+            handleUnavailable(exchange, ex);
+        } catch (InterruptedException | ExecutionException ex) {
+            handleError(exchange, ex);
+        } catch (RuntimeException ex) { // for example model file which cannot be reloaded
+            handleError(exchange, ex);
+        }
+    }
+
+    private void handleMetrics(HttpExchange exchange) throws IOException {
+        JSONObject metrics = new JSONObject();
+        metrics.put("ready", isReady());
+        metrics.put("warmUpMs", warmUpMillis);
+        metrics.put("requests", stats.getCount());
+        metrics.put("errors", stats.getErrors());
+        metrics.put("throughputPerSec", stats.getThroughput());
+        metrics.put("latencyMeanMs", stats.getMeanMillis());
+        metrics.put("latencyP50Ms", stats.getPercentileMillis(50));
+        metrics.put("latencyP95Ms", stats.getPercentileMillis(95));
+        metrics.put("latencyP99Ms", stats.getPercentileMillis(99));
+        if (predictBatcher != null) {
+            metrics.put("predictBatches", predictBatcher.getBatchCount());
+            metrics.put("predictAvgBatchSize", predictBatcher.getAverageBatchSize());
+        }
+        if (classifyBatcher != null) {
+            metrics.put("classifyBatches", classifyBatcher.getBatchCount());
+            metrics.put("classifyAvgBatchSize", classifyBatcher.getAverageBatchSize());
+        }
+        send(exchange, 200, metrics.toString());
+    }
+
+    private void handleReady(HttpExchange exchange) throws IOException {
+        if (isReady()) {
+            send(exchange, 200, "Ready");
+        } else {
+            send(exchange, 503, "Warming up");
+        }
+    }
+
+    // waits for the result of a batched request, at most request timeout; a request still in the queue is cancelled
+    private <T> T await(CompletableFuture<T> result) throws InterruptedException, ExecutionException, TimeoutException {
+        try {
+            return result.get(requestTimeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException ex) {
+            result.cancel(false);
+            throw ex;
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof IllegalStateException) {
+                throw (IllegalStateException) ex.getCause(); // batcher closed while the request was queued
+            }
+            throw ex;
+        }
+    }
+
+    // server is stopping, or too busy to answer in time, so the client can retry on another instance
+    private void handleUnavailable(HttpExchange exchange, Exception ex) throws IOException {
+        stats.recordError();
+        LOGGER.log(Level.FINE, "Request not served", ex);
+        send(exchange, 503, ex instanceof TimeoutException ? "Timed out" : "Server is stopping");
+    }
+
+    private void handleError(HttpExchange exchange, Exception ex) throws IOException {
+        if (ex instanceof InterruptedException) {
+            Thread.currentThread().interrupt();
+        }
+        stats.recordError();
+        LOGGER.log(Level.WARNING, "Request failed", ex);
+        send(exchange, 500, "Inference failed");
+    }
+
+    static float[] parseInputs(String body) {
+        String[] values = body.trim().split(",");
+        float[] inputs = new float[values.length];
+        for (int i = 0; i < values.length; i++) {
+            inputs[i] = Float.parseFloat(values[i].trim());
+        }
+        return inputs;
+    }
+
+    static String formatOutputs(float[] outputs) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < outputs.length; i++) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            sb.append(outputs[i]);
+        }
+        return sb.toString();
+    }
+
+    private static byte[] readBody(HttpExchange exchange) throws IOException {
+        try (InputStream in = exchange.getRequestBody()) {
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int length;
+            while ((length = in.read(buffer)) >= 0) {
+                body.write(buffer, 0, length);
+            }
+            return body.toByteArray();
+        }
+    }
+
+    private static void send(HttpExchange exchange, int status, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    /**
+     * Returns virtual thread per task executor if available (JDK 21+), otherwise a bounded thread pool.
+     */
+    static ExecutorService requestExecutor(int maxThreads) {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException ex) {
+            LOGGER.info("Virtual threads not available, using pool of " + maxThreads + " threads");
+            return Executors.newFixedThreadPool(maxThreads);
+        }
+    }
+
+    public static class Builder {
+
+        private int port = 8080;
+        private int backlog = 1024;
+        private int maxBatchSize = 32;
+        private long maxWaitMicros = 2000;
+        private int maxThreads = 64;
+        private Supplier<FeedForwardNetwork> feedForwardModel;
+        private Supplier<ConvolutionalNetwork> convolutionalModel;
+        private List<float[]> warmUpInputs;
+        private List<BufferedImage> warmUpImages;
+        private int[] warmUpBatchSizes;
+        private long requestTimeoutMillis = 10_000;
+
+        /**
+         * Port to listen on, 0 to pick any free port.
+         */
+        public Builder port(int port) {
+            this.port = port;
+            return this;
+        }
+
+        public Builder backlog(int backlog) {
+            this.backlog = backlog;
+            return this;
+        }
+
+        public Builder maxBatchSize(int maxBatchSize) {
+            this.maxBatchSize = maxBatchSize;
+            return this;
+        }
+
+        /**
+         * Max time to wait for more requests to fill the batch, after the first request has arrived.
+         */
+        public Builder maxWait(long maxWait, TimeUnit unit) {
+            this.maxWaitMicros = unit.toMicros(maxWait);
+            return this;
+        }
+
+        /**
+         * Number of request threads, used only when virtual threads are not available.
+         */
+        public Builder maxThreads(int maxThreads) {
+            this.maxThreads = maxThreads;
+            return this;
+        }
+
+        /**
+         * Max time a request waits for its result, after which it gets 503. Default is 10 seconds.
+         */
+        public Builder requestTimeout(long timeout, TimeUnit unit) {
+            if (timeout <= 0) {
+                throw new IllegalArgumentException("Request timeout must be positive, got: " + timeout);
+            }
+            this.requestTimeoutMillis = unit.toMillis(timeout);
+            return this;
+        }
+
+        public Builder model(NeuralNetwork network) {
+            if (network instanceof FeedForwardNetwork) {
+                this.feedForwardModel = () -> (FeedForwardNetwork) network;
+            } else if (network instanceof ConvolutionalNetwork) {
+                this.convolutionalModel = () -> (ConvolutionalNetwork) network;
+            } else {
+                throw new IllegalArgumentException("Unsupported network type: " + network.getClass().getName());
+            }
+            return this;
+        }
+
+        /**
+         * Serves the model with the given name from the registry. The current version of the model is
+         * taken from the registry for each batch, so hot reloaded models are picked up without restarting the server.
+         */
+        public Builder model(ModelRegistry registry, String name) {
+            NeuralNetwork network = registry.get(name);
+            if (network instanceof FeedForwardNetwork) {
+                this.feedForwardModel = () -> registry.get(name, FeedForwardNetwork.class);
+            } else if (network instanceof ConvolutionalNetwork) {
+                this.convolutionalModel = () -> registry.get(name, ConvolutionalNetwork.class);
+            } else {
+                throw new IllegalArgumentException("Unsupported network type: " + network.getClass().getName());
+            }
+            return this;
+        }
+
+        /**
+         * Representative inputs for warm up of /predict, ideally samples of real requests.
+         */
+        public Builder warmUp(List<float[]> inputs) {
+            this.warmUpInputs = inputs;
+            return this;
+        }
+
+        /**
+         * Representative images for warm up of /classify.
+         */
+        public Builder warmUpImages(List<BufferedImage> images) {
+            this.warmUpImages = images;
+            return this;
+        }
+
+        /**
+         * Batch sizes to warm up. Default is all powers of two up to max batch size, and max batch size.
+         */
+        public Builder warmUpBatchSizes(int... batchSizes) {
+            this.warmUpBatchSizes = batchSizes.clone();
+            return this;
+        }
+
+        public InferenceServer build() throws IOException {
+            if (feedForwardModel == null && convolutionalModel == null) {
+                throw new IllegalStateException("Model to serve must be set!");
+            }
+            return new InferenceServer(this);
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        String modelFile = args.length > 0 ? args[0] : "savedNetwork.dnet";
+        int port = args.length > 1 ? Integer.parseInt(args[1]) : 8080;
+
+        ModelRegistry registry = new ModelRegistry(512L * 1024 * 1024);
+        registry.register("model", Paths.get(modelFile));
+        registry.enableHotReload(500);
+
+        // random inputs of the right size are enough to trigger JIT compilation, real deployments should use samples of real requests
+        NeuralNetwork<?> network = registry.get("model");
+        int width = network.getLayers().get(0).getWidth();
+        int height = Math.max(1, network.getLayers().get(0).getHeight());
+        Random random = new Random();
+        List<float[]> warmUpInputs = new ArrayList<>();
+        List<BufferedImage> warmUpImages = new ArrayList<>();
+        for (int i = 0; i < 64; i++) {
+            if (network instanceof ConvolutionalNetwork) {
+                BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+                for (int y = 0; y < height; y++) {
+                    for (int x = 0; x < width; x++) {
+                        image.setRGB(x, y, random.nextInt());
+                    }
+                }
+                warmUpImages.add(image);
+            } else {
+                float[] input = new float[width];
+                for (int j = 0; j < width; j++) {
+                    input[j] = random.nextFloat();
+                }
+                warmUpInputs.add(input);
+            }
+        }
+
+        Builder builder = InferenceServer.builder()
+                                         .model(registry, "model")
+                                         .port(port)
+                                         .maxBatchSize(32)
+                                         .maxWait(2, TimeUnit.MILLISECONDS);
+        if (network instanceof ConvolutionalNetwork) {
+            builder.warmUpImages(warmUpImages);
+        } else {
+            builder.warmUp(warmUpInputs);
+        }
+        InferenceServer server = builder.build();
+        server.start();
+
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            server.stop();
+            try {
+                registry.close();
+            } catch (IOException ex) {
+                LOGGER.log(Level.WARNING, "Could not close model registry", ex);
+            }
+            DeepNetts.shutdown();
+        }));
+    }
+}
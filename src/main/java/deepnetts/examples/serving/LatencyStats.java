@@ -0,0 +1,86 @@
+package deepnetts.examples.serving;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Thread-safe latency and throughput counters.
+ *
+ * Latencies are recorded in a histogram with power of two buckets (in microseconds),
+ * so recording is lock-free and percentiles are accurate to a factor of two.
+ */
+public class LatencyStats {
+
+    private static final int BUCKETS = 40;
+
+    private final AtomicLongArray histogram = new AtomicLongArray(BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+    private final LongAdder totalNanos = new LongAdder();
+    private final long startTime = System.nanoTime();
+
+    public void record(long latencyNanos) {
+        long micros = Math.max(1, TimeUnit.NANOSECONDS.toMicros(latencyNanos));
+        int bucket = Math.min(BUCKETS - 1, 63 - Long.numberOfLeadingZeros(micros));
+        histogram.incrementAndGet(bucket);
+        count.increment();
+        totalNanos.add(latencyNanos);
+    }
+
+    public void recordError() {
+        errors.increment();
+    }
+
+    public long getCount() {
+        return count.sum();
+    }
+
+    public long getErrors() {
+        return errors.sum();
+    }
+
+    public double getMeanMillis() {
+        long n = count.sum();
+        return n == 0 ? 0 : totalNanos.sum() / 1e6 / n;
+    }
+
+    /**
+     * Returns upper bound (in milliseconds) of the latency for the given percentile (0-100).
+     */
+    public double getPercentileMillis(double percentile) {
+        long total = 0;
+        long[] counts = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = histogram.get(i);
+            total += counts[i];
+        }
+        if (total == 0) {
+            return 0;
+        }
+
+        long threshold = (long) Math.ceil(total * percentile / 100);
+        long cumulative = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            cumulative += counts[i];
+            if (cumulative >= threshold) {
+                return (1L << (i + 1)) / 1000.0;
+            }
+        }
+        return (1L << BUCKETS) / 1000.0;
+    }
+
+    /**
+     * Returns average number of recorded events per second since these stats were created.
+     */
+    public double getThroughput() {
+        double seconds = (System.nanoTime() - startTime) / 1e9;
+        return seconds == 0 ? 0 : count.sum() / seconds;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("count: %d, errors: %d, throughput: %.1f/s, latency mean: %.3f ms, p50: %.3f ms, p95: %.3f ms, p99: %.3f ms",
+                getCount(), getErrors(), getThroughput(), getMeanMillis(), getPercentileMillis(50), getPercentileMillis(95), getPercentileMillis(99));
+    }
+}
@@ -0,0 +1,162 @@
+package deepnetts.examples.serving;
+
+import deepnetts.core.DeepNetts;
+import deepnetts.net.FeedForwardNetwork;
+import deepnetts.net.NeuralNetwork;
+import deepnetts.net.layers.activation.ActivationType;
+import deepnetts.net.loss.LossType;
+import deepnetts.util.FileIO;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Load test for {@link InferenceServer}.
+ *
+ * Starts the server on a free local port, sends requests from many concurrent clients to the /predict endpoint,
+ * and prints client side throughput and latency percentiles, together with server side metrics
+ * which show how many requests were coalesced into each batch.
+ *
+ * Run with: java deepnetts.examples.serving.LoadGenerator [savedNetwork.dnet] [clients] [requestsPerClient]
+ * If network file is not given, an untrained network with 4 inputs is served.
+ */
+public class LoadGenerator {
+
+    public static void main(String[] args) throws Exception {
+        int numClients = args.length > 1 ? Integer.parseInt(args[1]) : 64;
+        int requestsPerClient = args.length > 2 ? Integer.parseInt(args[2]) : 500;
+
+        FeedForwardNetwork network;
+        if (args.length > 0) {
+            network = (FeedForwardNetwork) FileIO.createFromFile(args[0], NeuralNetwork.class);
+        } else {
+            network = FeedForwardNetwork.builder()
+                                        .addInputLayer(4)
+                                        .addFullyConnectedLayer(32, ActivationType.TANH)
+                                        .addOutputLayer(3, ActivationType.SOFTMAX)
+                                        .lossFunction(LossType.CROSS_ENTROPY)
+                                        .randomSeed(123)
+                                        .build();
+        }
+        int numInputs = network.getLayers().get(0).getWidth();
+
+        Random rnd = new Random(123);
+        List<float[]> warmUpInputs = new ArrayList<>();
+        for (int i = 0; i < 64; i++) {
+            float[] input = new float[numInputs];
+            for (int j = 0; j < numInputs; j++) {
+                input[j] = rnd.nextFloat();
+            }
+            warmUpInputs.add(input);
+        }
+
+        InferenceServer server = InferenceServer.builder()
+                                                .model(network)
+                                                .port(0)
+                                                .maxBatchSize(32)
+                                                .maxWait(1, TimeUnit.MILLISECONDS)
+                                                .warmUp(warmUpInputs)
+                                                .build();
+        server.start();
+        String baseUrl = "http://localhost:" + server.getPort();
+
+        // model is warmed up by the server, wait until it is ready as a load balancer would
+        if (!server.awaitReady(5, TimeUnit.MINUTES)) {
+            System.err.println("Server did not become ready");
+            server.stop();
+            DeepNetts.shutdown();
+            return;
+        }
+        System.out.println("Server ready: " + get(baseUrl + "/ready"));
+
+        // warm up client connections before measuring
+        runClients(baseUrl, numInputs, Math.min(numClients, 8), 200, new LatencyStats());
+
+        LatencyStats clientStats = new LatencyStats();
+        runClients(baseUrl, numInputs, numClients, requestsPerClient, clientStats);
+
+        System.out.println("Clients: " + numClients + ", requests: " + clientStats.getCount() + ", errors: " + clientStats.getErrors());
+        System.out.println("Client side: " + clientStats);
+        System.out.println("Server metrics: " + get(baseUrl + "/metrics"));
+
+        server.stop();
+        DeepNetts.shutdown();
+    }
+
+    private static void runClients(String baseUrl, int numInputs, int numClients, int requestsPerClient, LatencyStats stats) throws Exception {
+        ExecutorService clients = Executors.newFixedThreadPool(numClients);
+        List<Future<?>> futures = new ArrayList<>();
+        for (int c = 0; c < numClients; c++) {
+            final long seed = c;
+            futures.add(clients.submit(() -> {
+                Random rnd = new Random(seed);
+                for (int r = 0; r < requestsPerClient; r++) {
+                    String body = randomInput(rnd, numInputs);
+                    long start = System.nanoTime();
+                    try {
+                        post(baseUrl + "/predict", body);
+                        stats.record(System.nanoTime() - start);
+                    } catch (IOException ex) {
+                        stats.recordError();
+                    }
+                }
+            }));
+        }
+        for (Future<?> future : futures) {
+            future.get();
+        }
+        clients.shutdown();
+    }
+
+    private static String randomInput(Random rnd, int numInputs) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < numInputs; i++) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            sb.append(rnd.nextFloat());
+        }
+        return sb.toString();
+    }
+
+    private static String post(String url, String body) throws IOException {
+        HttpURLConnection conn = (HttpURLConnection) new URL(url).openConnection();
+        conn.setRequestMethod("POST");
+        conn.setDoOutput(true);
+        try (OutputStream out = conn.getOutputStream()) {
+            out.write(body.getBytes(StandardCharsets.UTF_8));
+        }
+        return readResponse(conn);
+    }
+
+    private static String get(String url) throws IOException {
+        HttpURLConnection conn = (HttpURLConnection) new URL(url).openConnection();
+        return readResponse(conn);
+    }
+
+    private static String readResponse(HttpURLConnection conn) throws IOException {
+        if (conn.getResponseCode() != 200) {
+            throw new IOException("HTTP " + conn.getResponseCode() + " from " + conn.getURL());
+        }
+        try (InputStream in = conn.getInputStream()) {
+            ByteArrayOutputStream response = new ByteArrayOutputStream();
+            byte[] buffer = new byte[1024];
+            int length;
+            while ((length = in.read(buffer)) >= 0) {
+                response.write(buffer, 0, length);
+            }
+            return new String(response.toByteArray(), StandardCharsets.UTF_8);
+        }
+    }
+}
@@ -0,0 +1,184 @@
+package deepnetts.examples.serving;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Coalesces concurrent single-item requests into micro-batches.
+ *
+ * Requests are queued, and a dispatcher thread takes up to maxBatchSize of them, waiting at most maxWait
+ * after the first request in a batch has arrived, and runs them through the batch function in a single call.
+ * Since batches are run one at a time on the dispatcher thread, the batch function does not have to be
+ * thread-safe, so it can use a single neural network instance.
+ * If the batch function throws, requests of that batch are run through it again one by one, so only the requests
+ * which fail on their own complete exceptionally.
+ *
+ * @param <I> type of request input
+ * @param <O> type of result
+ */
+public class MicroBatcher<I, O> implements AutoCloseable {
+
+    private final Function<List<I>, List<O>> batchFunction;
+    private final int maxBatchSize;
+    private final long maxWaitNanos;
+    private final BlockingQueue<Request<I, O>> queue = new LinkedBlockingQueue<>();
+    private final Thread dispatcher;
+    private volatile boolean running = true;
+
+    private final LongAdder batches = new LongAdder();
+    private final LongAdder items = new LongAdder();
+
+    private static final Logger LOGGER = Logger.getLogger(MicroBatcher.class.getName());
+
+    /**
+     * @param batchFunction function which returns one result for each input in a batch, in the same order
+     * @param maxBatchSize max number of requests in a single batch
+     * @param maxWait max time to wait for more requests, after the first request in a batch
+     * @param unit time unit of maxWait
+     */
+    public MicroBatcher(Function<List<I>, List<O>> batchFunction, int maxBatchSize, long maxWait, TimeUnit unit) {
+        if (maxBatchSize < 1) {
+            throw new IllegalArgumentException("Max batch size must be at least 1, got: " + maxBatchSize);
+        }
+        this.batchFunction = batchFunction;
+        this.maxBatchSize = maxBatchSize;
+        this.maxWaitNanos = unit.toNanos(maxWait);
+        this.dispatcher = new Thread(this::dispatch, "micro-batch-dispatcher");
+        this.dispatcher.setDaemon(true);
+        this.dispatcher.start();
+    }
+
+    /**
+     * Queues input for the next batch, and returns future result.
+     */
+    public CompletableFuture<O> submit(I input) {
+        if (!running) {
+            throw new IllegalStateException("Micro batcher has been closed");
+        }
+        Request<I, O> request = new Request<>(input);
+        queue.add(request);
+        return request.result;
+    }
+
+    private void dispatch() {
+        List<Request<I, O>> batch = new ArrayList<>(maxBatchSize);
+        while (running || !queue.isEmpty()) {
+            try {
+                Request<I, O> first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+
+                long deadline = System.nanoTime() + maxWaitNanos;
+                while (batch.size() < maxBatchSize) {
+                    queue.drainTo(batch, maxBatchSize - batch.size());
+                    long remaining = deadline - System.nanoTime();
+                    if (batch.size() >= maxBatchSize || remaining <= 0) {
+                        break;
+                    }
+                    Request<I, O> next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                }
+
+                runBatch(batch);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                break;
+            } finally {
+                batch.clear();
+            }
+        }
+
+        Request<I, O> request;
+        while ((request = queue.poll()) != null) {
+            request.result.completeExceptionally(new IllegalStateException("Micro batcher has been closed"));
+        }
+    }
+
+    private void runBatch(List<Request<I, O>> batch) {
+        List<I> inputs = new ArrayList<>(batch.size());
+        for (Request<I, O> request : batch) {
+            inputs.add(request.input);
+        }
+
+        try {
+            List<O> results = apply(inputs);
+            for (int i = 0; i < batch.size(); i++) {
+                batch.get(i).result.complete(results.get(i));
+            }
+        } catch (RuntimeException ex) {
+            if (batch.size() == 1) {
+                batch.get(0).result.completeExceptionally(ex);
+            } else {
+                // one bad input should not fail the other requests in the batch, so each one is run on its own
+                LOGGER.log(Level.WARNING, "Batch of " + batch.size() + " failed, running requests one by one", ex);
+                for (Request<I, O> request : batch) {
+                    runSingle(request);
+                }
+            }
+        }
+
+        batches.increment();
+        items.add(batch.size());
+    }
+
+    private void runSingle(Request<I, O> request) {
+        try {
+            request.result.complete(apply(Collections.singletonList(request.input)).get(0));
+        } catch (RuntimeException ex) {
+            request.result.completeExceptionally(ex);
+        }
+    }
+
+    private List<O> apply(List<I> inputs) {
+        List<O> results = batchFunction.apply(inputs);
+        if (results.size() != inputs.size()) {
+            throw new IllegalStateException("Batch function returned " + results.size() + " results for " + inputs.size() + " inputs");
+        }
+        return results;
+    }
+
+    public long getBatchCount() {
+        return batches.sum();
+    }
+
+    public double getAverageBatchSize() {
+        long n = batches.sum();
+        return n == 0 ? 0 : (double) items.sum() / n;
+    }
+
+    /**
+     * Stops accepting new requests, and waits for the queued ones to complete.
+     */
+    @Override
+    public void close() {
+        running = false;
+        try {
+            dispatcher.join();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static final class Request<I, O> {
+        final I input;
+        final CompletableFuture<O> result = new CompletableFuture<>();
+
+        Request(I input) {
+            this.input = input;
+        }
+    }
+}
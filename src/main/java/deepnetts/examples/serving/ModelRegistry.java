@@ -0,0 +1,352 @@
+package deepnetts.examples.serving;
+
+import deepnetts.examples.io.BinaryModelFile;
+import deepnetts.net.NeuralNetwork;
+import deepnetts.util.FileIO;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Registry of trained networks saved in .dnet files, which are loaded on first use and shared by all callers.
+ * Files with .dnbm extension are loaded as {@link BinaryModelFile}.
+ *
+ * Loaded networks are kept in an LRU cache limited by total memory budget. Size of a network in memory
+ * is estimated by the size of its file, and when budget is exceeded least recently used networks are dropped
+ * (callers which still hold a reference keep using it).
+ * Concurrent requests for a network which is not loaded yet trigger a single deserialization, and all of them
+ * wait for its result.
+ *
+ * When hot reload is enabled, directories of registered files are watched and a network is reloaded when
+ * its file changes. New version is loaded in the background and then swapped atomically: requests which
+ * already got the old instance finish with it, and subsequent calls to {@link #get(String)} return the new one.
+ * If the new file can not be loaded (for example it's still being written), the old version is kept.
+ */
+public class ModelRegistry implements AutoCloseable {
+
+    private final long memoryBudget;
+    private final Map<String, Path> files = new ConcurrentHashMap<>();
+    private final LinkedHashMap<String, Model> cache = new LinkedHashMap<>(16, 0.75f, true); // access order for LRU, guarded by itself
+    private final ConcurrentHashMap<String, CompletableFuture<NeuralNetwork>> loading = new ConcurrentHashMap<>();
+    private final List<BiConsumer<String, NeuralNetwork>> reloadListeners = new CopyOnWriteArrayList<>();
+    private long usedMemory = 0;
+
+    private WatchService watchService;
+    private Thread watcher;
+    private long reloadDelayMillis = 500;
+
+    private static final Logger LOGGER = Logger.getLogger(ModelRegistry.class.getName());
+
+    /**
+     * @param memoryBudget max total size in bytes of cached networks
+     */
+    public ModelRegistry(long memoryBudget) {
+        if (memoryBudget <= 0) {
+            throw new IllegalArgumentException("Memory budget must be positive, got: " + memoryBudget);
+        }
+        this.memoryBudget = memoryBudget;
+    }
+
+    /**
+     * Registers network saved in the given file under the given name. Network is not loaded until it is requested.
+     */
+    public ModelRegistry register(String name, Path file) {
+        Path absFile = file.toAbsolutePath().normalize();
+        files.put(name, absFile);
+        if (watchService != null) {
+            watchDirectory(absFile.getParent());
+        }
+        return this;
+    }
+
+    /**
+     * Returns network with the given name, loading it if it is not in the cache.
+     *
+     * @throws IllegalArgumentException if no network is registered under the given name
+     * @throws UncheckedIOException if network could not be loaded
+     */
+    public NeuralNetwork get(String name) {
+        Path file = files.get(name);
+        if (file == null) {
+            throw new IllegalArgumentException("No model registered under name " + name);
+        }
+
+        NeuralNetwork network = cached(name);
+        if (network != null) {
+            return network;
+        }
+
+        CompletableFuture<NeuralNetwork> created = new CompletableFuture<>();
+        CompletableFuture<NeuralNetwork> inProgress = loading.putIfAbsent(name, created);
+        if (inProgress != null) {
+            return await(name, inProgress); // some other thread is already loading it
+        }
+
+        try {
+            network = cached(name); // may have been loaded just before this thread started loading
+            if (network == null) {
+                long size = Files.size(file);
+                network = load(file);
+                putInCache(name, new Model(network, size));
+            }
+            created.complete(network);
+            return network;
+        } catch (IOException ex) {
+            UncheckedIOException failure = new UncheckedIOException("Could not load model " + name + " from " + file, ex);
+            created.completeExceptionally(failure);
+            throw failure;
+        } catch (RuntimeException ex) {
+            created.completeExceptionally(ex);
+            throw ex;
+        } finally {
+            loading.remove(name, created);
+        }
+    }
+
+    /**
+     * Returns network with the given name, cast to the given type.
+     */
+    public <T extends NeuralNetwork> T get(String name, Class<T> type) {
+        return type.cast(get(name));
+    }
+
+    public boolean isLoaded(String name) {
+        synchronized (cache) {
+            return cache.containsKey(name);
+        }
+    }
+
+    /**
+     * Removes network from cache, so it will be loaded again on next request.
+     */
+    public void evict(String name) {
+        synchronized (cache) {
+            Model removed = cache.remove(name);
+            if (removed != null) {
+                usedMemory -= removed.size;
+            }
+        }
+    }
+
+    /**
+     * Returns estimated memory used by all cached networks, in bytes.
+     */
+    public long getUsedMemory() {
+        synchronized (cache) {
+            return usedMemory;
+        }
+    }
+
+    public long getMemoryBudget() {
+        return memoryBudget;
+    }
+
+    /**
+     * Adds listener which is called with model name and new network after a model has been reloaded.
+     */
+    public void addReloadListener(BiConsumer<String, NeuralNetwork> listener) {
+        reloadListeners.add(listener);
+    }
+
+    /**
+     * Starts watching files of registered models, and reloads a model when its file changes.
+     *
+     * @param delayMillis time to wait after the last change event before reloading, so that a file which is
+     *                    being written is not loaded half way
+     */
+    public synchronized void enableHotReload(long delayMillis) throws IOException {
+        if (watchService != null) {
+            return;
+        }
+        reloadDelayMillis = delayMillis;
+        watchService = FileSystems.getDefault().newWatchService();
+        for (Path file : files.values()) {
+            watchDirectory(file.getParent());
+        }
+        watcher = new Thread(this::watch, "model-registry-watcher");
+        watcher.setDaemon(true);
+        watcher.start();
+    }
+
+    /**
+     * Reloads model from its file and atomically replaces the cached network.
+     * Model is only reloaded if it is currently in the cache, otherwise it will be loaded on first request.
+     * If it is evicted while the new version is being loaded, the new version is dropped instead of evicting another model.
+     */
+    public void reload(String name) {
+        Path file = files.get(name);
+        if (file == null || !isLoaded(name)) {
+            return;
+        }
+
+        NeuralNetwork network;
+        long size;
+        try {
+            size = Files.size(file);
+            network = load(file);
+        } catch (IOException | RuntimeException ex) {
+            LOGGER.log(Level.WARNING, "Could not reload model " + name + " from " + file + ", keeping previous version", ex);
+            return;
+        }
+
+        if (!replaceInCache(name, new Model(network, size))) {
+            LOGGER.info("Model " + name + " was evicted while it was reloaded, reloaded version is dropped");
+            return;
+        }
+        LOGGER.info("Reloaded model " + name + " from " + file);
+
+        for (BiConsumer<String, NeuralNetwork> listener : reloadListeners) {
+            listener.accept(name, network);
+        }
+    }
+
+    private NeuralNetwork cached(String name) {
+        synchronized (cache) {
+            Model model = cache.get(name);
+            return model != null ? model.network : null;
+        }
+    }
+
+    // puts the model in the cache only if the previous version is still there, checked and replaced under the cache lock
+    private boolean replaceInCache(String name, Model model) {
+        synchronized (cache) {
+            if (!cache.containsKey(name)) {
+                return false;
+            }
+            putInCache(name, model);
+            return true;
+        }
+    }
+
+    private void putInCache(String name, Model model) {
+        synchronized (cache) {
+            Model previous = cache.put(name, model);
+            if (previous != null) {
+                usedMemory -= previous.size;
+            }
+            usedMemory += model.size;
+
+            // drop least recently used models until under budget, but always keep the one just added
+            Iterator<Map.Entry<String, Model>> it = cache.entrySet().iterator();
+            while (usedMemory > memoryBudget && it.hasNext()) {
+                Map.Entry<String, Model> eldest = it.next();
+                if (eldest.getKey().equals(name)) {
+                    continue;
+                }
+                usedMemory -= eldest.getValue().size;
+                it.remove();
+                LOGGER.info("Evicted model " + eldest.getKey() + " from registry cache");
+            }
+        }
+    }
+
+    private static NeuralNetwork load(Path file) throws IOException {
+        if (file.getFileName().toString().endsWith(BinaryModelFile.EXTENSION)) {
+            return BinaryModelFile.read(file);
+        }
+        try {
+            return FileIO.createFromFile(file.toFile(), NeuralNetwork.class);
+        } catch (ClassNotFoundException ex) {
+            throw new IOException("Unsupported model file " + file, ex);
+        }
+    }
+
+    private static NeuralNetwork await(String name, CompletableFuture<NeuralNetwork> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for model " + name, ex);
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) ex.getCause();
+            }
+            throw new IllegalStateException("Could not load model " + name, ex.getCause());
+        }
+    }
+
+    private synchronized void watchDirectory(Path dir) {
+        try {
+            dir.register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+        } catch (IOException ex) {
+            throw new UncheckedIOException("Could not watch directory " + dir, ex);
+        }
+    }
+
+    private void watch() {
+        try {
+            while (true) {
+                WatchKey key = watchService.take();
+                Set<Path> changed = new HashSet<>();
+                collectChanges(key, changed);
+
+                // wait until writes settle down, collecting all events which arrive in the meantime
+                WatchKey next;
+                while ((next = watchService.poll(reloadDelayMillis, TimeUnit.MILLISECONDS)) != null) {
+                    collectChanges(next, changed);
+                }
+
+                for (Map.Entry<String, Path> entry : files.entrySet()) {
+                    if (changed.contains(entry.getValue())) {
+                        reload(entry.getKey());
+                    }
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException ex) {
+            // registry closed
+        }
+    }
+
+    private static void collectChanges(WatchKey key, Set<Path> changed) {
+        Path dir = (Path) key.watchable();
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.context() instanceof Path) {
+                changed.add(dir.resolve((Path) event.context()).toAbsolutePath().normalize());
+            }
+        }
+        key.reset();
+    }
+
+    /**
+     * Stops watching model files. Cached networks remain usable.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (watchService != null) {
+            watchService.close();
+            watcher.interrupt();
+            watchService = null;
+        }
+    }
+
+    private static final class Model {
+        final NeuralNetwork network;
+        final long size;
+
+        Model(NeuralNetwork network, long size) {
+            this.network = network;
+            this.size = size;
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package deepnetts.examples.serving;
+
+import deepnetts.core.DeepNetts;
+import deepnetts.net.NeuralNetwork;
+import deepnetts.util.FileIO;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Shows how models saved by other examples are shared through {@link ModelRegistry}:
+ * concurrent first requests trigger a single load, models are dropped when memory budget is exceeded,
+ * and a model is reloaded when its file is overwritten (a temporary copy of a saved model file, which is deleted at the end).
+ *
+ * Run some of the examples which save networks first (MnistHandwrittenDigitAdvanced, DukeDetector, ...),
+ * so that .dnet files exist in the working directory.
+ */
+public class ModelRegistryDemo {
+
+    public static void main(String[] args) throws Exception {
+        String[] modelFiles = {"mnistDemo.dnet", "DukeDetector.dnet", "savedNetwork.dnet", "cifar10net.dnet"};
+
+        try (ModelRegistry registry = new ModelRegistry(64L * 1024 * 1024)) {
+            List<String> names = new ArrayList<>();
+            for (String modelFile : modelFiles) {
+                if (Files.exists(Paths.get(modelFile))) {
+                    registry.register(modelFile, Paths.get(modelFile));
+                    names.add(modelFile);
+                }
+            }
+            if (names.isEmpty()) {
+                System.out.println("No saved models found, run some of the examples first.");
+                return;
+            }
+
+            // many threads request the same model at the same time, only one of them loads it
+            String name = names.get(0);
+            ExecutorService executor = Executors.newFixedThreadPool(16);
+            CountDownLatch start = new CountDownLatch(1);
+            List<Future<NeuralNetwork>> requests = new ArrayList<>();
+            for (int i = 0; i < 16; i++) {
+                requests.add(executor.submit(() -> {
+                    start.await();
+                    return registry.get(name);
+                }));
+            }
+            long startTime = System.nanoTime();
+            start.countDown();
+            Map<NeuralNetwork, Boolean> instances = new IdentityHashMap<>();
+            for (Future<NeuralNetwork> request : requests) {
+                instances.put(request.get(), Boolean.TRUE);
+            }
+            executor.shutdown();
+            System.out.println("16 concurrent requests for " + name + " got " + instances.size() + " instance(s) in "
+                               + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime) + " ms");
+
+            for (String modelName : names) {
+                registry.get(modelName);
+                System.out.println("Loaded " + modelName + ", used memory " + registry.getUsedMemory() / 1024 + " KB of "
+                                   + registry.getMemoryBudget() / 1024 + " KB");
+            }
+            for (String modelName : names) {
+                System.out.println(modelName + (registry.isLoaded(modelName) ? " is in cache" : " has been evicted"));
+            }
+
+            // overwrite a copy of the model file, so that the saved model is not touched,
+            // and wait for the registry to pick up the new version
+            Path tempDir = Files.createTempDirectory("model-registry-demo");
+            Path copy = tempDir.resolve(name);
+            try {
+                Files.copy(Paths.get(name), copy);
+                String copyName = "copy of " + name;
+                registry.register(copyName, copy);
+                CountDownLatch reloaded = new CountDownLatch(1);
+                registry.addReloadListener((modelName, network) -> {
+                    System.out.println("Model " + modelName + " reloaded");
+                    reloaded.countDown();
+                });
+                registry.enableHotReload(200);
+
+                NeuralNetwork current = registry.get(copyName);
+                FileIO.writeToFile(current, copy.toString());
+                if (reloaded.await(10, TimeUnit.SECONDS)) {
+                    System.out.println("New instance after reload: " + (registry.get(copyName) != current));
+                } else {
+                    System.out.println("No reload event received");
+                }
+            } finally {
+                Files.deleteIfExists(copy);
+                Files.deleteIfExists(tempDir);
+            }
+        }
+
+        DeepNetts.shutdown();
+    }
+}
@@ -0,0 +1,308 @@
+package deepnetts.examples.serving;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * Warms up a loaded model before it starts receiving traffic.
+ *
+ * The first calls of a model run in the interpreter and then in code compiled by the JIT in several steps,
+ * so the first requests after a deploy are many times slower than the following ones, and running a single
+ * prediction before serving is not enough. This class replays representative inputs through the model, in batches
+ * of each size that is served, and measures latency of each batch. Batches are measured in windows, and the model
+ * is considered warm when the median latency of each batch size changes less than the tolerance between
+ * several consecutive windows, or when the timeout expires. Timeout is checked before each batch, and medians of
+ * a report which timed out are from the last complete window, or from the batches measured so far if the first
+ * window was not completed.
+ *
+ * Readiness flag is set when warm up is finished, and can be used to gate traffic, as {@link InferenceServer} does:
+ * <pre>
+ * WarmUp&lt;float[], float[]&gt; warmUp = WarmUp.builder(batchFunction, sampleInputs)
+ *                                        .batchSizes(1, 8, 32)
+ *                                        .build();
+ * WarmUp.Report report = warmUp.run(); // blocks until latency is stable
+ * System.out.println(report);
+ * </pre>
+ *
+ * @param <I> type of model input
+ * @param <O> type of model output
+ */
+public class WarmUp<I, O> {
+
+    private final Function<List<I>, List<O>> batchFunction;
+    private final List<I> inputs;
+    private final int[] batchSizes;
+    private final int windowSize;
+    private final double tolerance;
+    private final int stableWindows;
+    private final long timeoutNanos;
+
+    private volatile boolean ready;
+    private volatile Report report;
+    private volatile Object sink; // outputs are stored here so that JIT cannot remove model calls
+    private int nextInput;
+
+    private WarmUp(Builder<I, O> builder) {
+        this.batchFunction = builder.batchFunction;
+        this.inputs = builder.inputs;
+        this.batchSizes = builder.batchSizes;
+        this.windowSize = builder.windowSize;
+        this.tolerance = builder.tolerance;
+        this.stableWindows = builder.stableWindows;
+        this.timeoutNanos = builder.timeoutNanos;
+    }
+
+    /**
+     * Creates builder for warm up of the given batch function, with representative inputs which are used in a round robin way.
+     *
+     * @param batchFunction function which returns one output for each input in a batch, like the one used by {@link MicroBatcher}
+     * @param inputs representative inputs, ideally samples of real requests
+     */
+    public static <I, O> Builder<I, O> builder(Function<List<I>, List<O>> batchFunction, List<I> inputs) {
+        return new Builder<>(batchFunction, inputs);
+    }
+
+    /**
+     * Returns all powers of two up to maxBatchSize, and maxBatchSize itself.
+     */
+    public static int[] batchSizesUpTo(int maxBatchSize) {
+        TreeSet<Integer> sizes = new TreeSet<>();
+        for (int size = 1; size < maxBatchSize; size *= 2) {
+            sizes.add(size);
+        }
+        sizes.add(maxBatchSize);
+        return sizes.stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    /**
+     * Runs the model until latency of all batch sizes is stable, or until timeout, and sets the ready flag.
+     * Must not be called concurrently with other calls of the batch function, unless the batch function is thread safe.
+     */
+    public Report run() {
+        final int numSizes = batchSizes.length;
+        final long start = System.nanoTime();
+        final long deadline = start + timeoutNanos;
+        long[][] window = new long[numSizes][windowSize];
+        long[] firstLatency = new long[numSizes];
+        long[] median = new long[numSizes];
+        long[] prevMedian = new long[numSizes];
+        int[] stableCount = new int[numSizes];
+        long batches = 0;
+        boolean steady = false;
+
+        windows:
+        while (!steady) {
+            for (int w = 0; w < windowSize; w++) {
+                for (int s = 0; s < numSizes; s++) {
+                    if (System.nanoTime() >= deadline) { // checked for each batch, since a window of large batches can take long
+                        break windows;
+                    }
+                    List<I> batch = nextBatch(batchSizes[s]);
+                    long batchStart = System.nanoTime();
+                    List<O> outputs = batchFunction.apply(batch);
+                    window[s][w] = System.nanoTime() - batchStart;
+                    if (outputs.size() != batch.size()) {
+                        throw new IllegalStateException("Batch function returned " + outputs.size() + " outputs for " + batch.size() + " inputs");
+                    }
+                    sink = outputs;
+                    if (batches < numSizes) {
+                        firstLatency[s] = window[s][w];
+                    }
+                    batches++;
+                }
+            }
+
+            steady = true;
+            for (int s = 0; s < numSizes; s++) {
+                median[s] = median(window[s], windowSize);
+                boolean stable = prevMedian[s] > 0 && Math.abs(median[s] - prevMedian[s]) <= tolerance * prevMedian[s];
+                stableCount[s] = stable ? stableCount[s] + 1 : 0;
+                prevMedian[s] = median[s];
+                steady &= stableCount[s] >= stableWindows;
+            }
+        }
+
+        if (batches < (long) windowSize * numSizes) { // timed out in the first window, report its measured batches
+            for (int s = 0; s < numSizes; s++) {
+                int measured = (int) ((batches + numSizes - 1 - s) / numSizes);
+                median[s] = measured > 0 ? median(window[s], measured) : 0;
+            }
+        }
+        report = new Report(steady, System.nanoTime() - start, batches, batchSizes, firstLatency, median);
+        ready = true;
+        return report;
+    }
+
+    private List<I> nextBatch(int size) {
+        List<I> batch = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            batch.add(inputs.get(nextInput));
+            nextInput = (nextInput + 1) % inputs.size();
+        }
+        return batch;
+    }
+
+    private static long median(long[] values, int count) {
+        long[] sorted = Arrays.copyOf(values, count);
+        Arrays.sort(sorted);
+        return sorted[sorted.length / 2];
+    }
+
+    /**
+     * Returns true when warm up has finished, either because latency is stable or because of timeout.
+     */
+    public boolean isReady() {
+        return ready;
+    }
+
+    /**
+     * Returns report of the finished warm up, or null if warm up has not finished yet.
+     */
+    public Report getReport() {
+        return report;
+    }
+
+    /**
+     * Result of a warm up: whether latency became stable, how long it took, and latency of first and last batches.
+     */
+    public static final class Report {
+        private final boolean steady;
+        private final long elapsedNanos;
+        private final long batches;
+        private final int[] batchSizes;
+        private final long[] firstLatencyNanos;
+        private final long[] steadyLatencyNanos;
+
+        Report(boolean steady, long elapsedNanos, long batches, int[] batchSizes, long[] firstLatencyNanos, long[] steadyLatencyNanos) {
+            this.steady = steady;
+            this.elapsedNanos = elapsedNanos;
+            this.batches = batches;
+            this.batchSizes = batchSizes.clone();
+            this.firstLatencyNanos = firstLatencyNanos;
+            this.steadyLatencyNanos = steadyLatencyNanos;
+        }
+
+        /**
+         * Returns true if latency became stable, false if warm up was stopped by timeout.
+         */
+        public boolean isSteady() {
+            return steady;
+        }
+
+        /**
+         * Returns time from start of warm up until latency became stable (or until timeout).
+         */
+        public long getTimeToSteadyStateMillis() {
+            return TimeUnit.NANOSECONDS.toMillis(elapsedNanos);
+        }
+
+        public long getBatchCount() {
+            return batches;
+        }
+
+        public int[] getBatchSizes() {
+            return batchSizes.clone();
+        }
+
+        /**
+         * Returns latency of the first batch with the given index in batch sizes, in milliseconds.
+         */
+        public double getFirstLatencyMillis(int sizeIdx) {
+            return firstLatencyNanos[sizeIdx] / 1e6;
+        }
+
+        /**
+         * Returns median latency of the last window of batches with the given index in batch sizes, in milliseconds.
+         */
+        public double getSteadyLatencyMillis(int sizeIdx) {
+            return steadyLatencyNanos[sizeIdx] / 1e6;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            sb.append(steady ? "Steady state reached in " : "Warm up timed out after ")
+              .append(getTimeToSteadyStateMillis()).append(" ms, ").append(batches).append(" batches");
+            for (int s = 0; s < batchSizes.length; s++) {
+                sb.append(String.format(Locale.ROOT, "%n  batch size %4d: first %10.3f ms, steady %10.3f ms (%.1fx faster)",
+                                        batchSizes[s], getFirstLatencyMillis(s), getSteadyLatencyMillis(s),
+                                        getFirstLatencyMillis(s) / Math.max(getSteadyLatencyMillis(s), 1e-6)));
+            }
+            return sb.toString();
+        }
+    }
+
+    public static class Builder<I, O> {
+
+        private final Function<List<I>, List<O>> batchFunction;
+        private final List<I> inputs;
+        private int[] batchSizes = {1};
+        private int windowSize = 10;
+        private double tolerance = 0.1;
+        private int stableWindows = 3;
+        private long timeoutNanos = TimeUnit.MINUTES.toNanos(2);
+
+        private Builder(Function<List<I>, List<O>> batchFunction, List<I> inputs) {
+            if (inputs == null || inputs.isEmpty()) {
+                throw new IllegalArgumentException("At least one warm up input is required");
+            }
+            this.batchFunction = batchFunction;
+            this.inputs = new ArrayList<>(inputs);
+        }
+
+        /**
+         * Batch sizes to warm up, all sizes that the model serves. Default is 1.
+         */
+        public Builder<I, O> batchSizes(int... batchSizes) {
+            if (batchSizes.length == 0 || Arrays.stream(batchSizes).anyMatch(size -> size < 1)) {
+                throw new IllegalArgumentException("Batch sizes must be positive: " + Arrays.toString(batchSizes));
+            }
+            this.batchSizes = batchSizes.clone();
+            return this;
+        }
+
+        /**
+         * Number of batches of each size in a measurement window. Default is 10.
+         */
+        public Builder<I, O> windowSize(int windowSize) {
+            if (windowSize < 1) {
+                throw new IllegalArgumentException("Window size must be at least 1, got: " + windowSize);
+            }
+            this.windowSize = windowSize;
+            return this;
+        }
+
+        /**
+         * Max relative change of median latency between consecutive windows which is considered stable. Default is 0.1 (10%).
+         */
+        public Builder<I, O> tolerance(double tolerance) {
+            this.tolerance = tolerance;
+            return this;
+        }
+
+        /**
+         * Number of consecutive stable windows required for steady state. Default is 3.
+         */
+        public Builder<I, O> stableWindows(int stableWindows) {
+            this.stableWindows = stableWindows;
+            return this;
+        }
+
+        /**
+         * Max duration of warm up. Default is 2 minutes.
+         */
+        public Builder<I, O> timeout(long timeout, TimeUnit unit) {
+            this.timeoutNanos = unit.toNanos(timeout);
+            return this;
+        }
+
+        public WarmUp<I, O> build() {
+            return new WarmUp<>(this);
+        }
+    }
+}
@@ -0,0 +1,326 @@
+package deepnetts.examples.similarity;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * On-disk matrix of embeddings (float32 vectors of the same dimension, one per row), read by memory mapping the file,
+ * so a catalog of embeddings does not have to fit into heap and is shared by all processes which open it.
+ *
+ * File layout (all numbers are little-endian):
+ * <pre>
+ * offset  size  content
+ * 0       4     magic bytes "DNEM"
+ * 4       4     format version (int32), currently 1
+ * 8       4     dimension (int32)
+ * 12      4     zero
+ * 16      8     number of rows (int64)
+ * 24      40    zero padding
+ * 64      ...   rows, dimension float32 values each
+ * </pre>
+ * Files are written by a {@link Writer}, which appends rows and writes the number of rows into the header when closed,
+ * so a file which was not closed properly is opened with the rows written before the last close.
+ * Row indexes are ids of embeddings; names of images or other keys are kept by the caller, in the same order.
+ *
+ * An opened store is immutable and safe to use from many threads. Distances are squared Euclidean; for cosine
+ * similarity add normalized vectors (see {@link #normalize(float[])}), then distance is 2 - 2 * cosine similarity.
+ */
+public final class EmbeddingStore implements AutoCloseable {
+
+    public static final int FORMAT_VERSION = 1;
+    public static final String EXTENSION = ".dnem";
+    static final byte[] MAGIC = {'D', 'N', 'E', 'M'};
+    static final int HEADER_SIZE = 64;
+
+    private final FileChannel channel;
+    private final int dimension;
+    private final int size;
+    private final int rowsPerChunk;
+    private final FloatBuffer[] chunks; // a single mapping is limited to 2GB, so rows are mapped in chunks of whole rows
+
+    private EmbeddingStore(FileChannel channel, int dimension, int size, int rowsPerChunk, FloatBuffer[] chunks) {
+        this.channel = channel;
+        this.dimension = dimension;
+        this.size = size;
+        this.rowsPerChunk = rowsPerChunk;
+        this.chunks = chunks;
+    }
+
+    /**
+     * Creates a new empty store file (replacing an existing one) for embeddings with the given dimension, and returns
+     * its writer.
+     */
+    public static Writer create(Path file, int dimension) throws IOException {
+        if (dimension < 1) {
+            throw new IllegalArgumentException("Dimension must be positive, got " + dimension);
+        }
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        try {
+            Writer writer = new Writer(channel, dimension);
+            writer.writeHeader();
+            return writer;
+        } catch (IOException | RuntimeException ex) {
+            channel.close();
+            throw ex;
+        }
+    }
+
+    /**
+     * Opens store file and maps its rows into memory. The file is kept open until this object is closed.
+     */
+    public static EmbeddingStore open(Path file) throws IOException {
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+        try {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            while (header.hasRemaining() && channel.read(header, header.position()) >= 0) {
+                // read until the header is complete or the file ends
+            }
+            header.flip();
+            if (header.remaining() < HEADER_SIZE) {
+                throw new IOException("Not an embedding store file, too short: " + file);
+            }
+            byte[] magic = new byte[MAGIC.length];
+            header.get(magic);
+            for (int i = 0; i < MAGIC.length; i++) {
+                if (magic[i] != MAGIC[i]) {
+                    throw new IOException("Not an embedding store file: " + file);
+                }
+            }
+            int version = header.getInt();
+            if (version > FORMAT_VERSION) {
+                throw new IOException("Unsupported embedding store format version " + version + " in " + file + ", max supported is " + FORMAT_VERSION);
+            }
+            int dimension = header.getInt();
+            header.getInt();
+            long rows = header.getLong();
+            long rowBytes = (long) dimension * Float.BYTES;
+            if (dimension < 1 || rows < 0 || rows > Integer.MAX_VALUE) {
+                throw new IOException("Invalid embedding store header in " + file + ": dimension " + dimension + ", rows " + rows);
+            }
+            if (channel.size() < HEADER_SIZE + rows * rowBytes) {
+                throw new IOException("Embedding store file is truncated: " + file + " has " + channel.size() + " bytes, "
+                                      + rows + " rows of dimension " + dimension + " need " + (HEADER_SIZE + rows * rowBytes));
+            }
+
+            int rowsPerChunk = (int) Math.max(1, Integer.MAX_VALUE / rowBytes);
+            List<FloatBuffer> chunks = new ArrayList<>();
+            for (long row = 0; row < rows; row += rowsPerChunk) {
+                long chunkRows = Math.min(rowsPerChunk, rows - row);
+                ByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, HEADER_SIZE + row * rowBytes, chunkRows * rowBytes);
+                chunks.add(mapped.order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer());
+            }
+            return new EmbeddingStore(channel, dimension, (int) rows, rowsPerChunk, chunks.toArray(new FloatBuffer[0]));
+        } catch (IOException | RuntimeException ex) {
+            channel.close();
+            throw ex;
+        }
+    }
+
+    public int getDimension() {
+        return dimension;
+    }
+
+    /**
+     * Returns number of rows (embeddings).
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Copies the given row into dst[dstOffset ...].
+     */
+    public void get(int row, float[] dst, int dstOffset) {
+        checkRow(row);
+        FloatBuffer chunk = chunks[row / rowsPerChunk].duplicate(); // position of the shared buffer is never changed
+        chunk.position(row % rowsPerChunk * dimension);
+        chunk.get(dst, dstOffset, dimension);
+    }
+
+    public float[] get(int row) {
+        float[] values = new float[dimension];
+        get(row, values, 0);
+        return values;
+    }
+
+    /**
+     * Returns squared Euclidean distance between the given row and the query vector.
+     */
+    public float distance(int row, float[] query) {
+        checkRow(row);
+        final FloatBuffer chunk = chunks[row / rowsPerChunk];
+        final int base = row % rowsPerChunk * dimension;
+        float sum0 = 0, sum1 = 0, sum2 = 0, sum3 = 0; // independent sums, so additions are not waiting for each other
+        int i = 0;
+        for (; i <= dimension - 4; i += 4) {
+            float d0 = chunk.get(base + i) - query[i];
+            float d1 = chunk.get(base + i + 1) - query[i + 1];
+            float d2 = chunk.get(base + i + 2) - query[i + 2];
+            float d3 = chunk.get(base + i + 3) - query[i + 3];
+            sum0 += d0 * d0;
+            sum1 += d1 * d1;
+            sum2 += d2 * d2;
+            sum3 += d3 * d3;
+        }
+        for (; i < dimension; i++) {
+            float d = chunk.get(base + i) - query[i];
+            sum0 += d * d;
+        }
+        return (sum0 + sum1) + (sum2 + sum3);
+    }
+
+    /**
+     * Returns squared Euclidean distance between two rows.
+     */
+    float distance(int row1, int row2) {
+        checkRow(row1);
+        checkRow(row2);
+        final FloatBuffer chunk1 = chunks[row1 / rowsPerChunk], chunk2 = chunks[row2 / rowsPerChunk];
+        final int base1 = row1 % rowsPerChunk * dimension, base2 = row2 % rowsPerChunk * dimension;
+        float sum0 = 0, sum1 = 0;
+        int i = 0;
+        for (; i <= dimension - 2; i += 2) {
+            float d0 = chunk1.get(base1 + i) - chunk2.get(base2 + i);
+            float d1 = chunk1.get(base1 + i + 1) - chunk2.get(base2 + i + 1);
+            sum0 += d0 * d0;
+            sum1 += d1 * d1;
+        }
+        if (i < dimension) {
+            float d = chunk1.get(base1 + i) - chunk2.get(base2 + i);
+            sum0 += d * d;
+        }
+        return sum0 + sum1;
+    }
+
+    /**
+     * Returns the k rows nearest to the query by comparing it with all rows, nearest first. Exact, but time is
+     * proportional to the number of rows, so it is used to measure recall of approximate indexes like {@link HnswIndex}.
+     */
+    public List<Neighbor> nearest(float[] query, int k) {
+        checkQuery(query);
+        PriorityQueue<Neighbor> farthest = new PriorityQueue<>(k + 1, (a, b) -> Float.compare(b.getDistance(), a.getDistance()));
+        for (int row = 0; row < size; row++) {
+            float distance = distance(row, query);
+            if (farthest.size() < k) {
+                farthest.add(new Neighbor(row, distance));
+            } else if (k > 0 && distance < farthest.peek().getDistance()) {
+                farthest.poll();
+                farthest.add(new Neighbor(row, distance));
+            }
+        }
+        List<Neighbor> result = new ArrayList<>(farthest);
+        result.sort(null);
+        return result;
+    }
+
+    void checkQuery(float[] query) {
+        if (query.length != dimension) {
+            throw new IllegalArgumentException("Query has " + query.length + " values, store dimension is " + dimension);
+        }
+    }
+
+    private void checkRow(int row) {
+        if (row < 0 || row >= size) {
+            throw new IndexOutOfBoundsException("Row " + row + ", store has " + size + " rows");
+        }
+    }
+
+    /**
+     * Divides the given vector by its Euclidean norm, in place, and returns it. Zero vectors are not changed.
+     */
+    public static float[] normalize(float[] vector) {
+        double sum = 0;
+        for (float value : vector) {
+            sum += value * value;
+        }
+        if (sum > 0) {
+            float scale = (float) (1 / Math.sqrt(sum));
+            for (int i = 0; i < vector.length; i++) {
+                vector[i] *= scale;
+            }
+        }
+        return vector;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    /**
+     * Appends rows to a new store file. Not thread safe.
+     */
+    public static final class Writer implements AutoCloseable {
+        private final FileChannel channel;
+        private final int dimension;
+        private final ByteBuffer row;
+        private long size;
+
+        private Writer(FileChannel channel, int dimension) {
+            this.channel = channel;
+            this.dimension = dimension;
+            this.row = ByteBuffer.allocateDirect(dimension * Float.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        }
+
+        /**
+         * Appends values[offset .. offset + dimension) as a new row, and returns its index.
+         */
+        public int add(float[] values, int offset) throws IOException {
+            if (size == Integer.MAX_VALUE) {
+                throw new IllegalStateException("Embedding store is full");
+            }
+            row.clear();
+            row.asFloatBuffer().put(values, offset, dimension);
+            long position = HEADER_SIZE + size * row.capacity();
+            while (row.hasRemaining()) {
+                position += channel.write(row, position);
+            }
+            return (int) size++;
+        }
+
+        public int add(float[] values) throws IOException {
+            if (values.length != dimension) {
+                throw new IllegalArgumentException("Embedding has " + values.length + " values, store dimension is " + dimension);
+            }
+            return add(values, 0);
+        }
+
+        /**
+         * Returns number of rows written so far.
+         */
+        public int size() {
+            return (int) size;
+        }
+
+        private void writeHeader() throws IOException {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            header.put(MAGIC).putInt(FORMAT_VERSION).putInt(dimension).putInt(0).putLong(size);
+            header.position(HEADER_SIZE);
+            header.flip();
+            long position = 0;
+            while (header.hasRemaining()) {
+                position += channel.write(header, position);
+            }
+        }
+
+        /**
+         * Writes the number of rows into the header and closes the file.
+         */
+        @Override
+        public void close() throws IOException {
+            try {
+                writeHeader();
+            } finally {
+                channel.close();
+            }
+        }
+    }
+}
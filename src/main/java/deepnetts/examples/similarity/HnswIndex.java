@@ -0,0 +1,588 @@
+package deepnetts.examples.similarity;
+
+import deepnetts.examples.io.ChannelWriter;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Approximate nearest neighbour index over all rows of an {@link EmbeddingStore}: a hierarchical navigable small world
+ * (HNSW) graph, as described in https://arxiv.org/abs/1603.09320.
+ *
+ * Each row is a node in a proximity graph of layer 0, and a random, exponentially decreasing subset of nodes is also in
+ * sparser graphs of layers 1, 2 and so on. A search starts from the single node of the top layer, descends greedily
+ * to the node nearest to the query in each layer, and in layer 0 runs a best first search which keeps ef nearest nodes
+ * found so far. Time per query grows with the logarithm of the number of rows, instead of linearly as in
+ * {@link EmbeddingStore#nearest(float[], int)}, and larger ef gives higher recall at the cost of speed
+ * (see {@code SimilaritySearchBenchmark} for recall and queries per second).
+ * <pre>
+ * HnswIndex index = HnswIndex.builder().m(16).efConstruction(200).build(store);
+ * index.save(indexFile);
+ * List&lt;Neighbor&gt; similar = index.search(query, 10);
+ * </pre>
+ *
+ * The graph keeps only node ids, about (2m + 1) * 4 bytes per row, and vectors are read from the memory mapped store,
+ * so an index is saved to and loaded from its own file, and needs the same store when loaded. The index is built in a
+ * single thread, once built it is immutable and can be searched from many threads.
+ */
+public final class HnswIndex {
+
+    public static final int FORMAT_VERSION = 1;
+    public static final String EXTENSION = ".dnhw";
+    static final byte[] MAGIC = {'D', 'N', 'H', 'W'};
+    static final int HEADER_SIZE = 32;
+
+    private final EmbeddingStore store;
+    private final int m;              // max neighbors in layers above 0
+    private final int maxM0;          // max neighbors in layer 0
+    private final int efConstruction;
+    private final int efSearch;
+    private final int[] levels;       // top layer of each node
+    private final int[] layer0;       // for each node: number of neighbors, then maxM0 neighbor slots
+    private final int[][] upperLayers; // for each node with level > 0: for layers 1 .. level, number of neighbors then m slots
+    private int entryPoint = -1;
+    private int maxLevel = -1;
+
+    private final ThreadLocal<SearchState> searchState;
+
+    private HnswIndex(EmbeddingStore store, int m, int efConstruction, int efSearch, int[] levels, int[] layer0, int[][] upperLayers) {
+        this.store = store;
+        this.m = m;
+        this.maxM0 = 2 * m;
+        this.efConstruction = efConstruction;
+        this.efSearch = efSearch;
+        this.levels = levels;
+        this.layer0 = layer0;
+        this.upperLayers = upperLayers;
+        this.searchState = ThreadLocal.withInitial(() -> new SearchState(store.size()));
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * Returns the k rows nearest to the query, nearest first, searching with the default ef.
+     */
+    public List<Neighbor> search(float[] query, int k) {
+        return search(query, k, Math.max(k, efSearch));
+    }
+
+    /**
+     * Returns the k rows nearest to the query, nearest first, keeping ef (at least k) candidates in layer 0.
+     */
+    public List<Neighbor> search(float[] query, int k, int ef) {
+        store.checkQuery(query);
+        if (k < 0 || ef < k) {
+            throw new IllegalArgumentException("Expected 0 <= k <= ef, got k " + k + ", ef " + ef);
+        }
+        if (entryPoint < 0 || k == 0) {
+            return new ArrayList<>();
+        }
+        SearchState state = searchState.get();
+        int nearest = greedySearch(query, entryPoint, maxLevel, 0);
+        state.searchLayer(query, new int[] {nearest}, 1, ef, 0);
+
+        List<Neighbor> result = new ArrayList<>(k);
+        int count = state.sortResults();
+        for (int i = 0; i < Math.min(k, count); i++) {
+            result.add(new Neighbor(state.resultIds[i], state.resultDistances[i]));
+        }
+        return result;
+    }
+
+    // descends from the given node in layers fromLevel .. toLevel + 1, to the node nearest to the query
+    private int greedySearch(float[] query, int node, int fromLevel, int toLevel) {
+        float distance = store.distance(node, query);
+        for (int level = fromLevel; level > toLevel; level--) {
+            boolean changed = true;
+            while (changed) {
+                changed = false;
+                int[] neighbors = neighbors(node, level);
+                int start = neighborsStart(node, level);
+                for (int i = 0; i < neighbors[start]; i++) {
+                    int next = neighbors[start + 1 + i];
+                    float nextDistance = store.distance(next, query);
+                    if (nextDistance < distance) {
+                        distance = nextDistance;
+                        node = next;
+                        changed = true;
+                    }
+                }
+            }
+        }
+        return node;
+    }
+
+    // array which holds neighbors of the node in the given layer, starting at neighborsStart with the count
+    private int[] neighbors(int node, int level) {
+        return level == 0 ? layer0 : upperLayers[node];
+    }
+
+    private int neighborsStart(int node, int level) {
+        return level == 0 ? node * (maxM0 + 1) : (level - 1) * (m + 1);
+    }
+
+    private int maxNeighbors(int level) {
+        return level == 0 ? maxM0 : m;
+    }
+
+    // inserts the node into the graph, all nodes with smaller ids are already in it
+    private void insert(int node, int level, float[] vector, SearchState state) {
+        if (entryPoint < 0) {
+            entryPoint = node;
+            maxLevel = level;
+            return;
+        }
+        int nearest = greedySearch(vector, entryPoint, maxLevel, level);
+        int[] entryPoints = {nearest};
+        int numEntryPoints = 1;
+        for (int lc = Math.min(level, maxLevel); lc >= 0; lc--) {
+            state.searchLayer(vector, entryPoints, numEntryPoints, efConstruction, lc);
+            int count = state.sortResults();
+            int[] candidates = Arrays.copyOf(state.resultIds, count);
+            float[] distances = Arrays.copyOf(state.resultDistances, count);
+
+            int[] neighbors = neighbors(node, lc);
+            int start = neighborsStart(node, lc);
+            neighbors[start] = selectNeighbors(candidates, distances, count, m, neighbors, start + 1);
+            for (int i = 0; i < neighbors[start]; i++) {
+                connect(neighbors[start + 1 + i], node, lc, state);
+            }
+            entryPoints = candidates;
+            numEntryPoints = count;
+        }
+        if (level > maxLevel) {
+            entryPoint = node;
+            maxLevel = level;
+        }
+    }
+
+    // adds the node to neighbors of the given neighbor, and prunes them if there are too many
+    private void connect(int neighbor, int node, int level, SearchState state) {
+        int[] neighbors = neighbors(neighbor, level);
+        int start = neighborsStart(neighbor, level);
+        int count = neighbors[start];
+        int max = maxNeighbors(level);
+        if (count < max) {
+            neighbors[start + 1 + count] = node;
+            neighbors[start]++;
+            return;
+        }
+
+        float[] vector = state.vector(store.getDimension());
+        store.get(neighbor, vector, 0);
+        long[] keys = new long[count + 1];
+        for (int i = 0; i < count; i++) {
+            int id = neighbors[start + 1 + i];
+            keys[i] = key(store.distance(id, vector), id);
+        }
+        keys[count] = key(store.distance(node, vector), node);
+        Arrays.sort(keys);
+        int[] candidates = new int[keys.length];
+        float[] distances = new float[keys.length];
+        for (int i = 0; i < keys.length; i++) {
+            candidates[i] = id(keys[i]);
+            distances[i] = distance(keys[i]);
+        }
+        neighbors[start] = selectNeighbors(candidates, distances, candidates.length, max, neighbors, start + 1);
+    }
+
+    /**
+     * Selects at most max neighbors from candidates sorted by distance from the base node, and writes them to
+     * dst[dstOffset ...]. A candidate is selected only if it is nearer to the base than to all selected neighbors, so that
+     * neighbors point in different directions, which keeps the graph connected across clusters (heuristic from the paper).
+     */
+    private int selectNeighbors(int[] candidates, float[] distances, int count, int max, int[] dst, int dstOffset) {
+        int selected = 0;
+        for (int c = 0; c < count && selected < max; c++) {
+            boolean diverse = true;
+            for (int s = 0; s < selected && diverse; s++) {
+                diverse = store.distance(candidates[c], dst[dstOffset + s]) >= distances[c];
+            }
+            if (diverse) {
+                dst[dstOffset + selected++] = candidates[c];
+            }
+        }
+        return selected;
+    }
+
+    // distance is not negative, so its float bits sort like the distance, and the key sorts by distance and then by id
+    static long key(float distance, int id) {
+        return (long) Float.floatToRawIntBits(distance) << 32 | id;
+    }
+
+    static int id(long key) {
+        return (int) key;
+    }
+
+    static float distance(long key) {
+        return Float.intBitsToFloat((int) (key >>> 32));
+    }
+
+    /**
+     * Returns number of indexed rows.
+     */
+    public int size() {
+        return levels.length;
+    }
+
+    public int getM() {
+        return m;
+    }
+
+    public int getEfConstruction() {
+        return efConstruction;
+    }
+
+    /**
+     * Returns number of layers above layer 0.
+     */
+    public int getMaxLevel() {
+        return maxLevel;
+    }
+
+    /**
+     * Returns memory used by the graph, in bytes.
+     */
+    public long getGraphBytes() {
+        long bytes = (long) (levels.length + layer0.length) * Integer.BYTES;
+        for (int[] upper : upperLayers) {
+            bytes += upper != null ? (long) upper.length * Integer.BYTES : 0;
+        }
+        return bytes;
+    }
+
+    /**
+     * Writes the graph to the given file (layout: magic "DNHW", format version, m, efConstruction, number of rows,
+     * entry point and max level as int32 values, zero padding to 32 bytes, then levels of all nodes, neighbors of all
+     * nodes in layer 0, and neighbors in upper layers of nodes which have them, all little-endian int32).
+     */
+    public void save(Path file) throws IOException {
+        try (FileChannel out = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            header.put(MAGIC).putInt(FORMAT_VERSION).putInt(m).putInt(efConstruction).putInt(levels.length).putInt(entryPoint).putInt(maxLevel);
+            header.position(HEADER_SIZE);
+            header.flip();
+            ChannelWriter.writeFully(out, header);
+
+            ChannelWriter writer = new ChannelWriter(out);
+            writer.writeInts(levels);
+            writer.writeInts(layer0);
+            for (int[] upper : upperLayers) {
+                if (upper != null) {
+                    writer.writeInts(upper);
+                }
+            }
+        }
+    }
+
+    /**
+     * Loads the graph saved by {@link #save(Path)}, for the same store it was built for.
+     */
+    public static HnswIndex load(Path file, EmbeddingStore store) throws IOException {
+        return load(file, store, Builder.DEFAULT_EF_SEARCH);
+    }
+
+    /**
+     * Loads the graph saved by {@link #save(Path)}, for the same store it was built for, with the given default ef for searches.
+     */
+    public static HnswIndex load(Path file, EmbeddingStore store, int efSearch) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            mapped.order(ByteOrder.LITTLE_ENDIAN);
+            byte[] magic = new byte[MAGIC.length];
+            mapped.get(magic);
+            for (int i = 0; i < MAGIC.length; i++) {
+                if (magic[i] != MAGIC[i]) {
+                    throw new IOException("Not an HNSW index file: " + file);
+                }
+            }
+            int version = mapped.getInt();
+            if (version > FORMAT_VERSION) {
+                throw new IOException("Unsupported HNSW index format version " + version + " in " + file + ", max supported is " + FORMAT_VERSION);
+            }
+            int m = mapped.getInt(), efConstruction = mapped.getInt(), size = mapped.getInt(), entryPoint = mapped.getInt(), maxLevel = mapped.getInt();
+            if (m < 2 || size < 0 || entryPoint >= size || maxLevel >= 64) {
+                throw new IOException("Invalid HNSW index header in " + file);
+            }
+            if (size != store.size()) {
+                throw new IllegalArgumentException("Index " + file + " was built for " + size + " rows, store has " + store.size());
+            }
+
+            mapped.position(HEADER_SIZE);
+            IntBuffer ints = mapped.asIntBuffer();
+            int[] levels = new int[size];
+            int[] layer0 = new int[size * (2 * m + 1)];
+            int[][] upperLayers = new int[size][];
+            ints.get(levels);
+            ints.get(layer0);
+            for (int node = 0; node < size; node++) {
+                if (levels[node] < 0 || levels[node] > maxLevel) {
+                    throw new IOException("Invalid level " + levels[node] + " of node " + node + " in " + file);
+                }
+                checkNeighbors(layer0, node * (2 * m + 1), 2 * m, size, file);
+                if (levels[node] > 0) {
+                    upperLayers[node] = new int[levels[node] * (m + 1)];
+                    ints.get(upperLayers[node]);
+                    for (int level = 0; level < levels[node]; level++) {
+                        checkNeighbors(upperLayers[node], level * (m + 1), m, size, file);
+                    }
+                }
+            }
+
+            HnswIndex index = new HnswIndex(store, m, efConstruction, efSearch, levels, layer0, upperLayers);
+            index.entryPoint = entryPoint;
+            index.maxLevel = maxLevel;
+            return index;
+        } catch (BufferUnderflowException ex) {
+            throw new IOException("HNSW index file is truncated: " + file, ex);
+        }
+    }
+
+    private static void checkNeighbors(int[] neighbors, int start, int max, int size, Path file) throws IOException {
+        if (neighbors[start] < 0 || neighbors[start] > max) {
+            throw new IOException("Invalid number of neighbors " + neighbors[start] + " in " + file);
+        }
+        for (int i = 0; i < neighbors[start]; i++) {
+            if (neighbors[start + 1 + i] < 0 || neighbors[start + 1 + i] >= size) {
+                throw new IOException("Invalid neighbor " + neighbors[start + 1 + i] + " in " + file);
+            }
+        }
+    }
+
+    /**
+     * Buffers of a search, reused by all searches of a thread: visited marks and the two heaps of the best first search.
+     */
+    private final class SearchState {
+        private final int[] visited; // node was visited in the search with this mark
+        private int mark;
+        private final LongHeap candidates = new LongHeap(); // nearest candidate on top
+        private final LongHeap results = new LongHeap();    // negated keys, farthest result on top
+        int[] resultIds = new int[0];
+        float[] resultDistances = new float[0];
+        private float[] vector;
+
+        SearchState(int size) {
+            visited = new int[size];
+        }
+
+        float[] vector(int dimension) {
+            if (vector == null) {
+                vector = new float[dimension];
+            }
+            return vector;
+        }
+
+        // best first search of the layer from the given entry points, leaves ef nearest nodes found in results
+        void searchLayer(float[] query, int[] entryPoints, int numEntryPoints, int ef, int level) {
+            if (++mark == 0) { // marks wrapped around, clear old ones
+                Arrays.fill(visited, 0);
+                mark = 1;
+            }
+            candidates.clear();
+            results.clear();
+            for (int i = 0; i < numEntryPoints; i++) {
+                int node = entryPoints[i];
+                visited[node] = mark;
+                long key = key(store.distance(node, query), node);
+                candidates.push(key);
+                results.push(-key);
+            }
+            while (results.size() > ef) {
+                results.pop();
+            }
+
+            while (candidates.size() > 0) {
+                long nearest = candidates.pop();
+                float farthest = distance(-results.peek());
+                if (distance(nearest) > farthest) {
+                    break;
+                }
+                int node = id(nearest);
+                int[] neighbors = neighbors(node, level);
+                int start = neighborsStart(node, level);
+                for (int i = 0; i < neighbors[start]; i++) {
+                    int next = neighbors[start + 1 + i];
+                    if (visited[next] == mark) {
+                        continue;
+                    }
+                    visited[next] = mark;
+                    float distance = store.distance(next, query);
+                    if (results.size() < ef || distance < farthest) {
+                        long key = key(distance, next);
+                        candidates.push(key);
+                        results.push(-key);
+                        if (results.size() > ef) {
+                            results.pop();
+                        }
+                        farthest = distance(-results.peek());
+                    }
+                }
+            }
+        }
+
+        // moves results to resultIds and resultDistances, nearest first, and returns their number
+        int sortResults() {
+            int count = results.size();
+            if (resultIds.length < count) {
+                resultIds = new int[count];
+                resultDistances = new float[count];
+            }
+            for (int i = count - 1; i >= 0; i--) {
+                long key = -results.pop();
+                resultIds[i] = id(key);
+                resultDistances[i] = distance(key);
+            }
+            return count;
+        }
+    }
+
+    /**
+     * Binary min heap of longs, which avoids boxing of a PriorityQueue.
+     */
+    private static final class LongHeap {
+        private long[] values = new long[64];
+        private int size;
+
+        int size() {
+            return size;
+        }
+
+        void clear() {
+            size = 0;
+        }
+
+        long peek() {
+            return values[0];
+        }
+
+        void push(long value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            int i = size++;
+            while (i > 0) {
+                int parent = (i - 1) >>> 1;
+                if (values[parent] <= value) {
+                    break;
+                }
+                values[i] = values[parent];
+                i = parent;
+            }
+            values[i] = value;
+        }
+
+        long pop() {
+            long top = values[0];
+            long last = values[--size];
+            int i = 0;
+            while (true) {
+                int child = 2 * i + 1;
+                if (child >= size) {
+                    break;
+                }
+                if (child + 1 < size && values[child + 1] < values[child]) {
+                    child++;
+                }
+                if (last <= values[child]) {
+                    break;
+                }
+                values[i] = values[child];
+                i = child;
+            }
+            values[i] = last;
+            return top;
+        }
+    }
+
+    public static class Builder {
+        static final int DEFAULT_EF_SEARCH = 64;
+
+        private int m = 16;
+        private int efConstruction = 200;
+        private int efSearch = DEFAULT_EF_SEARCH;
+        private long seed = 42;
+
+        private Builder() { }
+
+        /**
+         * Sets max number of neighbors of each node in layers above 0 (layer 0 has twice as many), 16 by default.
+         * Larger values give higher recall for high dimensional data, at the cost of memory and time per query.
+         */
+        public Builder m(int m) {
+            if (m < 2) {
+                throw new IllegalArgumentException("M must be at least 2, got " + m);
+            }
+            this.m = m;
+            return this;
+        }
+
+        /**
+         * Sets number of candidates kept while searching neighbors of inserted nodes, 200 by default.
+         * Larger values give a better graph and higher recall, but building takes longer.
+         */
+        public Builder efConstruction(int efConstruction) {
+            if (efConstruction < 1) {
+                throw new IllegalArgumentException("efConstruction must be positive, got " + efConstruction);
+            }
+            this.efConstruction = efConstruction;
+            return this;
+        }
+
+        /**
+         * Sets default number of candidates kept by searches, 64 by default (see {@link HnswIndex#search(float[], int, int)}).
+         */
+        public Builder efSearch(int efSearch) {
+            if (efSearch < 1) {
+                throw new IllegalArgumentException("efSearch must be positive, got " + efSearch);
+            }
+            this.efSearch = efSearch;
+            return this;
+        }
+
+        /**
+         * Sets seed of random levels of nodes, so that the same store gives the same graph.
+         */
+        public Builder seed(long seed) {
+            this.seed = seed;
+            return this;
+        }
+
+        /**
+         * Builds the index of all rows of the given store, which must stay open while the index is used.
+         */
+        public HnswIndex build(EmbeddingStore store) {
+            int size = store.size();
+            Random random = new Random(seed);
+            double levelMultiplier = 1 / Math.log(m);
+            int[] levels = new int[size];
+            int[][] upperLayers = new int[size][];
+            for (int node = 0; node < size; node++) {
+                levels[node] = (int) (-Math.log(1 - random.nextDouble()) * levelMultiplier);
+                if (levels[node] > 0) {
+                    upperLayers[node] = new int[levels[node] * (m + 1)];
+                }
+            }
+
+            HnswIndex index = new HnswIndex(store, m, efConstruction, efSearch, levels, new int[size * (2 * m + 1)], upperLayers);
+            SearchState state = index.searchState.get();
+            float[] vector = new float[store.getDimension()];
+            for (int node = 0; node < size; node++) {
+                store.get(node, vector, 0);
+                index.insert(node, levels[node], vector, state);
+            }
+            return index;
+        }
+    }
+}
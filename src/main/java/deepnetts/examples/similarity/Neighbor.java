@@ -0,0 +1,57 @@
+package deepnetts.examples.similarity;
+
+import java.util.Locale;
+
+/**
+ * Row of an {@link EmbeddingStore} found by a nearest neighbour search, with its distance from the query.
+ * Neighbors are ordered by distance, nearest first.
+ */
+public final class Neighbor implements Comparable<Neighbor> {
+
+    private final int id;
+    private final float distance;
+
+    public Neighbor(int id, float distance) {
+        this.id = id;
+        this.distance = distance;
+    }
+
+    /**
+     * Returns row index in the embedding store.
+     */
+    public int getId() {
+        return id;
+    }
+
+    /**
+     * Returns squared Euclidean distance from the query.
+     */
+    public float getDistance() {
+        return distance;
+    }
+
+    @Override
+    public int compareTo(Neighbor other) {
+        int result = Float.compare(distance, other.distance);
+        return result != 0 ? result : Integer.compare(id, other.id);
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (!(obj instanceof Neighbor)) {
+            return false;
+        }
+        Neighbor other = (Neighbor) obj;
+        return id == other.id && Float.compare(distance, other.distance) == 0;
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * id + Float.hashCode(distance);
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.ROOT, "%d (%.4g)", id, distance);
+    }
+}
@@ -0,0 +1,134 @@
+package deepnetts.examples.similarity;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Measures recall@k and queries per second of {@link HnswIndex}, compared with exact search of {@link EmbeddingStore}.
+ *
+ * Embeddings are random normalized vectors around random cluster centers, like embeddings of images of similar objects
+ * (uniformly random vectors would have no near neighbours at all), written to a temporary store. The benchmark builds
+ * the index, saves and loads it, then searches the k nearest neighbours of queries from the same distribution with
+ * increasing ef. Recall@k is the fraction of the exact k nearest neighbours which are found by the index.
+ *
+ * Optional arguments are number of rows (default 20000), dimension (default 256, VggNet16 embeddings have 4096),
+ * number of queries (default 500), k (default 10) and M (default 16).
+ */
+public class SimilaritySearchBenchmark {
+
+    public static void main(String[] args) throws IOException {
+        int rows = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+        int dimension = args.length > 1 ? Integer.parseInt(args[1]) : 256;
+        int numQueries = args.length > 2 ? Integer.parseInt(args[2]) : 500;
+        int k = args.length > 3 ? Integer.parseInt(args[3]) : 10;
+        int m = args.length > 4 ? Integer.parseInt(args[4]) : 16;
+
+        Random random = new Random(123);
+        float[][] centers = new float[Math.max(1, rows / 100)][];
+        for (int c = 0; c < centers.length; c++) {
+            centers[c] = gaussian(random, dimension, 1);
+        }
+
+        Path storeFile = Files.createTempFile("embeddings", EmbeddingStore.EXTENSION);
+        Path indexFile = Files.createTempFile("embeddings", HnswIndex.EXTENSION);
+        try {
+            long start = System.nanoTime();
+            try (EmbeddingStore.Writer writer = EmbeddingStore.create(storeFile, dimension)) {
+                for (int row = 0; row < rows; row++) {
+                    writer.add(sample(random, centers));
+                }
+            }
+            System.out.printf("Wrote %d embeddings of dimension %d (%.1f MB) in %.2f s%n", rows, dimension,
+                              Files.size(storeFile) / 1e6, (System.nanoTime() - start) / 1e9);
+
+            try (EmbeddingStore store = EmbeddingStore.open(storeFile)) {
+                start = System.nanoTime();
+                HnswIndex built = HnswIndex.builder().m(m).build(store);
+                System.out.printf("Built HNSW index with M %d, efConstruction %d, %d levels, graph %.1f MB in %.2f s%n", m,
+                                  built.getEfConstruction(), built.getMaxLevel() + 1, built.getGraphBytes() / 1e6, (System.nanoTime() - start) / 1e9);
+                built.save(indexFile);
+                start = System.nanoTime();
+                HnswIndex index = HnswIndex.load(indexFile, store);
+                System.out.printf("Saved index (%.1f MB) and loaded it in %.3f s%n", Files.size(indexFile) / 1e6, (System.nanoTime() - start) / 1e9);
+
+                float[][] queries = new float[numQueries][];
+                for (int q = 0; q < numQueries; q++) {
+                    queries[q] = sample(random, centers);
+                    if (!built.search(queries[q], k).equals(index.search(queries[q], k))) {
+                        throw new IllegalStateException("Loaded index gives different results than the built one");
+                    }
+                }
+
+                start = System.nanoTime();
+                List<List<Neighbor>> exact = new ArrayList<>();
+                for (float[] query : queries) {
+                    exact.add(store.nearest(query, k));
+                }
+                double exactQps = numQueries / ((System.nanoTime() - start) / 1e9);
+
+                System.out.println();
+                System.out.printf("Search of %d nearest neighbours, %d queries, single thread:%n", k, numQueries);
+                System.out.printf("  %-10s %10s %12s %10s%n", "search", "recall@" + k, "queries/s", "speedup");
+                System.out.printf("  %-10s %10.4f %12.0f %9.1fx%n", "exact", 1.0, exactQps, 1.0);
+                for (int ef : new int[] {k, 20, 40, 80, 160, 320}) {
+                    if (ef < k) {
+                        continue;
+                    }
+                    for (float[] query : queries) { // warm up
+                        index.search(query, k, ef);
+                    }
+                    int found = 0;
+                    start = System.nanoTime();
+                    for (int q = 0; q < numQueries; q++) {
+                        List<Neighbor> result = index.search(queries[q], k, ef);
+                        found += countFound(exact.get(q), result);
+                    }
+                    double qps = numQueries / ((System.nanoTime() - start) / 1e9);
+                    System.out.printf("  %-10s %10.4f %12.0f %9.1fx%n", "ef " + ef, (double) found / (numQueries * k), qps, qps / exactQps);
+                }
+            }
+        } finally {
+            Files.deleteIfExists(storeFile);
+            Files.deleteIfExists(indexFile);
+        }
+    }
+
+    // number of exact neighbours found by the search
+    private static int countFound(List<Neighbor> exact, List<Neighbor> result) {
+        Set<Integer> ids = new HashSet<>();
+        for (Neighbor neighbor : exact) {
+            ids.add(neighbor.getId());
+        }
+        int found = 0;
+        for (Neighbor neighbor : result) {
+            if (ids.contains(neighbor.getId())) {
+                found++;
+            }
+        }
+        return found;
+    }
+
+    // normalized random vector near a random cluster center
+    private static float[] sample(Random random, float[][] centers) {
+        float[] center = centers[random.nextInt(centers.length)];
+        float[] vector = gaussian(random, center.length, 0.5f);
+        for (int i = 0; i < vector.length; i++) {
+            vector[i] += center[i];
+        }
+        return EmbeddingStore.normalize(vector);
+    }
+
+    private static float[] gaussian(Random random, int size, float sigma) {
+        float[] values = new float[size];
+        for (int i = 0; i < size; i++) {
+            values[i] = (float) random.nextGaussian() * sigma;
+        }
+        return values;
+    }
+}
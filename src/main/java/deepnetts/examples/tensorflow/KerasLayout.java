@@ -0,0 +1,185 @@
+package deepnetts.examples.tensorflow;
+
+import deepnetts.examples.util.LayerSpec;
+import java.io.IOException;
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Layout of a Keras kernel, and its conversion from Keras order (row-major order of Keras kernel shape) to Deep Netts order.
+ *
+ * Dense kernel [inputs, outputs] is stored as [output][input], convolutional kernel [height, width, channels, filters]
+ * as [filter][channel][row][col], and inputs of a dense layer which follows a convolutional or pooling layer are
+ * reordered from Keras flatten order (row, col, channel) to Deep Netts order (channel, row, col).
+ * Used by {@link TensorflowWeightImporter} and {@link KerasNpzImporter}.
+ */
+final class KerasLayout {
+
+    private static final int IDENTITY = 0, DENSE = 1, DENSE_FLATTENED = 2, CONV = 3;
+    private static final int TILE = 64;
+    private static final int PARALLEL_THRESHOLD = 1 << 18;
+
+    final int kind;
+    final int[] shape;       // keras shape
+    final int[] inputShape;  // height, width, channels of flattened input, for DENSE_FLATTENED
+
+    private KerasLayout(int kind, int[] shape, int[] inputShape) {
+        this.kind = kind;
+        this.shape = shape;
+        this.inputShape = inputShape;
+    }
+
+    static KerasLayout identity() {
+        return new KerasLayout(IDENTITY, null, null);
+    }
+
+    static KerasLayout dense(int[] shape, int[] flattenedInputShape) {
+        return new KerasLayout(flattenedInputShape != null ? DENSE_FLATTENED : DENSE, shape, flattenedInputShape);
+    }
+
+    static KerasLayout conv(int[] shape) {
+        return new KerasLayout(CONV, shape, null);
+    }
+
+    /**
+     * Returns layout of kernel of the given layer with weights, with the Keras kernel shape which the layer expects.
+     *
+     * @param prev previous layer, which gives number of inputs and channels
+     * @param spec layer with weights
+     */
+    static KerasLayout of(LayerSpec prev, LayerSpec spec) {
+        int prevWidth = prev.getWidth(), prevHeight = Math.max(1, prev.getHeight()), prevDepth = Math.max(1, prev.getDepth());
+        if (spec.getType() == LayerSpec.Type.CONVOLUTIONAL) {
+            return conv(new int[] {spec.getFilterHeight(), spec.getFilterWidth(), prevDepth, spec.getDepth()});
+        }
+        boolean flattened = prevHeight > 1 || prevDepth > 1;
+        return dense(new int[] {prevWidth * prevHeight * prevDepth, spec.getWidth()}, flattened ? new int[] {prevHeight, prevWidth, prevDepth} : null);
+    }
+
+    /**
+     * Returns true if the given Keras shape is the expected one.
+     */
+    boolean matches(int[] kerasShape) {
+        return Arrays.equals(shape, kerasShape);
+    }
+
+    boolean isIdentity() {
+        return kind == IDENTITY;
+    }
+
+    int size() {
+        int size = 1;
+        for (int dim : shape) {
+            size *= dim;
+        }
+        return size;
+    }
+
+    // kernel as [rows][cols] matrix in keras order, which is transposed to [cols][rows] in deep netts order
+    private int rows() {
+        return kind == CONV ? shape[0] * shape[1] * shape[2] : shape[0];
+    }
+
+    private int cols() {
+        return kind == CONV ? shape[3] : shape[1];
+    }
+
+    // row of the keras matrix which becomes column j of the deep netts matrix
+    private int sourceRow(int j) {
+        switch (kind) {
+            case DENSE_FLATTENED: { // column (channel, row, col) <- row (row, col, channel)
+                int pixels = inputShape[0] * inputShape[1];
+                return (j % pixels) * inputShape[2] + j / pixels;
+            }
+            case CONV: { // column (channel, row, col) <- row (row, col, channel)
+                int kernelPixels = shape[0] * shape[1];
+                return (j % kernelPixels) * shape[2] + j / kernelPixels;
+            }
+            default:
+                return j;
+        }
+    }
+
+    /**
+     * Copies all remaining values of the source buffer, in Keras order, into the target array, using the given executor.
+     *
+     * Identity layout is a single bulk transfer. Dense and convolutional kernels are transposes of a [rows][cols] matrix,
+     * with rows permuted for flattened inputs and channels: [inputs][outputs] to [output][input] for dense layers, and
+     * [(row, col, channel)][filters] to [filter][(channel, row, col)] for convolutional layers. A naive transpose of large
+     * matrices, like 25088 x 4096 in VggNet16, misses cache on every read or every write, so the matrix is converted in
+     * strips of TILE target columns: source rows of a strip are read with bulk transfers, and written in TILE x TILE tiles
+     * which fit in L1 cache. Strips are converted concurrently by up to the given number of threads.
+     *
+     * @param executor executor for strips, or null to convert in the calling thread
+     */
+    void copy(FloatBuffer src, float[] target, ExecutorService executor, int threads) throws IOException {
+        if (kind == IDENTITY) {
+            src.get(target, 0, src.remaining());
+            return;
+        }
+        if (src.remaining() != size()) {
+            throw new IllegalArgumentException("Source has " + src.remaining() + " values, expected " + size() + " for shape " + Arrays.toString(shape));
+        }
+
+        final AtomicInteger nextStrip = new AtomicInteger();
+        final int strips = (rows() + TILE - 1) / TILE;
+        final int tasks = executor == null || size() < PARALLEL_THRESHOLD ? 1 : Math.min(strips, threads);
+        if (tasks <= 1) {
+            copyStrips(src, target, nextStrip);
+            return;
+        }
+        List<Callable<Void>> calls = new ArrayList<>(tasks);
+        for (int t = 0; t < tasks; t++) {
+            calls.add(() -> {
+                copyStrips(src, target, nextStrip);
+                return null;
+            });
+        }
+        try {
+            for (Future<Void> future : executor.invokeAll(calls)) {
+                future.get();
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while importing weights", ex);
+        } catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    // converts strips until none are left, strips are shared between threads through the counter
+    private void copyStrips(FloatBuffer src, float[] target, AtomicInteger nextStrip) {
+        final int rows = rows(), cols = cols();
+        final int base = src.position();
+        final FloatBuffer view = src.duplicate();
+        final float[] strip = new float[Math.min(TILE, rows) * cols];
+        int s;
+        while ((s = nextStrip.getAndIncrement()) < (rows + TILE - 1) / TILE) {
+            final int j0 = s * TILE, height = Math.min(TILE, rows - j0);
+            for (int k = 0; k < height; k++) {
+                view.position(base + sourceRow(j0 + k) * cols);
+                view.get(strip, k * cols, cols);
+            }
+            for (int o0 = 0; o0 < cols; o0 += TILE) {
+                final int oEnd = Math.min(cols, o0 + TILE);
+                for (int o = o0; o < oEnd; o++) {
+                    final int t = o * rows + j0;
+                    for (int k = 0; k < height; k++) {
+                        target[t + k] = strip[k * cols + o];
+                    }
+                }
+            }
+        }
+    }
+}
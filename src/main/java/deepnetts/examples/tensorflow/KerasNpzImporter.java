@@ -0,0 +1,213 @@
+package deepnetts.examples.tensorflow;
+
+import deepnetts.examples.io.NpyArray;
+import deepnetts.examples.io.NpzFile;
+import deepnetts.examples.util.LayerSpec;
+import deepnetts.net.NeuralNetwork;
+import deepnetts.net.layers.AbstractLayer;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Imports weights of a Keras model from a NumPy {@code .npz} archive, into a {@link deepnetts.net.ConvolutionalNetwork}
+ * or {@link deepnetts.net.FeedForwardNetwork} with the same architecture.
+ *
+ * The archive is written in Python with a few lines, without any custom export code:
+ * <pre>
+ * weights = {}
+ * for layer in model.layers:
+ *     for name, value in zip(("kernel", "bias"), layer.get_weights()):
+ *         weights[layer.name + "/" + name] = value
+ * numpy.savez("weights.npz", **weights)
+ * </pre>
+ * Arrays named {@code <keras layer>/kernel} and {@code <keras layer>/bias} (optionally with the {@code :0} suffix of
+ * Tensorflow variable names) are grouped by Keras layer name. Archives written with {@code numpy.savez(file, *model.get_weights())}
+ * have no names, and are grouped by position: each array with two or more dimensions is a kernel, and a following
+ * one dimensional array is its bias.
+ *
+ * Keras layers are assigned to Deep Netts layers with weights in order, or by an explicit mapping from Keras layer name
+ * to index of the layer in {@code network.getLayers()}, which also allows importing only some layers, like the convolutional
+ * base of a model for transfer learning. Shapes are validated against each layer, and weights are rearranged from Keras
+ * layouts as described in {@link KerasLayout}.
+ *
+ * Since .npz arrays are stored as raw float32 values, they are memory mapped and copied in bulk, without any parsing,
+ * and there is no loss of precision as with text exports. Kernels which need layout conversion are transposed in
+ * cache sized tiles on all cores, so importing VggNet16 takes seconds.
+ */
+public final class KerasNpzImporter {
+
+    private KerasNpzImporter() { }
+
+    /**
+     * Imports all Keras layers from the archive into network layers with weights, in order.
+     *
+     * @throws IOException if the archive cannot be read
+     * @throws IllegalArgumentException if arrays in the archive do not match the network architecture
+     */
+    public static void importWeights(NeuralNetwork<?> network, Path file) throws IOException {
+        importWeights(network, file, null);
+    }
+
+    /**
+     * Imports Keras layers into network layers according to the given mapping from Keras layer name to
+     * index of the layer in {@code network.getLayers()}, using all available processors.
+     * Keras layers which are not in the mapping are skipped. If mapping is null, all Keras layers are imported
+     * into network layers with weights, in order.
+     *
+     * @throws IOException if the archive cannot be read
+     * @throws IllegalArgumentException if arrays in the archive do not match the network architecture
+     */
+    public static void importWeights(NeuralNetwork<?> network, Path file, Map<String, Integer> layerMapping) throws IOException {
+        importWeights(network, file, layerMapping, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Imports Keras layers into network layers according to the given mapping (or in order, if mapping is null),
+     * using the given number of threads for layout conversion of large kernels.
+     *
+     * @throws IOException if the archive cannot be read
+     * @throws IllegalArgumentException if arrays in the archive do not match the network architecture
+     */
+    public static void importWeights(NeuralNetwork<?> network, Path file, Map<String, Integer> layerMapping, int threads) throws IOException {
+        ExecutorService executor = threads > 1 ? Executors.newFixedThreadPool(threads) : null;
+        try (NpzFile npz = NpzFile.open(file)) {
+            List<KerasLayer> kerasLayers = kerasLayers(npz);
+            List<AbstractLayer> layers = network.getLayers();
+            List<Integer> layerIndexes = layerMapping != null ? mappedLayers(kerasLayers, layerMapping, layers.size())
+                                                               : layersWithWeights(kerasLayers, layers);
+            for (int k = 0; k < kerasLayers.size(); k++) {
+                Integer l = layerIndexes.get(k);
+                if (l != null) {
+                    AbstractLayer layer = layers.get(l);
+                    load(npz, kerasLayers.get(k), LayerSpec.of(layers.get(l - 1)), LayerSpec.of(layer),
+                         layer.getWeights().getValues(), layer.getBiases().getValues(), l, executor, threads);
+                }
+            }
+        } finally {
+            if (executor != null) {
+                executor.shutdown();
+            }
+        }
+    }
+
+    /**
+     * Kernel and bias arrays of a Keras layer.
+     */
+    static final class KerasLayer {
+        final String name;
+        String kernel;
+        String bias;
+
+        KerasLayer(String name) {
+            this.name = name;
+        }
+    }
+
+    /**
+     * Groups arrays of the archive into Keras layers, by name if arrays are named as layer/kernel, otherwise by position.
+     */
+    static List<KerasLayer> kerasLayers(NpzFile npz) throws IOException {
+        Map<String, KerasLayer> layers = new LinkedHashMap<>();
+        KerasLayer last = null;
+        for (String name : npz.getNames()) {
+            int slash = name.lastIndexOf('/');
+            if (slash > 0) {
+                String layerName = name.substring(0, slash);
+                String param = name.substring(slash + 1).replaceFirst(":\\d+$", "");
+                KerasLayer layer = layers.computeIfAbsent(layerName, KerasLayer::new);
+                if (param.equals("kernel")) {
+                    layer.kernel = name;
+                } else if (param.equals("bias")) {
+                    layer.bias = name;
+                } else {
+                    throw new IllegalArgumentException("Unsupported weights " + name + ", only kernel and bias are supported");
+                }
+            } else if (npz.get(name).getShape().length >= 2) {
+                last = new KerasLayer(name);
+                last.kernel = name;
+                layers.put(name, last);
+            } else if (last != null && last.bias == null) {
+                last.bias = name;
+            } else {
+                throw new IllegalArgumentException("Array " + name + " is not a kernel and does not follow a kernel");
+            }
+        }
+        for (KerasLayer layer : layers.values()) {
+            if (layer.kernel == null) {
+                throw new IllegalArgumentException("Keras layer " + layer.name + " has bias but no kernel");
+            }
+        }
+        return new ArrayList<>(layers.values());
+    }
+
+    private static List<Integer> layersWithWeights(List<KerasLayer> kerasLayers, List<AbstractLayer> layers) {
+        List<Integer> indexes = new ArrayList<>();
+        for (int l = 1; l < layers.size(); l++) {
+            if (LayerSpec.of(layers.get(l)).hasWeights()) {
+                indexes.add(l);
+            }
+        }
+        if (indexes.size() != kerasLayers.size()) {
+            throw new IllegalArgumentException("File has weights for " + kerasLayers.size() + " layers, network has " + indexes.size() + " layers with weights");
+        }
+        return indexes;
+    }
+
+    private static List<Integer> mappedLayers(List<KerasLayer> kerasLayers, Map<String, Integer> layerMapping, int numLayers) {
+        List<Integer> indexes = new ArrayList<>();
+        List<String> names = new ArrayList<>();
+        for (KerasLayer kerasLayer : kerasLayers) {
+            Integer l = layerMapping.get(kerasLayer.name);
+            if (l != null && (l < 1 || l >= numLayers)) {
+                throw new IllegalArgumentException("Keras layer " + kerasLayer.name + " is mapped to layer " + l + ", network has " + numLayers + " layers");
+            }
+            indexes.add(l);
+            names.add(kerasLayer.name);
+        }
+        for (String name : layerMapping.keySet()) {
+            if (!names.contains(name)) {
+                throw new IllegalArgumentException("Keras layer " + name + " not found in file, file has layers " + names);
+            }
+        }
+        return indexes;
+    }
+
+    /**
+     * Copies kernel and bias of a Keras layer into weights and biases of the network layer with index l, which has the given spec.
+     */
+    static void load(NpzFile npz, KerasLayer kerasLayer, LayerSpec prev, LayerSpec spec, float[] weights, float[] biases, int l,
+                     ExecutorService executor, int threads) throws IOException {
+        if (!spec.hasWeights()) {
+            throw new IllegalArgumentException("Keras layer " + kerasLayer.name + " is mapped to layer " + l + " (" + spec + "), which has no weights");
+        }
+
+        NpyArray kernel = npz.get(kerasLayer.kernel);
+        KerasLayout layout = KerasLayout.of(prev, spec);
+        if (!layout.matches(kernel.getShape())) {
+            throw new IllegalArgumentException("Layer " + l + " (" + spec + ") expects weights shape " + Arrays.toString(layout.shape)
+                                               + ", Keras layer " + kerasLayer.name + " has " + Arrays.toString(kernel.getShape()));
+        }
+        if (weights.length != layout.size()) {
+            throw new IllegalArgumentException("Layer " + l + " has " + weights.length + " weights, file has shape " + Arrays.toString(kernel.getShape()));
+        }
+        layout.copy(kernel.asFloatBuffer(), weights, executor, threads);
+
+        if (kerasLayer.bias == null) {
+            Arrays.fill(biases, 0); // layer without bias in keras
+            return;
+        }
+        NpyArray bias = npz.get(kerasLayer.bias);
+        if (bias.getShape().length != 1 || bias.size() != biases.length) {
+            throw new IllegalArgumentException("Layer " + l + " has " + biases.length + " biases, Keras layer " + kerasLayer.name
+                                               + " has shape " + Arrays.toString(bias.getShape()));
+        }
+        bias.copyTo(biases, 0);
+    }
+}
@@ -0,0 +1,336 @@
+package deepnetts.examples.tensorflow;
+
+import deepnetts.examples.io.NpyArray;
+import deepnetts.examples.io.NpzFile;
+import deepnetts.examples.util.LayerSpec;
+import deepnetts.net.NeuralNetwork;
+import deepnetts.net.layers.AbstractLayer;
+import deepnetts.util.TensorBase;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Verifies imported weights by running a reference input through the network, and comparing output of each layer
+ * with activations computed by Keras for the same input.
+ *
+ * Wrong layout of imported weights often gives plausible final outputs for some inputs, so comparing layer by layer
+ * shows the first layer which differs, which is usually the one with the wrong weights. Reference outputs are written
+ * in Python to an .npz archive, with the input named {@code input}, and outputs of layers named by Keras layer names,
+ * without the batch dimension:
+ * <pre>
+ * layers = [l for l in model.layers if not isinstance(l, (keras.layers.InputLayer, keras.layers.Flatten, keras.layers.Dropout))]
+ * probe = keras.Model(model.inputs, [l.output for l in layers])
+ * outputs = probe.predict(x)  # x is a batch with one reference input
+ * numpy.savez("layer_outputs.npz", input=x[0], **{l.name: o[0] for l, o in zip(layers, outputs)})
+ * </pre>
+ * Arrays are assigned to network layers after the input layer in order, or by an explicit mapping from Keras layer name
+ * to index of the layer in {@code network.getLayers()}. Images and outputs of convolutional and pooling layers are
+ * converted from Keras order (row, col, channel) to Deep Netts order (channel, row, col).
+ *
+ * Values are compared like {@code numpy.allclose}: a value matches if {@code |actual - expected| <= absoluteTolerance + relativeTolerance * |expected|}.
+ * <pre>
+ * LayerOutputVerifier.Report report = LayerOutputVerifier.builder()
+ *                                                        .absoluteTolerance(1e-4f)
+ *                                                        .relativeTolerance(1e-3f)
+ *                                                        .build()
+ *                                                        .verify(network, Paths.get("layer_outputs.npz"));
+ * System.out.println(report);
+ * </pre>
+ */
+public final class LayerOutputVerifier {
+
+    public static final String INPUT = "input";
+
+    private final float absoluteTolerance;
+    private final float relativeTolerance;
+
+    private LayerOutputVerifier(Builder builder) {
+        this.absoluteTolerance = builder.absoluteTolerance;
+        this.relativeTolerance = builder.relativeTolerance;
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * Runs reference input from the dump through the network, and compares outputs of all layers after the input layer,
+     * in order, with arrays in the dump.
+     *
+     * @throws IOException if the dump cannot be read
+     * @throws IllegalArgumentException if arrays in the dump do not match the network architecture
+     */
+    public Report verify(NeuralNetwork<?> network, Path dump) throws IOException {
+        return verify(network, dump, null);
+    }
+
+    /**
+     * Runs reference input from the dump through the network, and compares outputs of layers according to the given mapping
+     * from Keras layer name to index of the layer in {@code network.getLayers()}. Arrays which are not in the mapping are skipped.
+     * If mapping is null, arrays are compared with all layers after the input layer, in order.
+     *
+     * @throws IOException if the dump cannot be read
+     * @throws IllegalArgumentException if arrays in the dump do not match the network architecture
+     */
+    public Report verify(NeuralNetwork<?> network, Path dump, Map<String, Integer> layerMapping) throws IOException {
+        List<AbstractLayer> layers = network.getLayers();
+        try (NpzFile npz = NpzFile.open(dump)) {
+            if (!npz.contains(INPUT)) {
+                throw new IllegalArgumentException("No reference input array named " + INPUT + " in " + dump);
+            }
+            List<String> names = new ArrayList<>(npz.getNames());
+            names.remove(INPUT);
+            if (layerMapping == null && names.size() != layers.size() - 1) {
+                throw new IllegalArgumentException("Dump has outputs of " + names.size() + " layers " + names + ", network has "
+                                                   + (layers.size() - 1) + " layers after input layer");
+            }
+
+            network.setInput(input(npz.get(INPUT), LayerSpec.of(layers.get(0))));
+
+            List<LayerResult> results = new ArrayList<>();
+            for (int k = 0; k < names.size(); k++) {
+                String name = names.get(k);
+                Integer l = layerMapping != null ? layerMapping.get(name) : Integer.valueOf(k + 1);
+                if (l == null) {
+                    continue;
+                }
+                if (l < 1 || l >= layers.size()) {
+                    throw new IllegalArgumentException("Keras layer " + name + " is mapped to layer " + l + ", network has " + layers.size() + " layers");
+                }
+                AbstractLayer layer = layers.get(l);
+                LayerSpec spec = LayerSpec.of(layer);
+                results.add(compare(name, l, spec, layer.getOutputs().getValues(), expected(npz.get(name), spec, name)));
+            }
+            return new Report(results);
+        }
+    }
+
+    private static TensorBase input(NpyArray input, LayerSpec spec) {
+        int[] shape = input.getShape();
+        float[] values = input.toFloatArray();
+        if (shape.length == 3) { // image in keras order [height, width, channels]
+            checkShape(shape, spec, INPUT);
+            return new TensorBase(shape[0], shape[1], shape[2], toChannelsFirst(values, shape[0], shape[1], shape[2]));
+        }
+        if (shape.length != 1 || shape[0] != spec.getWidth()) {
+            throw new IllegalArgumentException("Input layer (" + spec + ") does not match reference input with shape " + Arrays.toString(shape));
+        }
+        return TensorBase.of(values);
+    }
+
+    // expected layer outputs in deep netts order
+    private static float[] expected(NpyArray output, LayerSpec spec, String name) {
+        int[] shape = output.getShape();
+        float[] values = output.toFloatArray();
+        if (shape.length == 3) {
+            checkShape(shape, spec, name);
+            return toChannelsFirst(values, shape[0], shape[1], shape[2]);
+        }
+        if (shape.length != 1) {
+            throw new IllegalArgumentException("Output of " + name + " has shape " + Arrays.toString(shape)
+                                               + ", expected [units] or [height, width, channels] without batch dimension");
+        }
+        return values;
+    }
+
+    private static void checkShape(int[] shape, LayerSpec spec, String name) {
+        if (shape[0] != spec.getHeight() || shape[1] != spec.getWidth() || shape[2] != spec.getDepth()) {
+            throw new IllegalArgumentException("Layer " + spec + " does not match " + name + " with shape " + Arrays.toString(shape));
+        }
+    }
+
+    /**
+     * Converts image or feature maps from [row][col][channel] to [channel][row][col].
+     */
+    static float[] toChannelsFirst(float[] values, int height, int width, int channels) {
+        float[] result = new float[values.length];
+        for (int pixel = 0, i = 0; pixel < height * width; pixel++) {
+            for (int ch = 0; ch < channels; ch++) {
+                result[ch * height * width + pixel] = values[i++];
+            }
+        }
+        return result;
+    }
+
+    LayerResult compare(String name, int layerIdx, LayerSpec spec, float[] actual, float[] expected) {
+        if (actual.length != expected.length) {
+            throw new IllegalArgumentException("Layer " + layerIdx + " (" + spec + ") has " + actual.length + " outputs, "
+                                               + name + " has " + expected.length);
+        }
+        float maxAbsError = 0, maxRelError = 0;
+        int mismatches = 0, firstMismatch = -1;
+        for (int i = 0; i < actual.length; i++) {
+            float error = Math.abs(actual[i] - expected[i]);
+            float magnitude = Math.abs(expected[i]);
+            if (!(error <= absoluteTolerance + relativeTolerance * magnitude)) { // also true for NaN
+                if (mismatches++ == 0) {
+                    firstMismatch = i;
+                }
+            }
+            maxAbsError = Math.max(maxAbsError, error);
+            if (magnitude > absoluteTolerance) {
+                maxRelError = Math.max(maxRelError, error / magnitude);
+            }
+        }
+        return new LayerResult(name, layerIdx, spec, actual.length, maxAbsError, maxRelError, mismatches,
+                               firstMismatch, firstMismatch >= 0 ? actual[firstMismatch] : 0, firstMismatch >= 0 ? expected[firstMismatch] : 0);
+    }
+
+    /**
+     * Comparison of outputs of a single layer.
+     */
+    public static final class LayerResult {
+        private final String name;
+        private final int layerIdx;
+        private final LayerSpec spec;
+        private final int size;
+        private final float maxAbsError;
+        private final float maxRelError;
+        private final int mismatches;
+        private final int firstMismatch;
+        private final float firstActual;
+        private final float firstExpected;
+
+        LayerResult(String name, int layerIdx, LayerSpec spec, int size, float maxAbsError, float maxRelError, int mismatches,
+                    int firstMismatch, float firstActual, float firstExpected) {
+            this.name = name;
+            this.layerIdx = layerIdx;
+            this.spec = spec;
+            this.size = size;
+            this.maxAbsError = maxAbsError;
+            this.maxRelError = maxRelError;
+            this.mismatches = mismatches;
+            this.firstMismatch = firstMismatch;
+            this.firstActual = firstActual;
+            this.firstExpected = firstExpected;
+        }
+
+        /**
+         * Returns Keras layer name.
+         */
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * Returns index of the layer in {@code network.getLayers()}.
+         */
+        public int getLayerIndex() {
+            return layerIdx;
+        }
+
+        public float getMaxAbsoluteError() {
+            return maxAbsError;
+        }
+
+        /**
+         * Returns max relative error, of values which are larger than absolute tolerance.
+         */
+        public float getMaxRelativeError() {
+            return maxRelError;
+        }
+
+        /**
+         * Returns number of outputs which are not within tolerance.
+         */
+        public int getMismatches() {
+            return mismatches;
+        }
+
+        public boolean isPassed() {
+            return mismatches == 0;
+        }
+
+        @Override
+        public String toString() {
+            String result = String.format(Locale.ROOT, "%-3d %-20s %-40s %10.3g %10.3g %9d/%-9d %s", layerIdx, name, spec,
+                                          maxAbsError, maxRelError, mismatches, size, isPassed() ? "OK" : "FAIL");
+            if (!isPassed()) {
+                result += String.format(Locale.ROOT, " (first at %d: %g, expected %g)", firstMismatch, firstActual, firstExpected);
+            }
+            return result;
+        }
+    }
+
+    /**
+     * Results of all compared layers.
+     */
+    public static final class Report {
+        private final List<LayerResult> layers;
+
+        Report(List<LayerResult> layers) {
+            this.layers = Collections.unmodifiableList(layers);
+        }
+
+        public List<LayerResult> getLayers() {
+            return layers;
+        }
+
+        /**
+         * Returns true if outputs of all compared layers are within tolerance.
+         */
+        public boolean isPassed() {
+            return layers.stream().allMatch(LayerResult::isPassed);
+        }
+
+        /**
+         * Returns the first layer with outputs which are not within tolerance, or null if all layers passed.
+         */
+        public LayerResult getFirstFailure() {
+            return layers.stream().filter(layer -> !layer.isPassed()).findFirst().orElse(null);
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            sb.append(String.format(Locale.ROOT, "%-3s %-20s %-40s %10s %10s %19s%n", "#", "keras layer", "layer", "max abs", "max rel", "mismatches"));
+            for (LayerResult layer : layers) {
+                sb.append(layer).append(System.lineSeparator());
+            }
+            LayerResult failure = getFirstFailure();
+            sb.append(failure == null ? "All layer outputs match" : "First mismatch in layer " + failure.layerIdx + " (" + failure.name + ")");
+            return sb.toString();
+        }
+    }
+
+    public static class Builder {
+
+        private float absoluteTolerance = 1e-4f;
+        private float relativeTolerance = 1e-3f;
+
+        private Builder() { }
+
+        /**
+         * Max absolute difference which is always accepted. Default is 1e-4.
+         */
+        public Builder absoluteTolerance(float absoluteTolerance) {
+            if (absoluteTolerance < 0) {
+                throw new IllegalArgumentException("Tolerance must not be negative: " + absoluteTolerance);
+            }
+            this.absoluteTolerance = absoluteTolerance;
+            return this;
+        }
+
+        /**
+         * Max difference relative to magnitude of expected value. Default is 1e-3, float32 sums of large layers
+         * are computed in different order by Keras and Deep Netts, so they rarely match exactly.
+         */
+        public Builder relativeTolerance(float relativeTolerance) {
+            if (relativeTolerance < 0) {
+                throw new IllegalArgumentException("Tolerance must not be negative: " + relativeTolerance);
+            }
+            this.relativeTolerance = relativeTolerance;
+            return this;
+        }
+
+        public LayerOutputVerifier build() {
+            return new LayerOutputVerifier(this);
+        }
+    }
+}
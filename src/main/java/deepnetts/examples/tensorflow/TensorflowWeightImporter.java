@@ -0,0 +1,619 @@
+package deepnetts.examples.tensorflow;
+
+import deepnetts.examples.util.LayerSpec;
+import deepnetts.net.NeuralNetwork;
+import deepnetts.net.layers.AbstractLayer;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * Imports weights exported from Tensorflow/Keras, in the same text format as {@code TensorflowUtils.importWeights},
+ * using all CPU cores.
+ *
+ * The exported file has a block for each layer with weights:
+ * <pre>
+ * layer:1
+ * config:{"name": "dense", "units": 16, "activation": "relu", ...}
+ * weights_shape:4, 16
+ * weights:
+ * 0.47658885, -0.31355044, ...
+ * biases:0.0, -0.009311829, ...
+ * </pre>
+ * Import is done in four steps:
+ * <ol>
+ * <li>the file is scanned once to index byte offsets of weights and biases of every layer block, and to read small header lines</li>
+ * <li>weights shape of each block is validated against its {@code config:} JSON and the corresponding network layer</li>
+ * <li>weights and biases are split into chunks of a few megabytes, which are parsed concurrently from memory mapped file,
+ *     in file order</li>
+ * <li>weights are converted from Keras to Deep Netts layout with a tiled, multi-threaded transpose (see {@link KerasLayout})</li>
+ * </ol>
+ * The last two steps are done one layer at a time. Weights of a layer are parsed into a staging array of the same size,
+ * which is released after conversion, so import needs extra memory for the weights of the largest layer: about 400MB
+ * for the first dense layer of VggNet16 (25088 x 4096 floats).
+ * Since float parsing is spread over all cores and does not allocate, import of large networks like VggNet16
+ * is limited by disk bandwidth instead of single core parsing speed.
+ *
+ * Blocks are assigned to network layers with weights in order. Weights are expected in standard Keras layouts
+ * and are rearranged for Deep Netts as described in {@link KerasLayout}.
+ */
+public final class TensorflowWeightImporter {
+
+    private static final int CHUNK_SIZE = 4 * 1024 * 1024;
+    private static final int MAX_TOKEN_LENGTH = 64;
+    private static final int MAX_KEY_LENGTH = 32;
+    private static final double[] POWERS_OF_TEN = {
+        1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+        1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+
+    private TensorflowWeightImporter() { }
+
+    /**
+     * Imports weights from the given file into the network, using all available processors.
+     */
+    public static void importWeights(NeuralNetwork<?> network, String fileName) throws IOException {
+        importWeights(network, Paths.get(fileName), Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Imports weights from the given file into the network, using the given number of threads.
+     *
+     * @throws IOException if file cannot be read or is not in the expected format
+     * @throws IllegalArgumentException if weights in the file do not match the network architecture
+     */
+    public static void importWeights(NeuralNetwork<?> network, Path file, int threads) throws IOException {
+        List<LayerBlock> blocks = index(file);
+        load(file, match(network, blocks), threads);
+    }
+
+    /**
+     * Parses weights and biases of the given layer blocks concurrently, into their target arrays.
+     */
+    static void load(Path file, List<LayerTarget> targets, int threads) throws IOException {
+        List<Chunk> chunks = new ArrayList<>();
+        List<List<Chunk>> weightSections = new ArrayList<>();
+        List<List<Chunk>> biasSections = new ArrayList<>();
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            for (LayerTarget target : targets) {
+                weightSections.add(split(channel, target.block.weights));
+                if (target.block.biases != null) {
+                    biasSections.add(split(channel, target.block.biases));
+                } else {
+                    biasSections.add(null);
+                    Arrays.fill(target.biases, 0); // layer without bias in keras
+                }
+            }
+        }
+        for (int t = 0; t < targets.size(); t++) {
+            chunks.addAll(weightSections.get(t));
+            if (biasSections.get(t) != null) {
+                chunks.addAll(biasSections.get(t));
+            }
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, threads));
+        try {
+            runAll(executor, chunks, Chunk::countValues);
+            for (int t = 0; t < targets.size(); t++) {
+                LayerTarget target = targets.get(t);
+                index(weightSections.get(t), target.weights.length);
+                if (biasSections.get(t) != null) {
+                    index(biasSections.get(t), target.biases.length);
+                }
+            }
+
+            // weights are parsed in keras order, so that parsing threads write sequentially, and converted to deep netts
+            // layout afterwards; one layer at a time, so that only a single staging array is alive
+            for (int t = 0; t < targets.size(); t++) {
+                LayerTarget target = targets.get(t);
+                float[] staging = target.weightsLayout.isIdentity() ? target.weights : new float[target.weights.length];
+                List<Chunk> layerChunks = new ArrayList<>(weightSections.get(t));
+                layerChunks.forEach(chunk -> chunk.target = staging);
+                if (biasSections.get(t) != null) {
+                    biasSections.get(t).forEach(chunk -> chunk.target = target.biases);
+                    layerChunks.addAll(biasSections.get(t));
+                }
+                runAll(executor, layerChunks, Chunk::parseValues);
+                if (staging != target.weights) {
+                    target.weightsLayout.copy(FloatBuffer.wrap(staging), target.weights, executor, threads);
+                }
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    // sets index of the first value of each chunk within its section, and checks the number of values in the section
+    private static void index(List<Chunk> section, int expected) {
+        int index = 0;
+        for (Chunk chunk : section) {
+            chunk.firstIndex = index;
+            index += chunk.count;
+        }
+        if (index != expected) {
+            Section first = section.get(0).section;
+            throw new IllegalArgumentException("Layer block " + first.block.number + " has " + index + " " + first.name
+                                               + " values, expected " + expected
+                                               + (first == first.block.weights ? " for shape " + Arrays.toString(first.block.shape) : ""));
+        }
+    }
+
+    private interface ChunkTask {
+        void run(Chunk chunk) throws IOException;
+    }
+
+    private static void runAll(ExecutorService executor, List<Chunk> chunks, ChunkTask task) throws IOException {
+        List<Callable<Void>> tasks = new ArrayList<>(chunks.size());
+        for (Chunk chunk : chunks) {
+            tasks.add(() -> {
+                task.run(chunk);
+                return null;
+            });
+        }
+        try {
+            for (Future<Void> future : executor.invokeAll(tasks)) {
+                future.get();
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while importing weights", ex);
+        } catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    /**
+     * Layer block in the exported file: header values, and byte ranges of weights and biases.
+     */
+    static final class LayerBlock {
+        final int number;
+        JSONObject config;
+        int[] shape;
+        Section weights;
+        Section biases;
+
+        LayerBlock(int number) {
+            this.number = number;
+        }
+    }
+
+    /**
+     * Byte range [start, end) of comma separated values in the file.
+     */
+    static final class Section {
+        final LayerBlock block;
+        final String name;
+        final long start;
+        long end;
+
+        Section(LayerBlock block, String name, long start) {
+            this.block = block;
+            this.name = name;
+            this.start = start;
+        }
+    }
+
+    private enum ScanState { LINE_START, KEY, VALUE, SKIP }
+
+    /**
+     * Scans the file once, and returns all layer blocks, with byte offsets of their weights and biases.
+     * Only header lines are decoded, data lines are skipped.
+     */
+    static List<LayerBlock> index(Path file) throws IOException {
+        List<LayerBlock> blocks = new ArrayList<>();
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.allocate(1 << 20);
+            byte[] bytes = buffer.array();
+            StringBuilder key = new StringBuilder();
+            StringBuilder value = new StringBuilder();
+            ScanState state = ScanState.LINE_START;
+            LayerBlock block = null;
+            Section openSection = null; // data section, which ends where the next header line starts
+            long lineStart = 0;
+            long position = 0; // file position of bytes[0]
+
+            int length;
+            while ((length = channel.read(buffer)) != -1) {
+                for (int i = 0; i < length; i++) {
+                    if (state == ScanState.SKIP) { // most of the file, skip to the end of line in a tight loop
+                        while (i < length && bytes[i] != '\n') {
+                            i++;
+                        }
+                        if (i < length) {
+                            state = ScanState.LINE_START;
+                        }
+                        continue;
+                    }
+                    final byte b = bytes[i];
+                    switch (state) {
+                        case LINE_START:
+                            lineStart = position + i;
+                            if (Character.isLetter(b)) {
+                                key.setLength(0);
+                                key.append((char) b);
+                                state = ScanState.KEY;
+                            } else if (b != '\n') {
+                                state = ScanState.SKIP;
+                            }
+                            break;
+                        case KEY:
+                            if (b == ':') {
+                                String name = key.toString();
+                                if (openSection != null) {
+                                    openSection.end = lineStart;
+                                    openSection = null;
+                                }
+                                if (name.equals("weights") || name.equals("biases")) {
+                                    if (block == null) {
+                                        throw new IOException(name + " before first layer block in " + file);
+                                    }
+                                    openSection = new Section(block, name, position + i + 1);
+                                    if (name.equals("weights")) {
+                                        block.weights = openSection;
+                                    } else {
+                                        block.biases = openSection;
+                                    }
+                                    state = ScanState.SKIP;
+                                } else {
+                                    value.setLength(0);
+                                    state = ScanState.VALUE;
+                                }
+                            } else if (b == '\n') {
+                                state = ScanState.LINE_START; // data line which starts with a letter, like nan
+                            } else if (key.length() > MAX_KEY_LENGTH) {
+                                state = ScanState.SKIP;
+                            } else {
+                                key.append((char) b);
+                            }
+                            break;
+                        default: // VALUE
+                            if (b == '\n') {
+                                block = header(file, blocks, block, key.toString(), value.toString().trim());
+                                state = ScanState.LINE_START;
+                            } else {
+                                value.append((char) b);
+                            }
+                    }
+                }
+                position += length;
+                buffer.clear();
+            }
+
+            if (state == ScanState.VALUE) {
+                header(file, blocks, block, key.toString(), value.toString().trim());
+            }
+            if (openSection != null) {
+                openSection.end = position;
+            }
+        }
+
+        for (LayerBlock block : blocks) {
+            if (block.weights == null || block.shape == null) {
+                throw new IOException("Layer block " + block.number + " has no weights or weights_shape in " + file);
+            }
+        }
+        return blocks;
+    }
+
+    // processes header line, returns current layer block
+    private static LayerBlock header(Path file, List<LayerBlock> blocks, LayerBlock block, String key, String value) throws IOException {
+        try {
+            if (key.equals("layer")) {
+                LayerBlock newBlock = new LayerBlock(Integer.parseInt(value));
+                blocks.add(newBlock);
+                return newBlock;
+            }
+            if (block == null) {
+                throw new IOException(key + " before first layer block in " + file);
+            }
+            if (key.equals("config")) {
+                block.config = new JSONObject(value);
+            } else if (key.equals("weights_shape")) {
+                String[] dims = value.replaceAll("[()\\[\\]]", "").split(",");
+                block.shape = new int[dims.length];
+                for (int i = 0; i < dims.length; i++) {
+                    block.shape[i] = Integer.parseInt(dims[i].trim());
+                }
+            }
+            return block;
+        } catch (RuntimeException ex) {
+            throw new IOException("Invalid " + key + " header '" + value + "' in " + file, ex);
+        }
+    }
+
+    /**
+     * Layer block with target arrays in the network, and layout mapping from keras to deep netts.
+     */
+    static final class LayerTarget {
+        final LayerBlock block;
+        final float[] weights;
+        final float[] biases;
+        final KerasLayout weightsLayout;
+
+        LayerTarget(LayerBlock block, float[] weights, float[] biases, KerasLayout weightsLayout) {
+            this.block = block;
+            this.weights = weights;
+            this.biases = biases;
+            this.weightsLayout = weightsLayout;
+        }
+    }
+
+    /**
+     * Assigns layer blocks to network layers with weights, and validates shapes against config JSON and network layers.
+     */
+    static List<LayerTarget> match(NeuralNetwork<?> network, List<LayerBlock> blocks) {
+        List<AbstractLayer> layers = network.getLayers();
+        List<LayerTarget> targets = new ArrayList<>();
+        LayerSpec prev = LayerSpec.of(layers.get(0));
+        int blockIdx = 0;
+        for (int l = 1; l < layers.size(); l++) {
+            AbstractLayer layer = layers.get(l);
+            LayerSpec spec = LayerSpec.of(layer);
+            if (spec.hasWeights()) {
+                if (blockIdx >= blocks.size()) {
+                    throw new IllegalArgumentException("File has weights for " + blocks.size() + " layers, network layer " + l + " has no weights in file");
+                }
+                LayerBlock block = blocks.get(blockIdx++);
+                KerasLayout layout = spec.getType() == LayerSpec.Type.CONVOLUTIONAL ? convLayout(block, prev, spec, l) : denseLayout(block, prev, spec, l);
+                checkActivation(block, spec, l);
+
+                float[] weights = layer.getWeights().getValues();
+                float[] biases = layer.getBiases().getValues();
+                if (weights.length != layout.size()) {
+                    throw new IllegalArgumentException("Layer " + l + " has " + weights.length + " weights, file has shape " + Arrays.toString(block.shape));
+                }
+                targets.add(new LayerTarget(block, weights, biases, layout));
+            }
+            prev = spec;
+        }
+        if (blockIdx != blocks.size()) {
+            throw new IllegalArgumentException("File has weights for " + blocks.size() + " layers, network has " + blockIdx + " layers with weights");
+        }
+        return targets;
+    }
+
+    private static KerasLayout denseLayout(LayerBlock block, LayerSpec prev, LayerSpec spec, int l) {
+        KerasLayout layout = checkShape(block, prev, spec, l);
+        checkConfig(block, "units", spec.getWidth(), l);
+        return layout;
+    }
+
+    private static KerasLayout convLayout(LayerBlock block, LayerSpec prev, LayerSpec spec, int l) {
+        KerasLayout layout = checkShape(block, prev, spec, l);
+        checkConfig(block, "filters", spec.getDepth(), l);
+        if (block.config != null) {
+            JSONArray kernelSize = block.config.optJSONArray("kernel_size");
+            if (kernelSize != null && (kernelSize.getInt(0) != spec.getFilterHeight() || kernelSize.getInt(1) != spec.getFilterWidth())) {
+                throw new IllegalArgumentException("Layer " + l + " has filter " + spec.getFilterHeight() + "x" + spec.getFilterWidth()
+                                                   + ", config of block " + block.number + " has kernel_size " + kernelSize);
+            }
+            JSONArray strides = block.config.optJSONArray("strides");
+            int stride = Math.max(1, spec.getStride());
+            if (strides != null && (strides.getInt(0) != stride || strides.getInt(1) != stride)) {
+                throw new IllegalArgumentException("Layer " + l + " has stride " + stride + ", config of block " + block.number + " has strides " + strides);
+            }
+            String dataFormat = block.config.optString("data_format", "channels_last");
+            if (!dataFormat.equals("channels_last")) {
+                throw new IllegalArgumentException("Unsupported data_format " + dataFormat + " in block " + block.number + ", only channels_last is supported");
+            }
+        }
+        return layout;
+    }
+
+    private static KerasLayout checkShape(LayerBlock block, LayerSpec prev, LayerSpec spec, int l) {
+        KerasLayout layout = KerasLayout.of(prev, spec);
+        if (!layout.matches(block.shape)) {
+            throw new IllegalArgumentException("Layer " + l + " (" + spec + ") expects weights shape " + Arrays.toString(layout.shape)
+                                               + ", file block " + block.number + " has " + Arrays.toString(block.shape));
+        }
+        return layout;
+    }
+
+    private static void checkConfig(LayerBlock block, String name, int expected, int l) {
+        if (block.config != null && block.config.has(name) && block.config.getInt(name) != expected) {
+            throw new IllegalArgumentException("Layer " + l + " has " + expected + " outputs, config of block " + block.number
+                                               + " has " + name + "=" + block.config.getInt(name));
+        }
+    }
+
+    private static void checkActivation(LayerBlock block, LayerSpec spec, int l) {
+        if (block.config == null || !block.config.has("activation") || spec.getActivation() == null) {
+            return;
+        }
+        String kerasActivation = block.config.getString("activation");
+        String activation = spec.getActivation().name().toLowerCase();
+        if (!kerasActivation.equals(activation)) {
+            throw new IllegalArgumentException("Layer " + l + " has activation " + spec.getActivation()
+                                               + ", config of block " + block.number + " has " + kerasActivation);
+        }
+    }
+
+    /**
+     * Part of a section, which starts and ends at a separator, so that no value is split between two chunks.
+     */
+    static final class Chunk {
+        final Section section;
+        final MappedByteBuffer bytes;
+        float[] target; // set when the layer of the chunk is parsed
+        int count;
+        int firstIndex;
+
+        Chunk(Section section, MappedByteBuffer bytes) {
+            this.section = section;
+            this.bytes = bytes;
+        }
+
+        void countValues() {
+            int n = 0;
+            boolean inValue = false;
+            for (int i = 0, limit = bytes.limit(); i < limit; i++) {
+                boolean separator = isSeparator(bytes.get(i));
+                if (!separator && !inValue) {
+                    n++;
+                }
+                inValue = !separator;
+            }
+            count = n;
+        }
+
+        void parseValues() throws IOException {
+            int idx = firstIndex;
+            int limit = bytes.limit();
+            int i = 0;
+            while (i < limit) {
+                if (isSeparator(bytes.get(i))) {
+                    i++;
+                    continue;
+                }
+                int start = i;
+                while (i < limit && !isSeparator(bytes.get(i))) {
+                    i++;
+                }
+                target[idx++] = parseFloat(bytes, start, i);
+            }
+        }
+    }
+
+    /**
+     * Splits a section into chunks of about CHUNK_SIZE bytes, ending at separators, and maps them into memory.
+     */
+    private static List<Chunk> split(FileChannel channel, Section section) throws IOException {
+        List<Chunk> chunks = new ArrayList<>();
+        ByteBuffer probe = ByteBuffer.allocate(MAX_TOKEN_LENGTH);
+        long from = section.start;
+        while (from < section.end) {
+            long to = Math.min(section.end, from + CHUNK_SIZE);
+            if (to < section.end) { // move end forward to the next separator
+                probe.clear();
+                channel.read(probe, to);
+                int offset = 0;
+                while (offset < probe.position() && !isSeparator(probe.get(offset))) {
+                    offset++;
+                }
+                if (offset == probe.position()) {
+                    throw new IOException("Value longer than " + MAX_TOKEN_LENGTH + " bytes at position " + to);
+                }
+                to = Math.min(section.end, to + offset);
+            }
+            chunks.add(new Chunk(section, channel.map(FileChannel.MapMode.READ_ONLY, from, to - from)));
+            from = to;
+        }
+        if (chunks.isEmpty()) { // empty section, still validated for number of values
+            chunks.add(new Chunk(section, channel.map(FileChannel.MapMode.READ_ONLY, section.start, 0)));
+        }
+        return chunks;
+    }
+
+    static boolean isSeparator(byte b) {
+        return b == ',' || b == ' ' || b == '\n' || b == '\r' || b == '\t' || b == '[' || b == ']';
+    }
+
+    /**
+     * Parses float from bytes [from, to) without allocating. Gives exactly the same result as Float.parseFloat:
+     * decimal mantissa and power of ten are combined in double precision only when the result is exact
+     * (mantissa up to 2^53, power up to 10^22), and the rare cases which cannot be rounded to float correctly
+     * from a double are parsed by Float.parseFloat.
+     */
+    static float parseFloat(ByteBuffer bytes, int from, int to) throws IOException {
+        int i = from;
+        boolean negative = false;
+        byte c = bytes.get(i);
+        if (c == '-' || c == '+') {
+            negative = c == '-';
+            i++;
+        }
+
+        long mantissa = 0;
+        int significantDigits = 0;
+        int exponent = 0;
+        boolean hasDigits = false;
+        boolean inFraction = false;
+        for (; i < to; i++) {
+            c = bytes.get(i);
+            if (c >= '0' && c <= '9') {
+                hasDigits = true;
+                if (mantissa != 0 || c != '0') {
+                    if (++significantDigits > 18) {
+                        return parseFloatSlow(bytes, from, to);
+                    }
+                }
+                mantissa = mantissa * 10 + (c - '0');
+                if (inFraction) {
+                    exponent--;
+                }
+            } else if (c == '.' && !inFraction) {
+                inFraction = true;
+            } else {
+                break;
+            }
+        }
+        if (i < to && (c == 'e' || c == 'E') && hasDigits) {
+            i++;
+            boolean negativeExponent = false;
+            if (i < to && (bytes.get(i) == '-' || bytes.get(i) == '+')) {
+                negativeExponent = bytes.get(i) == '-';
+                i++;
+            }
+            int exp = 0;
+            int expStart = i;
+            for (; i < to && (c = bytes.get(i)) >= '0' && c <= '9' && exp < 10000; i++) {
+                exp = exp * 10 + (c - '0');
+            }
+            if (i == expStart) {
+                return parseFloatSlow(bytes, from, to);
+            }
+            exponent += negativeExponent ? -exp : exp;
+        }
+        if (i != to || !hasDigits || mantissa > (1L << 53) || exponent < -22 || exponent > 22) {
+            return parseFloatSlow(bytes, from, to);
+        }
+        if (mantissa == 0) {
+            return negative ? -0f : 0f;
+        }
+
+        double value = exponent >= 0 ? mantissa * POWERS_OF_TEN[exponent] : mantissa / POWERS_OF_TEN[-exponent];
+        long bits = Double.doubleToRawLongBits(value);
+        // double exactly halfway between two floats, or outside normal float range: rounding twice could be wrong
+        if ((bits & 0x1FFFFFFFL) == 0x10000000L || value < Float.MIN_NORMAL || value >= Float.MAX_VALUE) {
+            return parseFloatSlow(bytes, from, to);
+        }
+        float result = (float) value;
+        return negative ? -result : result;
+    }
+
+    private static float parseFloatSlow(ByteBuffer bytes, int from, int to) throws IOException {
+        byte[] token = new byte[to - from];
+        for (int i = 0; i < token.length; i++) {
+            token[i] = bytes.get(from + i);
+        }
+        String value = new String(token, StandardCharsets.US_ASCII);
+        try {
+            return Float.parseFloat(value);
+        } catch (NumberFormatException ex) {
+            throw new IOException("Invalid weight value: " + value, ex);
+        }
+    }
+}
@@ -1,9 +1,13 @@
 package deepnetts.examples.tensorflow.vggnet;
 
+import deepnetts.examples.inference.ConvolutionAlgorithm;
+import deepnetts.examples.inference.ConvolutionalInference;
+import deepnetts.examples.io.BinaryModelFile;
 import deepnetts.net.ConvolutionalNetwork;
 import deepnetts.util.FileIO;
 import deepnetts.util.TensorBase;
 import java.io.IOException;
+import java.nio.file.Path;
 import java.util.Map;
 
 /**
@@ -12,29 +16,54 @@ import java.util.Map;
  * 
  * Original paper about VGGNet is available at https://arxiv.org/abs/1409.1556
  * 
+ * Only weights and output labels are kept, not the network itself, so that activation and training buffers of all layers
+ * can be garbage collected. Loaded from a binary model file, the network object is not created at all,
+ * and memory used is the weights, where Winograd transformed filters take 16/9 the size of the 3x3 filters they replace,
+ * and buffers for each thread which runs predictions. Created from a network object, the original filters of Winograd
+ * layers are kept in addition to transformed ones as long as the network is referenced elsewhere.
+ * Convolutional layers are computed with {@link ConvolutionAlgorithm#AUTO}: Winograd for layers with 128 or more input
+ * channels, and im2col + GEMM for the first layers. ConvolutionBenchmark measures time per layer of each algorithm.
  */
-public final class VggNet16 {
+public final class VggNet16 implements AutoCloseable {
       
-    private final ConvolutionalNetwork convNet;
+    private final ConvolutionalInference inference; // safe to use from many threads
+    private final String[] labels;
 
     public VggNet16(ConvolutionalNetwork convNet) {
-        this.convNet = convNet;
+        this(ConvolutionalInference.builder(convNet).convolution(ConvolutionAlgorithm.AUTO).build(), convNet.getOutputLabels());
+    }
+
+    public VggNet16(ConvolutionalInference inference, String[] labels) {
+        this.inference = inference;
+        this.labels = labels;
     }
         
-    public synchronized String guessLabel(String imageFile) throws IOException {
+    public String guessLabel(String imageFile) throws IOException {
         VggNet16InputImage vggInputImage = new VggNet16InputImage(imageFile);          
         return guessLabel(vggInputImage);
     }    
     
-    public synchronized String guessLabel(VggNet16InputImage vggInputImage) {
-        TensorBase prediction = convNet.predict(vggInputImage.getInput());
+    public String guessLabel(VggNet16InputImage vggInputImage) {
+        float[] prediction = new float[inference.getNumOutputs()];
+        inference.predict(vggInputImage.getInput().getValues(), 0, prediction, 0);
         int maxIdx = maxIdxOf(prediction);
         
-        return convNet.getOutputLabel(maxIdx);
+        return labels[maxIdx];
     }
     
+    /**
+     * Returns outputs of the last hidden layer (4096 values after ReLU) for the given image, which can be used as its
+     * embedding to find similar images. The output layer is not computed.
+     */
+    public float[] embedding(VggNet16InputImage vggInputImage) {
+        int layerIdx = inference.getNumLayers() - 2;
+        float[] embedding = new float[inference.getOutputSize(layerIdx)];
+        inference.predictLayer(vggInputImage.getInput().getValues(), 0, layerIdx, embedding, 0);
+        return embedding;
+    }
+
     public String[] getLabels() {
-        return convNet.getOutputLabels();
+        return labels.clone();
     }
     
     public Map<String, Float> getProbabilitiesForLabels() {
@@ -42,10 +71,13 @@ public final class VggNet16 {
     }
        
     static int maxIdxOf(TensorBase prediction) {
+        return maxIdxOf(prediction.getValues());
+    }
+
+    static int maxIdxOf(float[] predictions) {
         int maxIdx = -1;
         float max = 0;
-        final float[] predictions = prediction.getValues();
-        for(int i=0; i<prediction.size(); i++) {
+        for(int i=0; i<predictions.length; i++) {
             if (predictions[i] > max) {
                 max = predictions[i];
                 maxIdx = i;
@@ -60,5 +92,41 @@ public final class VggNet16 {
         
         return new VggNet16(convNet);
     }
+
+    /**
+     * Loads weights from a binary model file (see {@link BinaryModelFile}), without creating the network.
+     */
+    public static VggNet16 fromBinaryFile(Path file) throws IOException {
+        return fromBinaryFile(file, 1);
+    }
+
+    /**
+     * Loads weights from a binary model file, with the given number of threads for each convolutional layer,
+     * which reduces latency of single predictions.
+     */
+    public static VggNet16 fromBinaryFile(Path file, int threads) throws IOException {
+        try (BinaryModelFile modelFile = BinaryModelFile.open(file)) {
+            ConvolutionalInference inference = ConvolutionalInference.builder(modelFile)
+                                                                     .convolution(ConvolutionAlgorithm.AUTO)
+                                                                     .threads(threads)
+                                                                     .build();
+            return new VggNet16(inference, modelFile.getOutputLabels());
+        }
+    }
+
+    /**
+     * Returns the inference used for predictions, which can be shared by many threads.
+     */
+    public ConvolutionalInference getInference() {
+        return inference;
+    }
+
+    /**
+     * Shuts down threads of convolutional layers, see {@link ConvolutionalInference#close()}.
+     */
+    @Override
+    public void close() {
+        inference.close();
+    }
         
 }
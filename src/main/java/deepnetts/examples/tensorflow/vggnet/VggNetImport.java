@@ -1,6 +1,8 @@
 package deepnetts.examples.tensorflow.vggnet;
 
-import deepnetts.util.TensorflowUtils;
+import deepnetts.examples.tensorflow.KerasNpzImporter;
+import deepnetts.examples.tensorflow.LayerOutputVerifier;
+import deepnetts.examples.tensorflow.TensorflowWeightImporter;
 import deepnetts.net.ConvolutionalNetwork;
 import deepnetts.net.layers.Filters;
 import deepnetts.net.layers.activation.ActivationType;
@@ -31,6 +33,9 @@ import java.util.zip.ZipFile;
  * For best performance use the following JVM switches: -Xms8g  -XX:MaxInlineSize=50
  * -Xms8g starts jvm with min 8g of memory
  * -XX:MaxInlineSize=50 sets size for inlining methods which improves performance significantly
+ *
+ * If ~/.deepnetts/vgg16_imagenet_weights.npz exists, weights are imported from it instead of the text export.
+ * It can be written in Python from keras.applications.VGG16(weights="imagenet") as shown in {@link KerasNpzImporter}.
  */
 public class VggNetImport {
     public static void main(String[] args) throws IOException {
@@ -69,10 +74,26 @@ public class VggNetImport {
                 .build();
 
         // step 2; download pretrained network parameters(weights and biases) and import them in the network above
-        downloadVggNet16WeightsFile();
         String userHomeDir = System.getProperty("user.home");
+        // weights exported from keras with numpy.savez (see KerasNpzImporter) are memory mapped and copied without parsing
+        Path npzFile = Paths.get(userHomeDir, ".deepnetts", "vgg16_imagenet_weights.npz");
         System.out.println("Importing pretrained weights from tensorflow model..."); 
-        TensorflowUtils.importWeights(vggNet16, userHomeDir + "/.deepnetts/vgg16_imagenet_weights.txt");
+        long importStart = System.currentTimeMillis();
+        if (Files.exists(npzFile)) {
+            KerasNpzImporter.importWeights(vggNet16, npzFile);
+        } else {
+            downloadVggNet16WeightsFile();
+            // layer blocks are indexed first and then parsed in parallel on all cores, which is much faster than TensorflowUtils.importWeights
+            TensorflowWeightImporter.importWeights(vggNet16, userHomeDir + "/.deepnetts/vgg16_imagenet_weights.txt");
+        }
+        System.out.println("Imported weights in " + (System.currentTimeMillis() - importStart) + " ms");
+
+        // compare outputs of all layers with keras, if reference outputs were exported as shown in LayerOutputVerifier
+        Path layerOutputs = Paths.get(userHomeDir, ".deepnetts", "vgg16_layer_outputs.npz");
+        if (Files.exists(layerOutputs)) {
+            LayerOutputVerifier.Report report = LayerOutputVerifier.builder().build().verify(vggNet16, layerOutputs);
+            System.out.println(report);
+        }
         
         // load output labels from csv file and set them as neural network's outputs
         try {            
@@ -1,6 +1,10 @@
 package deepnetts.examples.tensorflow.vggnet;
 
 import deepnetts.core.DeepNetts;
+import deepnetts.examples.io.BinaryModelFile;
+import deepnetts.examples.serving.WarmUp;
+import deepnetts.net.ConvolutionalNetwork;
+import deepnetts.util.FileIO;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
@@ -12,9 +16,12 @@ import java.nio.channels.ReadableByteChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.Collections;
 import java.util.Enumeration;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.stream.Collectors;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
 
@@ -23,7 +30,13 @@ import java.util.zip.ZipFile;
  * VggNet is a large convolutional neural network trained with tensorflow on large dataset imagenet to recognize 1000 objects.
  * An example how to import vgg net neural network  from Tensorflow is given in VggNetImport.
  * Original paper about VGGNet is available at https://arxiv.org/abs/1409.1556
- * This example requires minimum 3gb of memory to run due to a  large  neural network.
+ * The first run loads the network from the downloaded .dnet file, which requires minimum 3gb of memory, and saves
+ * its weights to a binary model file. Following runs load only weights from the binary file, for inference only,
+ * and need much less memory: no training buffers and layer outputs are allocated. Heap used after loading is printed,
+ * it includes weights, where Winograd transformed filters take 16/9 the size of the 3x3 filters they replace,
+ * and buffers of the threads which run predictions.
+ * Convolutional layers are computed as matrix multiplications or with Winograd minimal filtering on all cores,
+ * see ConvolutionBenchmark for time per layer of each algorithm and of the library layers.
  * 
  * For best performance use the following JVM switches to run this example: -Xms3g  -XX:MaxInlineSize=50
  * -Xms3g starts jvm with min 3g of memory
@@ -42,26 +55,44 @@ public class VggNetInference {
         // download and unpack pre-trained vggnet16 into local {user.home}/.deepnetts dir (if it does now allready exist there)
         downloadIfNotExists(vggNetFile, "https://www.dropbox.com/scl/fi/tnwww1p9ie5wttuglt3m7/vggnet16_3.1.0.zip?rlkey=35frfi498gj6nm693rzge8apb&dl=1");
 
-        // create an instance of trained VGGNet16 from file 
-        VggNet16 neuralNetwork = VggNet16.fromFile(vggNetFile); 
+        // create an instance of trained VGGNet16 from file, with weights only, and without buffers for training and layer outputs
+        Path binaryFile = Paths.get(deepNettsDir, "vggnet16" + BinaryModelFile.EXTENSION);
+        if (!Files.exists(binaryFile)) {
+            BinaryModelFile.write(FileIO.createFromFile(vggNetFile, ConvolutionalNetwork.class), binaryFile);
+        }
+        // convolutional layers are lowered to matrix multiplication, and each of them is computed on all cores
+        VggNet16 neuralNetwork = VggNet16.fromBinaryFile(binaryFile, Runtime.getRuntime().availableProcessors());
+        System.gc();
+        Runtime runtime = Runtime.getRuntime();
+        System.out.printf("Loaded %d weights, %d MB per prediction thread, heap used %d MB%n", neuralNetwork.getInference().getNumParams(),
+                          neuralNetwork.getInference().getContextBytes() >> 20, (runtime.totalMemory() - runtime.freeMemory()) >> 20);
 
         // load and preprocess an image
         VggNet16InputImage vggInputImage = new VggNet16InputImage("datasets/test_vgg/airplane.jpg");     
                 
+        // warm up JVM until inference time is stable, a single call is not enough for JIT to compile everything
+        // since each call is slow, one call per window is enough
+        WarmUp<VggNet16InputImage, String> warmUp = WarmUp.builder(images -> images.stream().map(neuralNetwork::guessLabel).collect(Collectors.toList()),
+                                                                   Collections.singletonList(vggInputImage))
+                                                          .windowSize(1)
+                                                          .stableWindows(2)
+                                                          .tolerance(0.2)
+                                                          .timeout(2, TimeUnit.MINUTES)
+                                                          .build();
+        System.out.println(warmUp.run());
+
         // guess/predict a label for the given image (specified as path to the image)
         // String label = neuralNetwork.guessLabel("datasets/test_vgg/airplane.jpg"); // change this path to an image to test other images/objects           
-        // run once to warmup JVM
-        String label = neuralNetwork.guessLabel(vggInputImage);
-        
         long startTime = System.currentTimeMillis(); 
-        label = neuralNetwork.guessLabel(vggInputImage);              
+        String label = neuralNetwork.guessLabel(vggInputImage);              
      //   label = neuralNetwork.guessLabel("datasets/test_vgg/airplane.jpg");     
         long stopTime = System.currentTimeMillis();
         
         // print predicted label and inference time
         System.out.println("This image contains: " + label + " time:" + (stopTime-startTime));
                 
-        // shutdown the deep netts thread pool
+        // shutdown threads of convolutional layers and the deep netts thread pool
+        neuralNetwork.close();
         DeepNetts.shutdown();
     }
     
@@ -0,0 +1,107 @@
+package deepnetts.examples.tensorflow.vggnet;
+
+import deepnetts.core.DeepNetts;
+import deepnetts.examples.inference.ConvolutionAlgorithm;
+import deepnetts.examples.inference.ConvolutionalInference;
+import deepnetts.examples.io.BinaryModelFile;
+import deepnetts.examples.pruning.MagnitudePruner;
+import deepnetts.net.ConvolutionalNetwork;
+import deepnetts.util.FileIO;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Example how to prune pre-trained VggNet16 with {@link MagnitudePruner}, and how much smaller and faster it gets.
+ * The two hidden fully connected layers (25088x4096 and 4096x4096) hold 120M of its 138M weights, and after pruning they are
+ * computed as sparse matrices. This example prunes them to the given sparsity (first argument, default 0.9), prints size
+ * of each layer, then classifies all images in datasets/test_vgg with the original and the pruned network, and prints
+ * labels of both, time per image and top-1 agreement.
+ * The pruned network is saved to a binary model file with pruned layers stored as sparse matrices, so the file is smaller
+ * too, and it can be used with {@link VggNet16#fromBinaryFile(Path)}. Sizes of both files are printed, with the size of weights
+ * in memory of inferences.
+ *
+ * Convolutional layers take most of the time of a prediction, so pruning reduces total time much less than the time of
+ * fully connected layers (see SparseBenchmark for time per layer).
+ *
+ * Run with -Xmx3g, and with --add-modules jdk.incubator.vector for vector kernels.
+ */
+public class VggNetPruning {
+
+    public static void main(String[] args) throws IOException, ClassNotFoundException {
+        double sparsity = args.length > 0 ? Double.parseDouble(args[0]) : 0.9;
+        int threads = Runtime.getRuntime().availableProcessors();
+        String deepNettsDir = System.getProperty("user.home") + "/.deepnetts";
+        String vggNetFile = deepNettsDir + "/vggnet16.dnet";
+        VggNetInference.downloadIfNotExists(vggNetFile, "https://www.dropbox.com/scl/fi/tnwww1p9ie5wttuglt3m7/vggnet16_3.1.0.zip?rlkey=35frfi498gj6nm693rzge8apb&dl=1");
+        Path binaryFile = Paths.get(deepNettsDir, "vggnet16" + BinaryModelFile.EXTENSION);
+        if (!Files.exists(binaryFile)) {
+            BinaryModelFile.write(FileIO.createFromFile(vggNetFile, ConvolutionalNetwork.class), binaryFile);
+        }
+
+        VggNet16 original = VggNet16.fromBinaryFile(binaryFile, threads);
+
+        // prune a copy of the network, and save it
+        ConvolutionalNetwork network = BinaryModelFile.read(binaryFile, ConvolutionalNetwork.class);
+        long start = System.nanoTime();
+        MagnitudePruner.Report report = MagnitudePruner.builder().sparsity(sparsity).build().prune(network);
+        System.out.printf("Pruned to %.0f%% sparsity in %d ms%n", 100 * sparsity, (System.nanoTime() - start) / 1_000_000);
+        System.out.println(report);
+        Path prunedFile = Paths.get(deepNettsDir, String.format("vggnet16_pruned%.0f%s", 100 * sparsity, BinaryModelFile.EXTENSION));
+        BinaryModelFile.write(network, prunedFile, ConvolutionalInference.DEFAULT_SPARSE_DENSITY);
+        System.out.printf("Saved pruned network to %s%n", prunedFile);
+
+        VggNet16 pruned = new VggNet16(ConvolutionalInference.builder(network).convolution(ConvolutionAlgorithm.AUTO).threads(threads).build(),
+                                       network.getOutputLabels());
+
+        List<Path> imageFiles;
+        try (Stream<Path> files = Files.list(Paths.get("datasets/test_vgg"))) {
+            imageFiles = files.filter(file -> file.toString().endsWith(".jpg")).sorted().collect(Collectors.toList());
+        }
+        List<VggNet16InputImage> images = new ArrayList<>();
+        for (Path imageFile : imageFiles) {
+            images.add(new VggNet16InputImage(imageFile.toString()));
+        }
+
+        // first image is classified once by both networks to warm up JVM
+        original.guessLabel(images.get(0));
+        pruned.guessLabel(images.get(0));
+
+        System.out.printf("%-20s %-24s %-24s %12s %12s%n", "image", "original", "pruned", "original ms", "pruned ms");
+        int agree = 0;
+        long originalNanos = 0, prunedNanos = 0;
+        for (int i = 0; i < images.size(); i++) {
+            start = System.nanoTime();
+            String originalLabel = original.guessLabel(images.get(i));
+            long originalTime = System.nanoTime() - start;
+            start = System.nanoTime();
+            String prunedLabel = pruned.guessLabel(images.get(i));
+            long prunedTime = System.nanoTime() - start;
+
+            originalNanos += originalTime;
+            prunedNanos += prunedTime;
+            if (originalLabel.equals(prunedLabel)) {
+                agree++;
+            }
+            System.out.printf("%-20s %-24s %-24s %12.1f %12.1f%n", imageFiles.get(i).getFileName(), originalLabel.trim(), prunedLabel.trim(),
+                              originalTime / 1e6, prunedTime / 1e6);
+        }
+
+        System.out.printf("Top-1 agreement %d/%d (%.1f%%)%n", agree, images.size(), 100.0 * agree / images.size());
+        System.out.printf("Time per image %.1f ms original, %.1f ms pruned (%.2fx faster)%n", originalNanos / 1e6 / images.size(),
+                          prunedNanos / 1e6 / images.size(), (double) originalNanos / prunedNanos);
+        System.out.printf("Weights in memory %.1f MB original, %.1f MB pruned (%.1fx smaller)%n", report.getDenseBytes() / 1e6,
+                          report.getSparseBytes() / 1e6, report.getSizeReduction());
+        System.out.printf("Model file %.1f MB original, %.1f MB pruned (%.1fx smaller)%n", Files.size(binaryFile) / 1e6,
+                          Files.size(prunedFile) / 1e6, (double) Files.size(binaryFile) / Files.size(prunedFile));
+
+        original.close();
+        pruned.close();
+        DeepNetts.shutdown();
+    }
+}
@@ -0,0 +1,82 @@
+package deepnetts.examples.tensorflow.vggnet;
+
+import deepnetts.core.DeepNetts;
+import deepnetts.examples.io.BinaryModelFile;
+import deepnetts.examples.similarity.EmbeddingStore;
+import deepnetts.examples.similarity.HnswIndex;
+import deepnetts.examples.similarity.Neighbor;
+import deepnetts.net.ConvolutionalNetwork;
+import deepnetts.util.FileIO;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Example how to use VggNet16 as a feature extractor to find similar images.
+ *
+ * Embedding of an image is the output of the last hidden layer of VggNet16 (4096 values, see {@link VggNet16#embedding}),
+ * normalized, so that distance of two embeddings is 2 - 2 * cosine similarity. Embeddings of all images in a catalog
+ * (here datasets/test_vgg, or the directory given as the first argument) are written to a memory mapped
+ * {@link EmbeddingStore}, with image names in a text file, and indexed by an {@link HnswIndex} which is saved next to it.
+ * Then each image is used as a query, and its most similar images are printed.
+ *
+ * Run with -Xmx2g, and with --add-modules jdk.incubator.vector for vector kernels.
+ * See SimilaritySearchBenchmark for recall and speed of the index on larger catalogs.
+ */
+public class VggNetSimilarImages {
+
+    public static void main(String[] args) throws IOException, ClassNotFoundException {
+        Path imageDir = Paths.get(args.length > 0 ? args[0] : "datasets/test_vgg");
+        String deepNettsDir = System.getProperty("user.home") + "/.deepnetts";
+        String vggNetFile = deepNettsDir + "/vggnet16.dnet";
+        VggNetInference.downloadIfNotExists(vggNetFile, "https://www.dropbox.com/scl/fi/tnwww1p9ie5wttuglt3m7/vggnet16_3.1.0.zip?rlkey=35frfi498gj6nm693rzge8apb&dl=1");
+        Path binaryFile = Paths.get(deepNettsDir, "vggnet16" + BinaryModelFile.EXTENSION);
+        if (!Files.exists(binaryFile)) {
+            BinaryModelFile.write(FileIO.createFromFile(vggNetFile, ConvolutionalNetwork.class), binaryFile);
+        }
+        VggNet16 vggNet = VggNet16.fromBinaryFile(binaryFile, Runtime.getRuntime().availableProcessors());
+
+        List<Path> imageFiles;
+        try (Stream<Path> files = Files.list(imageDir)) {
+            imageFiles = files.filter(file -> file.toString().toLowerCase().endsWith(".jpg")).sorted().collect(Collectors.toList());
+        }
+
+        // embeddings of all images, in the same order as image names
+        Path storeFile = Paths.get(deepNettsDir, "vggnet16_embeddings" + EmbeddingStore.EXTENSION);
+        Path namesFile = Paths.get(deepNettsDir, "vggnet16_embeddings.txt");
+        Path indexFile = Paths.get(deepNettsDir, "vggnet16_embeddings" + HnswIndex.EXTENSION);
+        long start = System.nanoTime();
+        try (EmbeddingStore.Writer writer = EmbeddingStore.create(storeFile, 4096)) {
+            for (Path imageFile : imageFiles) {
+                writer.add(EmbeddingStore.normalize(vggNet.embedding(new VggNet16InputImage(imageFile.toString()))));
+            }
+        }
+        List<String> names = imageFiles.stream().map(file -> file.getFileName().toString()).collect(Collectors.toList());
+        Files.write(namesFile, names, StandardCharsets.UTF_8);
+        System.out.printf("Extracted embeddings of %d images in %.1f ms per image%n", names.size(), (System.nanoTime() - start) / 1e6 / names.size());
+
+        try (EmbeddingStore store = EmbeddingStore.open(storeFile)) {
+            HnswIndex.builder().build(store).save(indexFile);
+
+            // the saved index and store can be opened by other processes, like a search service
+            HnswIndex index = HnswIndex.load(indexFile, store);
+            for (int i = 0; i < store.size(); i++) {
+                final int query = i;
+                List<Neighbor> similar = index.search(store.get(query), 4);
+                String similarNames = similar.stream()
+                                             .filter(neighbor -> neighbor.getId() != query) // the query image itself
+                                             .limit(3)
+                                             .map(neighbor -> String.format("%s (%.2f)", names.get(neighbor.getId()), 1 - neighbor.getDistance() / 2))
+                                             .collect(Collectors.joining(", "));
+                System.out.printf("%-20s similar to %s (cosine similarity)%n", names.get(query), similarNames);
+            }
+        }
+        vggNet.close();
+        DeepNetts.shutdown();
+    }
+}
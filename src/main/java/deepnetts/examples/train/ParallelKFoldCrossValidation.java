@@ -0,0 +1,277 @@
+package deepnetts.examples.train;
+
+import deepnetts.data.MLDataItem;
+import deepnetts.examples.data.DataSplits;
+import deepnetts.examples.data.IndexedDataSet;
+import deepnetts.net.NeuralNetwork;
+import deepnetts.net.train.BackpropagationTrainer;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
+import java.util.logging.Logger;
+import javax.visrec.ml.data.DataSet;
+import javax.visrec.ml.eval.EvaluationMetrics;
+
+/**
+ * K-fold cross-validation which trains all folds concurrently.
+ *
+ * Each fold is trained on its own copy of the model template, so folds do not share any mutable network state.
+ * Training and test sets of the folds are {@link IndexedDataSet} views over the given (already normalized) data set,
+ * so the data is not copied for each fold.
+ * With enough CPU cores, k-fold cross-validation takes about as long as a single training run.
+ *
+ * Evaluation metrics of all folds are merged into macro average, and the fold with the best result is kept.
+ *
+ * @see deepnetts.net.train.KFoldCrossValidation
+ */
+public class ParallelKFoldCrossValidation {
+
+    private final NeuralNetwork model;
+    private final DataSet<MLDataItem> dataSet;
+    private final int numSplits;
+    private final BiFunction<NeuralNetwork, DataSet<MLDataItem>, EvaluationMetrics> evaluator;
+    private final Consumer<BackpropagationTrainer> trainerSettings;
+    private final List<String> metricNames;
+    private final String bestMetric;
+    private final boolean higherIsBetter;
+    private final long randomSeed;
+    private final int numThreads;
+
+    private final List<EvaluationMetrics> foldResults = new ArrayList<>();
+    private final List<NeuralNetwork> foldNetworks = new ArrayList<>();
+
+    private static final Logger LOGGER = Logger.getLogger(ParallelKFoldCrossValidation.class.getName());
+
+    private ParallelKFoldCrossValidation(Builder builder) {
+        this.model = builder.model;
+        this.dataSet = builder.dataSet;
+        this.numSplits = builder.numSplits;
+        this.evaluator = builder.evaluator;
+        this.trainerSettings = builder.trainerSettings;
+        this.metricNames = builder.metricNames;
+        this.bestMetric = builder.bestMetric;
+        this.higherIsBetter = builder.higherIsBetter;
+        this.randomSeed = builder.randomSeed;
+        this.numThreads = builder.numThreads;
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * Trains and evaluates a copy of the model for each fold, with folds running in parallel.
+     *
+     * @throws IllegalStateException if a copy of the model has no trainer, or if training of a fold fails
+     */
+    public void run() {
+        foldResults.clear();
+        foldNetworks.clear();
+
+        byte[] serializedModel = serialize(model);
+        List<IndexedDataSet<MLDataItem>[]> folds = DataSplits.kFold(dataSet, numSplits, new Random(randomSeed));
+
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(numThreads, numSplits));
+        try {
+            List<Future<EvaluationMetrics>> results = new ArrayList<>();
+            for (int fold = 0; fold < numSplits; fold++) {
+                DataSet<MLDataItem> trainingSet = folds.get(fold)[0];
+                DataSet<MLDataItem> testSet = folds.get(fold)[1];
+                NeuralNetwork network = deserialize(serializedModel); // independent copy of the untrained template
+                if (network.getTrainer() == null) { // checked here, so that it does not fail later as an NPE inside a fold task
+                    throw new IllegalStateException("Copy of the model template has no trainer, use a network created by its builder,"
+                                                    + " with a trainer which is serialized with it");
+                }
+                if (trainerSettings != null) {
+                    trainerSettings.accept(network.getTrainer());
+                }
+
+                final int foldIdx = fold;
+                results.add(executor.submit(() -> {
+                    LOGGER.info("Training fold " + (foldIdx + 1) + "/" + numSplits);
+                    network.train(trainingSet);
+                    return evaluator.apply(network, testSet);
+                }));
+                foldNetworks.add(network);
+            }
+
+            for (Future<EvaluationMetrics> result : results) {
+                foldResults.add(result.get());
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Cross-validation has been interrupted", ex);
+        } catch (ExecutionException ex) {
+            throw new IllegalStateException("Training of cross-validation fold failed", ex.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static byte[] serialize(NeuralNetwork network) {
+        try (ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+             ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(network);
+            out.flush();
+            return bytes.toByteArray();
+        } catch (IOException ex) {
+            throw new UncheckedIOException("Could not copy model template", ex);
+        }
+    }
+
+    private static NeuralNetwork deserialize(byte[] bytes) {
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes))) {
+            return (NeuralNetwork) in.readObject();
+        } catch (IOException ex) {
+            throw new UncheckedIOException("Could not copy model template", ex);
+        } catch (ClassNotFoundException ex) {
+            throw new IllegalStateException("Could not copy model template", ex);
+        }
+    }
+
+    /**
+     * Returns evaluation metrics of each fold, in fold order.
+     */
+    public List<EvaluationMetrics> getResults() {
+        return Collections.unmodifiableList(foldResults);
+    }
+
+    /**
+     * Returns average value of each metric over all folds.
+     */
+    public EvaluationMetrics getMacroAverage() {
+        checkCompleted();
+        EvaluationMetrics average = new EvaluationMetrics();
+        for (String name : metricNames) {
+            float sum = 0;
+            for (EvaluationMetrics result : foldResults) {
+                sum += result.get(name);
+            }
+            average.set(name, sum / foldResults.size());
+        }
+        return average;
+    }
+
+    public EvaluationMetrics getBestResult() {
+        return foldResults.get(bestFold());
+    }
+
+    public NeuralNetwork getBestNetwork() {
+        return foldNetworks.get(bestFold());
+    }
+
+    private int bestFold() {
+        checkCompleted();
+        int best = 0;
+        for (int fold = 1; fold < foldResults.size(); fold++) {
+            float value = foldResults.get(fold).get(bestMetric);
+            float bestValue = foldResults.get(best).get(bestMetric);
+            if (higherIsBetter ? value > bestValue : value < bestValue) {
+                best = fold;
+            }
+        }
+        return best;
+    }
+
+    private void checkCompleted() {
+        if (foldResults.isEmpty()) {
+            throw new IllegalStateException("Cross-validation has not been run!");
+        }
+    }
+
+    public static class Builder {
+
+        private NeuralNetwork model;
+        private DataSet<MLDataItem> dataSet;
+        private int numSplits = 5;
+        private BiFunction<NeuralNetwork, DataSet<MLDataItem>, EvaluationMetrics> evaluator = (network, testSet) -> network.test(testSet);
+        private Consumer<BackpropagationTrainer> trainerSettings;
+        private List<String> metricNames = Arrays.asList(EvaluationMetrics.ACCURACY, EvaluationMetrics.PRECISION, EvaluationMetrics.RECALL, EvaluationMetrics.F1SCORE);
+        private String bestMetric = EvaluationMetrics.ACCURACY;
+        private boolean higherIsBetter = true;
+        private long randomSeed = 0;
+        private int numThreads = Runtime.getRuntime().availableProcessors();
+
+        /**
+         * Model template, each fold is trained on its own (serialized) copy of it.
+         */
+        public Builder model(NeuralNetwork model) {
+            this.model = model;
+            return this;
+        }
+
+        public Builder trainingSet(DataSet<MLDataItem> dataSet) {
+            this.dataSet = dataSet;
+            return this;
+        }
+
+        public Builder numSplits(int numSplits) {
+            this.numSplits = numSplits;
+            return this;
+        }
+
+        /**
+         * Evaluator is called concurrently from several threads, so it should not share state between calls.
+         */
+        public Builder evaluator(BiFunction<NeuralNetwork, DataSet<MLDataItem>, EvaluationMetrics> evaluator) {
+            this.evaluator = evaluator;
+            return this;
+        }
+
+        /**
+         * Training settings applied to the trainer of each fold network.
+         */
+        public Builder trainerSettings(Consumer<BackpropagationTrainer> trainerSettings) {
+            this.trainerSettings = trainerSettings;
+            return this;
+        }
+
+        /**
+         * Names of metrics which are averaged in macro average. Default are classification metrics.
+         */
+        public Builder metrics(String... metricNames) {
+            this.metricNames = Arrays.asList(metricNames);
+            return this;
+        }
+
+        /**
+         * Metric used to choose the best fold, and whether higher value is better (like accuracy) or lower (like error).
+         */
+        public Builder bestBy(String metricName, boolean higherIsBetter) {
+            this.bestMetric = metricName;
+            this.higherIsBetter = higherIsBetter;
+            return this;
+        }
+
+        public Builder randomSeed(long randomSeed) {
+            this.randomSeed = randomSeed;
+            return this;
+        }
+
+        public Builder numThreads(int numThreads) {
+            this.numThreads = numThreads;
+            return this;
+        }
+
+        public ParallelKFoldCrossValidation build() {
+            if (model == null || dataSet == null) {
+                throw new IllegalStateException("Model and training set must be set!");
+            }
+            return new ParallelKFoldCrossValidation(this);
+        }
+    }
+}
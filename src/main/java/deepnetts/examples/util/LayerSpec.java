@@ -0,0 +1,134 @@
+package deepnetts.examples.util;
+
+import deepnetts.net.NeuralNetwork;
+import deepnetts.net.layers.AbstractLayer;
+import deepnetts.net.layers.ConvolutionalLayer;
+import deepnetts.net.layers.FullyConnectedLayer;
+import deepnetts.net.layers.InputLayer;
+import deepnetts.net.layers.MaxPoolingLayer;
+import deepnetts.net.layers.OutputLayer;
+import deepnetts.net.layers.activation.ActivationType;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Architecture of a single network layer: type, output dimensions, filter size and activation.
+ * Used to describe a network independently of its layer objects, for example to save it in a file,
+ * or to build an inference engine for it.
+ */
+public final class LayerSpec {
+
+    public enum Type {
+        INPUT, FULLY_CONNECTED, CONVOLUTIONAL, MAX_POOLING, OUTPUT
+    }
+
+    private final Type type;
+    private final int width, height, depth;
+    private final int filterWidth, filterHeight, stride;
+    private final ActivationType activation;
+
+    public LayerSpec(Type type, int width, int height, int depth, int filterWidth, int filterHeight, int stride, ActivationType activation) {
+        this.type = type;
+        this.width = width;
+        this.height = height;
+        this.depth = depth;
+        this.filterWidth = filterWidth;
+        this.filterHeight = filterHeight;
+        this.stride = stride;
+        this.activation = activation;
+    }
+
+    /**
+     * Returns specification of the given layer.
+     */
+    public static LayerSpec of(AbstractLayer layer) {
+        if (layer instanceof InputLayer) {
+            return new LayerSpec(Type.INPUT, layer.getWidth(), layer.getHeight(), layer.getDepth(), 0, 0, 0, null);
+        } else if (layer instanceof ConvolutionalLayer) {
+            ConvolutionalLayer conv = (ConvolutionalLayer) layer;
+            return new LayerSpec(Type.CONVOLUTIONAL, layer.getWidth(), layer.getHeight(), layer.getDepth(),
+                                 conv.getFilterWidth(), conv.getFilterHeight(), conv.getStride(), layer.getActivationType());
+        } else if (layer instanceof MaxPoolingLayer) {
+            MaxPoolingLayer pool = (MaxPoolingLayer) layer;
+            return new LayerSpec(Type.MAX_POOLING, layer.getWidth(), layer.getHeight(), layer.getDepth(),
+                                 pool.getFilterWidth(), pool.getFilterHeight(), pool.getStride(), null);
+        } else if (layer instanceof OutputLayer) { // check before fully connected, in case output layer extends it
+            return new LayerSpec(Type.OUTPUT, layer.getWidth(), layer.getHeight(), layer.getDepth(), 0, 0, 0, layer.getActivationType());
+        } else if (layer instanceof FullyConnectedLayer) {
+            return new LayerSpec(Type.FULLY_CONNECTED, layer.getWidth(), layer.getHeight(), layer.getDepth(), 0, 0, 0, layer.getActivationType());
+        }
+        throw new IllegalArgumentException("Unsupported layer type: " + layer.getClass().getName());
+    }
+
+    /**
+     * Returns specifications of all layers in the given network, starting with the input layer.
+     */
+    public static List<LayerSpec> of(NeuralNetwork<?> network) {
+        List<LayerSpec> specs = new ArrayList<>();
+        for (AbstractLayer layer : network.getLayers()) {
+            specs.add(of(layer));
+        }
+        return specs;
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public int getDepth() {
+        return depth;
+    }
+
+    /**
+     * Returns number of outputs of this layer (width * height * depth).
+     */
+    public int getSize() {
+        return width * Math.max(height, 1) * Math.max(depth, 1);
+    }
+
+    public int getFilterWidth() {
+        return filterWidth;
+    }
+
+    public int getFilterHeight() {
+        return filterHeight;
+    }
+
+    public int getStride() {
+        return stride;
+    }
+
+    /**
+     * Returns activation function of this layer, or null for input and max pooling layers.
+     */
+    public ActivationType getActivation() {
+        return activation;
+    }
+
+    /**
+     * Returns true if this layer has weights and biases.
+     */
+    public boolean hasWeights() {
+        return type == Type.FULLY_CONNECTED || type == Type.CONVOLUTIONAL || type == Type.OUTPUT;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder(type.name()).append(' ').append(width).append('x').append(height).append('x').append(depth);
+        if (type == Type.CONVOLUTIONAL || type == Type.MAX_POOLING) {
+            sb.append(" filter ").append(filterWidth).append('x').append(filterHeight).append(" stride ").append(stride);
+        }
+        if (activation != null) {
+            sb.append(' ').append(activation);
+        }
+        return sb.toString();
+    }
+}